@@ -0,0 +1,72 @@
+package me.hi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ghost glass for one player near the border: the old cube scan (BaselineBorderGlass) against
+ * BorderManager#collectGlass, over the same fixed set of positions around the production border.
+ *
+ * FakeWorld's getBlockAt is far cheaper than a server's, so the cube scan's real cost is understated.
+ * Run with: mvn -P jmh test-compile exec:exec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class BorderGlassBenchmark {
+    private static final int MIN_X = -1164, MAX_X = 836, MIN_Z = 857, MAX_Z = 2857;
+    private static final int RADIUS = 7;
+    private static final int POSITIONS = 1024;
+
+    private FakeWorld fake;
+    private BlitzUHC.BorderManager border;
+    private final BlitzUHC.BlockKeySet cells = new BlitzUHC.BlockKeySet();
+    private final int[][] positions = new int[POSITIONS][];
+    private int next;
+
+    @Setup
+    public void setup() {
+        fake = new FakeWorld();
+        border = new BlitzUHC.BorderManager(MIN_X, MAX_X, MIN_Z, MAX_Z);
+        border.generateWalls(fake.world);
+        Random random = new Random(21L);
+        for (int i = 0; i < POSITIONS; i++) {
+            // Within glass range of the west wall, at walking height
+            positions[i] = new int[]{MIN_X + random.nextInt(15) - 7, 60 + random.nextInt(15),
+                    MIN_Z + random.nextInt(MAX_Z - MIN_Z)};
+        }
+    }
+
+    private int[] nextPosition() {
+        next = (next + 1) & (POSITIONS - 1);
+        return positions[next];
+    }
+
+    @Benchmark
+    public int cubeScan() {
+        int[] p = nextPosition();
+        return BaselineBorderGlass.glass(fake.world, MIN_X, MAX_X, MIN_Z, MAX_Z, p[0], p[1], p[2], RADIUS).size();
+    }
+
+    @Benchmark
+    public int collectGlass() {
+        int[] p = nextPosition();
+        cells.clear();
+        border.collectGlass(fake.world, p[0], p[1], p[2], RADIUS, cells);
+        return cells.size();
+    }
+}
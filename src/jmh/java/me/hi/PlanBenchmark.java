@@ -0,0 +1,137 @@
+package me.hi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PreferenceStore#plan for the PrefsCorpus players, loaded into a store on shard files: a memo hit (the same kit
+ * layout as last time), a miss (two layouts alternating, so every plan is computed), and misses while another thread
+ * keeps saving snapshots of other players, as the main thread does at match finish.
+ * Run with: mvn -P jmh test-compile exec:exec -Djmh.include=Plan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class PlanBenchmark {
+    private File dir;
+    private InventorySorter.PreferenceStore store;
+    private PrefsCorpus corpus;
+    // Per player: the kit in its own order, and the same kit reversed
+    private InventorySorter.ItemSignature[][] kitOrder;
+    private InventorySorter.ItemSignature[][] reversed;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("plan-benchmark").toFile();
+        corpus = new PrefsCorpus();
+        ShardFileBackend shards = new ShardFileBackend(dir);
+        int players = corpus.players.size();
+        kitOrder = new InventorySorter.ItemSignature[players][];
+        reversed = new InventorySorter.ItemSignature[players][];
+        for (int i = 0; i < players; i++) {
+            PrefsCorpus.Player player = corpus.players.get(i);
+            InventorySorter.Layout layout = InventorySorter.Layout.acquire(player.prefs);
+            try {
+                shards.upsert(Collections.singletonMap(player.id,
+                        InventorySorter.PrefsCodec.encode(layout, player.history, player.recency, false)));
+            } finally {
+                layout.release();
+            }
+            List<InventorySorter.ItemSignature> kit = new ArrayList<InventorySorter.ItemSignature>();
+            for (Map.Entry<InventorySorter.ItemSignature, List<Integer>> e : player.prefs.entrySet()) {
+                for (int n = 0; n < e.getValue().size(); n++) kit.add(e.getKey());
+            }
+            kitOrder[i] = new InventorySorter.ItemSignature[36];
+            reversed[i] = new InventorySorter.ItemSignature[36];
+            for (int slot = 0; slot < kit.size() && slot < 36; slot++) {
+                kitOrder[i][slot] = kit.get(slot);
+                reversed[i][slot] = kit.get(kit.size() - 1 - slot);
+            }
+        }
+        store = new InventorySorter.PreferenceStore(dir, null, "shards", 0, 0L, 0L, null);
+        for (PrefsCorpus.Player player : corpus.players) store.load(player.id);
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.close();
+        deleteRecursively(dir);
+    }
+
+    /**
+     * Each benchmark thread walks the players on its own.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+        boolean flip;
+
+        int next(int players) {
+            next = next + 1 == players ? 0 : next + 1;
+            if (next == 0) flip = !flip;
+            return next;
+        }
+    }
+
+    @Benchmark
+    public int[] planHit(Cursor cursor) {
+        int i = cursor.next(kitOrder.length);
+        return store.plan(corpus.players.get(i).id, kitOrder[i]);
+    }
+
+    @Benchmark
+    public int[] planMiss(Cursor cursor) {
+        int i = cursor.next(kitOrder.length);
+        return store.plan(corpus.players.get(i).id, cursor.flip ? reversed[i] : kitOrder[i]);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public int[] planWhileSaving(Cursor cursor) {
+        // The first half of the players only
+        int i = cursor.next(kitOrder.length / 2);
+        return store.plan(corpus.players.get(i).id, cursor.flip ? reversed[i] : kitOrder[i]);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void saveOtherPlayers(Cursor cursor) {
+        // The second half, so plans only ever contend on the store, not on a player
+        int i = kitOrder.length / 2 + cursor.next(kitOrder.length - kitOrder.length / 2);
+        store.saveSlotHistory(corpus.players.get(i).id, kitOrder[i], System.currentTimeMillis());
+    }
+
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        f.delete();
+    }
+}
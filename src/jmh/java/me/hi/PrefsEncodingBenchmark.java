@@ -0,0 +1,92 @@
+package me.hi;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding one player's preferences from PrefsCorpus, PrefsCodec against the YAML format it replaced
+ * (BaselinePrefsYaml). Setup prints the corpus size in both formats.
+ * Run with: mvn -P jmh test-compile exec:exec -Djmh.include=PrefsEncoding
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class PrefsEncodingBenchmark {
+    private PrefsCorpus corpus;
+    private byte[][] codec;
+    private String[] yaml;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        corpus = new PrefsCorpus();
+        int players = corpus.players.size();
+        codec = new byte[players][];
+        yaml = new String[players];
+        long codecBytes = 0, yamlBytes = 0;
+        for (int i = 0; i < players; i++) {
+            codec[i] = encodeCodec(corpus.players.get(i));
+            yaml[i] = BaselinePrefsYaml.encode(corpus.players.get(i));
+            codecBytes += codec[i].length;
+            yamlBytes += yaml[i].getBytes(StandardCharsets.UTF_8).length;
+        }
+        System.out.printf("%n%d players: PrefsCodec %d bytes (%d/player), YAML %d bytes (%d/player)%n",
+                players, codecBytes, codecBytes / players, yamlBytes, yamlBytes / players);
+    }
+
+    private int nextPlayer() {
+        next = next + 1 == codec.length ? 0 : next + 1;
+        return next;
+    }
+
+    @Benchmark
+    public byte[] encodeCodec() throws IOException {
+        return encodeCodec(corpus.players.get(nextPlayer()));
+    }
+
+    @Benchmark
+    public String encodeYaml() {
+        return BaselinePrefsYaml.encode(corpus.players.get(nextPlayer()));
+    }
+
+    @Benchmark
+    public InventorySorter.PreferenceStore.PlayerData decodeCodec() throws IOException {
+        int i = nextPlayer();
+        InventorySorter.PreferenceStore.PlayerData data = new InventorySorter.PreferenceStore.PlayerData(corpus.players.get(i).id);
+        InventorySorter.PrefsCodec.decode(codec[i], data, Collections.<Integer, InventorySorter.Layout>emptyMap());
+        data.release();
+        return data;
+    }
+
+    @Benchmark
+    public PrefsCorpus.Player decodeYaml() throws InvalidConfigurationException {
+        int i = nextPlayer();
+        return BaselinePrefsYaml.decode(yaml[i], new PrefsCorpus.Player(corpus.players.get(i).id));
+    }
+
+    private static byte[] encodeCodec(PrefsCorpus.Player player) throws IOException {
+        InventorySorter.Layout layout = InventorySorter.Layout.acquire(player.prefs);
+        try {
+            return InventorySorter.PrefsCodec.encode(layout, player.history, player.recency);
+        } finally {
+            layout.release();
+        }
+    }
+}
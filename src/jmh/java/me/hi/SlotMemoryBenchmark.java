@@ -0,0 +1,150 @@
+package me.hi;
+
+import org.bukkit.Material;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-player heap of slot history and recency: SlotHistory / SignatureSlotRecency against the boxed structures they
+ * replaced (BaselineSlotHistory / BaselineSignatureSlotRecency), holding the same entries. Setup prints JOL's retained
+ * size per player for the PrefsCorpus players and for a wide set (60 signatures rotating over all 36 slots, 40
+ * snapshots), not counting the interned signatures and cached Integers both share with the rest of the server. The
+ * benchmarks time recording one snapshot (PreferenceStore.saveSlotHistory's loop) into each.
+ * Run with: mvn -P jmh test-compile exec:exec -Djmh.include=SlotMemory
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class SlotMemoryBenchmark {
+    private static final int WIDE_PLAYERS = 200;
+    private static final int WIDE_SIGNATURES = 60;
+    private static final int WIDE_SNAPSHOTS = 40;
+
+    private final List<InventorySorter.ItemSignature[]> snapshots = new ArrayList<InventorySorter.ItemSignature[]>();
+    private InventorySorter.SlotHistory history;
+    private InventorySorter.SignatureSlotRecency recency;
+    private BaselineSlotHistory baselineHistory;
+    private BaselineSignatureSlotRecency baselineRecency;
+    private int next;
+    private long ts = 1700000000000L;
+
+    @Setup
+    public void setup() {
+        PrefsCorpus corpus = new PrefsCorpus();
+        List<InventorySorter.SlotHistory> histories = new ArrayList<InventorySorter.SlotHistory>();
+        List<InventorySorter.SignatureSlotRecency> recencies = new ArrayList<InventorySorter.SignatureSlotRecency>();
+        for (PrefsCorpus.Player player : corpus.players) {
+            histories.add(player.history);
+            recencies.add(player.recency);
+        }
+        report("PrefsCorpus (" + corpus.players.size() + " players)", histories, recencies);
+
+        Random random = new Random(5L);
+        InventorySorter.ItemSignature[] wide = new InventorySorter.ItemSignature[WIDE_SIGNATURES];
+        for (int i = 0; i < wide.length; i++) {
+            wide[i] = InventorySorter.ItemSignature.intern(Material.STONE, null, "Block " + i, null);
+        }
+        histories.clear();
+        recencies.clear();
+        for (int p = 0; p < WIDE_PLAYERS; p++) {
+            InventorySorter.SlotHistory h = new InventorySorter.SlotHistory();
+            InventorySorter.SignatureSlotRecency r = new InventorySorter.SignatureSlotRecency();
+            long t = ts;
+            for (int s = 0; s < WIDE_SNAPSHOTS; s++) {
+                InventorySorter.ItemSignature[] snapshot = new InventorySorter.ItemSignature[36];
+                for (int slot = 0; slot < 36; slot++) snapshot[slot] = wide[random.nextInt(wide.length)];
+                record(h, r, snapshot, t);
+                if (p == 0) snapshots.add(snapshot);
+                t += 600000L;
+            }
+            histories.add(h);
+            recencies.add(r);
+        }
+        report("Wide (" + WIDE_PLAYERS + " players)", histories, recencies);
+
+        history = histories.get(0);
+        recency = recencies.get(0);
+        baselineHistory = BaselineSlotHistory.copyOf(history);
+        baselineRecency = BaselineSignatureSlotRecency.copyOf(recency);
+    }
+
+    @Benchmark
+    public InventorySorter.SlotHistory snapshotPrimitive() {
+        InventorySorter.ItemSignature[] snapshot = nextSnapshot();
+        record(history, recency, snapshot, ts);
+        return history;
+    }
+
+    @Benchmark
+    public BaselineSlotHistory snapshotBaseline() {
+        InventorySorter.ItemSignature[] snapshot = nextSnapshot();
+        for (int slot = 0; slot < 36; slot++) {
+            baselineHistory.add(slot, snapshot[slot], ts);
+            baselineRecency.put(snapshot[slot], slot, ts);
+        }
+        return baselineHistory;
+    }
+
+    private InventorySorter.ItemSignature[] nextSnapshot() {
+        next = next + 1 == snapshots.size() ? 0 : next + 1;
+        ts += 1000L;
+        return snapshots.get(next);
+    }
+
+    private static void record(InventorySorter.SlotHistory h, InventorySorter.SignatureSlotRecency r,
+                               InventorySorter.ItemSignature[] snapshot, long t) {
+        for (int slot = 0; slot < 36; slot++) {
+            if (snapshot[slot] == null) continue;
+            h.add(slot, snapshot[slot], t);
+            r.put(snapshot[slot], slot, t);
+        }
+    }
+
+    private static void report(String set, List<InventorySorter.SlotHistory> histories,
+                               List<InventorySorter.SignatureSlotRecency> recencies) {
+        long primitive = 0, baseline = 0;
+        for (int i = 0; i < histories.size(); i++) {
+            InventorySorter.SlotHistory h = histories.get(i);
+            InventorySorter.SignatureSlotRecency r = recencies.get(i);
+            Object[] shared = shared(h);
+            primitive += retained(shared, h, r);
+            baseline += retained(shared, BaselineSlotHistory.copyOf(h), BaselineSignatureSlotRecency.copyOf(r));
+        }
+        int n = histories.size();
+        System.out.printf("%n%s: baseline %d bytes/player, primitive %d bytes/player (%.1fx)%n",
+                set, baseline / n, primitive / n, (double) baseline / primitive);
+    }
+
+    // What the structures reach that isn't theirs: the player's interned signatures and the Integer cache
+    private static Object[] shared(InventorySorter.SlotHistory h) {
+        List<Object> shared = new ArrayList<Object>();
+        for (int slot = 0; slot < InventorySorter.SlotHistory.SLOTS; slot++) {
+            for (int i = 0; i < h.size(slot); i++) shared.add(InventorySorter.ItemSignature.byId(h.sigIdAt(slot, i)));
+        }
+        for (int i = -128; i <= 127; i++) shared.add(Integer.valueOf(i));
+        return shared.toArray();
+    }
+
+    // Both parses are self-contained, so objects moving in between don't matter (unlike GraphLayout#subtract)
+    private static long retained(Object[] shared, Object history, Object recency) {
+        return GraphLayout.parseInstance(history, recency, shared).totalSize()
+                - GraphLayout.parseInstance((Object) shared).totalSize();
+    }
+}
@@ -3,10 +3,14 @@ package me.hi;
 import com.comphenix.protocol.ProtocolLibrary;
 import com.comphenix.protocol.ProtocolManager;
 import com.comphenix.protocol.events.PacketAdapter;
+import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.events.PacketEvent;
 import com.comphenix.protocol.events.ListenerPriority;
 import com.comphenix.protocol.PacketType;
 import com.comphenix.protocol.reflect.StructureModifier;
+import com.comphenix.protocol.wrappers.ChunkCoordIntPair;
+import com.comphenix.protocol.wrappers.MultiBlockChangeInfo;
+import com.comphenix.protocol.wrappers.WrappedBlockData;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.Material;
@@ -15,57 +19,206 @@ import org.bukkit.block.Block;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+import tc.oc.pgm.api.match.event.MatchFinishEvent;
 import tc.oc.pgm.api.match.event.MatchStartEvent;
 import tc.oc.pgm.api.match.Match;
-import tc.oc.pgm.blitz.BlitzMatchModule;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class BlitzUHC implements Listener {
 
+    // How long the dig/place listener stays registered after the last ghost glass is gone, so a player pacing at the
+    // edge of the glass radius doesn't register and unregister it every few moves
+    private static final long GLASS_LISTENER_LINGER_TICKS = 100L;
+    private static final Material[] MATERIALS = Material.values();
+    private static final DistanceBand[] BANDS = DistanceBand.values();
+
+    /**
+     * How often a player who moved is re-checked, by distance to the border when last checked. A band's interval must
+     * stay shorter than the time a player needs to cross it and reach the glass radius (7 blocks) at sprint-jump
+     * speed with Speed II, roughly half a block per tick.
+     */
+    private enum DistanceBand {
+        NEAR(1, 16),
+        MID(10, 64),
+        FAR(40, Double.MAX_VALUE);
+
+        final int intervalTicks;
+        final double maxDistance;
+
+        DistanceBand(int intervalTicks, double maxDistance) {
+            this.intervalTicks = intervalTicks;
+            this.maxDistance = maxDistance;
+        }
+
+        static DistanceBand of(double distance) {
+            for (DistanceBand band : BANDS) {
+                if (distance <= band.maxDistance) return band;
+            }
+            return FAR;
+        }
+    }
+
     private BorderManager borderManager;
     private BorderShrinkTask borderShrinkTask;
-    private final Map<UUID, Set<Location>> playerGlassBlocks = new HashMap<>();
+    // Periodic safe-position check while a border match runs
+    private BukkitTask safeCheckTask;
+    // World the border was built in while its match runs, else null. Glass keys carry no world: only this one's
+    // players have any (main thread)
+    private World borderWorld;
+    // Ghost glass each player currently sees; only players with glass have an entry (main thread)
+    private final Map<UUID, GlassState> playerGlass = new HashMap<>();
+    // Sorted copies of the same cells for the packet listener on Netty threads; arrays are replaced, never mutated
+    private final Map<UUID, long[]> publishedGlass = new ConcurrentHashMap<>();
+    // Receives the next glass computation, then swaps with the player's set (main thread)
+    private BlockKeySet scratchGlass = new BlockKeySet();
+    // Players whose block position changed since they were last checked, by the band they were last in (main thread)
+    private final Map<DistanceBand, Set<UUID>> dirtyPlayers = new EnumMap<>(DistanceBand.class);
+    // Swapped with a band's dirty set while it is processed, since a teleport during processing marks players dirty
+    private Set<UUID> processingPlayers = new HashSet<>();
+    private final Map<UUID, DistanceBand> playerBands = new HashMap<>();
+    private long tick;
+    // Fake block changes queued this tick, flushed by flushBlockChanges; buffers are kept and reused (main thread)
+    private final Map<UUID, BlockChangeBuffer> pendingBlocks = new HashMap<>();
+    private boolean tickTaskScheduled;
+    // Every queued change, including ones coalesced away, versus the packets actually sent (main thread)
+    private long fakeBlocksQueued;
+    private long fakeBlockPackets;
+    // Set once MULTI_BLOCK_CHANGE can't be built or sent (incompatible ProtocolLib): plain block changes from then on
+    private boolean multiBlockChangeFailed;
+    // Reused for sendBlockChange, which doesn't keep it (main thread)
+    private final Location scratchLocation = new Location(null, 0, 0, 0);
     private JavaPlugin plugin;
-    private ProtocolManager protocolManager;
-
-    public BlitzUHC(JavaPlugin plugin) {
+    private final MatchContextRegistry contexts;
+    // Null without ProtocolLib: ghost glass then has no dig/place protection and goes out as plain block changes
+    private final BorderPackets packets;
+    // Main thread
+    private boolean glassListenerRegistered;
+    private boolean glassListenerRemovalPending;
+
+    public BlitzUHC(JavaPlugin plugin, MatchContextRegistry contexts) {
         this.plugin = plugin;
-        setupProtocolLib();
+        this.contexts = contexts;
+        for (DistanceBand band : BANDS) dirtyPlayers.put(band, new HashSet<UUID>());
+        // ProtocolLib is a soft dependency: without it nothing may touch its classes, so they only appear in BorderPackets
+        if (Bukkit.getPluginManager().isPluginEnabled("ProtocolLib")) {
+            packets = new BorderPackets();
+        } else {
+            packets = null;
+            Bukkit.getLogger().warning("[PGMUtil] ProtocolLib not available, ghost glass is sent without dig protection or batching");
+        }
     }
 
-    private void setupProtocolLib() {
-        protocolManager = ProtocolLibrary.getProtocolManager();
-        protocolManager.addPacketListener(new PacketAdapter(plugin, ListenerPriority.HIGH,
+    /**
+     * Everything BlitzUHC does through ProtocolLib: the dig/place listener that keeps ghost glass from being broken
+     * client-side, registered by updateGlassListener only while some player has ghost glass, and MULTI_BLOCK_CHANGE.
+     */
+    private final class BorderPackets {
+        private final ProtocolManager protocolManager = ProtocolLibrary.getProtocolManager();
+        private final PacketAdapter glassListener = new PacketAdapter(plugin, ListenerPriority.HIGH,
                 PacketType.Play.Client.BLOCK_DIG, PacketType.Play.Client.BLOCK_PLACE) {
+            // Netty thread: reads only publishedGlass
             @Override
             public void onPacketReceiving(PacketEvent event) {
                 Player player = event.getPlayer();
-                Set<Location> glassBlocks = playerGlassBlocks.get(player.getUniqueId());
-                if (glassBlocks == null) return;
+                long[] glass = publishedGlass.get(player.getUniqueId());
+                if (glass == null) return;
 
                 StructureModifier<com.comphenix.protocol.wrappers.BlockPosition> posMod = event.getPacket().getBlockPositionModifier();
                 if (posMod.size() > 0) {
                     com.comphenix.protocol.wrappers.BlockPosition pos = posMod.read(0);
-                    Location loc = new Location(player.getWorld(), pos.getX(), pos.getY(), pos.getZ());
-                    if (glassBlocks.contains(loc)) {
+                    if (Arrays.binarySearch(glass, BlockKey.pack(pos.getX(), pos.getY(), pos.getZ())) >= 0) {
                         event.setCancelled(true);
-                        sendFakeBlock(player, loc, Material.STAINED_GLASS, (byte) 14);
+                        // Rare, and not on the main thread: a fresh Location rather than the shared one
+                        sendFakeBlock(player, new Location(player.getWorld(), pos.getX(), pos.getY(), pos.getZ()),
+                                Material.STAINED_GLASS, (byte) 14);
                     }
                 }
             }
-        });
+        };
+
+        void registerGlassListener() {
+            protocolManager.addPacketListener(glassListener);
+        }
+
+        void unregisterGlassListener() {
+            protocolManager.removePacketListener(glassListener);
+        }
+
+        // False if the packet couldn't be sent; the caller then falls back to plain block changes for the chunk
+        boolean sendMultiBlockChange(Player player, BlockChangeBuffer changes, int first, int chunkX, int chunkZ,
+                                     int count) {
+            try {
+                ChunkCoordIntPair chunk = new ChunkCoordIntPair(chunkX, chunkZ);
+                MultiBlockChangeInfo[] records = new MultiBlockChangeInfo[count];
+                int n = 0;
+                for (int slot = first; slot >= 0; slot = changes.nextSlot(slot + 1)) {
+                    long key = changes.keyAt(slot);
+                    if (changes.isSent(slot) || !inChunk(key, chunkX, chunkZ)) continue;
+                    int block = changes.blockAt(slot);
+                    // Position within the chunk as the 1.8 protocol packs it: x << 12 | z << 8 | y
+                    short position = (short) ((BlockKey.x(key) & 0xF) << 12 | (BlockKey.z(key) & 0xF) << 8 | BlockKey.y(key));
+                    records[n++] = new MultiBlockChangeInfo(position,
+                            WrappedBlockData.createData(MATERIALS[block >>> 4], block & 0xF), chunk);
+                }
+                PacketContainer packet = new PacketContainer(PacketType.Play.Server.MULTI_BLOCK_CHANGE);
+                packet.getChunkCoordIntPairs().write(0, chunk);
+                packet.getMultiBlockChangeInfoArrays().write(0, records);
+                protocolManager.sendServerPacket(player, packet);
+                return true;
+            } catch (Exception | LinkageError e) {
+                // Incompatible ProtocolLib build: stop trying and send plain block changes
+                multiBlockChangeFailed = true;
+                Bukkit.getLogger().warning("[PGMUtil] Could not send MULTI_BLOCK_CHANGE, falling back to block changes: " + e);
+                return false;
+            }
+        }
+    }
+
+    // Main thread. Registers the listener as soon as anyone has glass; removes it once nobody has had any for a while
+    private void updateGlassListener() {
+        if (packets == null) return;
+        if (!publishedGlass.isEmpty()) {
+            if (!glassListenerRegistered) {
+                packets.registerGlassListener();
+                glassListenerRegistered = true;
+            }
+            return;
+        }
+        if (!glassListenerRegistered || glassListenerRemovalPending) return;
+        glassListenerRemovalPending = true;
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                glassListenerRemovalPending = false;
+                if (glassListenerRegistered && publishedGlass.isEmpty()) {
+                    packets.unregisterGlassListener();
+                    glassListenerRegistered = false;
+                }
+            }
+        }.runTaskLater(plugin, GLASS_LISTENER_LINGER_TICKS);
+    }
+
+    // Before any of the changed blocks are sent, so a dig on glass the client has just been shown is already caught
+    private void publishGlass(UUID player, BlockKeySet cells) {
+        if (cells.isEmpty()) publishedGlass.remove(player);
+        else publishedGlass.put(player, cells.toSortedArray());
+        updateGlassListener();
     }
 
     @EventHandler
     public void onMatchStart(MatchStartEvent event) {
         Match match = event.getMatch();
 
-        BlitzMatchModule blitz = match.getModule(BlitzMatchModule.class);
-        if (blitz == null) return;
+        if (!contexts.get(match.getWorld()).isBlitz()) return;
 
         World world = Bukkit.getWorld(match.getWorld().getName());
         if (world == null) {
@@ -76,8 +229,11 @@ public class BlitzUHC implements Listener {
         int minX = -1164, minZ = 857;
         int maxX = 836, maxZ = 2857;
 
+        if (borderShrinkTask != null) borderShrinkTask.stop();
+        if (safeCheckTask != null) safeCheckTask.cancel();
+        borderWorld = world;
         borderManager = new BorderManager(minX, maxX, minZ, maxZ);
-        BorderUtil.generateBedrockBorder(world, minX, minZ, maxX, maxZ);
+        borderManager.generateWalls(world);
 
         world.getWorldBorder().setCenter(0, 0);
         world.getWorldBorder().setSize(30000);
@@ -85,29 +241,100 @@ public class BlitzUHC implements Listener {
         this.borderShrinkTask = new BorderShrinkTask(borderManager, world, plugin, this);
         borderShrinkTask.startShrinkPhase(0);
 
-        Bukkit.getPluginManager().registerEvents(this, plugin);
-
         // Schedule periodic safe border check (every 5 seconds)
-        new BukkitRunnable() {
+        safeCheckTask = new BukkitRunnable() {
             @Override
             public void run() {
                 checkAndTeleportAllPlayersSafe();
             }
         }.runTaskTimer(plugin, 0L, 100L); // 5 seconds
+
+        if (!tickTaskScheduled) {
+            tickTaskScheduled = true;
+            new BukkitRunnable() {
+                @Override
+                public void run() {
+                    processDirtyPlayers();
+                    flushBlockChanges();
+                }
+            }.runTaskTimer(plugin, 1L, 1L);
+        }
     }
 
+    /**
+     * Only marks the player for the per-tick processor, and only when the block position changed: head rotations and
+     * moves within a block cost two Location reads.
+     */
     @EventHandler
     public void onPlayerMove(PlayerMoveEvent event) {
         if (borderManager == null) return;
+        Location from = event.getFrom();
+        Location to = event.getTo();
+        if (from.getBlockX() == to.getBlockX() && from.getBlockY() == to.getBlockY()
+                && from.getBlockZ() == to.getBlockZ()) return;
 
         Player player = event.getPlayer();
+        // The border only exists in the Blitz match world
+        if (player.getWorld() != borderWorld) return;
+        // Needs the event, so it can't wait for the processor
+        if (borderManager.getPlayerBorderStatus(from) == BorderManager.BorderStatus.IMMOBILIZE) {
+            event.setCancelled(true);
+            player.sendMessage("§cYou cannot move outside the border!");
+            return;
+        }
+        markDirty(player.getUniqueId());
+    }
+
+    // Teleports (pearls included) can land anywhere, so the player is checked on the next tick whatever their band
+    @EventHandler(ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        if (borderManager == null) return;
+        UUID id = event.getPlayer().getUniqueId();
+        playerBands.remove(id);
+        markDirty(id);
+    }
+
+    private void markDirty(UUID player) {
+        DistanceBand band = playerBands.get(player);
+        dirtyPlayers.get(band == null ? DistanceBand.NEAR : band).add(player);
+    }
+
+    // The walls moved: everyone's distance changed, so everyone is checked on the next tick
+    public void borderMoved() {
+        playerBands.clear();
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            markDirty(player.getUniqueId());
+        }
+    }
+
+    /**
+     * Runs every tick: checks the dirty players of each band whose interval is up. The cost follows the number of
+     * players who moved near the border, not the number of move packets.
+     */
+    private void processDirtyPlayers() {
+        if (borderManager == null) return;
+        tick++;
+        for (DistanceBand band : BANDS) {
+            if (tick % band.intervalTicks != 0) continue;
+            Set<UUID> dirty = dirtyPlayers.get(band);
+            if (dirty.isEmpty()) continue;
+            Set<UUID> processing = processingPlayers;
+            processingPlayers = dirty;
+            dirtyPlayers.put(band, processing);
+            for (UUID id : processingPlayers) {
+                Player player = Bukkit.getPlayer(id);
+                if (player != null && player.getWorld() == borderWorld) updateBorderState(player);
+            }
+            processingPlayers.clear();
+        }
+    }
+
+    private void updateBorderState(Player player) {
         Location loc = player.getLocation();
 
         BorderManager.BorderStatus status = borderManager.getPlayerBorderStatus(loc);
 
-        if (status == BorderManager.BorderStatus.INSIDE) {
-            // Continue to ghost glass logic below
-        } else if (status == BorderManager.BorderStatus.GLITCHED_FAR) {
+        if (status == BorderManager.BorderStatus.GLITCHED_FAR) {
             Location safeLoc = borderManager.getSafeSurfaceLocationInsideBorder(player.getWorld(), loc, 2);
             player.teleport(safeLoc);
             player.sendMessage("§cYou were teleported back inside the border!");
@@ -115,36 +342,104 @@ public class BlitzUHC implements Listener {
         } else if (status == BorderManager.BorderStatus.GLITCHED_NEAR) {
             Location nudgeLoc = borderManager.getSafeSurfaceLocationInsideBorder(player.getWorld(), loc, 1);
             player.setVelocity(nudgeLoc.toVector().subtract(loc.toVector()).normalize().multiply(0.4));
-            return;
-        } else if (status == BorderManager.BorderStatus.IMMOBILIZE) {
-            event.setCancelled(true);
-            player.sendMessage("§cYou cannot move outside the border!");
+            // Checked again next tick in case the nudge wasn't enough, moving or not
+            playerBands.remove(player.getUniqueId());
+            markDirty(player.getUniqueId());
             return;
         }
 
         double dist = borderManager.distanceToBorder(loc);
         boolean near = dist <= 7.0 && borderManager.isNearBorder(loc);
-
-        Set<Location> newGlass = near ? borderManager.getGlassBorderLocations(loc, 7) : new HashSet<>();
-        Set<Location> oldGlass = playerGlassBlocks.getOrDefault(player.getUniqueId(), new HashSet<>());
-
-        for (Location oldLoc : oldGlass) {
-            if (!newGlass.contains(oldLoc)) {
-                Block realBlock = oldLoc.getWorld().getBlockAt(oldLoc);
-                sendFakeBlock(player, oldLoc, realBlock.getType(), realBlock.getData());
-            }
+        UUID id = player.getUniqueId();
+        playerBands.put(id, DistanceBand.of(dist));
+
+        World world = loc.getWorld();
+        BlockKeySet newGlass = scratchGlass;
+        if (near) borderManager.collectGlass(world, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(), 7, newGlass);
+        GlassState state = playerGlass.get(id);
+        if (state == null) {
+            if (newGlass.isEmpty()) return;
+            state = new GlassState();
+            playerGlass.put(id, state);
         }
-        for (Location newLoc : newGlass) {
-            if (!oldGlass.contains(newLoc)) {
-                sendFakeBlock(player, newLoc, Material.STAINED_GLASS, (byte) 14);
+        BlockKeySet oldGlass = state.cells;
+
+        if (!newGlass.sameKeys(oldGlass)) {
+            publishGlass(id, newGlass);
+            for (int slot = oldGlass.nextSlot(0); slot >= 0; slot = oldGlass.nextSlot(slot + 1)) {
+                long key = oldGlass.keyAt(slot);
+                if (!newGlass.contains(key)) {
+                    Block realBlock = world.getBlockAt(BlockKey.x(key), BlockKey.y(key), BlockKey.z(key));
+                    queueFakeBlock(id, key, realBlock.getType(), realBlock.getData());
+                }
+            }
+            for (int slot = newGlass.nextSlot(0); slot >= 0; slot = newGlass.nextSlot(slot + 1)) {
+                long key = newGlass.keyAt(slot);
+                if (!oldGlass.contains(key)) {
+                    queueFakeBlock(id, key, Material.STAINED_GLASS, (byte) 14);
+                }
             }
         }
 
-        if (newGlass.isEmpty()) {
-            playerGlassBlocks.remove(player.getUniqueId());
-        } else {
-            playerGlassBlocks.put(player.getUniqueId(), newGlass);
+        // The new cells become the player's; the old set is emptied and receives the next computation
+        state.cells = newGlass;
+        oldGlass.clear();
+        scratchGlass = oldGlass;
+        if (newGlass.isEmpty()) playerGlass.remove(id);
+    }
+
+    @EventHandler
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        forget(event.getPlayer().getUniqueId());
+    }
+
+    // The client drops the old world's chunks, fake blocks included; the glass keys would match the new world's
+    @EventHandler
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        forget(event.getPlayer().getUniqueId());
+    }
+
+    /**
+     * The border stops with its match: players still in the world are shown the real blocks again, all glass and
+     * per-player state is dropped, and the shrink phases and the safe-position check stop.
+     */
+    @EventHandler
+    public void onMatchFinish(MatchFinishEvent event) {
+        if (borderWorld == null || event.getMatch().getWorld() != borderWorld) return;
+        for (Map.Entry<UUID, GlassState> entry : playerGlass.entrySet()) {
+            Player player = Bukkit.getPlayer(entry.getKey());
+            if (player == null || player.getWorld() != borderWorld) continue;
+            BlockKeySet cells = entry.getValue().cells;
+            for (int slot = cells.nextSlot(0); slot >= 0; slot = cells.nextSlot(slot + 1)) {
+                long key = cells.keyAt(slot);
+                Block realBlock = borderWorld.getBlockAt(BlockKey.x(key), BlockKey.y(key), BlockKey.z(key));
+                queueFakeBlock(entry.getKey(), key, realBlock.getType(), realBlock.getData());
+            }
         }
+        flushBlockChanges();
+
+        borderShrinkTask.stop();
+        borderShrinkTask = null;
+        safeCheckTask.cancel();
+        safeCheckTask = null;
+        borderManager = null;
+        borderWorld = null;
+        playerGlass.clear();
+        publishedGlass.clear();
+        playerBands.clear();
+        for (Set<UUID> dirty : dirtyPlayers.values()) dirty.clear();
+        pendingBlocks.clear();
+        updateGlassListener();
+    }
+
+    // Drops everything kept for the player; their fake blocks are already gone client-side
+    private void forget(UUID id) {
+        playerBands.remove(id);
+        for (Set<UUID> dirty : dirtyPlayers.values()) dirty.remove(id);
+        pendingBlocks.remove(id);
+        if (playerGlass.remove(id) == null) return;
+        publishedGlass.remove(id);
+        updateGlassListener();
     }
 
     // Call this after border shrink and on timer
@@ -160,14 +455,23 @@ public class BlitzUHC implements Listener {
         }
     }
 
-    private static class BorderManager {
+    static class BorderManager {
         private int minX, maxX, minZ, maxZ;
+        // Bedrock height of each wall column for the current bounds
+        private WallColumns columns;
 
         public BorderManager(int minX, int maxX, int minZ, int maxZ) {
             this.minX = minX;
             this.maxX = maxX;
             this.minZ = minZ;
             this.maxZ = maxZ;
+            this.columns = new WallColumns(minX, maxX, minZ, maxZ);
+        }
+
+        // Builds the bedrock walls for the current bounds, recording each column's height as it goes
+        public void generateWalls(World world) {
+            columns = new WallColumns(minX, maxX, minZ, maxZ);
+            BorderUtil.generateBedrockBorder(world, minX, minZ, maxX, maxZ, columns);
         }
 
         enum BorderStatus {
@@ -219,34 +523,41 @@ public class BlitzUHC implements Listener {
             return x <= minX + 7 || x >= maxX - 7 || z <= minZ + 7 || z >= maxZ - 7;
         }
 
-        public Set<Location> getGlassBorderLocations(Location playerLoc, int radius) {
-            Set<Location> locs = new HashSet<>();
-            World world = playerLoc.getWorld();
-            int playerX = playerLoc.getBlockX();
-            int playerY = playerLoc.getBlockY();
-            int playerZ = playerLoc.getBlockZ();
-
-            for (int dx = -radius; dx <= radius; dx++) {
-                for (int dy = -radius; dy <= radius; dy++) {
-                    for (int dz = -radius; dz <= radius; dz++) {
-                        int x = playerX + dx;
-                        int y = playerY + dy;
-                        int z = playerZ + dz;
-
-                        boolean onBorder =
-                                (x == minX || x == maxX) && (z >= minZ && z <= maxZ) ||
-                                        (z == minZ || z == maxZ) && (x >= minX && x <= maxX);
-
-                        if (onBorder && y >= 0 && y < world.getMaxHeight()) {
-                            Material type = world.getBlockAt(x, y, z).getType();
-                            if (type != Material.BEDROCK) {
-                                locs.add(new Location(world, x, y, z));
-                            }
-                        }
-                    }
-                }
+        /**
+         * Adds the border cells within radius of the player's block (per axis, so a cube) that aren't bedrock to out:
+         * where the ghost glass goes. The border is four axis-aligned walls, so only the walls within radius are
+         * visited, each over the rectangle where it overlaps the cube. Bedrock heights come from the wall columns,
+         * not from the world.
+         */
+        public void collectGlass(World world, int playerX, int playerY, int playerZ, int radius, BlockKeySet out) {
+            int lowY = Math.max(0, playerY - radius);
+            int highY = Math.min(world.getMaxHeight() - 1, playerY + radius);
+            if (lowY > highY) return;
+            // Stretch of each wall that lies within the cube
+            int lowX = Math.max(minX, playerX - radius);
+            int highX = Math.min(maxX, playerX + radius);
+            int lowZ = Math.max(minZ, playerZ - radius);
+            int highZ = Math.min(maxZ, playerZ + radius);
+
+            if (Math.abs(playerX - minX) <= radius) {
+                for (int z = lowZ; z <= highZ; z++) addGlassColumn(out, world, minX, z, lowY, highY);
+            }
+            if (maxX != minX && Math.abs(playerX - maxX) <= radius) {
+                for (int z = lowZ; z <= highZ; z++) addGlassColumn(out, world, maxX, z, lowY, highY);
+            }
+            if (Math.abs(playerZ - minZ) <= radius) {
+                for (int x = lowX; x <= highX; x++) addGlassColumn(out, world, x, minZ, lowY, highY);
+            }
+            if (maxZ != minZ && Math.abs(playerZ - maxZ) <= radius) {
+                for (int x = lowX; x <= highX; x++) addGlassColumn(out, world, x, maxZ, lowY, highY);
+            }
+        }
+
+        // Corner columns belong to two walls; the set keeps them once
+        private void addGlassColumn(BlockKeySet out, World world, int x, int z, int lowY, int highY) {
+            for (int y = Math.max(lowY, columns.bedrockTop(world, x, z) + 1); y <= highY; y++) {
+                out.add(BlockKey.pack(x, y, z));
             }
-            return locs;
         }
 
         public void setBorderSize(int size) {
@@ -257,6 +568,73 @@ public class BlitzUHC implements Listener {
             this.maxX = centerX + half;
             this.minZ = centerZ - half;
             this.maxZ = centerZ + half;
+            // Walls not built yet: columns are measured as they come into view
+            this.columns = new WallColumns(minX, maxX, minZ, maxZ);
+        }
+    }
+
+    /**
+     * Bedrock height of every border column: bedrock runs from y 0 to the column's top. Recorded while the walls are
+     * built, so computing ghost glass never reads blocks; a column that wasn't recorded is measured once on first use.
+     * Bedrock can't be broken in survival, so the heights stay valid until the border moves.
+     *
+     * Only the unbroken run from y 0 counts: in a measured column, bedrock above a gap (the natural floor at y 1-4)
+     * gets glass, where a per-cell check would skip it. Built walls have no gaps, and glass over bedrock hides
+     * nothing, so this is not worth a block read per cell.
+     */
+    static class WallColumns {
+        private static final int UNKNOWN = Integer.MIN_VALUE;
+        private final int minX, maxX, minZ, maxZ;
+        // x = minX / maxX walls by z - minZ, z = minZ / maxZ walls by x - minX; corners live in the x walls
+        private final int[] west, east, north, south;
+
+        public WallColumns(int minX, int maxX, int minZ, int maxZ) {
+            this.minX = minX;
+            this.maxX = maxX;
+            this.minZ = minZ;
+            this.maxZ = maxZ;
+            this.west = unknown(maxZ - minZ + 1);
+            this.east = unknown(maxZ - minZ + 1);
+            this.north = unknown(maxX - minX + 1);
+            this.south = unknown(maxX - minX + 1);
+        }
+
+        private static int[] unknown(int length) {
+            int[] tops = new int[Math.max(0, length)];
+            Arrays.fill(tops, UNKNOWN);
+            return tops;
+        }
+
+        public void record(int x, int z, int top) {
+            int[] wall = wall(x, z);
+            if (wall != null) wall[index(x, z)] = top;
+        }
+
+        // Top of the bedrock run from y 0 in the column (-1 if y 0 isn't bedrock)
+        public int bedrockTop(World world, int x, int z) {
+            int[] wall = wall(x, z);
+            if (wall == null) return measure(world, x, z);
+            int i = index(x, z);
+            if (wall[i] == UNKNOWN) wall[i] = measure(world, x, z);
+            return wall[i];
+        }
+
+        private int[] wall(int x, int z) {
+            if (x == minX && z >= minZ && z <= maxZ) return west;
+            if (x == maxX && z >= minZ && z <= maxZ) return east;
+            if (z == minZ && x >= minX && x <= maxX) return north;
+            if (z == maxZ && x >= minX && x <= maxX) return south;
+            return null;
+        }
+
+        private int index(int x, int z) {
+            return x == minX || x == maxX ? z - minZ : x - minX;
+        }
+
+        private static int measure(World world, int x, int z) {
+            int y = 0;
+            while (y < world.getMaxHeight() && world.getBlockAt(x, y, z).getType() == Material.BEDROCK) y++;
+            return y - 1;
         }
     }
 
@@ -265,6 +643,7 @@ public class BlitzUHC implements Listener {
         private final World world;
         private final JavaPlugin plugin;
         private final BlitzUHC blitzUHC;
+        private boolean stopped;
         private final int[][] shrinkPhases = {
                 {2000, 750},
                 {1500, 750},
@@ -282,7 +661,13 @@ public class BlitzUHC implements Listener {
             this.blitzUHC = blitzUHC;
         }
 
+        // The match is over: pending phases don't run
+        public void stop() {
+            stopped = true;
+        }
+
         public void startShrinkPhase(int phase) {
+            if (stopped) return;
             if (phase >= shrinkPhases.length) {
                 Bukkit.broadcastMessage("§aBorder shrinking complete!");
                 return;
@@ -290,7 +675,8 @@ public class BlitzUHC implements Listener {
             int size = shrinkPhases[phase][0];
             int duration = shrinkPhases[phase][1];
             borderManager.setBorderSize(size);
-            BorderUtil.generateBedrockBorder(world, borderManager.minX, borderManager.minZ, borderManager.maxX, borderManager.maxZ);
+            borderManager.generateWalls(world);
+            blitzUHC.borderMoved();
             Bukkit.broadcastMessage("§eBorder is now " + size + "x" + size + ", shrinking over " + (duration/60) + " min!");
 
             // Teleport all players safely inside the new border
@@ -305,8 +691,205 @@ public class BlitzUHC implements Listener {
         }
     }
 
+    /**
+     * Block coordinates packed into a long: x in the top 26 bits, z in the next 26, y in the low 12 (all of a
+     * world's +-30,000,000 range fits). Long.MIN_VALUE would be x = -2^25, so it is never a real key.
+     */
+    static class BlockKey {
+        public static long pack(int x, int y, int z) {
+            return ((long) x & 0x3FFFFFF) << 38 | ((long) z & 0x3FFFFFF) << 12 | (y & 0xFFF);
+        }
+
+        public static int x(long key) {
+            return (int) (key >> 38);
+        }
+
+        public static int y(long key) {
+            return (int) (key & 0xFFF);
+        }
+
+        public static int z(long key) {
+            return (int) (key << 26 >> 38);
+        }
+    }
+
+    /**
+     * Open-addressed set of BlockKeys (linear probing, at most half full, Long.MIN_VALUE marks a free slot). Meant to
+     * be cleared and refilled rather than reallocated: clear keeps the table, so a set that has grown to fit one
+     * player's glass stays that size. Iterate with nextSlot / keyAt. Not thread-safe.
+     */
+    static class BlockKeySet {
+        private static final long FREE = Long.MIN_VALUE;
+        private long[] table = newTable(256);
+        private int size;
+
+        private static long[] newTable(int capacity) {
+            long[] table = new long[capacity];
+            Arrays.fill(table, FREE);
+            return table;
+        }
+
+        private static int hash(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        public boolean add(long key) {
+            if ((size + 1) * 2 > table.length) grow();
+            int mask = table.length - 1;
+            for (int i = hash(key, mask); ; i = (i + 1) & mask) {
+                if (table[i] == key) return false;
+                if (table[i] == FREE) {
+                    table[i] = key;
+                    size++;
+                    return true;
+                }
+            }
+        }
+
+        public boolean contains(long key) {
+            long[] t = table;
+            int mask = t.length - 1;
+            for (int i = hash(key, mask); ; i = (i + 1) & mask) {
+                if (t[i] == key) return true;
+                if (t[i] == FREE) return false;
+            }
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void clear() {
+            if (size == 0) return;
+            Arrays.fill(table, FREE);
+            size = 0;
+        }
+
+        // First occupied slot at or after from, or -1
+        public int nextSlot(int from) {
+            for (int i = from; i < table.length; i++) {
+                if (table[i] != FREE) return i;
+            }
+            return -1;
+        }
+
+        public long keyAt(int slot) {
+            return table[slot];
+        }
+
+        public boolean sameKeys(BlockKeySet other) {
+            if (size != other.size) return false;
+            for (long key : table) {
+                if (key != FREE && !other.contains(key)) return false;
+            }
+            return true;
+        }
+
+        public long[] toSortedArray() {
+            long[] keys = new long[size];
+            int n = 0;
+            for (long key : table) {
+                if (key != FREE) keys[n++] = key;
+            }
+            Arrays.sort(keys);
+            return keys;
+        }
+
+        private void grow() {
+            long[] old = table;
+            table = newTable(old.length * 2);
+            size = 0;
+            for (long key : old) {
+                if (key != FREE) add(key);
+            }
+        }
+    }
+
+    /**
+     * Fake block changes queued for one player during the current tick, keyed by BlockKey with the block
+     * (Material ordinal << 4 | data) alongside; a later change to a cell replaces the earlier one. Same table scheme as
+     * BlockKeySet, and likewise cleared and reused rather than reallocated. Not thread-safe.
+     */
+    private static class BlockChangeBuffer {
+        private static final int SENT = -1;
+        private long[] keys = BlockKeySet.newTable(64);
+        private int[] blocks = new int[64];
+        private int size;
+
+        public void put(long key, int block) {
+            if ((size + 1) * 2 > keys.length) grow();
+            int mask = keys.length - 1;
+            for (int i = BlockKeySet.hash(key, mask); ; i = (i + 1) & mask) {
+                if (keys[i] == BlockKeySet.FREE) {
+                    keys[i] = key;
+                    size++;
+                } else if (keys[i] != key) {
+                    continue;
+                }
+                blocks[i] = block;
+                return;
+            }
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public void clear() {
+            if (size == 0) return;
+            Arrays.fill(keys, BlockKeySet.FREE);
+            size = 0;
+        }
+
+        // First occupied slot at or after from, or -1
+        public int nextSlot(int from) {
+            for (int i = from; i < keys.length; i++) {
+                if (keys[i] != BlockKeySet.FREE) return i;
+            }
+            return -1;
+        }
+
+        public long keyAt(int slot) {
+            return keys[slot];
+        }
+
+        public int blockAt(int slot) {
+            return blocks[slot];
+        }
+
+        // Flush bookkeeping; the buffer is cleared once everything is sent
+        public void markSent(int slot) {
+            blocks[slot] = SENT;
+        }
+
+        public boolean isSent(int slot) {
+            return blocks[slot] == SENT;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldBlocks = blocks;
+            keys = BlockKeySet.newTable(oldKeys.length * 2);
+            blocks = new int[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != BlockKeySet.FREE) put(oldKeys[i], oldBlocks[i]);
+            }
+        }
+    }
+
+    // Per-player ghost glass (main thread); cells is swapped with the scratch set on every recomputation
+    private static class GlassState {
+        private BlockKeySet cells = new BlockKeySet();
+    }
+
     private static class BorderUtil {
-        public static void generateBedrockBorder(World world, int x1, int z1, int x2, int z2) {
+        public static void generateBedrockBorder(World world, int x1, int z1, int x2, int z2, WallColumns columns) {
             int minX = Math.min(x1, x2);
             int maxX = Math.max(x1, x2);
             int minZ = Math.min(z1, z2);
@@ -316,17 +899,18 @@ public class BlitzUHC implements Listener {
             int worldMaxY = world.getMaxHeight();
 
             for (int x = minX; x <= maxX; x++) {
-                setBedrockWall(world, x, minZ, worldMinY, worldMaxY);
-                setBedrockWall(world, x, maxZ, worldMinY, worldMaxY);
+                columns.record(x, minZ, setBedrockWall(world, x, minZ, worldMinY, worldMaxY));
+                columns.record(x, maxZ, setBedrockWall(world, x, maxZ, worldMinY, worldMaxY));
             }
 
             for (int z = minZ + 1; z <= maxZ - 1; z++) {
-                setBedrockWall(world, minX, z, worldMinY, worldMaxY);
-                setBedrockWall(world, maxX, z, worldMinY, worldMaxY);
+                columns.record(minX, z, setBedrockWall(world, minX, z, worldMinY, worldMaxY));
+                columns.record(maxX, z, setBedrockWall(world, maxX, z, worldMinY, worldMaxY));
             }
         }
 
-        private static void setBedrockWall(World world, int x, int z, int minY, int maxY) {
+        // Returns the top of the wall
+        private static int setBedrockWall(World world, int x, int z, int minY, int maxY) {
             int surfaceY = world.getHighestBlockYAt(x, z);
 
             for (int y = minY; y <= surfaceY; y++) {
@@ -340,6 +924,7 @@ public class BlitzUHC implements Listener {
                     block.setType(Material.BEDROCK, false);
                 }
             }
+            return Math.min(surfaceY + 1, maxY);
         }
     }
 
@@ -347,4 +932,91 @@ public class BlitzUHC implements Listener {
     private void sendFakeBlock(Player player, Location loc, Material material, byte data) {
         player.sendBlockChange(loc, material, data);
     }
+
+    // Main thread; goes out with the next flush, replacing any change to the same cell queued earlier this tick
+    private void queueFakeBlock(UUID player, long key, Material material, byte data) {
+        BlockChangeBuffer changes = pendingBlocks.get(player);
+        if (changes == null) {
+            changes = new BlockChangeBuffer();
+            pendingBlocks.put(player, changes);
+        }
+        changes.put(key, material.ordinal() << 4 | (data & 0xF));
+        fakeBlocksQueued++;
+    }
+
+    /**
+     * Sends every player's queued changes, one MULTI_BLOCK_CHANGE per chunk (a plain block change when a chunk has
+     * only one). Runs every tick.
+     */
+    private void flushBlockChanges() {
+        for (Map.Entry<UUID, BlockChangeBuffer> entry : pendingBlocks.entrySet()) {
+            BlockChangeBuffer changes = entry.getValue();
+            if (changes.isEmpty()) continue;
+            Player player = Bukkit.getPlayer(entry.getKey());
+            try {
+                if (player != null && player.isOnline()) sendBlockChanges(player, changes);
+            } finally {
+                // Whatever happened, this tick's changes are done with; a failure must not resend them every tick
+                changes.clear();
+            }
+        }
+    }
+
+    // Sends the changes chunk by chunk, marking each sent; a glass update touches a handful of chunks at most
+    private void sendBlockChanges(Player player, BlockChangeBuffer changes) {
+        World world = player.getWorld();
+        for (int first = changes.nextSlot(0); first >= 0; first = changes.nextSlot(first + 1)) {
+            if (changes.isSent(first)) continue;
+            long firstKey = changes.keyAt(first);
+            int chunkX = BlockKey.x(firstKey) >> 4;
+            int chunkZ = BlockKey.z(firstKey) >> 4;
+            int count = 0;
+            for (int slot = first; slot >= 0; slot = changes.nextSlot(slot + 1)) {
+                if (!changes.isSent(slot) && inChunk(changes.keyAt(slot), chunkX, chunkZ)) count++;
+            }
+
+            if (count > 1 && packets != null && !multiBlockChangeFailed
+                    && packets.sendMultiBlockChange(player, changes, first, chunkX, chunkZ, count)) {
+                for (int slot = first; slot >= 0; slot = changes.nextSlot(slot + 1)) {
+                    if (inChunk(changes.keyAt(slot), chunkX, chunkZ)) changes.markSent(slot);
+                }
+                fakeBlockPackets++;
+                continue;
+            }
+            // A single block, or batching is unavailable: one block change per cell
+            for (int slot = first; slot >= 0; slot = changes.nextSlot(slot + 1)) {
+                long key = changes.keyAt(slot);
+                if (changes.isSent(slot) || !inChunk(key, chunkX, chunkZ)) continue;
+                int block = changes.blockAt(slot);
+                changes.markSent(slot);
+                sendFakeBlock(player, world, key, MATERIALS[block >>> 4], (byte) (block & 0xF));
+                fakeBlockPackets++;
+            }
+        }
+    }
+
+    private static boolean inChunk(long key, int chunkX, int chunkZ) {
+        return BlockKey.x(key) >> 4 == chunkX && BlockKey.z(key) >> 4 == chunkZ;
+    }
+
+    // Main thread only (shares scratchLocation)
+    private void sendFakeBlock(Player player, World world, long key, Material material, byte data) {
+        scratchLocation.setWorld(world);
+        scratchLocation.setX(BlockKey.x(key));
+        scratchLocation.setY(BlockKey.y(key));
+        scratchLocation.setZ(BlockKey.z(key));
+        sendFakeBlock(player, scratchLocation, material, data);
+    }
+
+    /**
+     * Human-readable counters for /pgmutil stats.
+     */
+    public List<String> stats() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Ghost glass: " + playerGlass.size() + " players, dig/place listener "
+                + (packets == null ? "unavailable (no ProtocolLib)" : glassListenerRegistered ? "registered" : "off"));
+        lines.add("Fake block changes: " + fakeBlocksQueued + " queued, " + fakeBlockPackets + " packets sent, "
+                + (fakeBlocksQueued - fakeBlockPackets) + " packets saved by batching");
+        return lines;
+    }
 }
\ No newline at end of file
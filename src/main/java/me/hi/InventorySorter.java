@@ -1,10 +1,21 @@
 package me.hi;
 
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.ProtocolLibrary;
+import com.comphenix.protocol.ProtocolManager;
+import com.comphenix.protocol.events.ListenerPriority;
+import com.comphenix.protocol.events.PacketAdapter;
+import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.events.PacketEvent;
+import com.comphenix.protocol.reflect.StructureModifier;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.enchantments.Enchantment;
+import org.bukkit.event.inventory.InventoryType;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
@@ -13,27 +24,62 @@ import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.entity.EntityDamageEvent;
 import org.bukkit.event.entity.EntityShootBowEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerDropItemEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerPickupItemEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.inventory.InventoryView;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.PlayerInventory;
 import org.bukkit.inventory.meta.ItemMeta;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.potion.Potion;
 import org.bukkit.potion.PotionType;
-import tc.oc.pgm.api.PGM;
+import org.bukkit.scheduler.BukkitTask;
 import tc.oc.pgm.api.match.event.MatchFinishEvent;
 import tc.oc.pgm.api.match.event.MatchLoadEvent;
 import tc.oc.pgm.api.match.event.MatchStartEvent;
-import tc.oc.pgm.api.match.Match;
-import tc.oc.pgm.destroyable.DestroyableMatchModule;
+import tc.oc.pgm.api.player.MatchPlayer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 /**
  * InventorySorter (Spigot 1.8.8 compatible)
@@ -58,53 +104,158 @@ import java.util.*;
  * Implementation notes:
  * - We persist not only signature->preferred slots, but also per-slot recency ("slot history") timestamps to support tie-breaking.
  * - We also persist per-signature per-slot timestamps to recognize which slots the player last saved for a category.
- * - Storage remains YAML-only; we add namespaced sections under each UUID to avoid conflicts with Bukkit's dotted path semantics.
+ * - The old YAML layout (namespaced sections under each UUID, plus legacy un-namespaced keys) is still read for migration.
+ * - Storage is sharded per player (inventory_prefs/{xx}/{uuid}.bin, compact binary); only online players are kept in memory.
+ * - Identical preference layouts are stored once: pooled in memory, and popular ones shared on disk (layouts.bin).
+ * - Saves are write-behind: snapshots only touch memory, a background writer persists them (debounced, atomic rename).
+ * - Reorders and snapshots capture the inventory on the main thread, compute signatures/plans on virtual threads,
+ *   and apply the result back on the main thread (plans are dropped if the inventory changed meanwhile).
+ * - Reorders are applied as a diff; larger diffs reach the client as one WINDOW_ITEMS packet (ProtocolLib), and the
+ *   server's per-slot resync of what the client already has is cancelled (EchoFilter).
+ * - "First content change" is detected from inventory packets of armed players by default, or from broad Bukkit
+ *   events when inventory-sorter.detection is set to events (see config.yml).
  *
  * This file is intentionally verbose to keep all logic self-contained and 1.8-safe.
  */
 public class InventorySorter implements Listener {
 
     private final JavaPlugin plugin;
+    private final MatchContextRegistry contexts;
 
     // Set to true to only run during DTM matches.
     private static final boolean SCOPE_DTM_ONLY = true;
 
+    private static final String ITEM_RULES_FILE = "item_rules.yml";
+
+    // Up to this many moved slots are sent as individual SET_SLOTs; beyond it one WINDOW_ITEMS is cheaper.
+    private static final int SET_SLOT_LIMIT = 3;
+
+    // First scheduled compaction runs this long after startup (10 minutes), away from the join rush
+    private static final long COMPACTION_DELAY_TICKS = 12000L;
+
+    // How long onDisable waits for snapshots that are still computing
+    private static final long SHUTDOWN_WAIT_MS = 5000L;
+
     private final PreferenceStore store;
     private final SessionState state = new SessionState();
 
-    public InventorySorter(JavaPlugin plugin) {
+    // Signature extraction and planning run here, off the main thread (see onAfterKitApplied)
+    private final ExecutorService compute = Executors.newVirtualThreadPerTaskExecutor();
+    // Main-thread halves of snapshots, run by the scheduler or, when disabling, by shutdown()
+    private final Queue<Runnable> pendingSaves = new ConcurrentLinkedQueue<Runnable>();
+    private final Runnable drainSaves = new Runnable() {
+        @Override
+        public void run() {
+            Runnable save;
+            while ((save = pendingSaves.poll()) != null) save.run();
+        }
+    };
+    // Main-thread scratch for applying a plan
+    private final ItemStack[] applyStacks = new ItemStack[36];
+    private final ItemStack[] applyLayout = new ItemStack[36];
+
+    // Exactly one of these is active, depending on inventory-sorter.detection in config.yml
+    private final EventTriggers eventTriggers;
+    private final PacketTriggers packetTriggers;
+    // Only used while ProtocolLib is available, whatever the detection
+    private final EchoFilter echoFilter = new EchoFilter();
+
+    private final ReapplyQueue reapply;
+
+    // Retention for the compaction pass (inventory-sorter.compaction in config.yml); <= 0 disables that rule
+    private final long compactDropUnseenMs;
+    private final long compactHorizonMs;
+
+    public InventorySorter(JavaPlugin plugin, MatchContextRegistry contexts) {
         this.plugin = plugin;
-        this.store = new PreferenceStore(new File(plugin.getDataFolder(), "inventory_prefs.yml"));
+        this.contexts = contexts;
+        // Rules first: loading/migrating shards already classifies items
+        String rulesError = loadRules();
+        if (rulesError != null) Bukkit.getLogger().warning("[PGMUtil] " + rulesError);
+        this.store = new PreferenceStore(new File(plugin.getDataFolder(), "inventory_prefs"),
+                new File(plugin.getDataFolder(), "inventory_prefs.yml"),
+                plugin.getConfig().getString("inventory-sorter.store.backend", "shards"),
+                plugin.getConfig().getInt("inventory-sorter.store.max-resident-players", 500),
+                plugin.getConfig().getLong("inventory-sorter.store.max-resident-mb", 64L) * 1024L * 1024L,
+                plugin.getConfig().getLong("inventory-sorter.store.idle-ttl-minutes", 30L) * 60000L,
+                openSync(plugin.getConfig().getConfigurationSection("inventory-sorter.sync")));
+
+        this.compactDropUnseenMs = plugin.getConfig().getLong("inventory-sorter.compaction.drop-players-after-days", 120L) * 86400000L;
+        this.compactHorizonMs = plugin.getConfig().getLong("inventory-sorter.compaction.history-horizon-days", 60L) * 86400000L;
+        long intervalHours = plugin.getConfig().getLong("inventory-sorter.compaction.interval-hours", 24L);
+        if (intervalHours > 0) {
+            // Async task only kicks the pass off; the work itself runs on the store's IO thread
+            Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    compact(null);
+                }
+            }, COMPACTION_DELAY_TICKS, intervalHours * 72000L);
+        }
+
+        double budgetMs = plugin.getConfig().getDouble("inventory-sorter.reapply-budget-ms", 2.0);
+        this.reapply = new ReapplyQueue((long) (Math.max(0.0, budgetMs) * 1000000L));
+
+        String detection = plugin.getConfig().getString("inventory-sorter.detection", "packets");
+        boolean packets = "packets".equalsIgnoreCase(detection);
+        if (packets && !InventoryPackets.isAvailable()) {
+            Bukkit.getLogger().warning("[PGMUtil] ProtocolLib not available, inventory sorter falls back to event detection");
+            packets = false;
+        }
+        if (packets) {
+            this.eventTriggers = null;
+            this.packetTriggers = new PacketTriggers();
+        } else {
+            this.eventTriggers = new EventTriggers();
+            this.packetTriggers = null;
+            Bukkit.getPluginManager().registerEvents(eventTriggers, plugin);
+        }
+        // Plugin reloads: players already online never see a join event
+        for (Player p : Bukkit.getOnlinePlayers()) {
+            store.loadAsync(p.getUniqueId(), plugin, null);
+        }
     }
 
     // After respawn, let PGM apply kit, then reorder/apply arming
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerRespawn(PlayerRespawnEvent event) {
-        final Player player = event.getPlayer();
-        Bukkit.getScheduler().runTask(plugin, new Runnable() {
-            @Override
-            public void run() {
-                onAfterKitApplied(player);
-            }
-        });
+        reapply.enqueue(event.getPlayer());
     }
 
-    // On join, try to arm and reorder (safe no-op if kit not yet applied)
+    // Load the player's shard off the main thread while they are still logging in
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) return;
+        store.load(event.getUniqueId());
+    }
+
+    // On join, try to arm and reorder (safe no-op if kit not yet applied).
+    // Normally the shard is already resident from pre-login; otherwise the reorder waits for the async load.
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerJoin(PlayerJoinEvent event) {
         final Player player = event.getPlayer();
-        Bukkit.getScheduler().runTask(plugin, new Runnable() {
+        store.loadAsync(player.getUniqueId(), plugin, new Runnable() {
             @Override
             public void run() {
-                onAfterKitApplied(player);
+                if (player.isOnline()) reapply.enqueue(player);
             }
         });
     }
 
+    // Write the player's shard (if changed) and drop it and their session state from memory
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        UUID id = event.getPlayer().getUniqueId();
+        reapply.remove(id);
+        state.forget(id);
+        if (packetTriggers != null) packetTriggers.unwatch(id);
+        store.unload(id);
+    }
+
     /**
      * PGM integration hooks for rotation/restart.
      * - MatchLoad: arm players again (next layout snapshot should capture first change in the new map)
-     * - MatchStart: run a reapply pass after kits (next tick) for online players in the match world
+     * - MatchStart: queue a reapply pass after kits (from next tick, within the tick budget) for players in the match world
      * - MatchFinish: snapshot all players' current layouts so their latest arrangement persists to next map
      */
     @EventHandler(priority = EventPriority.MONITOR)
@@ -119,141 +270,537 @@ public class InventorySorter implements Listener {
     @EventHandler(priority = EventPriority.MONITOR)
     public void onMatchStart(MatchStartEvent event) {
         final World world = event.getMatch().getWorld();
-        // After kits apply on start, reapply ordering next tick
-        Bukkit.getScheduler().runTask(plugin, new Runnable() {
-            @Override
-            public void run() {
-                for (Player p : world.getPlayers()) {
-                    onAfterKitApplied(p);
-                }
-            }
-        });
+        // After kits apply on start, reapply ordering from next tick on
+        for (Player p : world.getPlayers()) {
+            reapply.enqueue(p);
+        }
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onMatchFinish(MatchFinishEvent event) {
         final World world = event.getMatch().getWorld();
         // On match finish/rotation, snapshot everyone's current layout so it survives into next map
-        for (Player p : world.getPlayers()) {
-            snapshotForRotation(p);
+        snapshotForRotation(world.getPlayers());
+    }
+
+    /**
+     * Flushes pending preference writes and stops the background writer. Call from the plugin's onDisable.
+     */
+    public void shutdown() {
+        reapply.clear();
+        // Let snapshots still computing (e.g. the MatchFinish one of a restart) finish; reorder plans that land now
+        // are dropped by runSync since there is nothing left to apply them to
+        compute.shutdown();
+        try {
+            if (!compute.awaitTermination(SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                Bukkit.getLogger().warning("[PGMUtil] Inventory snapshots still computing after " + SHUTDOWN_WAIT_MS
+                        + " ms; dropping them");
+                compute.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            compute.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        // The scheduler no longer runs our tasks: save what is queued here, before the store flushes and closes
+        drainSaves.run();
+        store.close();
+    }
+
+    /**
+     * (Re)loads item_rules.yml from the data folder, writing the bundled default first if it is missing.
+     * On success the new rules apply to every following reorder; returns null, or an error message if the file
+     * could not be compiled (the previous rules then stay active, the bundled defaults on first load).
+     */
+    public String reloadRules() {
+        String error = loadRules();
+        // Families may have moved: refresh the derived per-family history indexes and drop memoized plans
+        store.rulesChanged();
+        return error;
+    }
+
+    private String loadRules() {
+        File file = new File(plugin.getDataFolder(), ITEM_RULES_FILE);
+        if (!file.exists()) plugin.saveResource(ITEM_RULES_FILE, false);
+        return ItemRules.load(file, new java.util.function.Supplier<ItemRules>() {
+            @Override
+            public ItemRules get() {
+                return bundledRules();
+            }
+        });
+    }
+
+    private ItemRules bundledRules() {
+        InputStream in = plugin.getResource(ITEM_RULES_FILE);
+        if (in == null) throw new IllegalStateException(ITEM_RULES_FILE + " missing from the plugin jar");
+        try {
+            return ItemRules.compile(YamlConfiguration.loadConfiguration(new InputStreamReader(in, StandardCharsets.UTF_8)));
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Starts a compaction pass over the stored preferences in the background. The summary is logged and,
+     * if sender is given, sent to them. Returns false if a pass is already running.
+     */
+    public boolean compact(final CommandSender sender) {
+        return store.compact(compactDropUnseenMs, compactHorizonMs,
+                new java.util.function.Consumer<PreferenceStore.CompactionResult>() {
+                    @Override
+                    public void accept(PreferenceStore.CompactionResult result) {
+                        final String summary = result.describe();
+                        Bukkit.getLogger().info("[PGMUtil] " + summary);
+                        if (sender == null) return;
+                        runSync(new Runnable() {
+                            @Override
+                            public void run() {
+                                sender.sendMessage("§7" + summary);
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Human-readable counters for /pgmutil stats.
+     */
+    public List<String> stats() {
+        List<String> lines = new ArrayList<String>();
+        long hits = store.planHits();
+        long misses = store.planMisses();
+        long total = hits + misses;
+        lines.add("Reorder plan cache: " + hits + " hits, " + misses + " misses"
+                + (total == 0 ? "" : String.format(" (%.1f%% hit rate)", hits * 100.0 / total)));
+        lines.add("Preference store (" + store.backendName() + "): " + store.residentCount() + " resident (~"
+                + store.residentBytes() / 1024L + " KB), " + store.idleEvictions() + " idle evictions, " + store.budgetEvictions() + " budget evictions");
+        lines.add("Layouts: " + Layout.pooled() + " distinct in memory, " + store.sharedLayouts() + " shared on disk");
+        lines.add(ItemSignature.describePool());
+        String sync = store.describeSync();
+        if (sync != null) lines.add(sync);
+        return lines;
+    }
+
+    /**
+     * Tells the named server (its inventory-sorter.sync.server-name) that the player is about to join it, so it can
+     * fetch their preferences before they arrive. For whatever moves players between servers; no-op without sync.
+     */
+    public void routePlayer(UUID player, String server) {
+        store.route(player, server);
+    }
+
+    // Null (local-only) unless inventory-sorter.sync.enabled
+    private static PreferenceSync openSync(ConfigurationSection config) {
+        if (config == null || !config.getBoolean("enabled", false)) return null;
+        String server = config.getString("server-name", "").trim().replaceAll("\\s+", "_");
+        if (server.isEmpty()) {
+            server = UUID.randomUUID().toString().substring(0, 8);
+            Bukkit.getLogger().warning("[PGMUtil] inventory-sorter.sync.server-name is not set, using '" + server
+                    + "' (prefetching routed players needs a stable name)");
         }
-        // Optionally: flush to disk immediately
-        store.flush();
+        String backend = config.getString("backend", "redis");
+        PreferenceNetwork network;
+        if ("redis".equalsIgnoreCase(backend)) {
+            network = new RedisPreferenceNetwork(config.getString("redis.host", "localhost"),
+                    config.getInt("redis.port", 6379), config.getString("redis.password", ""),
+                    config.getInt("redis.database", 0));
+        } else {
+            Bukkit.getLogger().warning("[PGMUtil] Unknown inventory-sorter.sync.backend '" + backend + "', sync disabled");
+            return null;
+        }
+        return new PreferenceSync(network, server, config.getLong("fetch-timeout-ms", 250L),
+                config.getLong("ttl-days", 90L) * 86400L);
     }
 
-    private void onAfterKitApplied(Player player) {
+    private void onAfterKitApplied(final Player player) {
         if (SCOPE_DTM_ONLY && !isDTM(player.getWorld())) return;
 
-        UUID id = player.getUniqueId();
+        final UUID id = player.getUniqueId();
         state.arm(id);
 
-        // Load preferences and reapply with ranking-aware collision resolution
-        Map<ItemSignature, List<Integer>> prefs = store.getPreferences(id);
-        if (!prefs.isEmpty()) {
-            reorderToPreferencesRanked(player, prefs);
-            player.updateInventory();
-        } else {
-            // Even if no explicit signature preferences exist, we may have slot history
-            if (store.hasAnySlotHistory(id)) {
-                reorderToPreferencesRanked(player, Collections.<ItemSignature, List<Integer>>emptyMap());
-                player.updateInventory();
+        // Evicted from the store while online (idle or over budget): reload off-thread and come back through the queue
+        if (!store.isLoaded(id)) {
+            store.loadAsync(id, plugin, new Runnable() {
+                @Override
+                public void run() {
+                    if (player.isOnline()) reapply.enqueue(player);
+                }
+            });
+            return;
+        }
+
+        // Load preferences and reapply with ranking-aware collision resolution.
+        // Even if no explicit signature preferences exist, we may have slot history.
+        if (store.getPreferences(id).isEmpty() && !store.hasAnySlotHistory(id)) {
+            if (packetTriggers != null) packetTriggers.watch(id);
+            return;
+        }
+
+        // Main thread only captures; signatures and the plan are computed off-thread, then applied next tick
+        final int generation = state.beginReorder(id);
+        final InventoryCapture capture = InventoryCapture.of(player.getInventory());
+        compute.execute(new Runnable() {
+            @Override
+            public void run() {
+                int[] source = null;
+                try {
+                    source = store.plan(id, capture.signatures());
+                } catch (Throwable t) {
+                    Bukkit.getLogger().warning("[PGMUtil] Could not plan inventory reorder for " + id + ": " + t);
+                }
+                final int[] plan = source;
+                runSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        applyReorder(player, generation, capture, plan);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Main-thread half of the reorder pipeline. The plan is dropped if a newer reorder was started for the player
+     * (respawned again, rejoined) or if their inventory no longer matches what the plan was computed from.
+     */
+    private void applyReorder(Player player, int generation, InventoryCapture capture, int[] source) {
+        UUID id = player.getUniqueId();
+        if (!state.endReorder(id, generation)) return;
+        if (!player.isOnline()) return;
+
+        if (source != null) {
+            PlayerInventory inv = player.getInventory();
+            if (capture.matches(inv, applyStacks)) {
+                reorderToPreferencesRanked(player, inv, applyStacks, source);
             }
+            Arrays.fill(applyStacks, null);
         }
+
+        // Watch packets only from here on: the kit and our own reorder are already applied
+        if (packetTriggers != null) packetTriggers.watch(id);
     }
 
-    private boolean isDTM(World world) {
+    // Schedules onto the main thread unless the plugin is going away
+    private void runSync(Runnable task) {
+        if (!plugin.isEnabled()) return;
         try {
-            Match match = PGM.get().getMatchManager().getMatch(world);
-            if (match == null) return false;
-            return match.getModule(DestroyableMatchModule.class) != null;
-        } catch (Throwable t) {
-            return false;
+            Bukkit.getScheduler().runTask(plugin, task);
+        } catch (IllegalStateException e) {
+            // Disabled between the check and the call
         }
     }
 
-    // Content-change detectors (Spigot 1.8-safe)
-    @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
-    public void onBlockPlace(BlockPlaceEvent event) {
-        maybeSnapshot(event.getPlayer());
+    // Like runSync, but the task is not lost if the plugin is disabled first: shutdown() runs it instead
+    private void runSave(Runnable task) {
+        pendingSaves.add(task);
+        runSync(drainSaves);
     }
 
-    @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
-    public void onBlockBreak(BlockBreakEvent event) {
-        maybeSnapshot(event.getPlayer());
+    private boolean isDTM(World world) {
+        return contexts.get(world).isDTM();
     }
 
-    @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
-    public void onDrop(PlayerDropItemEvent event) {
-        maybeSnapshot(event.getPlayer());
-    }
+    /**
+     * Main-thread queue of pending "kit applied" passes (respawn, join, match start).
+     *
+     * A player is queued at most once no matter how many of those fire for them. From the next tick on, the queue
+     * is drained until the per-tick budget (inventory-sorter.reapply-budget-ms) is spent, alive participants first,
+     * then everyone else (dead players waiting to respawn, observers) in arrival order. At least one player is
+     * handled per tick, and the timer only runs while something is queued.
+     */
+    private final class ReapplyQueue implements Runnable {
+        private final long budgetNanos;
+        private final LinkedHashMap<UUID, Player> pending = new LinkedHashMap<UUID, Player>();
+        private BukkitTask task;
 
-    @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
-    public void onPickup(PlayerPickupItemEvent event) {
-        maybeSnapshot(event.getPlayer());
-    }
+        ReapplyQueue(long budgetNanos) {
+            this.budgetNanos = budgetNanos;
+        }
+
+        void enqueue(Player player) {
+            // put on an existing key keeps its original position
+            pending.put(player.getUniqueId(), player);
+            if (task == null) {
+                task = Bukkit.getScheduler().runTaskTimer(plugin, this, 1L, 1L);
+            }
+        }
+
+        void remove(UUID id) {
+            pending.remove(id);
+        }
+
+        void clear() {
+            pending.clear();
+            stop();
+        }
+
+        @Override
+        public void run() {
+            long deadline = System.nanoTime() + budgetNanos;
+            boolean handled = false;
+            // Pass 0: alive participants; pass 1: everyone else
+            for (int pass = 0; pass < 2; pass++) {
+                Iterator<Player> it = pending.values().iterator();
+                while (it.hasNext()) {
+                    if (handled && System.nanoTime() >= deadline) return;
+                    Player player = it.next();
+                    if (pass == 0 && !isAliveParticipant(player)) continue;
+                    it.remove();
+                    handled = true;
+                    if (player.isOnline()) onAfterKitApplied(player);
+                }
+            }
+            stop();
+        }
+
+        private boolean isAliveParticipant(Player player) {
+            MatchPlayer matchPlayer = contexts.get(player.getWorld()).getPlayer(player);
+            return matchPlayer != null && matchPlayer.isParticipating() && matchPlayer.isAlive();
+        }
 
-    @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
-    public void onBowShoot(EntityShootBowEvent event) {
-        if (event.getEntity() instanceof Player) {
-            maybeSnapshot((Player) event.getEntity());
+        private void stop() {
+            if (task != null) {
+                task.cancel();
+                task = null;
+            }
         }
     }
 
-    @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
-    public void onInteract(PlayerInteractEvent event) {
-        maybeSnapshot(event.getPlayer());
+    /**
+     * Event-driven content-change detection (inventory-sorter.detection: events).
+     * Broad but needs nothing beyond the Bukkit API: every handler fires for every player, armed or not.
+     */
+    private final class EventTriggers implements Listener {
+        // Content-change detectors (Spigot 1.8-safe)
+        @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
+        public void onBlockPlace(BlockPlaceEvent event) {
+            maybeSnapshot(event.getPlayer());
+        }
+
+        @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
+        public void onBlockBreak(BlockBreakEvent event) {
+            maybeSnapshot(event.getPlayer());
+        }
+
+        @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
+        public void onDrop(PlayerDropItemEvent event) {
+            maybeSnapshot(event.getPlayer());
+        }
+
+        @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
+        public void onPickup(PlayerPickupItemEvent event) {
+            maybeSnapshot(event.getPlayer());
+        }
+
+        @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
+        public void onBowShoot(EntityShootBowEvent event) {
+            if (event.getEntity() instanceof Player) {
+                maybeSnapshot((Player) event.getEntity());
+            }
+        }
+
+        @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
+        public void onInteract(PlayerInteractEvent event) {
+            maybeSnapshot(event.getPlayer());
+        }
+
+        @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
+        public void onDamage(EntityDamageEvent event) {
+            if (event.getEntity() instanceof Player) {
+                // Armor durability may change on damage (ignore; we don't touch armor), but use as a "content change" arm trigger
+                maybeSnapshot((Player) event.getEntity());
+            }
+        }
     }
 
-    @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
-    public void onDamage(EntityDamageEvent event) {
-        if (event.getEntity() instanceof Player) {
-            // Armor durability may change on damage (ignore; we don't touch armor), but use as a "content change" arm trigger
-            maybeSnapshot((Player) event.getEntity());
+    /**
+     * Packet-driven content-change detection (inventory-sorter.detection: packets, the default).
+     *
+     * Only players between kit application and their snapshot are watched. Triggers:
+     * - HELD_ITEM_SLOT: the player switches hotbar slot, i.e. starts playing with the layout they arranged;
+     * - WINDOW_CLICK: only throws (Q in the inventory, or clicking outside the window), plain rearranging is ignored;
+     * - SET_SLOT (window 0): the server changed a slot (pickup, block use, durability), after a short grace period
+     *   so the kit's and our own write-back packets don't count.
+     * The ProtocolLib listener is only registered while at least one player is watched, and a player stops being
+     * watched as soon as they are locked, so unarmed players cost nothing on the Bukkit event bus.
+     *
+     * Packet callbacks run on Netty threads: they only consult the watched map and hand off to the main thread,
+     * where the snapshot is taken (normally before the server handles the triggering packet).
+     */
+    private final class PacketTriggers {
+        private static final long SET_SLOT_GRACE_MS = 1000L;
+        private static final int WINDOW_CLICK_THROW = 4;
+        private static final int OUTSIDE_WINDOW = -999;
+
+        // id -> time watching started. Written on the main thread, read on Netty threads.
+        private final ConcurrentMap<UUID, Long> watched = new ConcurrentHashMap<UUID, Long>();
+        // Players with a snapshot task already queued
+        private final Set<UUID> pending = ConcurrentHashMap.newKeySet();
+
+        private PacketAdapter adapter; // main thread only
+
+        void watch(UUID id) {
+            watched.put(id, System.currentTimeMillis());
+            if (adapter == null) {
+                adapter = new PacketAdapter(plugin, ListenerPriority.MONITOR,
+                        PacketType.Play.Client.HELD_ITEM_SLOT, PacketType.Play.Client.WINDOW_CLICK,
+                        PacketType.Play.Server.SET_SLOT) {
+                    @Override
+                    public void onPacketReceiving(PacketEvent event) {
+                        if (event.isPlayerTemporary()) return;
+                        Player player = event.getPlayer();
+                        if (!watched.containsKey(player.getUniqueId())) return;
+                        if (event.getPacketType() == PacketType.Play.Client.WINDOW_CLICK && !isThrow(event.getPacket())) return;
+                        trigger(player);
+                    }
+
+                    @Override
+                    public void onPacketSending(PacketEvent event) {
+                        if (event.isPlayerTemporary()) return;
+                        Player player = event.getPlayer();
+                        Long since = watched.get(player.getUniqueId());
+                        if (since == null) return;
+                        if (System.currentTimeMillis() - since < SET_SLOT_GRACE_MS) return;
+                        if (event.getPacket().getIntegers().read(0) != 0) return; // other windows (chests etc.)
+                        trigger(player);
+                    }
+                };
+                ProtocolLibrary.getProtocolManager().addPacketListener(adapter);
+            }
+        }
+
+        void unwatch(UUID id) {
+            watched.remove(id);
+            if (watched.isEmpty() && adapter != null) {
+                ProtocolLibrary.getProtocolManager().removePacketListener(adapter);
+                adapter = null;
+            }
+        }
+
+        // 1.8 PacketPlayInWindowClick integers: window id, slot, button, mode
+        private boolean isThrow(PacketContainer packet) {
+            StructureModifier<Integer> ints = packet.getIntegers();
+            if (ints.size() < 4) return false; // newer protocol layouts: treat clicks as rearranging
+            return ints.read(3) == WINDOW_CLICK_THROW || ints.read(1) == OUTSIDE_WINDOW;
+        }
+
+        private void trigger(final Player player) {
+            final UUID id = player.getUniqueId();
+            if (!pending.add(id)) return;
+            Bukkit.getScheduler().runTask(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    pending.remove(id);
+                    if (player.isOnline()) maybeSnapshot(player);
+                    // One trigger per life: even if no snapshot was due (e.g. left the DTM match), stop watching
+                    unwatch(id);
+                }
+            });
         }
     }
 
     /**
      * Called for "normal" snapshots within a running match.
      * Records signature preferences and per-slot recency while locking the session until next arm.
+     * The layout is captured now; signatures are computed off-thread and saved back on the main thread.
      */
     private void maybeSnapshot(Player player) {
-        UUID id = player.getUniqueId();
+        final UUID id = player.getUniqueId();
 
         if (SCOPE_DTM_ONLY && !isDTM(player.getWorld())) return;
         if (!state.isArmed(id) || state.isLocked(id)) return;
-
-        PlayerInventory inv = player.getInventory();
-        Map<ItemSignature, List<Integer>> prefs = computePreferences(inv);
-
-        // Save both classic preferences and recency metadata
-        store.savePreferences(id, prefs);
-        store.saveSlotHistory(id, inv, System.currentTimeMillis());
+        // Our own reorder hasn't landed yet: the current layout is the kit's, not the player's
+        if (state.isReordering(id)) return;
 
         state.lock(id);
+        if (packetTriggers != null) packetTriggers.unwatch(id);
+
+        final InventoryCapture capture = InventoryCapture.of(player.getInventory());
+        final long timestamp = System.currentTimeMillis();
+        compute.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ItemSignature[] sigs = capture.signatures();
+                final Map<ItemSignature, List<Integer>> prefs = computePreferences(sigs);
+                runSave(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Save both classic preferences and recency metadata
+                        saveSnapshot(id, prefs, sigs, timestamp);
+                    }
+                });
+            }
+        });
     }
 
     /**
      * Called at MatchFinish so the next map can inherit the latest arrangement even if a player didn't die or relog.
-     * Does NOT require the session to be armed; always snapshots.
+     * Does NOT require the session to be armed; always snapshots. All players of the world are captured now,
+     * computed in one background task, saved together and then flushed.
      */
-    private void snapshotForRotation(Player player) {
-        if (SCOPE_DTM_ONLY && !isDTM(player.getWorld())) return;
+    private void snapshotForRotation(List<Player> players) {
+        final List<UUID> ids = new ArrayList<UUID>();
+        final List<InventoryCapture> captures = new ArrayList<InventoryCapture>();
+        for (Player player : players) {
+            if (SCOPE_DTM_ONLY && !isDTM(player.getWorld())) continue;
+            ids.add(player.getUniqueId());
+            captures.add(InventoryCapture.of(player.getInventory()));
+        }
+        if (ids.isEmpty()) return;
 
-        UUID id = player.getUniqueId();
-        PlayerInventory inv = player.getInventory();
+        final long timestamp = System.currentTimeMillis();
+        compute.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ItemSignature[][] sigs = new ItemSignature[captures.size()][];
+                final List<Map<ItemSignature, List<Integer>>> prefs = new ArrayList<Map<ItemSignature, List<Integer>>>();
+                for (int i = 0; i < captures.size(); i++) {
+                    sigs[i] = captures.get(i).signatures();
+                    prefs.add(computePreferences(sigs[i]));
+                }
+                runSave(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < ids.size(); i++) {
+                            saveSnapshot(ids.get(i), prefs.get(i), sigs[i], timestamp);
+                        }
+                        // Write immediately rather than waiting for the debounce, but keep the IO off the main thread
+                        store.flushAsync();
+                    }
+                });
+            }
+        });
+    }
 
-        Map<ItemSignature, List<Integer>> prefs = computePreferences(inv);
+    private void saveSnapshot(final UUID id, final Map<ItemSignature, List<Integer>> prefs, final ItemSignature[] sigs,
+                              final long timestamp) {
+        // Quit while the snapshot was computing: don't pull their shard back into memory
+        if (Bukkit.getPlayer(id) == null) return;
+        if (!store.isLoaded(id) && !plugin.isEnabled()) {
+            // Disabling: the callback below would never run, and blocking the main thread no longer matters
+            store.load(id);
+        } else if (!store.isLoaded(id)) {
+            // Evicted while online: merge into the stored data once it is back, never read it on the main thread
+            store.loadAsync(id, plugin, new Runnable() {
+                @Override
+                public void run() {
+                    if (store.isLoaded(id)) saveSnapshot(id, prefs, sigs, timestamp);
+                }
+            });
+            return;
+        }
         store.savePreferences(id, prefs);
-        store.saveSlotHistory(id, inv, System.currentTimeMillis());
+        store.saveSlotHistory(id, sigs, timestamp);
     }
 
-    // Build preferences from current layout
-    private Map<ItemSignature, List<Integer>> computePreferences(PlayerInventory inv) {
+    // Build preferences from a captured layout (any thread)
+    private static Map<ItemSignature, List<Integer>> computePreferences(ItemSignature[] sigs) {
         Map<ItemSignature, List<Integer>> map = new LinkedHashMap<ItemSignature, List<Integer>>();
         for (int slot = 0; slot <= 35; slot++) {
-            ItemStack stack = inv.getItem(slot);
-            if (stack == null || stack.getType() == Material.AIR) continue;
-            ItemSignature sig = ItemSignature.of(stack);
+            ItemSignature sig = sigs[slot];
+            if (sig == null) continue;
             List<Integer> list = map.get(sig);
             if (list == null) {
                 list = new ArrayList<Integer>();
@@ -339,250 +886,395 @@ public class InventorySorter implements Listener {
      *   - higher rank wins; if tied, most recently saved for that slot wins; if still tied, stable order.
      * - Losing candidates are queued for fallback and placed into free slots starting at 9, 10, ...
      * - Finally, any leftover items fill remaining free slots in their original order.
+     *
+     * The computation itself lives in ReorderEngine and works on signatures only (PreferenceStore.plan, off the main
+     * thread); this method writes the resulting permutation back. stacks are the live items the plan was checked
+     * against (see applyReorder). No clone needed: setItem/setContents copy the stacks they are given.
      */
-    private void reorderToPreferencesRanked(Player player, Map<ItemSignature, List<Integer>> rawPreferences) {
-        PlayerInventory inv = player.getInventory();
-
-        // Collect current items
-        List<SlotItem> items = new ArrayList<SlotItem>();
+    private void reorderToPreferencesRanked(Player player, PlayerInventory inv, ItemStack[] stacks, int[] source) {
+        ItemStack[] layout = applyLayout;
+        // Diff against the current layout: a slot changes only if its item came from another slot
+        // (an empty slot that stays empty is unchanged too).
+        long changed = 0L;
+        int changedCount = 0;
         for (int slot = 0; slot <= 35; slot++) {
-            ItemStack s = inv.getItem(slot);
-            if (s == null || s.getType() == Material.AIR) continue;
-            items.add(new SlotItem(slot, s.clone(), ItemSignature.of(s)));
+            int from = source[slot];
+            layout[slot] = from < 0 ? null : stacks[from];
+            if (from != slot && !(from < 0 && stacks[slot] == null)) {
+                changed |= 1L << slot;
+                changedCount++;
+            }
         }
-        if (items.isEmpty()) return;
-
-        UUID id = player.getUniqueId();
-
-        // Prepare helper structures
-        ItemStack[] newLayout = new ItemStack[36];
-        boolean[] occupied = new boolean[36];
 
-        // Build family-level slot histories and signature-level slot recency
-        Map<ItemSignature, List<Integer>> preferences = rawPreferences;
-        SlotHistory slotHistory = store.getSlotHistory(id);
-        SignatureSlotRecency recency = store.getSignatureSlotRecency(id);
+        if (changedCount == 0) {
+            // Already in the preferred layout: no writes, no packets
+        } else if (changedCount <= SET_SLOT_LIMIT || inv.getSize() != 36 || !InventoryPackets.isAvailable()) {
+            // setItem on a player inventory sends its own SET_SLOT, so the client is already in sync
+            for (int slot = 0; slot <= 35; slot++) {
+                if ((changed & (1L << slot)) != 0) inv.setItem(slot, layout[slot]);
+            }
+            if (inv.getSize() == 36 && InventoryPackets.isAvailable()) echoFilter.expect(player, layout, changed);
+        } else {
+            // setContents writes the backing array without per-slot packets; one WINDOW_ITEMS syncs the client
+            inv.setContents(layout);
+            if (InventoryPackets.sendWindowItems(player, layout)) {
+                echoFilter.expect(player, layout, changed);
+            } else {
+                player.updateInventory();
+            }
+        }
+        Arrays.fill(layout, null);
+    }
 
-        // Precompute item ranks and preferred slots
-        List<RankedItem> ranked = new ArrayList<RankedItem>();
-        for (int i = 0; i < items.size(); i++) {
-            SlotItem it = items.get(i);
-            ItemFamily family = ItemFamily.of(it.stack.getType());
-            int rankScore = ItemRanker.score(it.stack, it.sig, family);
+    /**
+     * Allocation-free implementation of the ranked reorder rules (see reorderToPreferencesRanked).
+     *
+     * Items are indexed 0..m-1 in slot order (that index is the "stable order" tie-breaker). Slot sets are 36-bit
+     * masks in a long, preference lists are flattened into int arrays, and all buffers are scratch that is reused
+     * across calls. Engines are pooled rather than thread-local because planning runs on short-lived virtual
+     * threads. plan() returns source[newSlot] = original slot (or -1 for empty); the array is only valid until the
+     * engine is released.
+     */
+    static final class ReorderEngine {
+        private static final int SLOTS = 36;
+        private static final ItemFamily[] FAMILIES = ItemFamily.values();
+
+        // Idle engines; at most one per concurrently running plan is ever created
+        private static final Queue<ReorderEngine> POOL = new ConcurrentLinkedQueue<ReorderEngine>();
+
+        // Per item
+        private final int[] itemSlot = new int[SLOTS];
+        private final ItemSignature[] itemSig = new ItemSignature[SLOTS];
+        private final int[] itemRank = new int[SLOTS];
+        private final long[] candidateMask = new long[SLOTS]; // in-range preferred slots
+        private final int[] prefStart = new int[SLOTS];
+        private final int[] prefLen = new int[SLOTS];
+        private final long[] bestRecency = new long[SLOTS];
+
+        // Exact-signature preference lists, flattened; grows only for pathological (duplicate-laden) lists
+        private int[] exactSlots = new int[SLOTS * 2];
+        private long[] exactTs = new long[SLOTS * 2];
+
+        // Family preference lists, one SLOTS-wide row per family, computed at most once per plan()
+        private final int[] familySlots = new int[FAMILIES.length * SLOTS];
+        private final int[] familyLen = new int[FAMILIES.length];
+        private final long[] familyMask = new long[FAMILIES.length];
+        private int familyDone; // bit per family ordinal
+        private final boolean[] fromFamily = new boolean[SLOTS];
+
+        private final int[] losers = new int[SLOTS];
+        private final int[] source = new int[SLOTS];
+
+        static ReorderEngine get() {
+            ReorderEngine engine = POOL.poll();
+            return engine != null ? engine : new ReorderEngine();
+        }
 
-            List<Integer> preferred = computePreferredSlotsForItem(it.sig, family, preferences, slotHistory, recency);
-            RankedItem ri = new RankedItem(i, it, family, rankScore, preferred);
-            ranked.add(ri);
+        // Drops signature references and returns the engine to the pool
+        void release() {
+            Arrays.fill(itemSig, null);
+            POOL.offer(this);
         }
 
-        // Map of slot -> candidates wanting this slot
-        Map<Integer, List<RankedItem>> candidatesBySlot = new HashMap<Integer, List<RankedItem>>();
-        for (RankedItem ri : ranked) {
-            for (int target : ri.preferredSlots) {
-                if (target < 0 || target > 35) continue;
-                List<RankedItem> list = candidatesBySlot.get(target);
-                if (list == null) {
-                    list = new ArrayList<RankedItem>();
-                    candidatesBySlot.put(target, list);
+        int[] plan(ItemSignature[] slots,
+                   Map<ItemSignature, List<Integer>> preferences,
+                   SlotHistory history,
+                   SignatureSlotRecency recency) {
+            Arrays.fill(source, -1);
+
+            // Precompute item ranks
+            int m = 0;
+            for (int slot = 0; slot < SLOTS; slot++) {
+                ItemSignature sig = slots[slot];
+                if (sig == null) continue;
+                itemSlot[m] = slot;
+                itemSig[m] = sig;
+                itemRank[m] = sig.score();
+                m++;
+            }
+            if (m == 0) return source;
+
+            // Preferred slots per item
+            familyDone = 0;
+            int used = 0;
+            for (int k = 0; k < m; k++) {
+                ItemSignature sig = itemSig[k];
+                List<Integer> exact = preferences.get(sig);
+                if (exact != null && !exact.isEmpty()) {
+                    int n = exact.size();
+                    if (used + n > exactSlots.length) {
+                        exactSlots = Arrays.copyOf(exactSlots, Math.max(exactSlots.length * 2, used + n));
+                        exactTs = Arrays.copyOf(exactTs, exactSlots.length);
+                    }
+                    // Order by recency desc (stable insertion sort; ties keep saved order)
+                    long mask = 0L;
+                    for (int i = 0; i < n; i++) {
+                        int s = exact.get(i);
+                        long ts = recency.get(sig, s);
+                        int j = used + i;
+                        while (j > used && exactTs[j - 1] < ts) {
+                            exactSlots[j] = exactSlots[j - 1];
+                            exactTs[j] = exactTs[j - 1];
+                            j--;
+                        }
+                        exactSlots[j] = s;
+                        exactTs[j] = ts;
+                        if (s >= 0 && s < SLOTS) mask |= 1L << s;
+                    }
+                    fromFamily[k] = false;
+                    prefStart[k] = used;
+                    prefLen[k] = n;
+                    candidateMask[k] = mask;
+                    used += n;
+                } else {
+                    int f = sig.family().ordinal();
+                    if ((familyDone & (1 << f)) == 0) {
+                        computeFamilySlots(f, history);
+                        familyDone |= 1 << f;
+                    }
+                    fromFamily[k] = true;
+                    prefStart[k] = f * SLOTS;
+                    prefLen[k] = familyLen[f];
+                    candidateMask[k] = familyMask[f];
                 }
-                list.add(ri);
             }
-        }
 
-        // Resolve each slot independently to a single winner
-        Set<Integer> assignedItemIdx = new HashSet<Integer>();
-        Map<Integer, Integer> winnerItemIndexBySlot = new HashMap<Integer, Integer>(); // slot -> ranked.index
-        for (int slot = 0; slot <= 35; slot++) {
-            List<RankedItem> cands = candidatesBySlot.get(slot);
-            if (cands == null || cands.isEmpty()) continue;
-
-            // Sort candidates by:
-            // - rank desc
-            // - recency (lastSaved to this slot) desc
-            // - stable index asc
-            Collections.sort(cands, new RankedItemComparator(slot, recency));
-            RankedItem winner = null;
-            for (RankedItem ri : cands) {
-                if (!assignedItemIdx.contains(ri.index)) {
-                    winner = ri;
-                    break;
+            // Resolve each slot independently to a single winner:
+            // rank desc, then recency (last saved to this slot) desc, then stable index asc
+            long assigned = 0L; // bit per item index
+            long occupied = 0L; // bit per slot
+            for (int slot = 0; slot < SLOTS; slot++) {
+                int winner = -1;
+                long winnerTs = 0L;
+                for (int k = 0; k < m; k++) {
+                    if ((assigned & (1L << k)) != 0 || (candidateMask[k] & (1L << slot)) == 0) continue;
+                    long ts = recency.get(itemSig[k], slot);
+                    if (winner < 0 || itemRank[k] > itemRank[winner] || (itemRank[k] == itemRank[winner] && ts > winnerTs)) {
+                        winner = k;
+                        winnerTs = ts;
+                    }
+                }
+                if (winner >= 0) {
+                    source[slot] = itemSlot[winner];
+                    occupied |= 1L << slot;
+                    assigned |= 1L << winner;
                 }
             }
-            if (winner != null) {
-                newLayout[slot] = winner.item.stack;
-                occupied[slot] = true;
-                assignedItemIdx.add(winner.index);
-                winnerItemIndexBySlot.put(slot, winner.index);
-            }
-        }
 
-        // Gather losers who attempted to claim a slot but lost
-        // Definition: item has preferred slots, but wasn't assigned yet.
-        List<RankedItem> losers = new ArrayList<RankedItem>();
-        for (RankedItem ri : ranked) {
-            if (assignedItemIdx.contains(ri.index)) continue;
-            if (!ri.preferredSlots.isEmpty()) {
-                losers.add(ri);
-            }
-        }
+            // Gather losers: items that have preferred slots but weren't assigned. Sort by:
+            // - the best recency they had among their preferred slots (older first -> goes earlier to 9,10,...)
+            // - lower rank first
+            // - stable index
+            int loserCount = 0;
+            for (int k = 0; k < m; k++) {
+                if ((assigned & (1L << k)) != 0 || prefLen[k] == 0) continue;
+                long best = Long.MIN_VALUE;
+                int[] list = fromFamily[k] ? familySlots : exactSlots;
+                for (int i = prefStart[k], end = prefStart[k] + prefLen[k]; i < end; i++) {
+                    long ts = recency.get(itemSig[k], list[i]);
+                    if (ts > best) best = ts;
+                }
+                bestRecency[k] = best == Long.MIN_VALUE ? 0L : best;
 
-        // Sort losers by:
-        // - the best recency they had among their preferred slots (older first -> "furthest last saved" goes earlier to 9,10,...)
-        // - lower rank first (so stronger items might still get a chance in hotbar if room remains)
-        Collections.sort(losers, new java.util.Comparator<RankedItem>() {
-            @Override
-            public int compare(RankedItem a, RankedItem b) {
-                long aBest = bestRecencyForAnyPreferredSlot(a, recency);
-                long bBest = bestRecencyForAnyPreferredSlot(b, recency);
-                if (aBest != bBest) {
-                    // "furthest last saved" -> smaller timestamps first
-                    return aBest < bBest ? -1 : 1;
+                int j = loserCount++;
+                while (j > 0 && loserAfter(losers[j - 1], k)) {
+                    losers[j] = losers[j - 1];
+                    j--;
                 }
-                if (a.rankScore != b.rankScore) return a.rankScore < b.rankScore ? -1 : 1;
-                return a.index - b.index;
+                losers[j] = k;
             }
-        });
 
-        // Reserve fallback slots 9..35 first for losers.
-        List<Integer> fallbackSlots = new ArrayList<Integer>();
-        for (int i = 9; i <= 35; i++) if (!occupied[i]) fallbackSlots.add(i);
-        int fIdx = 0;
-        for (RankedItem loser : losers) {
-            if (fIdx >= fallbackSlots.size()) break;
-            int slot = fallbackSlots.get(fIdx++);
-            newLayout[slot] = loser.item.stack;
-            occupied[slot] = true;
-            assignedItemIdx.add(loser.index);
-        }
-
-        // Place any remaining unassigned items (no preferences at all or no capacity)
-        List<Integer> remainingSlots = new ArrayList<Integer>();
-        for (int i = 0; i <= 35; i++) if (!occupied[i]) remainingSlots.add(i);
+            // Fallback slots 9..35 first for losers
+            int next = 9;
+            for (int i = 0; i < loserCount; i++) {
+                while (next < SLOTS && (occupied & (1L << next)) != 0) next++;
+                if (next >= SLOTS) break;
+                int k = losers[i];
+                source[next] = itemSlot[k];
+                occupied |= 1L << next;
+                assigned |= 1L << k;
+            }
 
-        for (RankedItem ri : ranked) {
-            if (assignedItemIdx.contains(ri.index)) continue;
-            if (remainingSlots.isEmpty()) break;
-            int slot = remainingSlots.remove(0);
-            newLayout[slot] = ri.item.stack;
-            occupied[slot] = true;
-            assignedItemIdx.add(ri.index);
+            // Place any remaining unassigned items (no preferences at all or no capacity)
+            next = 0;
+            for (int k = 0; k < m; k++) {
+                if ((assigned & (1L << k)) != 0) continue;
+                while (next < SLOTS && (occupied & (1L << next)) != 0) next++;
+                if (next >= SLOTS) break;
+                source[next] = itemSlot[k];
+                occupied |= 1L << next;
+                assigned |= 1L << k;
+            }
+            return source;
         }
 
-        // Write back
-        for (int slot = 0; slot <= 35; slot++) {
-            inv.setItem(slot, newLayout[slot]);
+        // True if loser a sorts after loser b
+        private boolean loserAfter(int a, int b) {
+            if (bestRecency[a] != bestRecency[b]) return bestRecency[a] > bestRecency[b];
+            if (itemRank[a] != itemRank[b]) return itemRank[a] > itemRank[b];
+            return a > b;
         }
-    }
 
-    private long bestRecencyForAnyPreferredSlot(RankedItem ri, SignatureSlotRecency recency) {
-        long best = Long.MIN_VALUE;
-        for (int s : ri.preferredSlots) {
-            long ts = recency.get(ri.item.sig, s);
-            if (ts > best) best = ts;
+        /**
+         * Slots where any signature of this family appeared in slot history, most recent first
+         * (ties keep slot order).
+         */
+        private void computeFamilySlots(int family, SlotHistory history) {
+            FamilySlotIndex index = history.families();
+            int base = family * SLOTS;
+            int n = index.length(family);
+            for (int i = 0; i < n; i++) {
+                familySlots[base + i] = index.slotAt(family, i);
+            }
+            familyLen[family] = n;
+            familyMask[family] = index.mask(family);
         }
-        // If no recency known, set to Long.MIN_VALUE so it sorts as oldest
-        return best == Long.MIN_VALUE ? 0L : best;
     }
 
     /**
-     * Determine preferred slots for an item:
-     * - use exact-signature saved slots ordered by recency desc
-     * - if none, use family union slots ordered by recency desc (across all signatures in that family)
+     * Sends the player's own inventory window (window id 0) as a single WINDOW_ITEMS packet through ProtocolLib.
+     *
+     * Window 0 slot layout: 0 crafting result, 1-4 crafting grid, 5-8 armor (helmet first), 9-35 main inventory,
+     * 36-44 hotbar (inventory slots 0-8). Callers fall back to Player#updateInventory when this returns false.
      */
-    private List<Integer> computePreferredSlotsForItem(ItemSignature sig,
-                                                       ItemFamily family,
-                                                       Map<ItemSignature, List<Integer>> preferences,
-                                                       SlotHistory slotHistory,
-                                                       SignatureSlotRecency recency) {
-        // 1) exact signature
-        List<Integer> exact = preferences.get(sig);
-        if (exact != null && !exact.isEmpty()) {
-            // Order by recency desc if we have timestamps; otherwise keep as-is
-            List<Integer> sorted = new ArrayList<Integer>(exact);
-            Collections.sort(sorted, new java.util.Comparator<Integer>() {
-                @Override
-                public int compare(Integer a, Integer b) {
-                    long ta = recency.get(sig, a);
-                    long tb = recency.get(sig, b);
-                    if (ta == tb) return 0;
-                    return ta > tb ? -1 : 1;
-                }
-            });
-            return sorted;
+    private static final class InventoryPackets {
+        static final int WINDOW_SIZE = 45;
+        static final ItemStack AIR = new ItemStack(Material.AIR);
+
+        private static volatile boolean failed;
+
+        static boolean isAvailable() {
+            return !failed && Bukkit.getPluginManager().isPluginEnabled("ProtocolLib");
         }
 
-        // 2) family union via slot history
-        // SlotHistory stores, for each slot, recent signatures that were saved there.
-        // Choose slots where any signature from the same family appeared most recently, sorted by recency desc.
-        List<SlotCandidate> cands = new ArrayList<SlotCandidate>();
-        for (int slot = 0; slot <= 35; slot++) {
-            List<HistoryEntry> hist = slotHistory.get(slot);
-            if (hist == null || hist.isEmpty()) continue;
-            long best = Long.MIN_VALUE;
-            boolean any = false;
-            for (HistoryEntry he : hist) {
-                if (ItemFamily.of(he.signature.material) == family) {
-                    any = true;
-                    if (he.savedAt > best) best = he.savedAt;
+        static boolean sendWindowItems(Player player, ItemStack[] contents) {
+            if (!isAvailable()) return false;
+            try {
+                ItemStack[] window = new ItemStack[WINDOW_SIZE];
+                Arrays.fill(window, AIR);
+
+                // The 2x2 grid only holds items while the player's own inventory is open
+                InventoryView view = player.getOpenInventory();
+                if (view != null && view.getType() == InventoryType.CRAFTING) {
+                    for (int raw = 0; raw <= 4; raw++) {
+                        window[raw] = orAir(view.getItem(raw));
+                    }
                 }
-            }
-            if (any) {
-                cands.add(new SlotCandidate(slot, best <= 0 ? 1L : best));
+
+                ItemStack[] armor = player.getInventory().getArmorContents(); // boots, leggings, chestplate, helmet
+                for (int i = 0; i < 4 && i < armor.length; i++) {
+                    window[8 - i] = orAir(armor[i]);
+                }
+
+                for (int slot = 0; slot <= 35; slot++) {
+                    window[rawSlot(slot)] = orAir(contents[slot]);
+                }
+
+                ProtocolManager protocol = ProtocolLibrary.getProtocolManager();
+                PacketContainer packet = protocol.createPacket(PacketType.Play.Server.WINDOW_ITEMS);
+                packet.getIntegers().write(0, 0);
+                if (packet.getItemArrayModifier().size() > 0) {
+                    packet.getItemArrayModifier().write(0, window);
+                } else {
+                    packet.getItemListModifier().write(0, Arrays.asList(window));
+                }
+                protocol.sendServerPacket(player, packet);
+                return true;
+            } catch (Exception | LinkageError e) {
+                // Incompatible ProtocolLib build: stop trying and let callers resync the Bukkit way
+                failed = true;
+                Bukkit.getLogger().warning("[PGMUtil] Could not send WINDOW_ITEMS, falling back to updateInventory: " + e);
+                return false;
             }
         }
-        Collections.sort(cands, new java.util.Comparator<SlotCandidate>() {
-            @Override
-            public int compare(SlotCandidate a, SlotCandidate b) {
-                if (a.recency == b.recency) return 0;
-                return a.recency > b.recency ? -1 : 1;
-            }
-        });
-        List<Integer> familySlots = new ArrayList<Integer>();
-        for (SlotCandidate sc : cands) familySlots.add(sc.slot);
-        return familySlots;
-    }
 
-    private static final class SlotCandidate {
-        final int slot;
-        final long recency;
-        SlotCandidate(int slot, long recency) {
-            this.slot = slot;
-            this.recency = recency;
+        // Window 0 slot of inventory slot 0..35
+        static int rawSlot(int slot) {
+            return slot < 9 ? slot + 36 : slot;
         }
-    }
-
-    private static final class RankedItemComparator implements java.util.Comparator<RankedItem> {
-        private final int slot;
-        private final SignatureSlotRecency recency;
 
-        RankedItemComparator(int slot, SignatureSlotRecency recency) {
-            this.slot = slot;
-            this.recency = recency;
+        static ItemStack orAir(ItemStack stack) {
+            return stack == null ? AIR : stack;
         }
+    }
 
-        @Override
-        public int compare(RankedItem a, RankedItem b) {
-            if (a.rankScore != b.rankScore) return a.rankScore > b.rankScore ? -1 : 1;
-            long ta = recency.get(a.item.sig, slot);
-            long tb = recency.get(b.item.sig, slot);
-            if (ta != tb) return ta > tb ? -1 : 1;
-            return a.index - b.index;
+    /**
+     * Cancels the SET_SLOT echoes of a reorder the client has already been sent.
+     *
+     * The server's player container remembers the last item it sent per slot, and its tick sync sends a SET_SLOT for
+     * every slot that differs. After a reorder the client already has the new items (from one WINDOW_ITEMS, or from
+     * the SET_SLOT each setItem sends), so that sync would send every changed slot again: 1 + N packets for N slots.
+     * The container's cache can't be updated without NMS, so the echoes are dropped on the way out instead: expect
+     * records what the client was sent, and the first window 0 SET_SLOT per changed slot carrying that same item is
+     * cancelled. Expectations lapse after ECHO_TICKS; the listener is only registered while any are pending.
+     *
+     * Cancelling either of two identical SET_SLOTs leaves the client in the same state, so it doesn't matter whether
+     * setItem's own packet or the echo reaches the listener first.
+     */
+    private final class EchoFilter {
+        // The sync runs at the end of the tick; one more tick for its packets to pass the listener
+        private static final long ECHO_TICKS = 2L;
+
+        // Player -> per window 0 slot, the item the client already has (null = nothing expected). Written on the
+        // main thread; Netty threads clear the slots they cancel, under the array's monitor.
+        private final ConcurrentMap<UUID, ItemStack[]> expected = new ConcurrentHashMap<UUID, ItemStack[]>();
+
+        private PacketAdapter adapter; // main thread only
+
+        // layout: inventory slots 0..35 as the client was just sent them; changed: one bit per slot that was rewritten
+        void expect(Player player, ItemStack[] layout, long changed) {
+            // With another window open the sync goes out under that window's id and wouldn't match
+            InventoryView view = player.getOpenInventory();
+            if (view == null || view.getType() != InventoryType.CRAFTING) return;
+            final UUID id = player.getUniqueId();
+            final ItemStack[] window = new ItemStack[InventoryPackets.WINDOW_SIZE];
+            for (int slot = 0; slot <= 35; slot++) {
+                if ((changed & (1L << slot)) == 0) continue;
+                window[InventoryPackets.rawSlot(slot)] = layout[slot] == null ? InventoryPackets.AIR : layout[slot].clone();
+            }
+            expected.put(id, window);
+            if (adapter == null) {
+                adapter = new PacketAdapter(plugin, ListenerPriority.HIGH, PacketType.Play.Server.SET_SLOT) {
+                    @Override
+                    public void onPacketSending(PacketEvent event) {
+                        if (event.isPlayerTemporary()) return;
+                        ItemStack[] pending = expected.get(event.getPlayer().getUniqueId());
+                        if (pending != null && isEcho(event.getPacket(), pending)) event.setCancelled(true);
+                    }
+                };
+                ProtocolLibrary.getProtocolManager().addPacketListener(adapter);
+            }
+            Bukkit.getScheduler().runTaskLater(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    // A later reorder of the same player has its own expectations and expiry
+                    expected.remove(id, window);
+                    if (expected.isEmpty() && adapter != null) {
+                        ProtocolLibrary.getProtocolManager().removePacketListener(adapter);
+                        adapter = null;
+                    }
+                }
+            }, ECHO_TICKS);
         }
-    }
 
-    private static final class RankedItem {
-        final int index;            // stable index
-        final SlotItem item;        // original data
-        final ItemFamily family;    // derived category
-        final int rankScore;        // computed ranking score
-        final List<Integer> preferredSlots; // ordered
+        // 1.8 PacketPlayOutSetSlot: integers window id, slot; one item. Consumes the slot's expectation on a match.
+        private boolean isEcho(PacketContainer packet, ItemStack[] window) {
+            StructureModifier<Integer> ints = packet.getIntegers();
+            if (ints.size() < 2 || ints.read(0) != 0) return false;
+            int raw = ints.read(1);
+            if (raw < 0 || raw >= window.length) return false;
+            ItemStack sent = InventoryPackets.orAir(packet.getItemModifier().read(0));
+            synchronized (window) {
+                ItemStack want = window[raw];
+                if (want == null || !sameItem(want, sent)) return false;
+                window[raw] = null;
+                return true;
+            }
+        }
 
-        RankedItem(int index, SlotItem item, ItemFamily family, int rankScore, List<Integer> preferredSlots) {
-            this.index = index;
-            this.item = item;
-            this.family = family;
-            this.rankScore = rankScore;
-            this.preferredSlots = preferredSlots;
+        private boolean sameItem(ItemStack want, ItemStack sent) {
+            if (want.getType() == Material.AIR || sent.getType() == Material.AIR) return want.getType() == sent.getType();
+            return want.isSimilar(sent) && want.getAmount() == sent.getAmount();
         }
     }
 
@@ -620,13 +1312,97 @@ public class InventorySorter implements Listener {
         boolean isLocked(UUID id) {
             return locked.contains(id);
         }
+
+        // Player left: a rejoin starts unarmed, and a plan still in flight for them is dropped
+        void forget(UUID id) {
+            armed.remove(id);
+            locked.remove(id);
+            reordering.remove(id);
+        }
+
+        // Reorder pipeline: player -> generation of the plan in flight
+        private final Map<UUID, Integer> reordering = new HashMap<UUID, Integer>();
+        private int nextGeneration;
+
+        int beginReorder(UUID id) {
+            int generation = ++nextGeneration;
+            reordering.put(id, generation);
+            return generation;
+        }
+
+        boolean isReordering(UUID id) {
+            return reordering.containsKey(id);
+        }
+
+        // False if a newer reorder replaced this one in the meantime
+        boolean endReorder(UUID id, int generation) {
+            Integer current = reordering.get(id);
+            if (current == null || current != generation) return false;
+            reordering.remove(id);
+            return true;
+        }
+    }
+
+    /**
+     * Copy of slots 0..35 taken on the main thread, safe to read from the compute threads.
+     *
+     * Items without meta are copied as plain Bukkit stacks (type, amount, durability), which is all a signature
+     * needs from them; only items with meta (names, enchants) pay for a full clone. The per-slot fingerprint
+     * (type, durability, amount, has-meta) lets applyReorder tell whether the inventory changed since the capture.
+     */
+    private static final class InventoryCapture {
+        private final ItemStack[] items = new ItemStack[36];
+        private final long[] fingerprint = new long[36];
+
+        static InventoryCapture of(PlayerInventory inv) {
+            InventoryCapture capture = new InventoryCapture();
+            for (int slot = 0; slot <= 35; slot++) {
+                ItemStack s = inv.getItem(slot);
+                if (s == null || s.getType() == Material.AIR) continue;
+                boolean meta = s.hasItemMeta();
+                capture.items[slot] = meta ? s.clone() : new ItemStack(s.getType(), s.getAmount(), s.getDurability());
+                capture.fingerprint[slot] = fingerprint(s, meta);
+            }
+            return capture;
+        }
+
+        // Any thread
+        ItemSignature[] signatures() {
+            ItemSignature[] sigs = new ItemSignature[36];
+            for (int slot = 0; slot <= 35; slot++) {
+                if (items[slot] != null) sigs[slot] = ItemSignature.of(items[slot]);
+            }
+            return sigs;
+        }
+
+        // Main thread: fills live with the current stacks; false as soon as a slot differs from the capture
+        boolean matches(PlayerInventory inv, ItemStack[] live) {
+            for (int slot = 0; slot <= 35; slot++) {
+                ItemStack s = inv.getItem(slot);
+                if (s == null || s.getType() == Material.AIR) {
+                    live[slot] = null;
+                    if (fingerprint[slot] != 0L) return false;
+                } else {
+                    live[slot] = s;
+                    if (fingerprint(s, s.hasItemMeta()) != fingerprint[slot]) return false;
+                }
+            }
+            return true;
+        }
+
+        private static long fingerprint(ItemStack s, boolean meta) {
+            return ((long) (s.getType().ordinal() + 1) << 32)
+                    | ((s.getDurability() & 0xffffL) << 16)
+                    | ((s.getAmount() & 0x7fffL) << 1)
+                    | (meta ? 1L : 0L);
+        }
     }
 
     /**
      * Item family/category for ranking and cross-map inheritance.
      * Only uses Material names available in 1.8.
      */
-    private enum ItemFamily {
+    enum ItemFamily {
         SWORD,
         AXE,
         PICKAXE,
@@ -641,184 +1417,270 @@ public class InventorySorter implements Listener {
         PROJECTILE,
         OTHER;
 
+        // Classification comes from item_rules.yml (see ItemRules)
         static ItemFamily of(Material mat) {
-            if (mat == null) return OTHER;
-            String n = mat.name();
-            if (n.endsWith("_SWORD")) return SWORD;
-            if (n.endsWith("_AXE")) return AXE;
-            if (n.endsWith("_PICKAXE")) return PICKAXE;
-            if (n.endsWith("_SPADE")) return SHOVEL; // 1.8 shovel
-            if (n.endsWith("_HOE")) return HOE;
-            if (mat == Material.BOW) return BOW;
-            if (mat == Material.FISHING_ROD) return ROD;
-            if (mat == Material.POTION) return POTION;
-            if (isLikelyBlock(mat)) return BLOCK;
-            if (isLikelyFood(mat)) return FOOD;
-            if (isMiscTool(mat)) return TOOL_MISC;
-            if (isProjectile(mat)) return PROJECTILE;
-            return OTHER;
-        }
-
-        private static boolean isLikelyBlock(Material m) {
-            if (m == null) return false;
-            if (m.isBlock()) return true; // In 1.8 API, Material#isBlock exists
-            String n = m.name();
-            return n.endsWith("_WOOL") || n.endsWith("_CLAY") || n.endsWith("_GLASS") || n.contains("PLANKS") ||
-                    n.endsWith("_LOG") || n.endsWith("_LOG_2") || n.endsWith("_LEAVES") || n.endsWith("_LEAVES_2") ||
-                    n.endsWith("_STONE") || n.endsWith("_BRICK") || n.endsWith("_BRICKS") || n.contains("SANDSTONE");
-        }
-
-        private static boolean isLikelyFood(Material m) {
-            if (m == null) return false;
-            switch (m) {
-                case BREAD:
-                case COOKED_BEEF:
-                case COOKED_CHICKEN:
-                case COOKED_FISH:
-                case COOKED_MUTTON:
-                case GRILLED_PORK:
-                case COOKED_RABBIT:
-                case MUSHROOM_SOUP:
-                case GOLDEN_CARROT:
-                case GOLDEN_APPLE:
-                case CARROT_ITEM:
-                case POTATO_ITEM:
-                case BAKED_POTATO:
-                case APPLE:
-                case MELON:
-                case PUMPKIN_PIE:
-                    return true;
-                default:
-                    return false;
-            }
+            return ItemRules.current().family(mat);
         }
+    }
 
-        private static boolean isMiscTool(Material m) {
-            if (m == null) return false;
-            switch (m) {
-                case SHEARS:
-                case FLINT_AND_STEEL:
-                case COMPASS:
-                case MAP:
-                case TORCH:
-                case LAVA_BUCKET:
-                case WATER_BUCKET:
-                case BUCKET:
-                    return true;
-                default:
-                    return false;
-            }
+    /**
+     * Item classification and ranking rules, compiled from item_rules.yml.
+     *
+     * Family and tier/base score are precomputed per Material ordinal; enchantment weights are per-family maps.
+     * ItemSignature memoizes its family and score against the rules instance they were computed with, so on the
+     * reorder path both are plain field reads; /pgmutil reload swaps the instance and signatures recompute lazily.
+     *
+     * Scoring: tier base (tier families) + family base + potion bonuses (splash, extended, per level) + enchants.
+     */
+    static final class ItemRules {
+        private static final ItemFamily[] FAMILIES = ItemFamily.values();
+        private static final Material[] MATERIALS = Material.values();
+
+        // Everything OTHER with score 0 (what new ItemRules() is); replaced as soon as the sorter loads the rules file
+        private static volatile ItemRules current = new ItemRules();
+
+        private boolean compiled;
+
+        private final ItemFamily[] familyByMaterial = new ItemFamily[MATERIALS.length];
+        private final int[] baseByMaterial = new int[MATERIALS.length];
+        private int potionSplash;
+        private int potionExtended;
+        private int potionPerLevel;
+        // Per family ordinal, upper-cased enchantment name -> weight; null = default weight per level
+        private final Map<String, Integer>[] enchantWeights;
+        private final Map<String, Integer>[] flatEnchantWeights;
+        private int defaultEnchantWeight;
+
+        @SuppressWarnings("unchecked")
+        ItemRules() {
+            Arrays.fill(familyByMaterial, ItemFamily.OTHER);
+            enchantWeights = new Map[FAMILIES.length];
+            flatEnchantWeights = new Map[FAMILIES.length];
         }
 
-        private static boolean isProjectile(Material m) {
-            if (m == null) return false;
-            switch (m) {
-                case ARROW:
-                case SNOW_BALL:
-                case EGG:
-                    return true;
-                default:
-                    return false;
-            }
+        static ItemRules current() {
+            return current;
         }
-    }
 
-    /**
-     * Simple item ranker:
-     * - Base on material tier per family (swords/tools), GOLD < IRON < DIAMOND
-     * - Adds enchantment weights
-     * - Potions: slight boost for splash; extends considered
-     * - Otherwise 0 baseline
-     */
-    private static final class ItemRanker {
-        // Base tiers for tools/swords (1.8 names)
-        private static final Map<String, Integer> TIER_BASE = new HashMap<String, Integer>();
-        static {
-            // Base per family by suffix
-            TIER_BASE.put("WOOD", 10);
-            TIER_BASE.put("STONE", 20);
-            TIER_BASE.put("GOLD", 25);     // weaker than iron
-            TIER_BASE.put("IRON", 35);
-            TIER_BASE.put("DIAMOND", 50);
-        }
-
-        private static int tierBaseFor(Material mat) {
-            if (mat == null) return 0;
-            String n = mat.name();
-            if (n.contains("WOOD")) return TIER_BASE.get("WOOD");
-            if (n.contains("STONE")) return TIER_BASE.get("STONE");
-            if (n.contains("GOLD")) return TIER_BASE.get("GOLD");
-            if (n.contains("IRON")) return TIER_BASE.get("IRON");
-            if (n.contains("DIAMOND")) return TIER_BASE.get("DIAMOND");
-            return 0;
+        static void install(ItemRules rules) {
+            current = rules;
         }
 
-        static int score(ItemStack stack, ItemSignature sig, ItemFamily family) {
-            int score = 0;
-            if (family == ItemFamily.SWORD || family == ItemFamily.AXE || family == ItemFamily.PICKAXE || family == ItemFamily.SHOVEL || family == ItemFamily.HOE) {
-                score += tierBaseFor(stack.getType());
-            }
-            if (family == ItemFamily.BOW) {
-                // Bow baseline
-                score += 30;
-            }
-            if (family == ItemFamily.ROD) {
-                score += 5;
+        /**
+         * Compiles file and installs the result. Returns null, or an error message if it could not be compiled: the
+         * rules in use then stay, or the defaults are installed if no rules were compiled yet.
+         */
+        static String load(File file, java.util.function.Supplier<ItemRules> defaults) {
+            ItemRules rules;
+            String error = null;
+            try {
+                rules = compile(YamlConfiguration.loadConfiguration(file));
+            } catch (RuntimeException e) {
+                error = "Could not load " + file.getName() + ": " + e.getMessage();
+                if (current.isCompiled()) return error;
+                rules = defaults.get();
             }
-            if (family == ItemFamily.POTION) {
-                // Splash potions are more valuable for PvP hotbar; extended slightly
-                if (sig.potionKey != null) {
-                    if (sig.potionKey.contains("splash=1")) score += 12;
-                    if (sig.potionKey.contains("ext=1")) score += 4;
-                    // Higher levels add 3 per level
-                    int idx = sig.potionKey.indexOf("lvl=");
-                    if (idx >= 0) {
-                        try {
-                            int lvl = Integer.parseInt(sig.potionKey.substring(idx + 4, sig.potionKey.indexOf(':', idx + 4) > -1 ? sig.potionKey.indexOf(':', idx + 4) : sig.potionKey.length()));
-                            score += 3 * lvl;
-                        } catch (Exception ignored) {}
-                    }
-                }
+            install(rules);
+            return error;
+        }
+
+        boolean isCompiled() {
+            return compiled;
+        }
+
+        ItemFamily family(Material mat) {
+            return mat == null ? ItemFamily.OTHER : familyByMaterial[mat.ordinal()];
+        }
+
+        // Full computation; callers go through ItemSignature.score(), which memoizes it
+        int score(ItemSignature sig, ItemFamily family) {
+            int score = sig.material == null ? 0 : baseByMaterial[sig.material.ordinal()];
+            if (family == ItemFamily.POTION && sig.potion != null) {
+                // Splash potions are more valuable for PvP hotbar; extended slightly; higher levels add per level
+                if (sig.potion.splash) score += potionSplash;
+                if (sig.potion.extended) score += potionExtended;
+                score += potionPerLevel * sig.potion.level;
             }
-            // Enchantments
-            score += enchantScore(sig.enchants, family);
-            return score;
+            return score + enchantScore(sig.enchants, family);
         }
 
-        private static int enchantScore(SortedMap<String, Integer> ench, ItemFamily family) {
+        private int enchantScore(SortedMap<String, Integer> ench, ItemFamily family) {
             if (ench == null || ench.isEmpty()) return 0;
+            Map<String, Integer> weights = enchantWeights[family.ordinal()];
+            Map<String, Integer> flat = flatEnchantWeights[family.ordinal()];
             int s = 0;
             for (Map.Entry<String, Integer> e : ench.entrySet()) {
-                String name = e.getKey();
                 int lvl = e.getValue() == null ? 0 : e.getValue();
                 if (lvl <= 0) continue;
-                // Weight by relevant enchants
-                if (family == ItemFamily.SWORD || family == ItemFamily.AXE) {
-                    if ("DAMAGE_ALL".equals(name) || "SHARPNESS".equalsIgnoreCase(name)) s += 6 * lvl;
-                    else if ("KNOCKBACK".equalsIgnoreCase(name)) s += 3 * lvl;
-                    else if ("FIRE_ASPECT".equalsIgnoreCase(name)) s += 4 * lvl;
-                } else if (family == ItemFamily.BOW) {
-                    if ("ARROW_DAMAGE".equalsIgnoreCase(name) || "POWER".equalsIgnoreCase(name)) s += 6 * lvl;
-                    else if ("ARROW_KNOCKBACK".equalsIgnoreCase(name) || "PUNCH".equalsIgnoreCase(name)) s += 3 * lvl;
-                    else if ("ARROW_FIRE".equalsIgnoreCase(name) || "FLAME".equalsIgnoreCase(name)) s += 2 * lvl;
-                    else if ("ARROW_INFINITE".equalsIgnoreCase(name) || "INFINITY".equalsIgnoreCase(name)) s += 1;
-                } else if (family == ItemFamily.PICKAXE || family == ItemFamily.SHOVEL || family == ItemFamily.HOE) {
-                    if ("DIG_SPEED".equalsIgnoreCase(name) || "EFFICIENCY".equalsIgnoreCase(name)) s += 3 * lvl;
-                } else {
+                if (weights == null && flat == null) {
                     // Generic bonus for any enchant
-                    s += lvl;
+                    s += defaultEnchantWeight * lvl;
+                    continue;
+                }
+                String name = e.getKey().toUpperCase(Locale.ROOT);
+                Integer w = weights != null ? weights.get(name) : null;
+                if (w != null) {
+                    s += w * lvl;
+                } else if (flat != null && (w = flat.get(name)) != null) {
+                    s += w;
                 }
             }
             return s;
         }
+
+        /**
+         * Compiles a rules file. Unknown families/materials are skipped with a warning; structural problems throw
+         * IllegalArgumentException so a broken edit never replaces working rules.
+         */
+        static ItemRules compile(ConfigurationSection root) {
+            ItemRules rules = new ItemRules();
+            ConfigurationSection families = root.getConfigurationSection("families");
+            ConfigurationSection ranking = root.getConfigurationSection("ranking");
+            if (families == null || ranking == null) {
+                throw new IllegalArgumentException("missing 'families' or 'ranking' section");
+            }
+
+            // Classification: first matching family in file order
+            for (String key : families.getKeys(false)) {
+                ItemFamily family = familyNamed(key);
+                ConfigurationSection rule = families.getConfigurationSection(key);
+                if (family == null || rule == null) continue;
+                Set<String> exact = new HashSet<String>(upper(rule.getStringList("materials")));
+                List<String> suffixes = upper(rule.getStringList("suffixes"));
+                List<String> contains = upper(rule.getStringList("contains"));
+                boolean blocks = rule.getBoolean("blocks", false);
+                for (Material mat : MATERIALS) {
+                    if (rules.familyByMaterial[mat.ordinal()] != ItemFamily.OTHER) continue;
+                    if (matches(mat, exact, suffixes, contains, blocks)) {
+                        rules.familyByMaterial[mat.ordinal()] = family;
+                    }
+                }
+            }
+
+            // Tier and family bases, folded into one score per material
+            Set<ItemFamily> tierFamilies = EnumSet.noneOf(ItemFamily.class);
+            for (String name : ranking.getStringList("tier-families")) {
+                ItemFamily family = familyNamed(name);
+                if (family != null) tierFamilies.add(family);
+            }
+            ConfigurationSection tiers = ranking.getConfigurationSection("tiers");
+            ConfigurationSection familyBase = ranking.getConfigurationSection("family-base");
+            EnumMap<ItemFamily, Integer> bases = new EnumMap<ItemFamily, Integer>(ItemFamily.class);
+            if (familyBase != null) {
+                for (String key : familyBase.getKeys(false)) {
+                    ItemFamily family = familyNamed(key);
+                    if (family != null) bases.put(family, familyBase.getInt(key));
+                }
+            }
+            for (Material mat : MATERIALS) {
+                ItemFamily family = rules.familyByMaterial[mat.ordinal()];
+                int base = bases.containsKey(family) ? bases.get(family) : 0;
+                if (tiers != null && tierFamilies.contains(family)) {
+                    for (String fragment : tiers.getKeys(false)) {
+                        if (mat.name().contains(fragment.toUpperCase(Locale.ROOT))) {
+                            base += tiers.getInt(fragment);
+                            break;
+                        }
+                    }
+                }
+                rules.baseByMaterial[mat.ordinal()] = base;
+            }
+
+            rules.potionSplash = ranking.getInt("potion.splash", 0);
+            rules.potionExtended = ranking.getInt("potion.extended", 0);
+            rules.potionPerLevel = ranking.getInt("potion.per-level", 0);
+            compileEnchants(ranking.getConfigurationSection("enchants"), rules.enchantWeights);
+            compileEnchants(ranking.getConfigurationSection("flat-enchants"), rules.flatEnchantWeights);
+            rules.defaultEnchantWeight = ranking.getInt("default-enchant-weight", 0);
+            rules.compiled = true;
+            return rules;
+        }
+
+        private static void compileEnchants(ConfigurationSection section, Map<String, Integer>[] into) {
+            if (section == null) return;
+            for (String key : section.getKeys(false)) {
+                ItemFamily family = familyNamed(key);
+                ConfigurationSection weights = section.getConfigurationSection(key);
+                if (family == null || weights == null) continue;
+                Map<String, Integer> map = new HashMap<String, Integer>();
+                for (String enchant : weights.getKeys(false)) {
+                    map.put(enchant.toUpperCase(Locale.ROOT), weights.getInt(enchant));
+                }
+                into[family.ordinal()] = map;
+            }
+        }
+
+        private static boolean matches(Material mat, Set<String> exact, List<String> suffixes, List<String> contains,
+                                       boolean blocks) {
+            String n = mat.name();
+            if (exact.contains(n)) return true;
+            if (blocks && mat.isBlock()) return true;
+            for (String suffix : suffixes) {
+                if (n.endsWith(suffix)) return true;
+            }
+            for (String part : contains) {
+                if (n.contains(part)) return true;
+            }
+            return false;
+        }
+
+        private static ItemFamily familyNamed(String name) {
+            try {
+                return ItemFamily.valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                Bukkit.getLogger().warning("[PGMUtil] Unknown item family in item_rules.yml: " + name);
+                return null;
+            }
+        }
+
+        private static List<String> upper(List<String> values) {
+            List<String> out = new ArrayList<String>(values.size());
+            for (String v : values) out.add(v.toUpperCase(Locale.ROOT));
+            return out;
+        }
     }
 
-    // Signature of an item for reordering (1.8-safe)
-    private static final class ItemSignature {
+    /**
+     * Signature of an item for reordering (1.8-safe).
+     *
+     * Signatures are interned: every distinct signature exists once, with a precomputed hash and a dense id
+     * (0, 1, 2, ... in creation order) that recency/history structures use as a key. Because instances are
+     * canonical, equality on hot paths is an identity check; the structural equals only runs on pool lookups.
+     *
+     * Display names and enchant sets make the set of signatures open-ended, so the pool holds them weakly. A
+     * signature is pinned (strongly held by the pool) while it is in use: interned or stored into a history since the
+     * previous sweep, or referenced by id from a resident player's history or recency, which keep nothing but the id.
+     * PreferenceStore sweeps periodically and unpins the rest; an unpinned signature stays interned, with its id, as
+     * long as anything else still references it, and leaves the pool once the GC clears it. Ids are never reused, so
+     * the id tables keep growing by two references per signature ever interned, but the signatures themselves (names,
+     * enchant maps) go away.
+     */
+    static final class ItemSignature {
+        private static final SortedMap<String, Integer> NO_ENCHANTS =
+                Collections.unmodifiableSortedMap(new TreeMap<String, Integer>());
+
+        // Keyed by an unpooled copy of each signature, so the key doesn't keep the signature alive
+        private static final ConcurrentMap<ItemSignature, Ref> POOL = new ConcurrentHashMap<ItemSignature, Ref>();
+        private static final ReferenceQueue<ItemSignature> CLEARED = new ReferenceQueue<ItemSignature>();
+        // id -> pinned signature (null once unpinned) and id -> weak reference (null once cleared and dropped). Both
+        // are replaced (never copied into) when they grow, so readers need no lock; writes are guarded by POOL.
+        private static volatile ItemSignature[] pinned = new ItemSignature[64];
+        private static volatile Ref[] refs = new Ref[64];
+        private static int nextId; // guarded by POOL
+        // Advanced by each sweep; a signature touched in the current or the previous epoch stays pinned
+        private static volatile int epoch;
+        private static long dropped; // guarded by POOL
+
         private final Material material;
         private final String potionKey; // from Potion.fromItemStack for POTION/SPLASH_POTION
         private final String displayName;
         private final SortedMap<String, Integer> enchants;
+        private final int hash;
+        private int id = -1; // assigned once when the instance enters the pool
+        private volatile int touchedEpoch;
+        private PotionFields potion; // likewise: structured potionKey (null if none or not canonical)
+        // Family and score under the rules they were computed with; recomputed after a rules reload
+        private volatile Classification classification;
 
         private ItemSignature(Material material,
                               String potionKey,
@@ -828,13 +1690,172 @@ public class InventorySorter implements Listener {
             this.potionKey = potionKey;
             this.displayName = displayName;
             this.enchants = enchants;
+            int result = material != null ? material.hashCode() : 0;
+            result = 31 * result + (potionKey != null ? potionKey.hashCode() : 0);
+            result = 31 * result + (displayName != null ? displayName.hashCode() : 0);
+            result = 31 * result + (enchants != null ? enchants.hashCode() : 0);
+            this.hash = result;
+        }
+
+        /**
+         * Returns the canonical instance for these components, creating and numbering it if it is new.
+         */
+        static ItemSignature intern(Material material, String potionKey, String displayName, SortedMap<String, Integer> enchants) {
+            SortedMap<String, Integer> ench = enchants == null || enchants.isEmpty()
+                    ? NO_ENCHANTS : Collections.unmodifiableSortedMap(enchants);
+            ItemSignature probe = new ItemSignature(material, potionKey, displayName, ench);
+            Ref ref = POOL.get(probe);
+            ItemSignature existing = ref == null ? null : ref.get();
+            if (existing != null) {
+                existing.touch();
+                return existing;
+            }
+            synchronized (POOL) {
+                ref = POOL.get(probe);
+                existing = ref == null ? null : ref.get();
+                if (existing != null) {
+                    existing.touch();
+                    return existing;
+                }
+                // Absent, or cleared but not yet dropped by a sweep: either way this is the signature from now on
+                int id = nextId++;
+                ItemSignature[] pinnedTable = pinned;
+                Ref[] refTable = refs;
+                if (id >= pinnedTable.length) {
+                    refTable = Arrays.copyOf(refTable, refTable.length * 2);
+                    pinnedTable = Arrays.copyOf(pinnedTable, pinnedTable.length * 2);
+                }
+                probe.id = id;
+                probe.potion = PotionFields.parse(potionKey);
+                probe.touchedEpoch = epoch;
+                ref = new Ref(probe, new ItemSignature(material, potionKey, displayName, ench));
+                refTable[id] = ref;
+                pinnedTable[id] = probe;
+                refs = refTable;
+                pinned = pinnedTable;
+                POOL.put(ref.key, ref);
+                return probe;
+            }
+        }
+
+        /**
+         * Looks up an interned signature by its dense id (null if unknown or no longer interned).
+         */
+        static ItemSignature byId(int id) {
+            ItemSignature[] pinnedTable = pinned;
+            if (id < 0 || id >= pinnedTable.length) return null;
+            ItemSignature sig = pinnedTable[id];
+            if (sig != null) return sig;
+            Ref ref = refs[id];
+            return ref == null ? null : ref.get();
+        }
+
+        /**
+         * Marks the signature as in use; pins it again if a sweep had unpinned it. Called on every intern, and by
+         * every structure that stores the signature's id, before storing it.
+         */
+        void touch() {
+            int current = epoch;
+            if (touchedEpoch != current) touchedEpoch = current;
+            if (pinned[id] == null) {
+                synchronized (POOL) {
+                    pinned[id] = this;
+                }
+            }
+        }
+
+        /**
+         * Unpins every signature that is neither in marked (ids referenced by resident players) nor touched since the
+         * previous sweep, and drops the ones the GC has cleared from the pool. Called by PreferenceStore under its
+         * lock, so no history or recency can store an id meanwhile. Returns the number of signatures dropped.
+         */
+        static int sweep(BitSet marked) {
+            synchronized (POOL) {
+                int count = 0;
+                for (Reference<? extends ItemSignature> r; (r = CLEARED.poll()) != null; ) {
+                    Ref ref = (Ref) r;
+                    POOL.remove(ref.key, ref);
+                    if (refs[ref.id] == ref) refs[ref.id] = null;
+                    count++;
+                }
+                dropped += count;
+
+                int current = epoch + 1;
+                epoch = current;
+                ItemSignature[] pinnedTable = pinned;
+                for (int id = 0; id < nextId; id++) {
+                    ItemSignature sig = pinnedTable[id];
+                    if (sig != null && sig.touchedEpoch < current - 1 && !marked.get(id)) pinnedTable[id] = null;
+                }
+                return count;
+            }
+        }
+
+        // For /pgmutil stats: interned (including cleared ones not yet dropped), pinned, and dropped so far
+        static String describePool() {
+            synchronized (POOL) {
+                int pinnedCount = 0;
+                ItemSignature[] pinnedTable = pinned;
+                for (int id = 0; id < nextId; id++) {
+                    if (pinnedTable[id] != null) pinnedCount++;
+                }
+                return "Item signatures: " + POOL.size() + " interned (" + pinnedCount + " pinned), " + dropped
+                        + " dropped, " + nextId + " ids issued";
+            }
+        }
+
+        private static final class Ref extends WeakReference<ItemSignature> {
+            final ItemSignature key;
+            final int id;
+
+            Ref(ItemSignature sig, ItemSignature key) {
+                super(sig, CLEARED);
+                this.key = key;
+                this.id = sig.id;
+            }
+        }
+
+        int id() {
+            return id;
+        }
+
+        ItemFamily family() {
+            return classify().family;
+        }
+
+        int score() {
+            return classify().score;
+        }
+
+        private Classification classify() {
+            ItemRules rules = ItemRules.current();
+            Classification c = classification;
+            if (c == null || c.rules != rules) {
+                ItemFamily family = rules.family(material);
+                c = new Classification(rules, family, rules.score(this, family));
+                // Probes (id < 0) are throwaway; only cache on pooled instances
+                if (id >= 0) classification = c;
+            }
+            return c;
+        }
+
+        private static final class Classification {
+            final ItemRules rules;
+            final ItemFamily family;
+            final int score;
+
+            Classification(ItemRules rules, ItemFamily family, int score) {
+                this.rules = rules;
+                this.family = family;
+                this.score = score;
+            }
         }
 
         static ItemSignature of(ItemStack stack) {
             Material mat = stack.getType();
             String potion = null;
             String name = null;
-            SortedMap<String, Integer> ench = new TreeMap<String, Integer>();
+            SortedMap<String, Integer> ench = null;
 
             // 1.8 potion parsing via Potion.fromItemStack
             if (mat == Material.POTION) {
@@ -842,23 +1863,22 @@ public class InventorySorter implements Listener {
                     Potion p = Potion.fromItemStack(stack);
                     if (p != null) {
                         PotionType t = p.getType();
-                        potion = (t != null ? t.name() : "UNKNOWN")
-                                + ":lvl=" + p.getLevel()
-                                + ":ext=" + (p.hasExtendedDuration() ? "1" : "0")
-                                + ":splash=" + (p.isSplash() ? "1" : "0");
+                        potion = PotionFields.key(t, p.getLevel(), p.hasExtendedDuration(), p.isSplash());
                     }
                 } catch (Throwable ignored) {
                     // leave potion null
                 }
             }
 
-            ItemMeta meta = stack.getItemMeta();
+            // hasItemMeta first: getItemMeta builds (and clones) a meta object even for plain items
+            ItemMeta meta = stack.hasItemMeta() ? stack.getItemMeta() : null;
             if (meta != null) {
                 if (meta.hasDisplayName()) {
                     name = meta.getDisplayName();
                 }
                 Map<Enchantment, Integer> e = meta.getEnchants();
                 if (e != null && !e.isEmpty()) {
+                    ench = new TreeMap<String, Integer>();
                     for (Map.Entry<Enchantment, Integer> entry : e.entrySet()) {
                         Enchantment enchKey = entry.getKey();
                         String enchName = (enchKey != null && enchKey.getName() != null) ? enchKey.getName() : "UNK";
@@ -867,7 +1887,7 @@ public class InventorySorter implements Listener {
                 }
             }
 
-            return new ItemSignature(mat, potion, name, ench);
+            return intern(mat, potion, name, ench);
         }
 
         @Override
@@ -875,6 +1895,9 @@ public class InventorySorter implements Listener {
             if (this == o) return true;
             if (!(o instanceof ItemSignature)) return false;
             ItemSignature that = (ItemSignature) o;
+            // Two pooled instances are only equal if they are the same instance
+            if (id >= 0 && that.id >= 0) return false;
+            if (hash != that.hash) return false;
             if (material != that.material) return false;
             if (potionKey != null ? !potionKey.equals(that.potionKey) : that.potionKey != null) return false;
             if (displayName != null ? !displayName.equals(that.displayName) : that.displayName != null) return false;
@@ -883,11 +1906,7 @@ public class InventorySorter implements Listener {
 
         @Override
         public int hashCode() {
-            int result = material != null ? material.hashCode() : 0;
-            result = 31 * result + (potionKey != null ? potionKey.hashCode() : 0);
-            result = 31 * result + (displayName != null ? displayName.hashCode() : 0);
-            result = 31 * result + (enchants != null ? enchants.hashCode() : 0);
-            return result;
+            return hash;
         }
 
         @Override
@@ -907,9 +1926,24 @@ public class InventorySorter implements Listener {
             return sb.toString();
         }
 
+        // Material names stored data referred to that this server doesn't have, each logged once
+        private static final Set<String> UNKNOWN_MATERIALS = ConcurrentHashMap.newKeySet();
+
+        // Null (and a warning the first time) if this server has no such material
+        static Material material(String name) {
+            Material mat = Material.getMaterial(name);
+            if (mat == null && UNKNOWN_MATERIALS.add(name)) {
+                Bukkit.getLogger().warning("[PGMUtil] Stored preferences refer to unknown material " + name
+                        + ", its entries are skipped");
+            }
+            return mat;
+        }
+
+        // Null if the material is unknown here
         static ItemSignature fromString(String s) {
             String[] parts = s.split("\\|");
-            Material mat = Material.valueOf(parts[0]);
+            Material mat = material(parts[0]);
+            if (mat == null) return null;
             String potion = null;
             String name = null;
             SortedMap<String, Integer> ench = new TreeMap<String, Integer>();
@@ -935,335 +1969,3087 @@ public class InventorySorter implements Listener {
                     }
                 }
             }
-            return new ItemSignature(mat, potion, name, ench);
+            return intern(mat, potion, name, ench);
         }
     }
 
     /**
      * Slot history and signature-slot recency metadata.
-     * - SlotHistory: for each slot index, a list of history entries (signature, savedAt) most-recent-first.
-     * - SignatureSlotRecency: map of signature -> (slot -> lastSavedAt) for direct lookups.
+     * - SlotHistory: for each slot index, up to DEPTH (signature id, savedAt) entries, most-recent-first.
+     * - SignatureSlotRecency: (signature, slot) -> lastSavedAt for direct lookups.
+     *
+     * Both are primitive, fixed-shape structures: no per-entry objects and no boxing.
      */
-    private static final class HistoryEntry {
-        final ItemSignature signature;
-        final long savedAt;
-
-        HistoryEntry(ItemSignature signature, long savedAt) {
-            this.signature = signature;
-            this.savedAt = savedAt;
-        }
-    }
-
-    private static final class SlotHistory {
-        private final Map<Integer, List<HistoryEntry>> bySlot = new HashMap<Integer, List<HistoryEntry>>();
+    static final class SlotHistory {
+        static final int SLOTS = 36;
+        static final int DEPTH = 16;
+        private static final int INITIAL_CAPACITY = 4;
+
+        // Per slot, a ring buffer of (signature id, savedAt). Rows are allocated on first use and grow
+        // 4 -> 8 -> 16, since most slots only ever see a handful of distinct items.
+        private final int[][] sigRows = new int[SLOTS][];
+        private final long[][] timeRows = new long[SLOTS][];
+        private final byte[] heads = new byte[SLOTS];  // physical index of the most recent entry
+        private final byte[] counts = new byte[SLOTS];
+        private int total;
+        // Derived family -> slots view, kept in step with every add (not persisted)
+        private final FamilySlotIndex families = new FamilySlotIndex();
+
+        void add(int slot, ItemSignature sig, long ts) {
+            if (slot < 0 || slot >= SLOTS) return;
+            sig.touch();
+            int id = sig.id();
+            int n = counts[slot];
+            int[] ids = sigRows[slot];
+            long[] times = timeRows[slot];
 
-        void add(int slot, ItemSignature sig, long ts, int maxKeep) {
-            List<HistoryEntry> list = bySlot.get(slot);
-            if (list == null) {
-                list = new ArrayList<HistoryEntry>();
-                bySlot.put(slot, list);
-            }
             // Remove any existing entry for the same signature to maintain uniqueness
-            for (int i = 0; i < list.size(); i++) {
-                if (list.get(i).signature.equals(sig)) {
-                    list.remove(i);
+            for (int i = 0; i < n; i++) {
+                if (ids[physical(slot, i)] == id) {
+                    for (int k = i; k < n - 1; k++) {
+                        int to = physical(slot, k);
+                        int from = physical(slot, k + 1);
+                        ids[to] = ids[from];
+                        times[to] = times[from];
+                    }
+                    n--;
+                    total--;
                     break;
                 }
             }
-            list.add(0, new HistoryEntry(sig, ts));
-            while (list.size() > maxKeep) list.remove(list.size() - 1);
+
+            if (ids == null) {
+                ids = sigRows[slot] = new int[INITIAL_CAPACITY];
+                times = timeRows[slot] = new long[INITIAL_CAPACITY];
+            } else if (n == ids.length && n < DEPTH) {
+                // Grow and linearize so the most recent entry sits at index 0
+                int[] grownIds = new int[ids.length * 2];
+                long[] grownTimes = new long[ids.length * 2];
+                for (int i = 0; i < n; i++) {
+                    grownIds[i] = ids[physical(slot, i)];
+                    grownTimes[i] = times[physical(slot, i)];
+                }
+                ids = sigRows[slot] = grownIds;
+                times = timeRows[slot] = grownTimes;
+                heads[slot] = 0;
+            }
+
+            // Prepend; at DEPTH this overwrites the oldest entry
+            int cap = ids.length;
+            int head = (heads[slot] - 1 + cap) % cap;
+            heads[slot] = (byte) head;
+            ids[head] = id;
+            times[head] = ts;
+            if (n < DEPTH) {
+                n++;
+                total++;
+            }
+            counts[slot] = (byte) n;
+
+            families.update(slot, this);
+        }
+
+        private int physical(int slot, int i) {
+            return (heads[slot] + i) % sigRows[slot].length;
+        }
+
+        // Number of entries for a slot
+        int size(int slot) {
+            return counts[slot];
         }
 
-        List<HistoryEntry> get(int slot) {
-            return bySlot.get(slot);
+        // i-th most recent signature id saved to a slot
+        int sigIdAt(int slot, int i) {
+            return sigRows[slot][physical(slot, i)];
         }
 
-        Map<Integer, List<HistoryEntry>> all() {
-            return bySlot;
+        long timeAt(int slot, int i) {
+            return timeRows[slot][physical(slot, i)];
         }
 
         boolean isEmpty() {
-            return bySlot.isEmpty();
+            return total == 0;
         }
-    }
 
-    private static final class SignatureSlotRecency {
-        // Key: signature.toString(), Value: Map<slot, lastSavedAt>
-        private final Map<String, Map<Integer, Long>> data = new LinkedHashMap<String, Map<Integer, Long>>();
+        FamilySlotIndex families() {
+            return families;
+        }
 
-        void put(ItemSignature sig, int slot, long ts) {
-            String key = sig.toString();
-            Map<Integer, Long> m = data.get(key);
-            if (m == null) {
-                m = new LinkedHashMap<Integer, Long>();
-                data.put(key, m);
+        // Sets the id of every signature in the history (see ItemSignature.sweep)
+        void markSignatures(BitSet ids) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                for (int i = 0; i < counts[slot]; i++) ids.set(sigIdAt(slot, i));
             }
-            m.put(slot, ts);
         }
 
-        long get(ItemSignature sig, int slot) {
-            String key = sig.toString();
-            Map<Integer, Long> m = data.get(key);
-            if (m == null) return 0L;
-            Long ts = m.get(slot);
-            return ts == null ? 0L : ts;
+        // Re-derives the whole family index (item rules changed)
+        void refreshFamilies() {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                families.update(slot, this);
+            }
         }
 
-        Map<String, Map<Integer, Long>> raw() {
-            return data;
+        long estimateBytes() {
+            long bytes = 24 + 2 * (16 + 4L * SLOTS) + 2 * (16 + SLOTS); // object, row tables, header arrays
+            for (int slot = 0; slot < SLOTS; slot++) {
+                if (sigRows[slot] != null) bytes += 16 + 4L * sigRows[slot].length + 16 + 8L * timeRows[slot].length;
+            }
+            return bytes + families.estimateBytes();
         }
-
-        boolean isEmpty() { return data.isEmpty(); }
     }
 
-    // Simple YAML-backed preference store (no external deps)
-    private static final class PreferenceStore {
-        private static final String KEY_SIG_PREFS = "sigprefs";    // {uuid}.sigprefs.{signatureString} -> [slots...]
-        private static final String KEY_SLOT_HISTORY = "slothistory"; // {uuid}.slothistory.{slot} -> ["ts|signatureString", ...]
-        private static final String KEY_SIG_RECENCY = "sigrecency";   // {uuid}.sigrecency.{signatureString} -> ["slot:ts", ...]
+    /**
+     * Per-family view of a SlotHistory: for each ItemFamily, the slots whose history holds an item of that family,
+     * ordered by that family's latest save in the slot (most recent first, ties by slot). This is the fallback
+     * preference list for items without an exact-signature preference.
+     *
+     * SlotHistory.add refreshes only the slot it touched (at most DEPTH entries), so reorders read the lists
+     * directly instead of scanning every slot's history. Saved-at values <= 0 (legacy data) count as 1.
+     */
+    static final class FamilySlotIndex {
+        private static final int FAMILIES = ItemFamily.values().length;
 
-        private final File file;
-        private final Map<UUID, Map<ItemSignature, List<Integer>>> cache = new HashMap<UUID, Map<ItemSignature, List<Integer>>>();
-        private final Map<UUID, SlotHistory> slotHistories = new HashMap<UUID, SlotHistory>();
-        private final Map<UUID, SignatureSlotRecency> sigRecencies = new HashMap<UUID, SignatureSlotRecency>();
+        private final long[] masks = new long[FAMILIES];
+        private final byte[] lengths = new byte[FAMILIES];
+        // Per family, allocated on first use: slots and their latest saved-at, sorted as described above
+        private final byte[][] slots = new byte[FAMILIES][];
+        private final long[][] times = new long[FAMILIES][];
 
-        // Limits
-        private final int maxHistoryPerSlot = 16;
+        int length(int family) {
+            return lengths[family];
+        }
 
-        PreferenceStore(File file) {
-            this.file = file;
-            File parent = file.getParentFile();
-            if (parent != null && !parent.exists()) parent.mkdirs();
-            load();
+        int slotAt(int family, int i) {
+            return slots[family][i];
         }
 
-        Map<ItemSignature, List<Integer>> getPreferences(UUID playerId) {
-            Map<ItemSignature, List<Integer>> m = cache.get(playerId);
-            return m == null ? Collections.<ItemSignature, List<Integer>>emptyMap() : m;
+        long mask(int family) {
+            return masks[family];
         }
 
-        boolean hasAnySlotHistory(UUID playerId) {
-            SlotHistory h = slotHistories.get(playerId);
-            return h != null && !h.isEmpty();
+        // Re-derives the slot's entries from its history row
+        void update(int slot, SlotHistory history) {
+            long bit = 1L << slot;
+            for (int f = 0; f < FAMILIES; f++) {
+                if ((masks[f] & bit) != 0) remove(f, slot);
+            }
+
+            int n = history.size(slot);
+            int seen = 0; // family ordinals already inserted for this slot
+            for (int i = 0; i < n; i++) {
+                int f = ItemSignature.byId(history.sigIdAt(slot, i)).family().ordinal();
+                if ((seen & (1 << f)) != 0) continue;
+                seen |= 1 << f;
+                long best = history.timeAt(slot, i);
+                for (int j = i + 1; j < n; j++) {
+                    if (ItemSignature.byId(history.sigIdAt(slot, j)).family().ordinal() == f) {
+                        best = Math.max(best, history.timeAt(slot, j));
+                    }
+                }
+                insert(f, slot, best <= 0 ? 1L : best);
+            }
         }
 
-        SlotHistory getSlotHistory(UUID playerId) {
-            SlotHistory h = slotHistories.get(playerId);
-            return h == null ? new SlotHistory() : h;
+        private void insert(int f, int slot, long ts) {
+            int n = lengths[f];
+            byte[] s = slots[f];
+            long[] t = times[f];
+            if (s == null) {
+                s = slots[f] = new byte[4];
+                t = times[f] = new long[4];
+            } else if (n == s.length) {
+                s = slots[f] = Arrays.copyOf(s, Math.min(SlotHistory.SLOTS, n * 2));
+                t = times[f] = Arrays.copyOf(t, s.length);
+            }
+            int pos = 0;
+            while (pos < n && (t[pos] > ts || (t[pos] == ts && s[pos] < slot))) pos++;
+            System.arraycopy(s, pos, s, pos + 1, n - pos);
+            System.arraycopy(t, pos, t, pos + 1, n - pos);
+            s[pos] = (byte) slot;
+            t[pos] = ts;
+            lengths[f] = (byte) (n + 1);
+            masks[f] |= 1L << slot;
         }
 
-        SignatureSlotRecency getSignatureSlotRecency(UUID playerId) {
-            SignatureSlotRecency s = sigRecencies.get(playerId);
-            return s == null ? new SignatureSlotRecency() : s;
+        private void remove(int f, int slot) {
+            int n = lengths[f];
+            byte[] s = slots[f];
+            long[] t = times[f];
+            for (int i = 0; i < n; i++) {
+                if (s[i] == slot) {
+                    System.arraycopy(s, i + 1, s, i, n - i - 1);
+                    System.arraycopy(t, i + 1, t, i, n - i - 1);
+                    lengths[f] = (byte) (n - 1);
+                    masks[f] &= ~(1L << slot);
+                    return;
+                }
+            }
         }
 
-        void savePreferences(UUID playerId, Map<ItemSignature, List<Integer>> prefs) {
-            cache.put(playerId, deepCopy(prefs));
-            save(); // keep synchronous write as before
+        long estimateBytes() {
+            long bytes = 16 + 2 * (16 + 8L * FAMILIES) + (16 + FAMILIES) + (16 + 8L * FAMILIES);
+            for (int f = 0; f < FAMILIES; f++) {
+                if (slots[f] != null) bytes += 16 + slots[f].length + 16 + 8L * times[f].length;
+            }
+            return bytes;
         }
+    }
+
+    static final class SignatureSlotRecency {
+        // Open-addressed (linear probing) table of key = sigId * 36 + slot + 1 (0 marks an empty cell) -> lastSavedAt
+        private static final int EMPTY = 0;
 
-        void saveSlotHistory(UUID playerId, PlayerInventory inv, long timestamp) {
-            // Build/update slot history and signature recency for this snapshot
-            SlotHistory hist = slotHistories.get(playerId);
-            if (hist == null) {
-                hist = new SlotHistory();
-                slotHistories.put(playerId, hist);
+        private int[] keys;
+        private long[] values;
+        private int size;
+
+        void put(ItemSignature sig, int slot, long ts) {
+            if (slot < 0 || slot >= SlotHistory.SLOTS) return; // would alias another signature's key
+            sig.touch();
+            if (keys == null) {
+                keys = new int[16];
+                values = new long[16];
+            } else if ((size + 1) * 2 > keys.length) {
+                rehash(keys.length * 2);
             }
-            SignatureSlotRecency rec = sigRecencies.get(playerId);
-            if (rec == null) {
-                rec = new SignatureSlotRecency();
-                sigRecencies.put(playerId, rec);
+            int key = key(sig.id(), slot);
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (keys[i] != EMPTY) {
+                if (keys[i] == key) {
+                    values[i] = ts;
+                    return;
+                }
+                i = (i + 1) & mask;
             }
+            keys[i] = key;
+            values[i] = ts;
+            size++;
+        }
 
-            for (int slot = 0; slot <= 35; slot++) {
-                ItemStack s = inv.getItem(slot);
-                if (s == null || s.getType() == Material.AIR) continue;
-                ItemSignature sig = ItemSignature.of(s);
-                hist.add(slot, sig, timestamp, maxHistoryPerSlot);
-                rec.put(sig, slot, timestamp);
+        long get(ItemSignature sig, int slot) {
+            if (keys == null || slot < 0 || slot >= SlotHistory.SLOTS) return 0L;
+            int key = key(sig.id(), slot);
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (keys[i] != EMPTY) {
+                if (keys[i] == key) return values[i];
+                i = (i + 1) & mask;
             }
-            save();
+            return 0L;
         }
 
-        private void load() {
-            cache.clear();
-            slotHistories.clear();
-            sigRecencies.clear();
-            if (!file.exists()) return;
+        /**
+         * Packed entries as sigId * 36 + slot, sorted (so grouped by signature, then slot).
+         * Decode with entry / 36 and entry % 36; look up the timestamp with get.
+         */
+        int[] sortedEntries() {
+            int[] out = new int[size];
+            if (keys == null) return out;
+            int n = 0;
+            for (int k : keys) {
+                if (k != EMPTY) out[n++] = k - 1;
+            }
+            Arrays.sort(out);
+            return out;
+        }
 
-            YamlConfiguration yml = YamlConfiguration.loadConfiguration(file);
+        boolean isEmpty() { return size == 0; }
 
-            // Old format (pre-namespacing): {uuid}.{signatureString} -> [slots...]
-            // New format: {uuid}.sigprefs.{signatureString} -> [slots...]
-            Set<String> rootKeys = yml.getKeys(false);
-            for (String key : rootKeys) {
-                UUID id;
-                try {
-                    id = UUID.fromString(key);
-                } catch (IllegalArgumentException ignored) {
-                    continue;
-                }
+        int size() { return size; }
 
-                Map<ItemSignature, List<Integer>> prefs = new LinkedHashMap<ItemSignature, List<Integer>>();
+        // Sets the id of every signature with an entry (see ItemSignature.sweep)
+        void markSignatures(BitSet ids) {
+            if (keys == null) return;
+            for (int k : keys) {
+                if (k != EMPTY) ids.set((k - 1) / SlotHistory.SLOTS);
+            }
+        }
 
-                // New namespaced sig prefs
-                if (yml.isConfigurationSection(key + "." + KEY_SIG_PREFS)) {
-                    for (String sigKey : yml.getConfigurationSection(key + "." + KEY_SIG_PREFS).getKeys(false)) {
-                        String path = key + "." + KEY_SIG_PREFS + "." + sigKey;
-                        List<Integer> slots = yml.getIntegerList(path);
-                        ItemSignature sig = ItemSignature.fromString(sigKey);
-                        prefs.put(sig, new ArrayList<Integer>(slots));
-                    }
-                }
+        long estimateBytes() {
+            long bytes = 24;
+            if (keys != null) bytes += 16 + 4L * keys.length + 16 + 8L * values.length;
+            return bytes;
+        }
 
-                // Backward compatibility: legacy direct children signature keys
-                if (yml.isConfigurationSection(key)) {
-                    for (String child : yml.getConfigurationSection(key).getKeys(false)) {
-                        // Skip our new sections
-                        if (KEY_SIG_PREFS.equals(child) || KEY_SLOT_HISTORY.equals(child) || KEY_SIG_RECENCY.equals(child)) {
-                            continue;
-                        }
-                        // If value is a list of integers, interpret as legacy signature mapping
-                        String path = key + "." + child;
-                        if (yml.isList(path)) {
-                            List<?> raw = yml.getList(path);
-                            boolean allInts = true;
-                            List<Integer> ints = new ArrayList<Integer>();
-                            if (raw != null) {
-                                for (Object o : raw) {
-                                    if (o instanceof Number) ints.add(((Number) o).intValue());
-                                    else {
-                                        allInts = false;
-                                        break;
-                                    }
-                                }
-                            }
-                            if (allInts && !ints.isEmpty()) {
-                                try {
-                                    ItemSignature sig = ItemSignature.fromString(child);
-                                    if (!prefs.containsKey(sig)) {
-                                        prefs.put(sig, ints);
-                                    }
-                                } catch (Throwable ignored) {
-                                    // skip
-                                }
-                            }
-                        }
-                    }
-                }
+        private void rehash(int capacity) {
+            int[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new int[capacity];
+            values = new long[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                int k = oldKeys[j];
+                if (k == EMPTY) continue;
+                int i = mix(k) & mask;
+                while (keys[i] != EMPTY) i = (i + 1) & mask;
+                keys[i] = k;
+                values[i] = oldValues[j];
+            }
+        }
 
-                cache.put(id, prefs);
+        private static int key(int sigId, int slot) {
+            return sigId * SlotHistory.SLOTS + slot + 1;
+        }
+
+        private static int mix(int k) {
+            int h = k * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * Immutable, hash-consed signature -> slots preference map.
+     *
+     * Players using the same kit tend to settle on the same handful of layouts, so every distinct map exists once:
+     * acquire returns the pooled instance for equal content, and layouts can be compared by identity. The pool is
+     * reference-counted by the PlayerData holding each layout (retain/release); a layout leaves the pool when its
+     * last holder lets go, unless it is in the store's shared dictionary, which pins it. A miscount only costs
+     * sharing (an equal layout gets pooled again later), never correctness.
+     */
+    static final class Layout {
+        static final Layout EMPTY = new Layout(Collections.<ItemSignature, List<Integer>>emptyMap());
+
+        // Keyed by the layout's own map, so a lookup with a plain (mutable) map finds it without copying
+        private static final Map<Map<ItemSignature, List<Integer>>, Layout> POOL =
+                new HashMap<Map<ItemSignature, List<Integer>>, Layout>();
+
+        private final Map<ItemSignature, List<Integer>> map;
+        private final int hash;
+        private int refs;            // guarded by POOL
+        private volatile int dictionaryId = -1;
+
+        private Layout(Map<ItemSignature, List<Integer>> prefs) {
+            Map<ItemSignature, List<Integer>> copy = new LinkedHashMap<ItemSignature, List<Integer>>();
+            for (Map.Entry<ItemSignature, List<Integer>> e : prefs.entrySet()) {
+                copy.put(e.getKey(), Collections.unmodifiableList(new ArrayList<Integer>(e.getValue())));
+            }
+            this.map = Collections.unmodifiableMap(copy);
+            this.hash = map.hashCode();
+        }
+
+        /**
+         * Returns the pooled layout equal to prefs, with one more reference.
+         */
+        static Layout acquire(Map<ItemSignature, List<Integer>> prefs) {
+            if (prefs.isEmpty()) return EMPTY;
+            synchronized (POOL) {
+                Layout layout = POOL.get(prefs);
+                if (layout == null) {
+                    layout = new Layout(prefs);
+                    POOL.put(layout.map, layout);
+                }
+                layout.refs++;
+                return layout;
+            }
+        }
+
+        Layout retain() {
+            if (this == EMPTY) return this;
+            synchronized (POOL) {
+                if (POOL.get(map) != this) {
+                    // Dropped out of the pool meanwhile: hand out the current equal layout instead
+                    return acquire(map);
+                }
+                refs++;
+                return this;
+            }
+        }
+
+        void release() {
+            if (this == EMPTY) return;
+            synchronized (POOL) {
+                if (refs > 0) refs--;
+                if (refs == 0 && dictionaryId < 0 && POOL.get(map) == this) POOL.remove(map);
+            }
+        }
+
+        static int pooled() {
+            synchronized (POOL) {
+                return POOL.size();
+            }
+        }
+
+        // Shared dictionary membership (store IO thread); the dictionary pins the layout in the pool
+        static Layout pin(Map<ItemSignature, List<Integer>> prefs, int id) {
+            synchronized (POOL) {
+                Layout layout = POOL.get(prefs);
+                if (layout == null) {
+                    layout = new Layout(prefs);
+                    POOL.put(layout.map, layout);
+                }
+                layout.dictionaryId = id;
+                return layout;
+            }
+        }
+
+        void unpin() {
+            synchronized (POOL) {
+                dictionaryId = -1;
+                if (refs == 0 && POOL.get(map) == this) POOL.remove(map);
+            }
+        }
+
+        int dictionaryId() {
+            return dictionaryId;
+        }
+
+        Map<ItemSignature, List<Integer>> asMap() {
+            return map;
+        }
+
+        boolean isEmpty() {
+            return map.isEmpty();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || (o instanceof Layout && hash == ((Layout) o).hash && map.equals(((Layout) o).map));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Memory-mapped fixed-size preference records (inventory-sorter.store.backend: mmap).
+     *
+     * inventory_prefs/prefs.records holds one 32 KiB record per player, made of two 16 KiB copies that are written
+     * alternately. Each copy carries the player's UUID, a sequence number and a CRC32; a read takes the valid copy
+     * with the highest sequence, so a write torn by a crash falls back to the previous state. Saving a player is one
+     * in-place 16 KiB write into the mapping instead of re-encoding and renaming a shard file.
+     *
+     * Copy layout (big-endian):
+     *   0  int magic 'PGMR', 4 short version, 6 short reserved, 8 long sequence, 16 long uuid msb, 24 long uuid lsb,
+     *   32 long savedAt (ms), 40 int crc (over the copy with this field zeroed), 44 int reserved
+     *   48   prefs: per slot 0..35, signature ref + 1 (0 = none)
+     *   192  history: per slot, HISTORY_DEPTH x (int signature ref + 1, long saved-at ms), most recent first
+     *   7104 recency: RECENCY_ENTRIES x (int signature ref * 36 + slot + 1, long saved-at ms), most recent first
+     *
+     * A record holds as much history as SlotHistory and timestamps at full precision. What it can't hold is more
+     * than RECENCY_ENTRIES (773) recency entries, or two signatures preferring one slot; see lossFor. When a store
+     * first switches to records and some stored player doesn't fit, nothing is imported and the store stays on shard
+     * files. A player outgrowing the recency area later loses their oldest recency entries (logged).
+     *
+     * Signature refs index prefs.signatures, an append-only list of encoded signatures. New signatures get a ref
+     * when a record is encoded and are appended (and forced) before any record using them is written.
+     *
+     * The UUID -> record index is rebuilt at startup from the copy headers. All methods are synchronized.
+     */
+    static final class PreferenceRecords implements PreferenceBackend {
+        private static final int MAGIC = 0x50474D52; // "PGMR"
+        private static final int VERSION = 2;
+        static final int COPY_BYTES = 16384;
+        static final int RECORD_BYTES = 2 * COPY_BYTES;
+        private static final int HISTORY_DEPTH = SlotHistory.DEPTH;
+        private static final int ENTRY_BYTES = 12;
+        private static final int OFF_SEQ = 8;
+        private static final int OFF_MSB = 16;
+        private static final int OFF_LSB = 24;
+        private static final int OFF_SAVED_AT = 32;
+        private static final int OFF_CRC = 40;
+        private static final int OFF_PREFS = 48;
+        private static final int OFF_HISTORY = OFF_PREFS + 4 * SlotHistory.SLOTS;
+        private static final int OFF_RECENCY = OFF_HISTORY + ENTRY_BYTES * HISTORY_DEPTH * SlotHistory.SLOTS;
+        static final int RECENCY_ENTRIES = (COPY_BYTES - OFF_RECENCY) / ENTRY_BYTES;
+        private static final int INITIAL_RECORDS = 1024;
+
+        private final File dir;
+        private final FileChannel channel;
+        private Arena arena;
+        private MemorySegment mapped;
+        private int capacity;
+        private final Map<UUID, Integer> index = new HashMap<UUID, Integer>();
+        private final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+
+        private final FileChannel signatureChannel;
+        private final List<ItemSignature> signatures = new ArrayList<ItemSignature>();
+        private final Map<ItemSignature, Integer> signatureRefs = new HashMap<ItemSignature, Integer>();
+        private int persistedSignatures;
+        // Set once some player's recency was cut to fit (logged once per run)
+        private boolean truncatedRecency;
+
+        PreferenceRecords(File dir) throws IOException {
+            this.dir = dir;
+            this.signatureChannel = FileChannel.open(new File(dir, "prefs.signatures").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.channel = FileChannel.open(new File(dir, "prefs.records").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            loadSignatures();
+            map((int) Math.max(INITIAL_RECORDS, channel.size() / RECORD_BYTES));
+            byte[] header = new byte[OFF_PREFS];
+            for (int i = 0; i < capacity; i++) {
+                UUID owner = null;
+                for (int copy = 0; copy < 2 && owner == null; copy++) {
+                    copyOut(offset(i, copy), header);
+                    ByteBuffer buf = ByteBuffer.wrap(header);
+                    if (buf.getInt(0) != MAGIC) continue;
+                    if (buf.getShort(4) != VERSION) {
+                        close();
+                        throw new IOException("prefs.records holds version " + buf.getShort(4)
+                                + " records, this version reads version " + VERSION + " only");
+                    }
+                    owner = new UUID(buf.getLong(OFF_MSB), buf.getLong(OFF_LSB));
+                }
+                if (owner != null) index.put(owner, i);
+                else free.add(i);
+            }
+        }
+
+        @Override
+        public String name() {
+            return "mmap";
+        }
+
+        /**
+         * The player's current record copy, or null if they have none. Throws if both copies are damaged.
+         */
+        @Override
+        public synchronized byte[] load(UUID id) throws IOException {
+            Integer record = index.get(id);
+            if (record == null) return null;
+            ByteBuffer buf = current(record, id);
+            if (buf == null) throw new IOException("Both copies of the preference record of " + id + " are damaged");
+            return buf.array();
+        }
+
+        @Override
+        public synchronized void upsert(Map<UUID, byte[]> batch) throws IOException {
+            for (Map.Entry<UUID, byte[]> e : batch.entrySet()) {
+                write(e.getKey(), e.getValue());
+            }
+        }
+
+        @Override
+        public synchronized List<UUID> players() {
+            return new ArrayList<UUID>(index.keySet());
+        }
+
+        // savedAt of the player's current copy, or 0 if there is none
+        @Override
+        public synchronized long lastWritten(UUID id) {
+            Integer record = index.get(id);
+            if (record == null) return 0L;
+            ByteBuffer current = current(record, id);
+            return current == null ? 0L : current.getLong(OFF_SAVED_AT);
+        }
+
+        /**
+         * Decodes a copy returned by load into into.
+         */
+        synchronized void decode(byte[] copy, PreferenceStore.PlayerData into) {
+            ByteBuffer buf = ByteBuffer.wrap(copy);
+            Map<ItemSignature, List<Integer>> prefs = new LinkedHashMap<ItemSignature, List<Integer>>();
+            for (int slot = 0; slot < SlotHistory.SLOTS; slot++) {
+                ItemSignature sig = signature(buf.getInt(OFF_PREFS + 4 * slot));
+                if (sig == null) continue;
+                List<Integer> slots = prefs.get(sig);
+                if (slots == null) {
+                    slots = new ArrayList<Integer>();
+                    prefs.put(sig, slots);
+                }
+                slots.add(slot);
+            }
+            into.setPrefs(Layout.acquire(prefs));
+
+            for (int slot = 0; slot < SlotHistory.SLOTS; slot++) {
+                int base = OFF_HISTORY + slot * HISTORY_DEPTH * ENTRY_BYTES;
+                int n = 0;
+                while (n < HISTORY_DEPTH && buf.getInt(base + n * ENTRY_BYTES) != 0) n++;
+                // Most recent first on disk; SlotHistory.add prepends, so replay oldest first
+                for (int i = n - 1; i >= 0; i--) {
+                    ItemSignature sig = signature(buf.getInt(base + i * ENTRY_BYTES));
+                    if (sig != null) into.history.add(slot, sig, buf.getLong(base + i * ENTRY_BYTES + 4));
+                }
+            }
+
+            for (int i = 0; i < RECENCY_ENTRIES; i++) {
+                int key = buf.getInt(OFF_RECENCY + i * ENTRY_BYTES);
+                if (key == 0) break;
+                ItemSignature sig = signature((key - 1) / SlotHistory.SLOTS + 1);
+                if (sig != null) {
+                    into.recency.put(sig, (key - 1) % SlotHistory.SLOTS, buf.getLong(OFF_RECENCY + i * ENTRY_BYTES + 4));
+                }
+            }
+        }
+
+        /**
+         * What a record would lose of this data, or null if it survives a round trip unchanged.
+         */
+        static String lossFor(Layout prefs, SlotHistory history, SignatureSlotRecency recency) {
+            // History: HISTORY_DEPTH is SlotHistory's depth and timestamps are stored as is
+            if (recency.size() > RECENCY_ENTRIES) {
+                return recency.size() + " recency entries, a record holds " + RECENCY_ENTRIES;
+            }
+            long preferred = 0L;
+            for (List<Integer> slots : prefs.asMap().values()) {
+                for (int slot : slots) {
+                    if (slot < 0 || slot >= SlotHistory.SLOTS) return "a preference for slot " + slot;
+                    if ((preferred & 1L << slot) != 0) return "two items preferring slot " + slot;
+                    preferred |= 1L << slot;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Encodes one record copy (payload only; write fills in the header). Called under the store lock; new
+         * signatures only get a ref here, the signature file is appended by write.
+         */
+        synchronized byte[] encode(Layout prefs, SlotHistory history, SignatureSlotRecency recency) {
+            ByteBuffer buf = ByteBuffer.allocate(COPY_BYTES);
+            for (Map.Entry<ItemSignature, List<Integer>> e : prefs.asMap().entrySet()) {
+                int ref = ref(e.getKey());
+                for (int slot : e.getValue()) {
+                    // One signature per slot; the first one wins for (legacy) maps that assign a slot twice
+                    if (slot >= 0 && slot < SlotHistory.SLOTS && buf.getInt(OFF_PREFS + 4 * slot) == 0) {
+                        buf.putInt(OFF_PREFS + 4 * slot, ref);
+                    }
+                }
+            }
+
+            for (int slot = 0; slot < SlotHistory.SLOTS; slot++) {
+                int base = OFF_HISTORY + slot * HISTORY_DEPTH * ENTRY_BYTES;
+                int n = Math.min(HISTORY_DEPTH, history.size(slot));
+                for (int i = 0; i < n; i++) {
+                    buf.putInt(base + i * ENTRY_BYTES, ref(ItemSignature.byId(history.sigIdAt(slot, i))));
+                    buf.putLong(base + i * ENTRY_BYTES + 4, history.timeAt(slot, i));
+                }
+            }
+
+            int[] entries = recency.sortedEntries();
+            final long[] times = new long[entries.length];
+            Integer[] order = new Integer[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                times[i] = recency.get(ItemSignature.byId(entries[i] / SlotHistory.SLOTS), entries[i] % SlotHistory.SLOTS);
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(times[b], times[a]);
+                }
+            });
+            if (order.length > RECENCY_ENTRIES && !truncatedRecency) {
+                truncatedRecency = true;
+                Bukkit.getLogger().warning("[PGMUtil] A player has " + order.length + " recency entries, a preference"
+                        + " record holds " + RECENCY_ENTRIES + "; the oldest are dropped (logged once)");
+            }
+            for (int i = 0; i < Math.min(RECENCY_ENTRIES, order.length); i++) {
+                int entry = entries[order[i]];
+                int ref = ref(ItemSignature.byId(entry / SlotHistory.SLOTS));
+                buf.putInt(OFF_RECENCY + i * ENTRY_BYTES, (ref - 1) * SlotHistory.SLOTS + entry % SlotHistory.SLOTS + 1);
+                buf.putLong(OFF_RECENCY + i * ENTRY_BYTES + 4, times[order[i]]);
+            }
+            return buf.array();
+        }
+
+        /**
+         * Writes an encoded copy over the player's older copy (allocating a record for new players).
+         */
+        private void write(UUID id, byte[] copy) throws IOException {
+            flushSignatures();
+            Integer record = index.get(id);
+            if (record == null) {
+                if (free.isEmpty()) map(capacity * 2);
+                record = free.poll();
+                index.put(id, record);
+            }
+            long seqA = sequence(record, 0, id);
+            long seqB = sequence(record, 1, id);
+            int target = seqA <= seqB ? 0 : 1;
+
+            ByteBuffer buf = ByteBuffer.wrap(copy);
+            buf.putInt(0, MAGIC);
+            buf.putShort(4, (short) VERSION);
+            buf.putLong(OFF_SEQ, Math.max(seqA, seqB) + 1);
+            buf.putLong(OFF_MSB, id.getMostSignificantBits());
+            buf.putLong(OFF_LSB, id.getLeastSignificantBits());
+            buf.putLong(OFF_SAVED_AT, System.currentTimeMillis());
+            buf.putInt(OFF_CRC, 0);
+            buf.putInt(OFF_CRC, crc(copy));
+            copyIn(offset(record, target), copy);
+        }
+
+        @Override
+        public synchronized void delete(UUID id) {
+            Integer record = index.remove(id);
+            if (record == null) return;
+            byte[] blank = new byte[COPY_BYTES];
+            copyIn(offset(record, 0), blank);
+            copyIn(offset(record, 1), blank);
+            free.add(record);
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                flushSignatures();
+                force();
+                signatureChannel.force(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            unmap();
+            try {
+                channel.close();
+                signatureChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        // Closes and deletes the (empty) files again: the store isn't going to use them
+        synchronized void discard() {
+            close();
+            new File(dir, "prefs.records").delete();
+            new File(dir, "prefs.signatures").delete();
+        }
+
+        // --- Copies ---
+
+        private static long offset(int record, int copy) {
+            return (long) record * RECORD_BYTES + (long) copy * COPY_BYTES;
+        }
+
+        // The valid copy with the highest sequence, or null
+        private ByteBuffer current(int record, UUID id) {
+            ByteBuffer best = null;
+            for (int copy = 0; copy < 2; copy++) {
+                byte[] bytes = new byte[COPY_BYTES];
+                copyOut(offset(record, copy), bytes);
+                ByteBuffer buf = ByteBuffer.wrap(bytes);
+                if (!valid(buf, id)) continue;
+                if (best == null || buf.getLong(OFF_SEQ) > best.getLong(OFF_SEQ)) best = buf;
+            }
+            return best;
+        }
+
+        // Sequence of a valid copy, or -1
+        private long sequence(int record, int copy, UUID id) {
+            byte[] bytes = new byte[COPY_BYTES];
+            copyOut(offset(record, copy), bytes);
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            return valid(buf, id) ? buf.getLong(OFF_SEQ) : -1L;
+        }
+
+        private static boolean valid(ByteBuffer buf, UUID id) {
+            if (buf.getInt(0) != MAGIC || buf.getShort(4) != VERSION) return false;
+            if (buf.getLong(OFF_MSB) != id.getMostSignificantBits() || buf.getLong(OFF_LSB) != id.getLeastSignificantBits()) {
+                return false;
+            }
+            byte[] bytes = buf.array();
+            int stored = buf.getInt(OFF_CRC);
+            buf.putInt(OFF_CRC, 0);
+            int actual = crc(bytes);
+            buf.putInt(OFF_CRC, stored);
+            return stored == actual;
+        }
+
+        private static int crc(byte[] bytes) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            return (int) crc.getValue();
+        }
+
+        // --- Signatures ---
+
+        private ItemSignature signature(int refPlusOne) {
+            if (refPlusOne <= 0 || refPlusOne > signatures.size()) return null;
+            return signatures.get(refPlusOne - 1);
+        }
+
+        // Ref + 1 of the signature, assigning the next one if it is new
+        private int ref(ItemSignature sig) {
+            Integer ref = signatureRefs.get(sig);
+            if (ref == null) {
+                ref = signatures.size();
+                signatures.add(sig);
+                signatureRefs.put(sig, ref);
+            }
+            return ref + 1;
+        }
+
+        // Entries: (varint length, one-signature dictionary as in the shard format). A torn tail is cut off.
+        private void loadSignatures() throws IOException {
+            byte[] all = new byte[(int) signatureChannel.size()];
+            signatureChannel.read(ByteBuffer.wrap(all), 0L);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(all));
+            long good = 0;
+            try {
+                while (good < all.length) {
+                    byte[] entry = new byte[PrefsCodec.readVarInt(in)];
+                    in.readFully(entry);
+                    // An unknown material keeps its ref as null, so later refs still line up
+                    ItemSignature sig = PrefsCodec.decodeSignature(entry);
+                    if (sig != null) signatureRefs.put(sig, signatures.size());
+                    signatures.add(sig);
+                    good = all.length - in.available();
+                }
+            } catch (IOException e) {
+                Bukkit.getLogger().warning("[PGMUtil] Dropping a damaged tail of prefs.signatures: " + e);
+                signatureChannel.truncate(good);
+            }
+            persistedSignatures = signatures.size();
+        }
+
+        private void flushSignatures() throws IOException {
+            if (persistedSignatures == signatures.size()) return;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (int i = persistedSignatures; i < signatures.size(); i++) {
+                byte[] entry = PrefsCodec.encodeSignature(signatures.get(i));
+                PrefsCodec.writeVarInt(out, entry.length);
+                out.write(entry);
+            }
+            ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+            long position = signatureChannel.size();
+            while (buf.hasRemaining()) position += signatureChannel.write(buf, position);
+            signatureChannel.force(false);
+            persistedSignatures = signatures.size();
+        }
+
+        // --- Mapping (Java 21 FFM) ---
+
+        // (Re)maps the file with room for the given number of records; new records start out free
+        private void map(int records) throws IOException {
+            boolean growing = mapped != null;
+            Arena next = Arena.ofShared();
+            MemorySegment segment = channel.map(FileChannel.MapMode.READ_WRITE, 0L, (long) records * RECORD_BYTES, next);
+            unmap();
+            // On first mapping the constructor sorts records into used and free by their headers
+            if (growing) {
+                for (int i = capacity; i < records; i++) free.add(i);
+            }
+            arena = next;
+            mapped = segment;
+            capacity = records;
+        }
+
+        private void unmap() {
+            if (arena != null) {
+                mapped.force();
+                arena.close();
+                arena = null;
+            }
+        }
+
+        private void force() {
+            if (mapped != null) mapped.force();
+        }
+
+        private void copyIn(long offset, byte[] bytes) {
+            mapped.asSlice(offset, bytes.length).copyFrom(MemorySegment.ofArray(bytes));
+        }
+
+        private void copyOut(long offset, byte[] bytes) {
+            MemorySegment.ofArray(bytes).copyFrom(mapped.asSlice(offset, bytes.length));
+        }
+    }
+
+    /**
+     * Versioned binary shard format.
+     *
+     * Layout (all counts/ids are unsigned varints, timestamps zigzag varlongs):
+     *   int magic 'PGMP', byte version
+     *   string table: count, then (len, UTF-8 bytes)         -- material, potion type, enchant and display names
+     *   signature dictionary: count, then per signature:
+     *       material string id, flags (1=potion, 2=name, 4=raw potion key), [potion], [name string id],
+     *       enchant count, (enchant string id, level)*
+     *   prefs: shared layout id + 1, or 0 followed by the layout inline: count, then (signature id, slot count,
+     *       slot bytes)                                       -- version 1 shards always inline, without the 0
+     *   history: slot count, then (slot byte, entry count, (signature id, timestamp delta)*), most recent first
+     *   recency: signature count, then (signature id, entry count, (slot byte, timestamp delta)*)
+     *
+     * Timestamps are delta-encoded against the previously written timestamp in the same section, so a snapshot's
+     * shared timestamp costs one byte after its first occurrence. Material names (not ordinals) go in the string
+     * table so shards survive server version changes that reorder the Material enum.
+     *
+     * Shared layouts live in one dictionary file (see PreferenceStore.LayoutDictionary):
+     *   int magic 'PGML', byte version, next id, string table, signature dictionary (as above),
+     *   layout count, then (id, inline layout)
+     */
+    static final class PrefsCodec {
+        private static final int MAGIC = 0x50474D50; // "PGMP"
+        private static final int VERSION = 2;
+        private static final int DICTIONARY_MAGIC = 0x50474D4C; // "PGML"
+        private static final int DICTIONARY_VERSION = 1;
+
+        private static final int FLAG_POTION = 1;
+        private static final int FLAG_NAME = 2;
+        private static final int FLAG_RAW_POTION = 4;
+
+        private PrefsCodec() {}
+
+        static byte[] encode(Layout prefs, SlotHistory history, SignatureSlotRecency recency) throws IOException {
+            return encode(prefs, history, recency, true);
+        }
+
+        // byReference false always writes the layout inline, for payloads read without this server's dictionary
+        static byte[] encode(Layout prefs, SlotHistory history, SignatureSlotRecency recency, boolean byReference)
+                throws IOException {
+            // A shared layout is written as its dictionary id, so its signatures needn't be in this shard
+            int shared = byReference ? prefs.dictionaryId() : -1;
+
+            // Assign dictionary ids in first-seen order
+            Map<ItemSignature, Integer> sigIds = new LinkedHashMap<ItemSignature, Integer>();
+            if (shared < 0) {
+                for (ItemSignature sig : prefs.asMap().keySet()) idOf(sigIds, sig);
+            }
+            for (int slot = 0; slot < SlotHistory.SLOTS; slot++) {
+                for (int i = 0; i < history.size(slot); i++) idOf(sigIds, ItemSignature.byId(history.sigIdAt(slot, i)));
+            }
+            int[] recencyEntries = recency.sortedEntries();
+            for (int entry : recencyEntries) idOf(sigIds, ItemSignature.byId(entry / SlotHistory.SLOTS));
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            writeSignatures(out, sigIds);
+
+            if (shared >= 0) {
+                writeVarInt(out, shared + 1);
+            } else {
+                writeVarInt(out, 0);
+                writeLayout(out, prefs, sigIds);
+            }
+
+            long prevTs = 0L;
+            int usedSlots = 0;
+            for (int slot = 0; slot < SlotHistory.SLOTS; slot++) {
+                if (history.size(slot) > 0) usedSlots++;
+            }
+            writeVarInt(out, usedSlots);
+            for (int slot = 0; slot < SlotHistory.SLOTS; slot++) {
+                int n = history.size(slot);
+                if (n == 0) continue;
+                out.writeByte(slot);
+                writeVarInt(out, n);
+                for (int i = 0; i < n; i++) {
+                    long ts = history.timeAt(slot, i);
+                    writeVarInt(out, sigIds.get(ItemSignature.byId(history.sigIdAt(slot, i))));
+                    writeVarLong(out, zigzag(ts - prevTs));
+                    prevTs = ts;
+                }
+            }
+
+            // Entries are sorted by signature id, so each signature's slots are contiguous
+            prevTs = 0L;
+            int groups = 0;
+            for (int i = 0; i < recencyEntries.length; i++) {
+                if (i == 0 || recencyEntries[i] / SlotHistory.SLOTS != recencyEntries[i - 1] / SlotHistory.SLOTS) groups++;
+            }
+            writeVarInt(out, groups);
+            for (int i = 0; i < recencyEntries.length; ) {
+                int sigId = recencyEntries[i] / SlotHistory.SLOTS;
+                ItemSignature sig = ItemSignature.byId(sigId);
+                int end = i;
+                while (end < recencyEntries.length && recencyEntries[end] / SlotHistory.SLOTS == sigId) end++;
+                writeVarInt(out, sigIds.get(sig));
+                writeVarInt(out, end - i);
+                for (; i < end; i++) {
+                    int slot = recencyEntries[i] % SlotHistory.SLOTS;
+                    long ts = recency.get(sig, slot);
+                    out.writeByte(slot);
+                    writeVarLong(out, zigzag(ts - prevTs));
+                    prevTs = ts;
+                }
+            }
+
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        // dictionary: shared layouts by id, for prefs stored by reference
+        static void decode(byte[] data, PreferenceStore.PlayerData into, Map<Integer, Layout> dictionary)
+                throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != MAGIC) throw new IOException("Not a preference shard");
+            int version = in.readUnsignedByte();
+            if (version != 1 && version != VERSION) throw new IOException("Unsupported shard version " + version);
+
+            ItemSignature[] sigs = readSignatures(in);
+
+            int shared = version == 1 ? 0 : readVarInt(in);
+            if (shared == 0) {
+                into.setPrefs(Layout.acquire(readLayout(in, sigs)));
+            } else {
+                Layout layout = dictionary.get(shared - 1);
+                if (layout == null) {
+                    // Dictionary lost or edited; the rest of the shard is still good
+                    Bukkit.getLogger().warning("[PGMUtil] Preference shard of " + into.id + " refers to unknown shared layout " + (shared - 1));
+                } else {
+                    into.setPrefs(layout.retain());
+                }
+            }
+
+            long prevTs = 0L;
+            int slotCount = readVarInt(in);
+            for (int i = 0; i < slotCount; i++) {
+                int slot = in.readUnsignedByte();
+                int n = readVarInt(in);
+                ItemSignature[] entrySigs = new ItemSignature[n];
+                long[] entryTs = new long[n];
+                for (int e = 0; e < n; e++) {
+                    entrySigs[e] = sigs[readVarInt(in)];
+                    prevTs += unzigzag(readVarLong(in));
+                    entryTs[e] = prevTs;
+                }
+                // Stored most recent first; SlotHistory.add prepends, so replay oldest first
+                for (int e = n - 1; e >= 0; e--) {
+                    if (entrySigs[e] != null) into.history.add(slot, entrySigs[e], entryTs[e]);
+                }
+            }
+
+            prevTs = 0L;
+            int recCount = readVarInt(in);
+            for (int i = 0; i < recCount; i++) {
+                ItemSignature sig = sigs[readVarInt(in)];
+                int n = readVarInt(in);
+                for (int e = 0; e < n; e++) {
+                    int slot = in.readUnsignedByte();
+                    prevTs += unzigzag(readVarLong(in));
+                    if (sig != null) into.recency.put(sig, slot, prevTs);
+                }
+            }
+        }
+
+        /**
+         * Encodes the shared layout dictionary: id -> layout, plus the next id to hand out (ids are never reused).
+         */
+        static byte[] encodeDictionary(Map<Integer, Layout> layouts, int nextId) throws IOException {
+            Map<ItemSignature, Integer> sigIds = new LinkedHashMap<ItemSignature, Integer>();
+            for (Layout layout : layouts.values()) {
+                for (ItemSignature sig : layout.asMap().keySet()) idOf(sigIds, sig);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(DICTIONARY_MAGIC);
+            out.writeByte(DICTIONARY_VERSION);
+            writeVarInt(out, nextId);
+            writeSignatures(out, sigIds);
+            writeVarInt(out, layouts.size());
+            for (Map.Entry<Integer, Layout> e : layouts.entrySet()) {
+                writeVarInt(out, e.getKey());
+                writeLayout(out, e.getValue(), sigIds);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        // Fills into with id -> layout map; returns the next id
+        static int decodeDictionary(byte[] data, Map<Integer, Map<ItemSignature, List<Integer>>> into) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != DICTIONARY_MAGIC) throw new IOException("Not a layout dictionary");
+            int version = in.readUnsignedByte();
+            if (version != DICTIONARY_VERSION) throw new IOException("Unsupported layout dictionary version " + version);
+            int nextId = readVarInt(in);
+            ItemSignature[] sigs = readSignatures(in);
+            int count = readVarInt(in);
+            for (int i = 0; i < count; i++) {
+                int id = readVarInt(in);
+                into.put(id, readLayout(in, sigs));
+            }
+            return nextId;
+        }
+
+        // A single signature as a self-contained string table + dictionary (used by PreferenceRecords)
+        static byte[] encodeSignature(ItemSignature sig) throws IOException {
+            Map<ItemSignature, Integer> sigIds = new LinkedHashMap<ItemSignature, Integer>();
+            sigIds.put(sig, 0);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeSignatures(out, sigIds);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        // Null if its material is unknown here
+        static ItemSignature decodeSignature(byte[] data) throws IOException {
+            ItemSignature[] sigs = readSignatures(new DataInputStream(new ByteArrayInputStream(data)));
+            if (sigs.length != 1) throw new IOException("Malformed signature entry");
+            return sigs[0];
+        }
+
+        // String table and signature dictionary, in sigIds order
+        private static void writeSignatures(DataOutputStream out, Map<ItemSignature, Integer> sigIds) throws IOException {
+            Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+            for (ItemSignature sig : sigIds.keySet()) {
+                idOf(strings, sig.material.name());
+                PotionFields p = sig.potion;
+                if (p != null) idOf(strings, p.type);
+                else if (sig.potionKey != null) idOf(strings, sig.potionKey);
+                if (sig.displayName != null) idOf(strings, sig.displayName);
+                for (String ench : sig.enchants.keySet()) idOf(strings, ench);
+            }
+
+            writeVarInt(out, strings.size());
+            for (String s : strings.keySet()) {
+                byte[] utf = s.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(out, utf.length);
+                out.write(utf);
+            }
+
+            writeVarInt(out, sigIds.size());
+            for (ItemSignature sig : sigIds.keySet()) {
+                PotionFields p = sig.potion;
+                int flags = 0;
+                if (p != null) flags |= FLAG_POTION;
+                else if (sig.potionKey != null) flags |= FLAG_RAW_POTION;
+                if (sig.displayName != null) flags |= FLAG_NAME;
+
+                writeVarInt(out, strings.get(sig.material.name()));
+                out.writeByte(flags);
+                if (p != null) {
+                    writeVarInt(out, strings.get(p.type));
+                    writeVarInt(out, p.level);
+                    out.writeByte((p.extended ? 1 : 0) | (p.splash ? 2 : 0));
+                } else if (sig.potionKey != null) {
+                    writeVarInt(out, strings.get(sig.potionKey));
+                }
+                if (sig.displayName != null) writeVarInt(out, strings.get(sig.displayName));
+                writeVarInt(out, sig.enchants.size());
+                for (Map.Entry<String, Integer> e : sig.enchants.entrySet()) {
+                    writeVarInt(out, strings.get(e.getKey()));
+                    writeVarInt(out, e.getValue() == null ? 0 : e.getValue());
+                }
+            }
+        }
+
+        private static ItemSignature[] readSignatures(DataInputStream in) throws IOException {
+            String[] strings = new String[readVarInt(in)];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] utf = new byte[readVarInt(in)];
+                in.readFully(utf);
+                strings[i] = new String(utf, StandardCharsets.UTF_8);
+            }
+
+            // Materials this server doesn't know (written by a newer version, or removed) leave a null: every
+            // preference, history and recency entry of that signature is dropped, the rest of the data is kept
+            ItemSignature[] sigs = new ItemSignature[readVarInt(in)];
+            for (int i = 0; i < sigs.length; i++) {
+                Material mat = ItemSignature.material(strings[readVarInt(in)]);
+                int flags = in.readUnsignedByte();
+                String potion = null;
+                String name = null;
+                if ((flags & FLAG_POTION) != 0) {
+                    String type = strings[readVarInt(in)];
+                    int level = readVarInt(in);
+                    int bits = in.readUnsignedByte();
+                    potion = PotionFields.format(type, level, (bits & 1) != 0, (bits & 2) != 0);
+                } else if ((flags & FLAG_RAW_POTION) != 0) {
+                    potion = strings[readVarInt(in)];
+                }
+                if ((flags & FLAG_NAME) != 0) name = strings[readVarInt(in)];
+                SortedMap<String, Integer> ench = new TreeMap<String, Integer>();
+                int enchCount = readVarInt(in);
+                for (int e = 0; e < enchCount; e++) {
+                    String key = strings[readVarInt(in)];
+                    ench.put(key, readVarInt(in));
+                }
+                sigs[i] = mat == null ? null : ItemSignature.intern(mat, potion, name, ench);
+            }
+            return sigs;
+        }
+
+        private static void writeLayout(DataOutputStream out, Layout layout, Map<ItemSignature, Integer> sigIds) throws IOException {
+            Map<ItemSignature, List<Integer>> prefs = layout.asMap();
+            writeVarInt(out, prefs.size());
+            for (Map.Entry<ItemSignature, List<Integer>> e : prefs.entrySet()) {
+                writeVarInt(out, sigIds.get(e.getKey()));
+                writeVarInt(out, e.getValue().size());
+                for (int slot : e.getValue()) out.writeByte(slot);
+            }
+        }
+
+        private static Map<ItemSignature, List<Integer>> readLayout(DataInputStream in, ItemSignature[] sigs) throws IOException {
+            Map<ItemSignature, List<Integer>> prefs = new LinkedHashMap<ItemSignature, List<Integer>>();
+            int prefCount = readVarInt(in);
+            for (int i = 0; i < prefCount; i++) {
+                ItemSignature sig = sigs[readVarInt(in)];
+                int n = readVarInt(in);
+                List<Integer> slots = new ArrayList<Integer>(n);
+                for (int s = 0; s < n; s++) slots.add(in.readUnsignedByte());
+                if (sig != null) prefs.put(sig, slots);
+            }
+            return prefs;
+        }
+
+        private static <K> int idOf(Map<K, Integer> ids, K key) {
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = ids.size();
+                ids.put(key, id);
+            }
+            return id;
+        }
+
+        private static long zigzag(long v) {
+            return (v << 1) ^ (v >> 63);
+        }
+
+        private static long unzigzag(long v) {
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        private static void writeVarInt(DataOutputStream out, int v) throws IOException {
+            while ((v & ~0x7F) != 0) {
+                out.writeByte((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.writeByte(v);
+        }
+
+        private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+            while ((v & ~0x7FL) != 0) {
+                out.writeByte((int) (v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.writeByte((int) v);
+        }
+
+        private static int readVarInt(DataInputStream in) throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = in.readUnsignedByte();
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private static long readVarLong(DataInputStream in) throws IOException {
+            long v = 0L;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = in.readUnsignedByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IOException("Malformed varlong");
+        }
+    }
+
+    /**
+     * Structured view of ItemSignature.potionKey ("TYPE:lvl=N:ext=0|1:splash=0|1").
+     */
+    private static final class PotionFields {
+        final String type;
+        final int level;
+        final boolean extended;
+        final boolean splash;
+
+        private PotionFields(String type, int level, boolean extended, boolean splash) {
+            this.type = type;
+            this.level = level;
+            this.extended = extended;
+            this.splash = splash;
+        }
+
+        // Canonical keys by packed (type, level, extended, splash), so ItemSignature.of never builds strings
+        private static final ConcurrentMap<Integer, String> KEYS = new ConcurrentHashMap<Integer, String>();
+
+        static String key(PotionType type, int level, boolean extended, boolean splash) {
+            int packed = ((type != null ? type.ordinal() + 1 : 0) << 16) | ((level & 0x3FFF) << 2)
+                    | (extended ? 2 : 0) | (splash ? 1 : 0);
+            String key = KEYS.get(packed);
+            if (key == null) {
+                key = format(type != null ? type.name() : "UNKNOWN", level, extended, splash);
+                KEYS.putIfAbsent(packed, key);
+            }
+            return key;
+        }
+
+        static String format(String type, int level, boolean extended, boolean splash) {
+            return type + ":lvl=" + level + ":ext=" + (extended ? "1" : "0") + ":splash=" + (splash ? "1" : "0");
+        }
+
+        // Returns null if the key isn't in the canonical format (it is then stored verbatim)
+        static PotionFields parse(String key) {
+            if (key == null) return null;
+            String[] parts = key.split(":");
+            if (parts.length != 4) return null;
+            if (!parts[1].startsWith("lvl=") || !parts[2].startsWith("ext=") || !parts[3].startsWith("splash=")) return null;
+            try {
+                PotionFields p = new PotionFields(parts[0], Integer.parseInt(parts[1].substring(4)),
+                        "1".equals(parts[2].substring(4)), "1".equals(parts[3].substring(7)));
+                // Only accept keys that round-trip exactly
+                return format(p.type, p.level, p.extended, p.splash).equals(key) ? p : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Cross-server preference sync (inventory-sorter.sync) on top of a PreferenceNetwork.
+     *
+     * Every local write is also published: the player's data, encoded with every layout inline (dictionary ids are
+     * per server), goes to the key KEY_PREFIX + uuid prefixed with the time of the change, then a CHANNEL_CHANGED
+     * message "server uuid changedAt" tells the other servers. They drop the player from their near-cache (recently
+     * fetched payloads, NEAR_CACHE_SIZE entries, LRU) and refresh the player if resident. A load compares the network
+     * copy with the local one and takes the newer, so the last change wins wherever it was made. A CHANNEL_ROUTE
+     * message "server uuid", sent by whatever moves players between servers (see InventorySorter#routePlayer), makes
+     * the target server prefetch the player into its near-cache before they arrive.
+     *
+     * Network calls only run on the sync thread. Loads wait for a fetch at most fetchTimeoutMs, and never on the main
+     * thread, which only sees the near-cache. When a call fails the network is considered down: loads use local data
+     * only, changes are kept (latest per player) and published once a ping, retried every retryMs, succeeds again.
+     * A kept change that another server has overtaken meanwhile is not replayed over the newer network copy; the
+     * player is refreshed from it instead, as if its change message had been received.
+     */
+    static final class PreferenceSync {
+        static final String KEY_PREFIX = "pgmutil:prefs:";
+        static final String CHANNEL_CHANGED = "pgmutil:prefs:changed";
+        static final String CHANNEL_ROUTE = "pgmutil:prefs:route";
+        private static final int NEAR_CACHE_SIZE = 2048;
+        private static final long DEFAULT_RETRY_MS = 30000L;
+        // Cached "nothing on the network" answer
+        private static final Snapshot ABSENT = new Snapshot(0L, null);
+
+        /**
+         * A payload as stored on the network: the time of the change it carries, then the PrefsCodec payload.
+         */
+        static final class Snapshot {
+            final long changedAt;
+            final byte[] payload;
+
+            Snapshot(long changedAt, byte[] payload) {
+                this.changedAt = changedAt;
+                this.payload = payload;
+            }
+
+            byte[] toBytes() {
+                return ByteBuffer.allocate(8 + payload.length).putLong(changedAt).put(payload).array();
+            }
+
+            static Snapshot fromBytes(byte[] bytes) throws IOException {
+                if (bytes.length < 8) throw new IOException("Truncated preference snapshot");
+                ByteBuffer buf = ByteBuffer.wrap(bytes);
+                long changedAt = buf.getLong();
+                byte[] payload = new byte[buf.remaining()];
+                buf.get(payload);
+                return new Snapshot(changedAt, payload);
+            }
+        }
+
+        private final PreferenceNetwork network;
+        private final String server;
+        private final long fetchTimeoutMs;
+        private final long ttlSeconds;
+        private final long retryMs;
+        private final ScheduledExecutorService executor;
+        // Set by start()
+        private java.util.function.BiConsumer<UUID, Long> onRemoteChange;
+        private volatile boolean available;
+        // Whether the current outage was logged (sync thread only)
+        private boolean warned;
+
+        private final Map<UUID, Snapshot> nearCache = Collections.synchronizedMap(
+                new LinkedHashMap<UUID, Snapshot>(64, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<UUID, Snapshot> eldest) {
+                        return size() > NEAR_CACHE_SIZE;
+                    }
+                });
+        // Bumped by every invalidation, so a fetch that raced with one doesn't cache what it read
+        private final AtomicLong generation = new AtomicLong();
+        // Changes that couldn't be published, latest per player (guarded by itself)
+        private final Map<UUID, Snapshot> unpublished = new LinkedHashMap<UUID, Snapshot>();
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong published = new AtomicLong();
+        private final AtomicLong invalidations = new AtomicLong();
+
+        PreferenceSync(PreferenceNetwork network, String server, long fetchTimeoutMs, long ttlSeconds) {
+            this(network, server, fetchTimeoutMs, ttlSeconds, DEFAULT_RETRY_MS);
+        }
+
+        PreferenceSync(PreferenceNetwork network, String server, long fetchTimeoutMs, long ttlSeconds, long retryMs) {
+            this.network = network;
+            this.server = server;
+            this.fetchTimeoutMs = fetchTimeoutMs;
+            this.ttlSeconds = ttlSeconds;
+            this.retryMs = retryMs;
+            this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PGMUtil-PreferenceSync");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        /**
+         * Subscribes and starts the reachability checks. onRemoteChange(player, changedAt) runs on the network's
+         * subscriber thread for every change made on another server.
+         */
+        void start(final java.util.function.BiConsumer<UUID, Long> onRemoteChange) {
+            this.onRemoteChange = onRemoteChange;
+            network.subscribe(Arrays.asList(CHANNEL_CHANGED, CHANNEL_ROUTE), new PreferenceNetwork.Listener() {
+                @Override
+                public void onMessage(String channel, String message) {
+                    String[] parts = message.split(" ");
+                    if (parts.length < 2) return;
+                    UUID id;
+                    try {
+                        id = UUID.fromString(parts[1]);
+                    } catch (IllegalArgumentException e) {
+                        return;
+                    }
+                    if (CHANNEL_CHANGED.equals(channel) && parts.length == 3 && !server.equals(parts[0])) {
+                        long changedAt;
+                        try {
+                            changedAt = Long.parseLong(parts[2]);
+                        } catch (NumberFormatException e) {
+                            return;
+                        }
+                        generation.incrementAndGet();
+                        nearCache.remove(id);
+                        invalidations.incrementAndGet();
+                        onRemoteChange.accept(id, changedAt);
+                    } else if (CHANNEL_ROUTE.equals(channel) && server.equals(parts[0])) {
+                        prefetch(id);
+                    }
+                }
+
+                @Override
+                public void onResubscribed() {
+                    // Invalidations may have been missed meanwhile
+                    generation.incrementAndGet();
+                    nearCache.clear();
+                }
+            });
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    if (!available) reconnect();
+                }
+            }, 0L, retryMs, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * The network copy of the player's data, or null if there is none or it isn't known in time. Off the main
+         * thread this waits up to fetchTimeoutMs for a fetch; on the main thread only the near-cache is consulted.
+         */
+        Snapshot fetch(final UUID id) {
+            Snapshot cached = nearCache.get(id);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached.payload == null ? null : cached;
+            }
+            misses.incrementAndGet();
+            if (!available || Bukkit.isPrimaryThread()) return null;
+            Future<Snapshot> fetch;
+            try {
+                fetch = executor.submit(new java.util.concurrent.Callable<Snapshot>() {
+                    @Override
+                    public Snapshot call() {
+                        return load(id);
+                    }
+                });
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                return null;
+            }
+            try {
+                Snapshot snapshot = fetch.get(fetchTimeoutMs, TimeUnit.MILLISECONDS);
+                return snapshot == null || snapshot.payload == null ? null : snapshot;
+            } catch (java.util.concurrent.TimeoutException e) {
+                // The fetch carries on and fills the near-cache for the next load
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Fetches the player into the near-cache in the background.
+         */
+        void prefetch(final UUID id) {
+            if (!available || nearCache.containsKey(id)) return;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        load(id);
+                    }
+                });
+            } catch (java.util.concurrent.RejectedExecutionException ignored) {
+            }
+        }
+
+        /**
+         * Publishes changes just written locally (IO thread; the network calls happen on the sync thread).
+         */
+        void publish(final Map<UUID, Snapshot> changes) {
+            if (changes.isEmpty()) return;
+            // What this server wrote last is the newest copy anywhere, so it may be served from the near-cache
+            nearCache.putAll(changes);
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (available) {
+                            send(changes);
+                        } else {
+                            synchronized (unpublished) {
+                                unpublished.putAll(changes);
+                            }
+                        }
+                    }
+                });
+            } catch (java.util.concurrent.RejectedExecutionException ignored) {
+            }
+        }
+
+        /**
+         * Asks the given server to prefetch the player (e.g. just before sending them there).
+         */
+        void route(final UUID id, final String target) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!available) return;
+                        try {
+                            network.publish(CHANNEL_ROUTE, target + " " + id);
+                        } catch (IOException e) {
+                            down(e);
+                        }
+                    }
+                });
+            } catch (java.util.concurrent.RejectedExecutionException ignored) {
+            }
+        }
+
+        // --- Sync thread ---
+
+        private Snapshot load(UUID id) {
+            long gen = generation.get();
+            Snapshot snapshot;
+            try {
+                byte[] bytes = network.get(KEY_PREFIX + id);
+                snapshot = bytes == null ? ABSENT : Snapshot.fromBytes(bytes);
+            } catch (IOException e) {
+                down(e);
+                return null;
+            }
+            synchronized (nearCache) {
+                if (generation.get() == gen) nearCache.put(id, snapshot);
+            }
+            return snapshot;
+        }
+
+        private void send(Map<UUID, Snapshot> changes) {
+            Iterator<Map.Entry<UUID, Snapshot>> it = changes.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<UUID, Snapshot> e = it.next();
+                try {
+                    network.set(KEY_PREFIX + e.getKey(), e.getValue().toBytes(), ttlSeconds);
+                    network.publish(CHANNEL_CHANGED, server + " " + e.getKey() + " " + e.getValue().changedAt);
+                    published.incrementAndGet();
+                } catch (IOException ex) {
+                    down(ex);
+                    synchronized (unpublished) {
+                        unpublished.put(e.getKey(), e.getValue());
+                        while (it.hasNext()) {
+                            Map.Entry<UUID, Snapshot> rest = it.next();
+                            unpublished.put(rest.getKey(), rest.getValue());
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void down(IOException e) {
+            available = false;
+            if (warned) return;
+            warned = true;
+            Bukkit.getLogger().warning("[PGMUtil] Preference network (" + network.name() + ") unreachable, "
+                    + "continuing with local data only: " + e);
+        }
+
+        private void reconnect() {
+            try {
+                network.ping();
+            } catch (IOException e) {
+                down(e);
+                return;
+            }
+            // Invalidations may have been missed while down
+            generation.incrementAndGet();
+            nearCache.clear();
+            available = true;
+            Map<UUID, Snapshot> pending;
+            synchronized (unpublished) {
+                pending = new LinkedHashMap<UUID, Snapshot>(unpublished);
+                unpublished.clear();
+            }
+            int replayed = replay(pending);
+            if (available) {
+                warned = false;
+                Bukkit.getLogger().info("[PGMUtil] Preference network (" + network.name() + ") reachable, "
+                        + replayed + " pending changes published, " + (pending.size() - replayed) + " overtaken");
+            }
+        }
+
+        // Publishes the changes kept while down, except those the network copy is newer than. Returns how many
+        // were published.
+        private int replay(Map<UUID, Snapshot> pending) {
+            Map<UUID, Snapshot> newest = new LinkedHashMap<UUID, Snapshot>();
+            Iterator<Map.Entry<UUID, Snapshot>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<UUID, Snapshot> e = it.next();
+                byte[] bytes;
+                try {
+                    bytes = network.get(KEY_PREFIX + e.getKey());
+                } catch (IOException ex) {
+                    down(ex);
+                    synchronized (unpublished) {
+                        unpublished.putAll(newest);
+                        unpublished.put(e.getKey(), e.getValue());
+                        while (it.hasNext()) {
+                            Map.Entry<UUID, Snapshot> rest = it.next();
+                            unpublished.put(rest.getKey(), rest.getValue());
+                        }
+                    }
+                    return 0;
+                }
+                long remoteChangedAt = 0L;
+                if (bytes != null) {
+                    try {
+                        remoteChangedAt = Snapshot.fromBytes(bytes).changedAt;
+                    } catch (IOException ignored) {
+                        // Unreadable: overwritten like an absent copy
+                    }
+                }
+                if (remoteChangedAt > e.getValue().changedAt) {
+                    onRemoteChange.accept(e.getKey(), remoteChangedAt);
+                } else {
+                    newest.put(e.getKey(), e.getValue());
+                }
+            }
+            send(newest);
+            return newest.size();
+        }
+
+        String describe() {
+            int pending;
+            synchronized (unpublished) {
+                pending = unpublished.size();
+            }
+            return "Sync (" + network.name() + ", " + (available ? "up" : "down") + "): " + nearCache.size()
+                    + " near-cached, " + hits.get() + " hits, " + misses.get() + " misses, " + published.get()
+                    + " published, " + invalidations.get() + " invalidations, " + pending + " unpublished";
+        }
+
+        void close() {
+            // Lets queued publishes finish; whatever is still unpublished is in local storage anyway
+            executor.shutdown();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                network.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Preference store: per-player data kept in {dataFolder}/inventory_prefs by a PreferenceBackend.
+     *
+     * Payloads use the PrefsCodec binary format (the mmap backend has its own fixed-size record encoding). YAML data
+     * (the old monolithic file and per-player .yml shards) is converted once at startup, and binary shards are
+     * imported once when switching to another backend; the YAML reader is kept only for that migration.
+     *
+     * Only online players are resident: a player is loaded asynchronously on pre-login/join and written then evicted
+     * on quit. Writes are write-behind: mutations mark the player dirty and a single background writer coalesces
+     * everything dirtied within WRITE_DEBOUNCE_MS into one upsert batch.
+     *
+     * With inventory-sorter.sync enabled, loads also consult the network copy and every written batch is published
+     * (see PreferenceSync); resident players changed on another server are refreshed on the IO thread.
+     */
+    static final class PreferenceStore {
+        // YAML layout, read only when migrating
+        private static final String KEY_SIG_PREFS = "sigprefs";    // {uuid}.sigprefs.{signatureString} -> [slots...]
+        private static final String KEY_SLOT_HISTORY = "slothistory"; // {uuid}.slothistory.{slot} -> ["ts|signatureString", ...]
+        private static final String KEY_SIG_RECENCY = "sigrecency";   // {uuid}.sigrecency.{signatureString} -> ["slot:ts", ...]
+
+        // How long a mutation may sit in memory before the writer picks it up
+        private static final long WRITE_DEBOUNCE_MS = 2000L;
+        // How often the IO thread checks the residency budgets and idle TTL
+        private static final long EVICT_INTERVAL_MS = 30000L;
+        // How often the IO thread unpins item signatures nobody uses (see ItemSignature)
+        private static final long SIGNATURE_SWEEP_INTERVAL_MS = 10 * 60 * 1000L;
+        // Players compacted per IO task, and shards imported per batch when switching backends
+        private static final int COMPACTION_CHUNK = 256;
+        private static final int IMPORT_BATCH = 1000;
+        // Reads of a player's stored data before a load gives up for now, with a growing pause in between (off the
+        // main thread only)
+        private static final int LOAD_ATTEMPTS = 3;
+        private static final long LOAD_RETRY_MS = 100L;
+
+        private final File dir;
+        // Resident players (normally the online ones). Loads go through computeIfAbsent so a shard is only ever
+        // read once.
+        private final ConcurrentMap<UUID, PlayerData> players = new ConcurrentHashMap<UUID, PlayerData>();
+        // Players who quit or were evicted with unwritten changes; kept until their data is written so a quick
+        // reload sees them
+        private final ConcurrentMap<UUID, PlayerData> unloading = new ConcurrentHashMap<UUID, PlayerData>();
+
+        // Residency limits (<= 0 disables one). Beyond either budget the least recently used players are evicted.
+        private final int maxResidentPlayers;
+        private final long maxResidentBytes;
+        private final long idleTtlMs;
+
+        // Write-behind state. Player data is only mutated under this lock and then the PlayerData's own monitor (in
+        // that order), so the writer thread can serialize a consistent shard while holding the lock, and planner
+        // threads can read one player (and write their plan memo) holding just that player's monitor.
+        private final Object lock = new Object();
+        private final Set<PlayerData> dirty = new LinkedHashSet<PlayerData>();
+
+        private final AtomicLong planHits = new AtomicLong();
+        private final AtomicLong planMisses = new AtomicLong();
+        private final AtomicLong idleEvictions = new AtomicLong();
+        private final AtomicLong budgetEvictions = new AtomicLong();
+        private final AtomicLong remoteRefreshes = new AtomicLong();
+        private final AtomicBoolean compacting = new AtomicBoolean();
+        // Layouts of players written while a compaction pass runs (guarded by lock; null outside a pass)
+        private Set<Layout> writtenDuringPass;
+        private final LayoutDictionary dictionary;
+        private final PreferenceBackend backend;
+        // Non-null when the backend is mmap; payloads then use its record encoding instead of PrefsCodec
+        private final PreferenceRecords records;
+        // Null unless inventory-sorter.sync is enabled
+        private final PreferenceSync sync;
+        // inventory-sorter.store.backend as configured; backend is shards instead if that one couldn't be used
+        private final String configuredBackend;
+        private final ScheduledExecutorService io;
+        private ScheduledFuture<?> pendingWrite;
+
+        PreferenceStore(File dir, File legacyFile, String backendName, int maxResidentPlayers, long maxResidentBytes,
+                        long idleTtlMs, PreferenceSync sync) {
+            this.dir = dir;
+            this.sync = sync;
+            this.maxResidentPlayers = maxResidentPlayers;
+            this.maxResidentBytes = maxResidentBytes;
+            this.idleTtlMs = idleTtlMs;
+            if (!dir.exists()) dir.mkdirs();
+            this.dictionary = new LayoutDictionary(new File(dir, "layouts.bin"));
+            PreferenceRecords opened = "mmap".equalsIgnoreCase(backendName) ? openRecords(dir) : null;
+            // Switching to records for the first time. Once records hold players, going back would hide them.
+            if (opened != null && opened.players().isEmpty()) {
+                String loss = recordLoss(opened, legacyFile);
+                if (loss != null) {
+                    Bukkit.getLogger().warning("[PGMUtil] Not importing the stored preferences into mmap records, they"
+                            + " would lose data (" + loss + "). Staying on shard files; a shorter"
+                            + " compaction.history-horizon-days (then /pgmutil compact) may make them fit.");
+                    opened.discard();
+                    opened = null;
+                }
+            }
+            this.records = opened;
+            this.backend = records != null ? records : openBackend(dir, backendName);
+            this.configuredBackend = backendName;
+            this.io = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PGMUtil-PreferenceIO");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            migrateLegacy(legacyFile);
+            migrateYamlShards();
+            if (!(backend instanceof ShardFileBackend)) importShards();
+            io.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evict();
+                }
+            }, EVICT_INTERVAL_MS, EVICT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            io.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sweepSignatures();
+                }
+            }, SIGNATURE_SWEEP_INTERVAL_MS, SIGNATURE_SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            if (sync != null) {
+                sync.start(new java.util.function.BiConsumer<UUID, Long>() {
+                    @Override
+                    public void accept(UUID playerId, Long changedAt) {
+                        remoteChanged(playerId, changedAt);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Per-player state held while the player is online.
+         */
+        static final class PlayerData {
+            final UUID id;
+            // Shared with every other player holding the same map; this object owns one reference
+            Layout prefs = Layout.EMPTY;
+            final SlotHistory history = new SlotHistory();
+            final SignatureSlotRecency recency = new SignatureSlotRecency();
+
+            // Bumped by every save; the plan memo below is only valid for the version it was computed at
+            int version;
+            // Last reorder plan: layout (signature id per slot, -1 = empty) -> source permutation. Not persisted.
+            int memoVersion = -1;
+            int[] memoSigIds;
+            int[] memoPlan;
+
+            // For eviction: last time any read or write touched this player, and the heap estimate as of the last
+            // mutation (both maintained by the store)
+            volatile long lastAccess = System.currentTimeMillis();
+            long bytes;
+            // When the data last changed, on any server; only maintained with sync enabled (0 = unknown)
+            long changedAt;
+            // The stored data couldn't be read (the backend failed, not the data): never made resident or written,
+            // so the stored copy stays as it is until a later load gets through
+            boolean loadFailed;
+
+            PlayerData(UUID id) {
+                this.id = id;
+            }
+
+            // Takes over the caller's reference to layout
+            synchronized void setPrefs(Layout layout) {
+                Layout old = prefs;
+                prefs = layout;
+                old.release();
+            }
+
+            // History and recency keep signatures by id only, so they have to be kept interned for them
+            void markSignatures(BitSet ids) {
+                history.markSignatures(ids);
+                recency.markSignatures(ids);
+            }
+
+            // Data is being dropped from memory for good
+            void release() {
+                setPrefs(Layout.EMPTY);
+            }
+
+            // Rough heap footprint; only used against max-resident-mb, so it errs on the high side. The layout is
+            // shared and counted once in the pool, not per player.
+            long estimateBytes() {
+                long bytes = 64 + history.estimateBytes() + recency.estimateBytes();
+                return bytes + 2 * (16 + 4L * 36); // plan memo
+            }
+        }
+
+        // --- Residency ---
+
+        /**
+         * Loads the player's shard on the calling thread if it isn't resident yet.
+         * Safe to call from async threads (e.g. AsyncPlayerPreLoginEvent).
+         */
+        void load(UUID playerId) {
+            resident(playerId);
+        }
+
+        /**
+         * Loads the player's shard on the IO thread, then runs callback (if any) on the main thread.
+         */
+        void loadAsync(final UUID playerId, final JavaPlugin plugin, final Runnable callback) {
+            if (players.containsKey(playerId)) {
+                if (callback != null) Bukkit.getScheduler().runTask(plugin, callback);
+                return;
+            }
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    resident(playerId);
+                    if (callback != null && plugin.isEnabled()) {
+                        Bukkit.getScheduler().runTask(plugin, callback);
+                    }
+                }
+            };
+            if (io.isShutdown()) task.run();
+            else io.execute(task);
+        }
+
+        /**
+         * Evicts the player from memory. If they have unsaved changes their shard is written first (off-thread).
+         */
+        void unload(final UUID playerId) {
+            final PlayerData data;
+            synchronized (lock) {
+                data = players.remove(playerId);
+                if (data == null) return;
+                // Park it until any pending or in-flight write of this shard has landed
+                unloading.put(playerId, data);
+            }
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    writeDirty();
+                    synchronized (lock) {
+                        // Still dirty means the write failed; keep it parked so a rejoin doesn't read a stale shard
+                        if (!dirty.contains(data) && unloading.remove(playerId, data)
+                                && players.get(playerId) != data) {
+                            data.release();
+                        }
+                    }
+                }
+            };
+            synchronized (lock) {
+                if (pendingWrite != null) {
+                    pendingWrite.cancel(false);
+                    pendingWrite = null;
+                }
+                if (!io.isShutdown()) {
+                    io.execute(task);
+                    return;
+                }
+            }
+            task.run();
+        }
+
+        boolean isLoaded(UUID playerId) {
+            return players.containsKey(playerId);
+        }
+
+        // A failed load (see PlayerData#loadFailed) is returned but not kept, so the next use tries again
+        private PlayerData resident(UUID playerId) {
+            final PlayerData[] failed = new PlayerData[1];
+            PlayerData data = players.computeIfAbsent(playerId, new java.util.function.Function<UUID, PlayerData>() {
+                @Override
+                public PlayerData apply(UUID id) {
+                    // A reload before the quit/eviction write finished must see the unsaved data, not the stale shard
+                    PlayerData pending = unloading.get(id);
+                    if (pending != null) return pending;
+                    PlayerData loaded = readPlayerData(id);
+                    if (loaded.loadFailed) {
+                        failed[0] = loaded;
+                        return null;
+                    }
+                    loaded.bytes = loaded.estimateBytes();
+                    return loaded;
+                }
+            });
+            if (data == null) return failed[0];
+            data.lastAccess = System.currentTimeMillis();
+            return data;
+        }
+
+        // Resident data or null, marking it as recently used
+        private PlayerData touch(UUID playerId) {
+            PlayerData d = players.get(playerId);
+            if (d != null) d.lastAccess = System.currentTimeMillis();
+            return d;
+        }
+
+        // --- Reads (main thread; never trigger IO) ---
+
+        Map<ItemSignature, List<Integer>> getPreferences(UUID playerId) {
+            PlayerData d = touch(playerId);
+            return d == null ? Collections.<ItemSignature, List<Integer>>emptyMap() : d.prefs.asMap();
+        }
+
+        boolean hasAnySlotHistory(UUID playerId) {
+            PlayerData d = touch(playerId);
+            return d != null && !d.history.isEmpty();
+        }
+
+        /**
+         * Plans a reorder of the given layout against the player's preferences, slot history and recency; null if
+         * the layout is empty. Any thread. Holds only the player's own monitor, so it never waits for other players'
+         * saves or for the writer serializing under the lock (PlanBenchmark measures a plan at a few microseconds).
+         *
+         * Respawning with the same kit yields the same layout, so the last plan is memoized per player: if the
+         * signatures match slot for slot and nothing was saved since, the plan is a copy of the memo.
+         */
+        int[] plan(UUID playerId, ItemSignature[] sigs) {
+            boolean any = false;
+            for (ItemSignature sig : sigs) {
+                if (sig != null) {
+                    any = true;
+                    break;
+                }
+            }
+            if (!any) return null;
+
+            PlayerData d = touch(playerId);
+            if (d == null) {
+                planMisses.incrementAndGet();
+                ReorderEngine engine = ReorderEngine.get();
+                try {
+                    return engine.plan(sigs, Collections.<ItemSignature, List<Integer>>emptyMap(),
+                            new SlotHistory(), new SignatureSlotRecency()).clone();
+                } finally {
+                    engine.release();
+                }
+            }
+            synchronized (d) {
+                if (d.memoVersion == d.version && sameLayout(d.memoSigIds, sigs)) {
+                    planHits.incrementAndGet();
+                    return d.memoPlan.clone();
+                }
+                planMisses.incrementAndGet();
+
+                int[] plan;
+                ReorderEngine engine = ReorderEngine.get();
+                try {
+                    plan = engine.plan(sigs, d.prefs.asMap(), d.history, d.recency).clone();
+                } finally {
+                    engine.release();
+                }
+
+                int[] ids = d.memoSigIds != null ? d.memoSigIds : new int[36];
+                for (int slot = 0; slot <= 35; slot++) {
+                    ids[slot] = sigs[slot] == null ? -1 : sigs[slot].id();
+                }
+                d.memoSigIds = ids;
+                d.memoPlan = plan.clone();
+                d.memoVersion = d.version;
+                return plan;
+            }
+        }
+
+        private static boolean sameLayout(int[] ids, ItemSignature[] sigs) {
+            if (ids == null) return false;
+            for (int slot = 0; slot <= 35; slot++) {
+                int id = sigs[slot] == null ? -1 : sigs[slot].id();
+                if (ids[slot] != id) return false;
+            }
+            return true;
+        }
 
-                // Load slot history: {uuid}.slothistory.{slot} -> ["ts|signatureString", ...]
-                SlotHistory history = new SlotHistory();
-                if (yml.isConfigurationSection(key + "." + KEY_SLOT_HISTORY)) {
-                    for (String slotStr : yml.getConfigurationSection(key + "." + KEY_SLOT_HISTORY).getKeys(false)) {
-                        String path = key + "." + KEY_SLOT_HISTORY + "." + slotStr;
-                        List<String> lines = yml.getStringList(path);
-                        int slot = -1;
+        // Item rules were reloaded: family indexes are derived from them, and so are memoized plans
+        void rulesChanged() {
+            synchronized (lock) {
+                for (PlayerData d : players.values()) {
+                    synchronized (d) {
+                        d.history.refreshFamilies();
+                        d.bytes = d.estimateBytes();
+                        d.version++;
+                    }
+                }
+                for (PlayerData d : unloading.values()) {
+                    synchronized (d) {
+                        d.history.refreshFamilies();
+                    }
+                }
+            }
+        }
+
+        long planHits() {
+            return planHits.get();
+        }
+
+        long planMisses() {
+            return planMisses.get();
+        }
+
+        // With the configured backend if that one couldn't be used (the startup log says why)
+        String backendName() {
+            if (backend.name().equalsIgnoreCase(configuredBackend)) return backend.name();
+            return backend.name() + ", configured " + configuredBackend + " unavailable";
+        }
+
+        int residentCount() {
+            return players.size();
+        }
+
+        long residentBytes() {
+            long bytes = 0;
+            synchronized (lock) {
+                for (PlayerData d : players.values()) bytes += d.bytes;
+            }
+            return bytes;
+        }
+
+        int sharedLayouts() {
+            return dictionary.byId.size();
+        }
+
+        long idleEvictions() {
+            return idleEvictions.get();
+        }
+
+        long budgetEvictions() {
+            return budgetEvictions.get();
+        }
+
+        // --- Eviction (IO thread) ---
+
+        /**
+         * Evicts players untouched for longer than the idle TTL, then the least recently used ones until both
+         * residency budgets hold again. Evicted players are parked in unloading until their changes are on disk,
+         * exactly like a quit; the next load (respawn, join, snapshot) reads them back. Runs every EVICT_INTERVAL_MS;
+         * PreferenceStoreTest calls it directly.
+         */
+        void evict() {
+            long now = System.currentTimeMillis();
+            List<PlayerData> evicted = new ArrayList<PlayerData>();
+            synchronized (lock) {
+                List<PlayerData> lru = new ArrayList<PlayerData>(players.values());
+                Collections.sort(lru, new Comparator<PlayerData>() {
+                    @Override
+                    public int compare(PlayerData a, PlayerData b) {
+                        return Long.compare(a.lastAccess, b.lastAccess);
+                    }
+                });
+                int count = lru.size();
+                long bytes = 0;
+                for (PlayerData d : lru) bytes += d.bytes;
+
+                for (PlayerData d : lru) {
+                    boolean idle = idleTtlMs > 0 && now - d.lastAccess > idleTtlMs;
+                    boolean over = (maxResidentPlayers > 0 && count > maxResidentPlayers)
+                            || (maxResidentBytes > 0 && bytes > maxResidentBytes);
+                    // Oldest first: once this one is neither idle nor needed for the budget, neither is the rest
+                    if (!idle && !over) break;
+                    if (!players.remove(d.id, d)) continue;
+                    unloading.put(d.id, d);
+                    count--;
+                    bytes -= d.bytes;
+                    (idle ? idleEvictions : budgetEvictions).incrementAndGet();
+                    evicted.add(d);
+                }
+                if (evicted.isEmpty()) return;
+                if (pendingWrite != null) {
+                    pendingWrite.cancel(false);
+                    pendingWrite = null;
+                }
+            }
+            writeDirty();
+            synchronized (lock) {
+                for (PlayerData d : evicted) {
+                    // Still dirty means the write failed; keep it parked so a reload doesn't read a stale shard
+                    if (!dirty.contains(d) && unloading.remove(d.id, d) && players.get(d.id) != d) d.release();
+                }
+            }
+        }
+
+        /**
+         * Lets item signatures that only evicted players, finished compaction chunks or old snapshots used leave the
+         * intern pool. Resident and unloading players are the only holders of bare signature ids; marking them under
+         * the lock means no history or recency can take a new id until the sweep is done. A signature has to go a
+         * whole interval unused before it is unpinned, which covers loads still decoding on login threads.
+         */
+        private void sweepSignatures() {
+            BitSet marked = new BitSet();
+            synchronized (lock) {
+                for (PlayerData d : players.values()) d.markSignatures(marked);
+                for (PlayerData d : unloading.values()) d.markSignatures(marked);
+                ItemSignature.sweep(marked);
+            }
+        }
+
+        // --- Mutations (main thread) ---
+
+        void savePreferences(UUID playerId, Map<ItemSignature, List<Integer>> prefs) {
+            Layout layout = Layout.acquire(prefs);
+            // Normally already resident from join; falls back to a synchronous read if the async load lost the race
+            PlayerData data = resident(playerId);
+            if (data.loadFailed) {
+                // Would replace stored data nobody could read; dropped (the failed load was logged)
+                layout.release();
+                return;
+            }
+            synchronized (lock) {
+                synchronized (data) {
+                    if (data.prefs == layout) {
+                        // Same layout as last time (identity, thanks to the pool): nothing to store
+                        layout.release();
+                    } else {
+                        data.setPrefs(layout);
+                    }
+                    data.version++;
+                }
+                mutated(data);
+            }
+            scheduleWrite();
+        }
+
+        // sigs: the snapshot's signature per slot 0..35 (null = empty)
+        void saveSlotHistory(UUID playerId, ItemSignature[] sigs, long timestamp) {
+            PlayerData data = resident(playerId);
+            if (data.loadFailed) return;
+            synchronized (lock) {
+                synchronized (data) {
+                    // Build/update slot history and signature recency for this snapshot
+                    for (int slot = 0; slot <= 35; slot++) {
+                        ItemSignature sig = sigs[slot];
+                        if (sig == null) continue;
+                        data.history.add(slot, sig, timestamp);
+                        data.recency.put(sig, slot, timestamp);
+                    }
+                    data.version++;
+                }
+                mutated(data);
+            }
+            scheduleWrite();
+        }
+
+        // --- Compaction (IO thread) ---
+
+        /**
+         * Totals of one compaction pass. Only touched by the IO thread.
+         */
+        static final class CompactionResult {
+            int players;
+            int rewritten;
+            int dropped;
+            int skipped;
+            long bytesBefore;
+            long bytesAfter;
+            int promoted;
+            int retired;
+            // Number of stored and loaded players holding each layout, by content
+            final Map<Layout, Integer> layoutUses = new HashMap<Layout, Integer>();
+
+            void countLayout(Layout layout) {
+                if (layout.isEmpty()) return;
+                Integer n = layoutUses.get(layout);
+                layoutUses.put(layout, n == null ? 1 : n + 1);
+            }
+
+            String describe() {
+                return "Compacted " + players + " stored players (" + rewritten + " rewritten, " + dropped
+                        + " dropped, " + skipped + " skipped while loaded): " + bytesBefore / 1024L + " KB -> "
+                        + bytesAfter / 1024L + " KB, " + (bytesBefore - bytesAfter) / 1024L + " KB reclaimed; "
+                        + promoted + " layouts newly shared, " + retired + " retired";
+            }
+        }
+
+        /**
+         * Compacts every stored player, COMPACTION_CHUNK players per IO task so queued writes interleave with the pass:
+         *  - players not written for dropUnseenMs (<= 0 keeps everyone) are deleted;
+         *  - history and recency entries saved before now - horizonMs are pruned (entries without a timestamp,
+         *    from migrated legacy data, are kept), which also drops signatures only those entries referenced;
+         *  - history is replayed through SlotHistory.add, collapsing duplicate entries in a slot;
+         *  - afterwards, layouts held by several players join the shared dictionary and dictionary entries nothing
+         *    refers to any more leave it (see LayoutDictionary).
+         * Loaded players are skipped; their data is in use and rewritten by the next save anyway. Running on the single
+         * IO thread also means no write of the same player can be in flight meanwhile. The rewrites of each chunk go
+         * to the backend as one batch.
+         *
+         * done runs on the IO thread once the pass finishes. Returns false if a pass is already running.
+         */
+        boolean compact(final long dropUnseenMs, final long horizonMs,
+                        final java.util.function.Consumer<CompactionResult> done) {
+            if (!compacting.compareAndSet(false, true)) return false;
+            final CompactionResult result = new CompactionResult();
+            final long now = System.currentTimeMillis();
+            synchronized (lock) {
+                writtenDuringPass = new HashSet<Layout>();
+            }
+            Runnable step = new Runnable() {
+                private List<UUID> stored;
+                private int next;
+
+                @Override
+                public void run() {
+                    try {
+                        if (stored == null) stored = new ArrayList<UUID>(backend.players());
+                        int end = Math.min(stored.size(), next + COMPACTION_CHUNK);
+                        compactChunk(stored.subList(next, end), now, dropUnseenMs, horizonMs, result);
+                        next = end;
+                        if (next < stored.size() && !io.isShutdown()) {
+                            io.execute(this);
+                            return;
+                        }
+                        updateDictionary(result);
+                    } catch (Throwable t) {
+                        Bukkit.getLogger().warning("[PGMUtil] Preference compaction failed: " + t);
+                    }
+                    synchronized (lock) {
+                        writtenDuringPass = null;
+                    }
+                    compacting.set(false);
+                    if (done != null) done.accept(result);
+                }
+            };
+            synchronized (lock) {
+                if (io.isShutdown()) {
+                    writtenDuringPass = null;
+                    compacting.set(false);
+                    return false;
+                }
+                io.execute(step);
+            }
+            return true;
+        }
+
+        private void compactChunk(List<UUID> ids, long now, long dropUnseenMs, long horizonMs, CompactionResult result)
+                throws IOException {
+            Map<UUID, byte[]> rewrites = new LinkedHashMap<UUID, byte[]>();
+            long replacedBytes = 0;
+            for (UUID id : ids) {
+                replacedBytes += compactPlayer(id, now, dropUnseenMs, horizonMs, rewrites, result);
+            }
+            if (rewrites.isEmpty()) return;
+            try {
+                backend.upsert(rewrites);
+                result.rewritten += rewrites.size();
+                for (byte[] bytes : rewrites.values()) result.bytesAfter += bytes.length;
+            } catch (IOException e) {
+                Bukkit.getLogger().warning("[PGMUtil] Could not write " + rewrites.size() + " compacted players: " + e);
+                result.bytesAfter += replacedBytes;
+            }
+        }
+
+        // Queues the compacted payload in rewrites if it should replace the stored one and returns the stored size;
+        // otherwise (kept as is, dropped or unreadable) returns 0
+        private long compactPlayer(UUID id, long now, long dropUnseenMs, long horizonMs, Map<UUID, byte[]> rewrites,
+                                   CompactionResult result) {
+            boolean loaded;
+            synchronized (lock) {
+                loaded = players.containsKey(id) || unloading.containsKey(id);
+            }
+            byte[] stored;
+            try {
+                stored = backend.load(id);
+            } catch (IOException e) {
+                // Left alone: the load path reports unreadable data
+                return 0;
+            }
+            if (stored == null) return 0;
+            if (loaded) {
+                // Still decode it: the stored payload may refer to a shared layout the player no longer holds in memory
+                result.skipped++;
+                PlayerData onDisk = new PlayerData(id);
+                try {
+                    deserialize(stored, onDisk);
+                    result.countLayout(onDisk.prefs);
+                } catch (Exception ignored) {
+                } finally {
+                    onDisk.release();
+                }
+                return 0;
+            }
+            long before = stored.length;
+            result.players++;
+            result.bytesBefore += before;
+
+            PlayerData old = new PlayerData(id);
+            PlayerData kept = new PlayerData(id);
+            try {
+                if (dropUnseenMs > 0 && now - backend.lastWritten(id) > dropUnseenMs) {
+                    backend.delete(id);
+                    result.dropped++;
+                    return 0;
+                }
+                deserialize(stored, old);
+                compactInto(old, kept, now, horizonMs);
+                result.countLayout(kept.prefs);
+                if (kept.prefs.isEmpty() && kept.history.isEmpty() && kept.recency.isEmpty()) {
+                    backend.delete(id);
+                    result.dropped++;
+                    return 0;
+                }
+                byte[] bytes = serialize(kept);
+                // Records are fixed-size, so only pruning can be gained there; rewrite them regardless
+                if (records != null || bytes.length < before) {
+                    rewrites.put(id, bytes);
+                    return before;
+                }
+            } catch (Exception e) {
+                // Left alone (unreadable ones are reported by the load path)
+            } finally {
+                old.release();
+                kept.release();
+            }
+            result.bytesAfter += before;
+            return 0;
+        }
+
+        private void compactInto(PlayerData old, PlayerData kept, long now, long horizonMs) {
+            long horizon = horizonMs > 0 ? now - horizonMs : Long.MIN_VALUE;
+            kept.setPrefs(old.prefs.retain());
+            for (int slot = 0; slot < SlotHistory.SLOTS; slot++) {
+                // Oldest first, since add prepends
+                for (int i = old.history.size(slot) - 1; i >= 0; i--) {
+                    long ts = old.history.timeAt(slot, i);
+                    if (ts <= 0 || ts >= horizon) {
+                        kept.history.add(slot, ItemSignature.byId(old.history.sigIdAt(slot, i)), ts);
+                    }
+                }
+            }
+            for (int entry : old.recency.sortedEntries()) {
+                ItemSignature sig = ItemSignature.byId(entry / SlotHistory.SLOTS);
+                int slot = entry % SlotHistory.SLOTS;
+                long ts = old.recency.get(sig, slot);
+                if (ts <= 0 || ts >= horizon) kept.recency.put(sig, slot, ts);
+            }
+        }
+
+        // End of a compaction pass (IO thread): adds loaded players' layouts to the counts, then updates the dictionary
+        private void updateDictionary(CompactionResult result) throws IOException {
+            // Records store layouts per slot, not by reference
+            if (records != null) return;
+            synchronized (lock) {
+                for (PlayerData d : players.values()) result.countLayout(d.prefs);
+                for (PlayerData d : unloading.values()) result.countLayout(d.prefs);
+                for (Layout layout : writtenDuringPass) result.countLayout(layout);
+            }
+            dictionary.update(result);
+        }
+
+        /**
+         * Layouts shared between players, kept in {dir}/layouts.bin. A layout joins once the compaction pass counts
+         * it in at least PROMOTE_MIN stored or loaded players; from then on every PrefsCodec payload holding it stores
+         * the id instead of the map (payloads convert as they are next written or compacted). An entry leaves once no
+         * stored payload, loaded player or write made during the pass refers to it. Ids are never reused, and the file
+         * is written before any payload can refer to a new id.
+         *
+         * Updated on the IO thread only; byId is read by every thread that loads players.
+         */
+        private static final class LayoutDictionary {
+            private static final int PROMOTE_MIN = 2;
+
+            private final File file;
+            final ConcurrentMap<Integer, Layout> byId = new ConcurrentHashMap<Integer, Layout>();
+            private int nextId;
+            // False if the file exists but couldn't be read: its ids are unknown, so none may be handed out
+            private boolean usable = true;
+
+            LayoutDictionary(File file) {
+                this.file = file;
+                if (!file.exists()) return;
+                try {
+                    Map<Integer, Map<ItemSignature, List<Integer>>> raw = new LinkedHashMap<Integer, Map<ItemSignature, List<Integer>>>();
+                    nextId = PrefsCodec.decodeDictionary(Files.readAllBytes(file.toPath()), raw);
+                    for (Map.Entry<Integer, Map<ItemSignature, List<Integer>>> e : raw.entrySet()) {
+                        byId.put(e.getKey(), Layout.pin(e.getValue(), e.getKey()));
+                    }
+                } catch (Exception e) {
+                    usable = false;
+                    Bukkit.getLogger().warning("[PGMUtil] Unreadable layout dictionary " + file
+                            + ", shared layouts are disabled until it is fixed or removed: " + e);
+                }
+            }
+
+            // Pins are global (the layout pool is), so a layout may carry the id of a store closed before this one
+            boolean holds(Layout layout) {
+                int id = layout.dictionaryId();
+                return id >= 0 && byId.get(id) == layout;
+            }
+
+            void close() {
+                for (Layout layout : byId.values()) layout.unpin();
+                byId.clear();
+            }
+
+            void update(CompactionResult result) throws IOException {
+                if (!usable) return;
+                Map<Integer, Layout> next = new TreeMap<Integer, Layout>(byId);
+                List<Integer> retired = new ArrayList<Integer>();
+                for (Map.Entry<Integer, Layout> e : byId.entrySet()) {
+                    if (!result.layoutUses.containsKey(e.getValue())) {
+                        retired.add(e.getKey());
+                        next.remove(e.getKey());
+                    }
+                }
+                int nextFree = nextId;
+                for (Map.Entry<Layout, Integer> e : result.layoutUses.entrySet()) {
+                    if (e.getValue() < PROMOTE_MIN || next.containsValue(e.getKey())) continue;
+                    next.put(nextFree++, e.getKey());
+                }
+                if (retired.isEmpty() && nextFree == nextId) return;
+
+                // File first: a payload may only refer to an id once it is on disk
+                ShardFileBackend.writeAtomically(file, PrefsCodec.encodeDictionary(next, nextFree));
+                for (Integer id : retired) {
+                    byId.remove(id).unpin();
+                }
+                for (int id = nextId; id < nextFree; id++) {
+                    byId.put(id, Layout.pin(next.get(id).asMap(), id));
+                }
+                result.retired += retired.size();
+                result.promoted += nextFree - nextId;
+                nextId = nextFree;
+            }
+        }
+
+        // Lock held. Queues the write and refreshes the size estimate. If the evictor dropped the player between
+        // resident() and the lock, they are put back: they were just used, and the change must stay visible.
+        private void mutated(PlayerData data) {
+            data.bytes = data.estimateBytes();
+            data.changedAt = System.currentTimeMillis();
+            dirty.add(data);
+            if (!players.containsKey(data.id)) players.putIfAbsent(data.id, data);
+        }
+
+        // --- Backend IO ---
+
+        private static PreferenceBackend openBackend(File dir, String name) {
+            if ("sqlite".equalsIgnoreCase(name)) {
+                try {
+                    return new SqlitePreferenceBackend(new File(dir, "preferences.db"));
+                } catch (IOException e) {
+                    Bukkit.getLogger().warning("[PGMUtil] Could not open the preference database, using shard files: " + e);
+                }
+            } else if (!"shards".equalsIgnoreCase(name)) {
+                Bukkit.getLogger().warning("[PGMUtil] Unknown inventory-sorter.store.backend '" + name + "', using shards");
+            }
+            return new ShardFileBackend(dir);
+        }
+
+        private byte[] loadStored(UUID playerId) throws IOException {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return backend.load(playerId);
+                } catch (IOException e) {
+                    // The main thread can't wait for the backend to recover
+                    if (attempt == LOAD_ATTEMPTS || Bukkit.isPrimaryThread()) throw e;
+                    try {
+                        Thread.sleep(LOAD_RETRY_MS * attempt);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        private static PreferenceRecords openRecords(File dir) {
+            try {
+                return new PreferenceRecords(dir);
+            } catch (IOException e) {
+                Bukkit.getLogger().warning("[PGMUtil] Could not open the memory-mapped preference records"
+                        + " (inventory_prefs/prefs.records), using shard files instead: " + e);
+            } catch (UnsupportedClassVersionError e) {
+                // PreferenceRecords is the only class using the FFM preview API, so only it fails to load
+                Bukkit.getLogger().warning("[PGMUtil] The mmap preference backend needs Java 21 started with"
+                        + " --enable-preview, using shard files instead: " + e);
+            }
+            return null;
+        }
+
+        /**
+         * Why importing the data waiting for migration (legacy file, YAML and binary shards) into records would lose
+         * some of it, or null if all of it fits. Reads everything once; only runs while shards are left.
+         */
+        private String recordLoss(PreferenceRecords target, File legacyFile) {
+            RecordLoss loss = new RecordLoss();
+            if (legacyFile != null && legacyFile.exists()) {
+                YamlConfiguration yml = YamlConfiguration.loadConfiguration(legacyFile);
+                for (String key : yml.getKeys(false)) {
+                    try {
+                        checkLoss(readPlayer(yml, key, UUID.fromString(key)), loss);
+                    } catch (IllegalArgumentException ignored) {
+                    }
+                }
+            }
+            File[] buckets = dir.listFiles();
+            for (File bucket : buckets == null ? new File[0] : buckets) {
+                File[] files = bucket.isDirectory() ? bucket.listFiles() : null;
+                if (files == null) continue;
+                for (File f : files) {
+                    String name = f.getName();
+                    if (!name.endsWith(".yml")) continue;
+                    try {
+                        UUID id = UUID.fromString(name.substring(0, name.length() - ".yml".length()));
+                        checkLoss(readPlayer(YamlConfiguration.loadConfiguration(f), id.toString(), id), loss);
+                    } catch (IllegalArgumentException ignored) {
+                    }
+                }
+            }
+            ShardFileBackend shards = new ShardFileBackend(dir);
+            for (UUID id : shards.players()) {
+                PlayerData data = new PlayerData(id);
+                try {
+                    byte[] shard = target.load(id) == null ? shards.load(id) : null;
+                    if (shard != null) PrefsCodec.decode(shard, data, dictionary.byId);
+                } catch (IOException ignored) {
+                    // Reported (and left in place) by the import
+                }
+                checkLoss(data, loss);
+            }
+            return loss.players == 0 ? null : loss.players + " players, e.g. " + loss.example;
+        }
+
+        // Counts data (if any) into loss when a record can't hold it, then releases it
+        private static void checkLoss(PlayerData data, RecordLoss loss) {
+            if (data == null) return;
+            String why = PreferenceRecords.lossFor(data.prefs, data.history, data.recency);
+            if (why != null) {
+                if (loss.players++ == 0) loss.example = data.id + ": " + why;
+            }
+            data.release();
+        }
+
+        // Players whose data a record can't hold, and the first of them with the reason
+        private static final class RecordLoss {
+            int players;
+            String example;
+        }
+
+        // Only data that was read but doesn't decode is quarantined (and the player starts empty). If the backend
+        // itself fails, the result is flagged loadFailed and the stored data is left alone.
+        private PlayerData readPlayerData(UUID playerId) {
+            PlayerData data = new PlayerData(playerId);
+            byte[] bytes;
+            try {
+                bytes = loadStored(playerId);
+            } catch (IOException e) {
+                Bukkit.getLogger().warning("[PGMUtil] Could not read the preferences of " + playerId + " ("
+                        + backend.name() + "), leaving them stored and retrying on next use: " + e);
+                data.loadFailed = true;
+                return data;
+            }
+            if (bytes != null) {
+                try {
+                    deserialize(bytes, data);
+                } catch (Exception e) {
+                    Bukkit.getLogger().warning("[PGMUtil] Unreadable preferences of " + playerId + " (" + backend.name() + "): " + e);
+                    try {
+                        backend.quarantine(playerId);
+                    } catch (IOException ignored) {
+                    }
+                    data.release();
+                    data = new PlayerData(playerId);
+                    bytes = null;
+                }
+                if (bytes != null && sync != null) {
+                    try {
+                        data.changedAt = backend.lastWritten(playerId);
+                    } catch (IOException ignored) {
+                        // Unknown: any network copy counts as newer
+                    }
+                }
+            }
+            if (sync != null) {
+                // Newer on the network: the player last changed something on another server
+                PreferenceSync.Snapshot remote = sync.fetch(playerId);
+                if (remote != null && remote.changedAt > data.changedAt) {
+                    PlayerData fromNetwork = new PlayerData(playerId);
+                    try {
+                        PrefsCodec.decode(remote.payload, fromNetwork, Collections.<Integer, Layout>emptyMap());
+                        fromNetwork.changedAt = remote.changedAt;
+                        data.release();
+                        return fromNetwork;
+                    } catch (IOException e) {
+                        Bukkit.getLogger().warning("[PGMUtil] Unreadable network preferences of " + playerId + ": " + e);
+                        fromNetwork.release();
+                    }
+                }
+            }
+            return data;
+        }
+
+        /**
+         * One-shot split of the old monolithic inventory_prefs.yml into the backend.
+         * The old file is kept as inventory_prefs.yml.migrated.
+         */
+        private void migrateLegacy(File legacyFile) {
+            if (legacyFile == null || !legacyFile.exists()) return;
+            YamlConfiguration yml = YamlConfiguration.loadConfiguration(legacyFile);
+            int migrated = 0;
+            for (String key : yml.getKeys(false)) {
+                UUID id;
+                try {
+                    id = UUID.fromString(key);
+                } catch (IllegalArgumentException ignored) {
+                    continue;
+                }
+                PlayerData data = readPlayer(yml, key, id);
+                if (data == null) continue;
+                try {
+                    store(id, serialize(data));
+                    migrated++;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return; // leave the legacy file in place so the next start retries
+                } finally {
+                    data.release();
+                }
+            }
+            File done = new File(legacyFile.getParentFile(), legacyFile.getName() + ".migrated");
+            if (!legacyFile.renameTo(done)) {
+                Bukkit.getLogger().warning("[PGMUtil] Could not rename " + legacyFile + " after migrating " + migrated + " players");
+            }
+        }
+
+        /**
+         * One-shot conversion of per-player YAML shards ({uuid}.yml) into the backend.
+         * A YAML shard is deleted once its replacement is written.
+         */
+        private void migrateYamlShards() {
+            File[] buckets = dir.listFiles();
+            if (buckets == null) return;
+            for (File bucket : buckets) {
+                File[] shards = bucket.isDirectory() ? bucket.listFiles() : null;
+                if (shards == null) continue;
+                for (File f : shards) {
+                    String name = f.getName();
+                    if (!name.endsWith(".yml")) continue;
+                    UUID id;
+                    try {
+                        id = UUID.fromString(name.substring(0, name.length() - ".yml".length()));
+                    } catch (IllegalArgumentException ignored) {
+                        continue;
+                    }
+                    PlayerData data = readPlayer(YamlConfiguration.loadConfiguration(f), id.toString(), id);
+                    try {
+                        if (data != null) store(id, serialize(data));
+                        f.delete();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        if (data != null) data.release();
+                    }
+                }
+            }
+        }
+
+        // Parses one {uuid} section. Handles both namespaced and legacy (pre-namespacing) layouts.
+        private PlayerData readPlayer(YamlConfiguration yml, String key, UUID id) {
+            if (!yml.isConfigurationSection(key)) return null;
+            PlayerData data = new PlayerData(id);
+
+            // Old format (pre-namespacing): {uuid}.{signatureString} -> [slots...]
+            // New format: {uuid}.sigprefs.{signatureString} -> [slots...]
+            Map<ItemSignature, List<Integer>> prefs = new LinkedHashMap<ItemSignature, List<Integer>>();
+
+            // New namespaced sig prefs
+            if (yml.isConfigurationSection(key + "." + KEY_SIG_PREFS)) {
+                for (String sigKey : yml.getConfigurationSection(key + "." + KEY_SIG_PREFS).getKeys(false)) {
+                    String path = key + "." + KEY_SIG_PREFS + "." + sigKey;
+                    List<Integer> slots = yml.getIntegerList(path);
+                    ItemSignature sig = ItemSignature.fromString(sigKey);
+                    if (sig != null) prefs.put(sig, new ArrayList<Integer>(slots));
+                }
+            }
+
+            // Backward compatibility: legacy direct children signature keys
+            for (String child : yml.getConfigurationSection(key).getKeys(false)) {
+                // Skip our new sections
+                if (KEY_SIG_PREFS.equals(child) || KEY_SLOT_HISTORY.equals(child) || KEY_SIG_RECENCY.equals(child)) {
+                    continue;
+                }
+                // If value is a list of integers, interpret as legacy signature mapping
+                String path = key + "." + child;
+                if (yml.isList(path)) {
+                    List<?> raw = yml.getList(path);
+                    boolean allInts = true;
+                    List<Integer> ints = new ArrayList<Integer>();
+                    if (raw != null) {
+                        for (Object o : raw) {
+                            if (o instanceof Number) ints.add(((Number) o).intValue());
+                            else {
+                                allInts = false;
+                                break;
+                            }
+                        }
+                    }
+                    if (allInts && !ints.isEmpty()) {
                         try {
-                            slot = Integer.parseInt(slotStr);
-                        } catch (NumberFormatException ignored) {}
-                        if (slot < 0 || slot > 35) continue;
-
-                        if (lines != null) {
-                            for (String line : lines) {
-                                int bar = line.indexOf('|');
-                                if (bar <= 0) continue;
-                                String tsStr = line.substring(0, bar);
-                                String sigStr = line.substring(bar + 1);
-                                try {
-                                    long ts = Long.parseLong(tsStr);
-                                    ItemSignature sig = ItemSignature.fromString(sigStr);
-                                    history.add(slot, sig, ts, maxHistoryPerSlot);
-                                } catch (Throwable ignored) {}
+                            ItemSignature sig = ItemSignature.fromString(child);
+                            if (sig != null && !prefs.containsKey(sig)) {
+                                prefs.put(sig, ints);
                             }
+                        } catch (Throwable ignored) {
+                            // skip
                         }
                     }
                 }
-                if (!history.isEmpty()) slotHistories.put(id, history);
-
-                // Load signature recency: {uuid}.sigrecency.{signatureString} -> ["slot:ts", ...]
-                SignatureSlotRecency rec = new SignatureSlotRecency();
-                if (yml.isConfigurationSection(key + "." + KEY_SIG_RECENCY)) {
-                    for (String sigKey : yml.getConfigurationSection(key + "." + KEY_SIG_RECENCY).getKeys(false)) {
-                        String path = key + "." + KEY_SIG_RECENCY + "." + sigKey;
-                        List<String> entries = yml.getStringList(path);
-                        if (entries != null) {
-                            for (String entry : entries) {
-                                int colon = entry.indexOf(':');
-                                if (colon <= 0) continue;
-                                try {
-                                    int slot = Integer.parseInt(entry.substring(0, colon));
-                                    long ts = Long.parseLong(entry.substring(colon + 1));
-                                    ItemSignature sig = ItemSignature.fromString(sigKey);
-                                    rec.put(sig, slot, ts);
-                                } catch (Throwable ignored) {}
-                            }
+            }
+
+            // Load slot history: {uuid}.slothistory.{slot} -> ["ts|signatureString", ...]
+            if (yml.isConfigurationSection(key + "." + KEY_SLOT_HISTORY)) {
+                for (String slotStr : yml.getConfigurationSection(key + "." + KEY_SLOT_HISTORY).getKeys(false)) {
+                    String path = key + "." + KEY_SLOT_HISTORY + "." + slotStr;
+                    List<String> lines = yml.getStringList(path);
+                    int slot = -1;
+                    try {
+                        slot = Integer.parseInt(slotStr);
+                    } catch (NumberFormatException ignored) {}
+                    if (slot < 0 || slot > 35) continue;
+
+                    if (lines != null) {
+                        // Lines are most recent first and SlotHistory.add prepends, so replay oldest first
+                        for (int i = lines.size() - 1; i >= 0; i--) {
+                            String line = lines.get(i);
+                            int bar = line.indexOf('|');
+                            if (bar <= 0) continue;
+                            String tsStr = line.substring(0, bar);
+                            String sigStr = line.substring(bar + 1);
+                            try {
+                                long ts = Long.parseLong(tsStr);
+                                ItemSignature sig = ItemSignature.fromString(sigStr);
+                                if (sig != null) data.history.add(slot, sig, ts);
+                            } catch (Throwable ignored) {}
                         }
                     }
                 }
-                if (!rec.isEmpty()) sigRecencies.put(id, rec);
             }
-        }
 
-        private void save() {
-            YamlConfiguration yml = new YamlConfiguration();
-            // Signature preferences
-            for (Map.Entry<UUID, Map<ItemSignature, List<Integer>>> entry : cache.entrySet()) {
-                String id = entry.getKey().toString();
-                Map<ItemSignature, List<Integer>> prefs = entry.getValue();
-                for (Map.Entry<ItemSignature, List<Integer>> s : prefs.entrySet()) {
-                    String path = id + "." + KEY_SIG_PREFS + "." + s.getKey().toString();
-                    yml.set(path, new ArrayList<Integer>(s.getValue()));
+            // Load signature recency: {uuid}.sigrecency.{signatureString} -> ["slot:ts", ...]
+            if (yml.isConfigurationSection(key + "." + KEY_SIG_RECENCY)) {
+                for (String sigKey : yml.getConfigurationSection(key + "." + KEY_SIG_RECENCY).getKeys(false)) {
+                    String path = key + "." + KEY_SIG_RECENCY + "." + sigKey;
+                    List<String> entries = yml.getStringList(path);
+                    if (entries != null) {
+                        for (String entry : entries) {
+                            int colon = entry.indexOf(':');
+                            if (colon <= 0) continue;
+                            try {
+                                int slot = Integer.parseInt(entry.substring(0, colon));
+                                long ts = Long.parseLong(entry.substring(colon + 1));
+                                ItemSignature sig = ItemSignature.fromString(sigKey);
+                                if (sig != null) data.recency.put(sig, slot, ts);
+                            } catch (Throwable ignored) {}
+                        }
+                    }
                 }
             }
+            data.setPrefs(Layout.acquire(prefs));
+            return data;
+        }
+
+        // Must be called with lock held (or on data no other thread can see yet)
+        private byte[] serialize(PlayerData data) throws IOException {
+            if (records != null) return records.encode(data.prefs, data.history, data.recency);
+            return PrefsCodec.encode(data.prefs, data.history, data.recency, dictionary.holds(data.prefs));
+        }
+
+        private void deserialize(byte[] bytes, PlayerData into) throws IOException {
+            if (records != null) records.decode(bytes, into);
+            else PrefsCodec.decode(bytes, into, dictionary.byId);
+        }
+
+        private void store(UUID playerId, byte[] bytes) throws IOException {
+            backend.upsert(Collections.singletonMap(playerId, bytes));
+        }
 
-            // Slot history
-            for (Map.Entry<UUID, SlotHistory> e : slotHistories.entrySet()) {
-                String id = e.getKey().toString();
-                SlotHistory hist = e.getValue();
-                for (Map.Entry<Integer, List<HistoryEntry>> byS : hist.all().entrySet()) {
-                    List<String> lines = new ArrayList<String>();
-                    for (HistoryEntry he : byS.getValue()) {
-                        lines.add(he.savedAt + "|" + he.signature.toString());
+        /**
+         * One-shot import of binary shards after switching to another backend, IMPORT_BATCH players per batch.
+         * Shards are deleted once their batch is written; players the backend already has are left alone.
+         */
+        private void importShards() {
+            ShardFileBackend shards = new ShardFileBackend(dir);
+            List<UUID> ids = new ArrayList<UUID>(shards.players());
+            int migrated = 0;
+            for (int from = 0; from < ids.size(); from += IMPORT_BATCH) {
+                Map<UUID, byte[]> batch = new LinkedHashMap<UUID, byte[]>();
+                List<UUID> done = new ArrayList<UUID>();
+                for (UUID id : ids.subList(from, Math.min(ids.size(), from + IMPORT_BATCH))) {
+                    PlayerData data = new PlayerData(id);
+                    try {
+                        if (backend.load(id) == null) {
+                            byte[] shard = shards.load(id);
+                            if (shard != null) {
+                                PrefsCodec.decode(shard, data, dictionary.byId);
+                                batch.put(id, serialize(data));
+                            }
+                        }
+                        done.add(id);
+                    } catch (IOException e) {
+                        Bukkit.getLogger().warning("[PGMUtil] Could not import the preference shard of " + id + ": " + e);
+                    } finally {
+                        data.release();
+                    }
+                }
+                try {
+                    backend.upsert(batch);
+                } catch (IOException e) {
+                    Bukkit.getLogger().warning("[PGMUtil] Could not import preference shards into " + backend.name() + ": " + e);
+                    return; // shards stay in place so the next start retries
+                }
+                migrated += batch.size();
+                for (UUID id : done) {
+                    try {
+                        shards.delete(id);
+                    } catch (IOException ignored) {
                     }
-                    yml.set(id + "." + KEY_SLOT_HISTORY + "." + byS.getKey(), lines);
                 }
             }
+            if (migrated > 0) {
+                Bukkit.getLogger().info("[PGMUtil] Imported " + migrated + " preference shards into " + backend.name());
+            }
+        }
+
+        // --- Sync ---
 
-            // Signature slot recency
-            for (Map.Entry<UUID, SignatureSlotRecency> e : sigRecencies.entrySet()) {
-                String id = e.getKey().toString();
-                Map<String, Map<Integer, Long>> raw = e.getValue().raw();
-                for (Map.Entry<String, Map<Integer, Long>> sig : raw.entrySet()) {
-                    List<String> lines = new ArrayList<String>();
-                    for (Map.Entry<Integer, Long> st : sig.getValue().entrySet()) {
-                        lines.add(st.getKey() + ":" + st.getValue());
+        // Subscriber thread: another server changed the player's data
+        private void remoteChanged(final UUID playerId, final long changedAt) {
+            synchronized (lock) {
+                if (io.isShutdown()) return;
+                io.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh(playerId, changedAt);
                     }
-                    yml.set(id + "." + KEY_SIG_RECENCY + "." + sig.getKey(), lines);
+                });
+            }
+        }
+
+        // IO thread. Replaces resident data older than a remote change, unless it has changes of its own (then this
+        // server's next write wins). Players who aren't resident need nothing: their next load fetches the new copy.
+        private void refresh(UUID playerId, long changedAt) {
+            PlayerData current = players.get(playerId);
+            int version;
+            synchronized (lock) {
+                if (current == null || dirty.contains(current) || current.changedAt >= changedAt) return;
+                version = current.version;
+            }
+            PlayerData fresh = readPlayerData(playerId);
+            synchronized (lock) {
+                if (fresh.changedAt >= changedAt && current.version == version && !dirty.contains(current)
+                        && players.replace(playerId, current, fresh)) {
+                    fresh.bytes = fresh.estimateBytes();
+                    fresh.lastAccess = current.lastAccess;
+                    current.release();
+                    remoteRefreshes.incrementAndGet();
+                    return;
+                }
+            }
+            fresh.release();
+        }
+
+        /**
+         * See PreferenceSync#route. No-op without sync.
+         */
+        void route(UUID playerId, String server) {
+            if (sync != null) sync.route(playerId, server);
+        }
+
+        // Null without sync
+        String describeSync() {
+            return sync == null ? null : sync.describe() + ", " + remoteRefreshes.get() + " resident refreshes";
+        }
+
+        // --- Write-behind ---
+
+        private void scheduleWrite() {
+            synchronized (lock) {
+                if (pendingWrite == null && !io.isShutdown()) {
+                    pendingWrite = io.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            writeDirty();
+                        }
+                    }, WRITE_DEBOUNCE_MS, TimeUnit.MILLISECONDS);
                 }
             }
+        }
 
+        // Runs on the IO thread (or the caller of flush() once the IO thread is gone). Everything dirty goes to the
+        // backend as one batch.
+        private void writeDirty() {
+            List<PlayerData> written;
+            Map<UUID, byte[]> batch = new LinkedHashMap<UUID, byte[]>();
+            Map<UUID, PreferenceSync.Snapshot> changes = new LinkedHashMap<UUID, PreferenceSync.Snapshot>();
+            synchronized (lock) {
+                pendingWrite = null;
+                if (dirty.isEmpty()) return;
+                written = new ArrayList<PlayerData>(dirty);
+                dirty.clear();
+                for (PlayerData d : written) {
+                    try {
+                        batch.put(d.id, serialize(d));
+                        if (sync != null) {
+                            changes.put(d.id, new PreferenceSync.Snapshot(d.changedAt,
+                                    PrefsCodec.encode(d.prefs, d.history, d.recency, false)));
+                        }
+                        if (writtenDuringPass != null) writtenDuringPass.add(d.prefs);
+                    } catch (IOException e) {
+                        // In-memory streams don't throw
+                        e.printStackTrace();
+                    }
+                }
+            }
             try {
-                yml.save(file);
+                backend.upsert(batch);
             } catch (IOException e) {
                 e.printStackTrace();
+                // Keep the batch queued so the next mutation or flush retries
+                synchronized (lock) {
+                    dirty.addAll(written);
+                }
+                return;
+            }
+            if (sync != null) sync.publish(changes);
+        }
+
+        /**
+         * Requests an immediate write without waiting for it (e.g. at match finish).
+         */
+        void flushAsync() {
+            synchronized (lock) {
+                if (io.isShutdown()) return;
+                if (pendingWrite != null) {
+                    pendingWrite.cancel(false);
+                    pendingWrite = null;
+                }
+                io.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeDirty();
+                    }
+                });
             }
         }
 
+        /**
+         * Barrier: returns once every mutation made before the call is on disk.
+         * The IO thread is single-threaded, so queuing a write behind any in-flight one is enough.
+         */
         void flush() {
-            // For now save() is synchronous and immediate, so nothing extra.
-            // Kept for API completeness if we later debounce writes.
-            save();
+            Future<?> write = null;
+            synchronized (lock) {
+                if (pendingWrite != null) {
+                    pendingWrite.cancel(false);
+                    pendingWrite = null;
+                }
+                if (!io.isShutdown()) {
+                    write = io.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            writeDirty();
+                        }
+                    });
+                }
+            }
+            if (write == null) {
+                writeDirty();
+                return;
+            }
+            try {
+                write.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
         }
 
-        private static Map<ItemSignature, List<Integer>> deepCopy(Map<ItemSignature, List<Integer>> src) {
-            Map<ItemSignature, List<Integer>> dst = new LinkedHashMap<ItemSignature, List<Integer>>();
-            for (Map.Entry<ItemSignature, List<Integer>> e : src.entrySet()) {
-                dst.put(e.getKey(), new ArrayList<Integer>(e.getValue()));
+        /**
+         * Flushes outstanding writes and stops the IO thread. Called on plugin disable.
+         */
+        void close() {
+            flush();
+            io.shutdown();
+            try {
+                io.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                backend.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            return dst;
+            dictionary.close();
+            if (sync != null) sync.close();
         }
     }
-}
\ No newline at end of file
+}
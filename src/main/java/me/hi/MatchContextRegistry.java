@@ -0,0 +1,159 @@
+package me.hi;
+
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import tc.oc.pgm.api.match.Match;
+import tc.oc.pgm.api.match.MatchManager;
+import tc.oc.pgm.api.match.event.MatchFinishEvent;
+import tc.oc.pgm.api.match.event.MatchLoadEvent;
+import tc.oc.pgm.api.match.event.MatchUnloadEvent;
+import tc.oc.pgm.api.player.MatchPlayer;
+import tc.oc.pgm.blitz.BlitzMatchModule;
+import tc.oc.pgm.destroyable.DestroyableMatchModule;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * MatchContextRegistry - Classifies each world's PGM match once and shares the result between listeners.
+ *
+ * Hot event handlers used to call MatchManager#getMatch and Match#getModule on every event. The registry does that
+ * lookup once per world (on MatchLoadEvent, or lazily on first use after a plugin reload) and afterwards a check is a
+ * single identity-map read. Worlds without a match get a shared empty context, so lobby events stay cheap too.
+ *
+ * Contexts are dropped on MatchUnloadEvent and WorldUnloadEvent; the per-player MatchPlayer cache is cleared on
+ * MatchFinishEvent and on quit. Main thread only.
+ */
+public class MatchContextRegistry implements Listener {
+
+    private static final MatchContext NONE = new MatchContext(null, null, false);
+
+    private final MatchManager matchManager;
+    private final Map<World, MatchContext> contexts = new IdentityHashMap<World, MatchContext>();
+
+    public MatchContextRegistry(MatchManager matchManager) {
+        this.matchManager = matchManager;
+    }
+
+    /**
+     * Returns the context of the match running in the given world (never null; an empty context if there is none).
+     */
+    public MatchContext get(World world) {
+        if (world == null) return NONE;
+        MatchContext context = contexts.get(world);
+        if (context == null) {
+            Match match;
+            try {
+                match = matchManager.getMatch(world);
+            } catch (Throwable t) {
+                match = null;
+            }
+            context = classify(match);
+            contexts.put(world, context);
+        }
+        return context;
+    }
+
+    // LOWEST so every other MatchLoadEvent listener already sees the new context
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onMatchLoad(MatchLoadEvent event) {
+        Match match = event.getMatch();
+        contexts.put(match.getWorld(), classify(match));
+    }
+
+    // MONITOR so finish listeners can still use the cached players; the match classification itself stays valid
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onMatchFinish(MatchFinishEvent event) {
+        MatchContext context = contexts.get(event.getMatch().getWorld());
+        if (context != null) context.players.clear();
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onMatchUnload(MatchUnloadEvent event) {
+        contexts.remove(event.getMatch().getWorld());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        contexts.remove(event.getWorld());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        UUID id = event.getPlayer().getUniqueId();
+        for (MatchContext context : contexts.values()) {
+            context.players.remove(id);
+        }
+    }
+
+    private static MatchContext classify(Match match) {
+        if (match == null) return NONE;
+        DestroyableMatchModule dtm = null;
+        boolean blitz = false;
+        try {
+            dtm = match.getModule(DestroyableMatchModule.class);
+            blitz = match.getModule(BlitzMatchModule.class) != null;
+        } catch (Throwable t) {
+            // Module lookups failing means the match is half torn down; treat it as plain
+        }
+        return new MatchContext(match, dtm, blitz);
+    }
+
+    /**
+     * Cached classification of one world's match. Immutable apart from the MatchPlayer cache.
+     */
+    public static final class MatchContext {
+        private final Match match;
+        private final DestroyableMatchModule destroyables;
+        private final boolean blitz;
+        private final Map<UUID, MatchPlayer> players = new HashMap<UUID, MatchPlayer>();
+
+        private MatchContext(Match match, DestroyableMatchModule destroyables, boolean blitz) {
+            this.match = match;
+            this.destroyables = destroyables;
+            this.blitz = blitz;
+        }
+
+        public Match getMatch() {
+            return match;
+        }
+
+        public boolean hasMatch() {
+            return match != null;
+        }
+
+        public boolean isDTM() {
+            return destroyables != null;
+        }
+
+        public boolean isBlitz() {
+            return blitz;
+        }
+
+        public DestroyableMatchModule getDestroyables() {
+            return destroyables;
+        }
+
+        /**
+         * Returns the player's MatchPlayer in this match, or null if they aren't part of it.
+         */
+        public MatchPlayer getPlayer(Player player) {
+            if (match == null) return null;
+            UUID id = player.getUniqueId();
+            MatchPlayer matchPlayer = players.get(id);
+            if (matchPlayer == null) {
+                matchPlayer = match.getPlayer(player);
+                // Don't cache misses: the player may be added to the match later
+                if (matchPlayer != null) players.put(id, matchPlayer);
+            }
+            return matchPlayer;
+        }
+    }
+}
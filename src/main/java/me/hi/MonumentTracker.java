@@ -9,7 +9,6 @@ import org.bukkit.event.player.PlayerRespawnEvent;
 import org.bukkit.util.Vector;
 import tc.oc.pgm.destroyable.DestroyableDestroyedEvent;
 import tc.oc.pgm.api.match.Match;
-import tc.oc.pgm.api.match.MatchManager;
 import tc.oc.pgm.api.player.MatchPlayer;
 import tc.oc.pgm.destroyable.Destroyable;
 import tc.oc.pgm.destroyable.DestroyableMatchModule;
@@ -23,21 +22,21 @@ import java.util.stream.Collectors;
 /**
  * MonumentTracker - Tracks enemy monuments for a player and updates their compass to point to the nearest one.
  *
- * Make sure to provide a MatchManager instance to the constructor when registering this listener.
+ * Make sure to provide the shared MatchContextRegistry to the constructor when registering this listener.
  */
 public class MonumentTracker implements Listener {
 
-    private final MatchManager matchManager;
+    private final MatchContextRegistry contexts;
 
-    public MonumentTracker(MatchManager matchManager) {
-        this.matchManager = matchManager;
+    public MonumentTracker(MatchContextRegistry contexts) {
+        this.contexts = contexts;
     }
 
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
-        Match match = matchManager.getMatch(event.getPlayer().getWorld());
-        if (match == null) return;
-        MatchPlayer matchPlayer = match.getPlayer(event.getPlayer());
+        MatchContextRegistry.MatchContext context = contexts.get(event.getPlayer().getWorld());
+        if (!context.isDTM()) return;
+        MatchPlayer matchPlayer = context.getPlayer(event.getPlayer());
         if (matchPlayer != null) {
             updateCompass(matchPlayer);
         }
@@ -45,9 +44,9 @@ public class MonumentTracker implements Listener {
 
     @EventHandler
     public void onPlayerRespawn(PlayerRespawnEvent event) {
-        Match match = matchManager.getMatch(event.getPlayer().getWorld());
-        if (match == null) return;
-        MatchPlayer matchPlayer = match.getPlayer(event.getPlayer());
+        MatchContextRegistry.MatchContext context = contexts.get(event.getPlayer().getWorld());
+        if (!context.isDTM()) return;
+        MatchPlayer matchPlayer = context.getPlayer(event.getPlayer());
         if (matchPlayer != null) {
             updateCompass(matchPlayer);
         }
@@ -76,7 +75,7 @@ public class MonumentTracker implements Listener {
         if (match == null) return;
 
         // Only proceed if this match is DTM
-        DestroyableMatchModule dtm = match.getModule(DestroyableMatchModule.class);
+        DestroyableMatchModule dtm = contexts.get(match.getWorld()).getDestroyables();
         if (dtm == null) return;
 
         Team playerTeam = (Team) player.getParty();
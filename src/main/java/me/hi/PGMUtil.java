@@ -6,21 +6,35 @@ import tc.oc.pgm.api.PGM; // Make sure PGM is a dependency in your build
 
 public final class PGMUtil extends JavaPlugin {
 
+    private InventorySorter inventorySorter;
+
     @Override
     public void onEnable() {
         // Plugin startup logic
+        saveDefaultConfig();
 
         // Get the PGM MatchManager instance
         var matchManager = PGM.get().getMatchManager();
 
-        // Pass matchManager to MonumentTracker's constructor
-        Bukkit.getPluginManager().registerEvents(new MonumentTracker(matchManager), this);
-        Bukkit.getPluginManager().registerEvents(new BlitzUHC(this), this);
-        Bukkit.getPluginManager().registerEvents(new InventorySorter(this), this);
+        // Shared per-world match classification, registered first so its MatchLoadEvent handler runs before the others
+        MatchContextRegistry contexts = new MatchContextRegistry(matchManager);
+        Bukkit.getPluginManager().registerEvents(contexts, this);
+
+        Bukkit.getPluginManager().registerEvents(new MonumentTracker(contexts), this);
+        BlitzUHC blitzUHC = new BlitzUHC(this, contexts);
+        Bukkit.getPluginManager().registerEvents(blitzUHC, this);
+        inventorySorter = new InventorySorter(this, contexts);
+        Bukkit.getPluginManager().registerEvents(inventorySorter, this);
+
+        getCommand("pgmutil").setExecutor(new PGMUtilCommand(inventorySorter, blitzUHC));
     }
 
     @Override
     public void onDisable() {
         // Plugin shutdown logic
+        if (inventorySorter != null) {
+            // Blocks until pending layout writes are on disk
+            inventorySorter.shutdown();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,47 @@
+package me.hi;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+
+/**
+ * PGMUtilCommand - Admin command for the plugin's runtime state.
+ *
+ * Usage: /pgmutil stats | reload | compact
+ */
+public class PGMUtilCommand implements CommandExecutor {
+
+    private final InventorySorter inventorySorter;
+    private final BlitzUHC blitzUHC;
+
+    public PGMUtilCommand(InventorySorter inventorySorter, BlitzUHC blitzUHC) {
+        this.inventorySorter = inventorySorter;
+        this.blitzUHC = blitzUHC;
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length == 0) return false;
+
+        if (args[0].equalsIgnoreCase("stats")) {
+            for (String line : inventorySorter.stats()) {
+                sender.sendMessage("§7" + line);
+            }
+            for (String line : blitzUHC.stats()) {
+                sender.sendMessage("§7" + line);
+            }
+            return true;
+        }
+        if (args[0].equalsIgnoreCase("reload")) {
+            String error = inventorySorter.reloadRules();
+            sender.sendMessage(error == null ? "§aItem rules reloaded." : "§c" + error);
+            return true;
+        }
+        if (args[0].equalsIgnoreCase("compact")) {
+            if (inventorySorter.compact(sender)) sender.sendMessage("§7Compacting preference data...");
+            else sender.sendMessage("§cA compaction pass is already running.");
+            return true;
+        }
+        return false;
+    }
+}
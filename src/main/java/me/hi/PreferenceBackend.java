@@ -0,0 +1,56 @@
+package me.hi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * PreferenceBackend - Where the inventory sorter's preference store keeps its per-player data.
+ *
+ * A backend stores one opaque payload per player; encoding, caching and write-behind stay in the store. The store
+ * calls upsert, delete and players from its single IO thread, and load from the IO thread as well as from login
+ * threads, so implementations must tolerate concurrent loads. Every write the store has queued since the last one
+ * arrives as a single upsert batch (at match finish that is every player snapshotted at once), which a backend
+ * should persist as one unit: one transaction, one sync.
+ *
+ * Selected with inventory-sorter.store.backend: shards (ShardFileBackend), sqlite (SqlitePreferenceBackend) or mmap.
+ */
+public interface PreferenceBackend extends Closeable {
+
+    /**
+     * Short name for logs and /pgmutil stats.
+     */
+    String name();
+
+    /**
+     * Returns the player's payload, or null if none is stored.
+     */
+    byte[] load(UUID player) throws IOException;
+
+    /**
+     * Inserts or replaces the payload of every player in the batch. If this throws, the store keeps the whole batch
+     * queued and retries it with the next write.
+     */
+    void upsert(Map<UUID, byte[]> batch) throws IOException;
+
+    void delete(UUID player) throws IOException;
+
+    /**
+     * Every player with a stored payload.
+     */
+    Collection<UUID> players() throws IOException;
+
+    /**
+     * When the player's payload was last written (epoch millis), or 0 if unknown.
+     */
+    long lastWritten(UUID player) throws IOException;
+
+    /**
+     * Called with a payload the store could not decode, before the player's next save replaces it. Backends that can
+     * keep a copy aside for inspection do so; by default the payload is simply overwritten later.
+     */
+    default void quarantine(UUID player) throws IOException {
+    }
+}
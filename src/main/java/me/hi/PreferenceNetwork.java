@@ -0,0 +1,56 @@
+package me.hi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * PreferenceNetwork - Key-value store plus pub/sub shared by every server of the network, used to sync preferences.
+ *
+ * The inventory sorter only ever calls it from its own sync thread, never from the main thread, and treats any
+ * IOException as "network unreachable": it keeps working from local storage and retries later. Implementations should
+ * therefore fail fast (bounded connect/read timeouts) rather than hang.
+ *
+ * Selected with inventory-sorter.sync.backend: redis (RedisPreferenceNetwork). Tests use InProcessPreferenceNetwork, an
+ * in-memory stand-in.
+ */
+public interface PreferenceNetwork extends Closeable {
+
+    /**
+     * Short name for logs and /pgmutil stats.
+     */
+    String name();
+
+    /**
+     * Round trip that succeeds only if the network is reachable.
+     */
+    void ping() throws IOException;
+
+    /**
+     * Returns the value stored under key, or null if there is none.
+     */
+    byte[] get(String key) throws IOException;
+
+    /**
+     * Stores value under key, expiring after ttlSeconds (<= 0 keeps it forever).
+     */
+    void set(String key, byte[] value, long ttlSeconds) throws IOException;
+
+    void publish(String channel, String message) throws IOException;
+
+    /**
+     * Delivers every message published on the given channels to listener, on a thread of the network's own, until
+     * close. The subscription survives connection losses; messages published while it was down are lost, which
+     * listener learns through onResubscribed. Called at most once.
+     */
+    void subscribe(Collection<String> channels, Listener listener);
+
+    interface Listener {
+        void onMessage(String channel, String message);
+
+        /**
+         * The subscription was re-established after a connection loss.
+         */
+        void onResubscribed();
+    }
+}
@@ -0,0 +1,308 @@
+package me.hi;
+
+import org.bukkit.Bukkit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * RedisPreferenceNetwork - PreferenceNetwork on a Redis server (inventory-sorter.sync.backend: redis).
+ *
+ * A minimal RESP client with no dependencies: one command connection (GET, SET .. EX, PUBLISH, PING), reopened on the
+ * next call after any failure, and one subscriber connection on its own daemon thread that resubscribes every
+ * RESUBSCRIBE_DELAY_MS while the server is down. Connects and reads time out after a few seconds so a dead server
+ * fails calls instead of hanging them. The subscriber sends a PING after PING_INTERVAL_MS without traffic and
+ * reconnects if that goes unanswered for as long again, so a half-open connection (e.g. dropped by a NAT or load
+ * balancer idle timeout) can't silently end the invalidations.
+ */
+public final class RedisPreferenceNetwork implements PreferenceNetwork {
+
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final int READ_TIMEOUT_MS = 2000;
+    private static final long RESUBSCRIBE_DELAY_MS = 5000L;
+    private static final int PING_INTERVAL_MS = 30000;
+
+    private final String host;
+    private final int port;
+    private final String password;
+    private final int database;
+    private final int pingIntervalMs;
+    private final long resubscribeDelayMs;
+
+    // Guarded by this
+    private Connection commands;
+    private volatile Connection subscription;
+    private volatile Thread subscriber;
+    private volatile boolean closed;
+
+    public RedisPreferenceNetwork(String host, int port, String password, int database) {
+        this(host, port, password, database, PING_INTERVAL_MS, RESUBSCRIBE_DELAY_MS);
+    }
+
+    RedisPreferenceNetwork(String host, int port, String password, int database, int pingIntervalMs,
+                           long resubscribeDelayMs) {
+        this.host = host;
+        this.port = port;
+        this.password = password == null || password.isEmpty() ? null : password;
+        this.database = database;
+        this.pingIntervalMs = pingIntervalMs;
+        this.resubscribeDelayMs = resubscribeDelayMs;
+    }
+
+    @Override
+    public String name() {
+        return "redis";
+    }
+
+    @Override
+    public void ping() throws IOException {
+        command("PING");
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+        Object reply = command("GET", key);
+        if (reply != null && !(reply instanceof byte[])) throw new IOException("Unexpected GET reply " + reply);
+        return (byte[]) reply;
+    }
+
+    @Override
+    public void set(String key, byte[] value, long ttlSeconds) throws IOException {
+        if (ttlSeconds > 0) command("SET", key, value, "EX", ttlSeconds);
+        else command("SET", key, value);
+    }
+
+    @Override
+    public void publish(String channel, String message) throws IOException {
+        command("PUBLISH", channel, message);
+    }
+
+    @Override
+    public void subscribe(Collection<String> channels, final Listener listener) {
+        final List<Object> command = new ArrayList<Object>();
+        command.add("SUBSCRIBE");
+        command.addAll(channels);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean first = true;
+                boolean subscribed = false;
+                while (!closed) {
+                    try {
+                        Connection c = open();
+                        subscription = c;
+                        if (closed) {
+                            c.close();
+                            return;
+                        }
+                        c.send(command.toArray());
+                        // Messages can be hours apart: silence only means trouble once a PING goes unanswered
+                        c.socket.setSoTimeout(pingIntervalMs);
+                        subscribed = true;
+                        if (!first) listener.onResubscribed();
+                        first = false;
+                        boolean pinged = false;
+                        while (true) {
+                            if (!c.awaitReply()) {
+                                if (pinged) throw new IOException("no reply to PING within " + pingIntervalMs + " ms");
+                                c.send("PING");
+                                pinged = true;
+                                continue;
+                            }
+                            Object reply = c.read();
+                            pinged = false;
+                            // Anything but a message (subscribe confirmations, the PING's pong) is only a sign of life
+                            if (!(reply instanceof List)) continue;
+                            List<?> parts = (List<?>) reply;
+                            if (parts.size() == 3 && "message".equals(text(parts.get(0)))) {
+                                listener.onMessage(text(parts.get(1)), text(parts.get(2)));
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (closed) return;
+                        if (subscribed) {
+                            Bukkit.getLogger().warning("[PGMUtil] Redis subscription lost, resubscribing: " + e);
+                            subscribed = false;
+                        }
+                    } catch (RuntimeException e) {
+                        // A listener bug must not end the subscription
+                        e.printStackTrace();
+                    } finally {
+                        Connection c = subscription;
+                        if (c != null) c.close();
+                    }
+                    try {
+                        Thread.sleep(resubscribeDelayMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "PGMUtil-RedisSubscriber");
+        t.setDaemon(true);
+        subscriber = t;
+        t.start();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (commands != null) commands.close();
+            commands = null;
+        }
+        Connection c = subscription;
+        if (c != null) c.close();
+        Thread t = subscriber;
+        if (t != null) t.interrupt();
+    }
+
+    private synchronized Object command(Object... args) throws IOException {
+        if (closed) throw new IOException("Redis connection is closed");
+        try {
+            if (commands == null) commands = open();
+            return commands.call(args);
+        } catch (IOException e) {
+            // Whatever state the connection is in, the next call starts from a fresh one
+            if (commands != null) commands.close();
+            commands = null;
+            throw e;
+        }
+    }
+
+    private Connection open() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        Connection c = new Connection(socket);
+        try {
+            if (password != null) c.call("AUTH", password);
+            if (database != 0) c.call("SELECT", database);
+        } catch (IOException e) {
+            c.close();
+            throw e;
+        }
+        return c;
+    }
+
+    private static String text(Object part) {
+        return part instanceof byte[] ? new String((byte[]) part, StandardCharsets.UTF_8) : String.valueOf(part);
+    }
+
+    /**
+     * One RESP connection. Replies: simple strings as String, integers as Long, bulk strings as byte[] (null for
+     * nil), arrays as List; error replies are thrown as IOException.
+     */
+    private static final class Connection {
+        final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        // Waits up to the socket timeout for the next reply to start; false if none did
+        boolean awaitReply() throws IOException {
+            in.mark(1);
+            try {
+                if (in.read() < 0) throw new EOFException("Redis closed the connection");
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            in.reset();
+            return true;
+        }
+
+        Object call(Object... args) throws IOException {
+            send(args);
+            return read();
+        }
+
+        void send(Object... args) throws IOException {
+            out.write(('*' + Integer.toString(args.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            for (Object arg : args) {
+                byte[] bytes = arg instanceof byte[] ? (byte[]) arg : String.valueOf(arg).getBytes(StandardCharsets.UTF_8);
+                out.write(('$' + Integer.toString(bytes.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(bytes);
+                out.write('\r');
+                out.write('\n');
+            }
+            out.flush();
+        }
+
+        Object read() throws IOException {
+            int type = in.read();
+            if (type < 0) throw new EOFException("Redis closed the connection");
+            String line = readLine();
+            switch (type) {
+                case '+':
+                    return line;
+                case '-':
+                    throw new IOException("Redis error: " + line);
+                case ':':
+                    return Long.parseLong(line);
+                case '$': {
+                    int length = Integer.parseInt(line);
+                    if (length < 0) return null;
+                    byte[] bytes = new byte[length];
+                    int read = 0;
+                    while (read < length) {
+                        int n = in.read(bytes, read, length - read);
+                        if (n < 0) throw new EOFException("Redis closed the connection");
+                        read += n;
+                    }
+                    readLine();
+                    return bytes;
+                }
+                case '*': {
+                    int count = Integer.parseInt(line);
+                    if (count < 0) return null;
+                    List<Object> items = new ArrayList<Object>(count);
+                    for (int i = 0; i < count; i++) items.add(read());
+                    return items;
+                }
+                default:
+                    throw new IOException("Unexpected Redis reply type '" + (char) type + "'");
+            }
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(16);
+            int b;
+            while ((b = in.read()) != '\r') {
+                if (b < 0) throw new EOFException("Redis closed the connection");
+                line.write(b);
+            }
+            if (in.read() != '\n') throw new IOException("Malformed Redis reply");
+            return new String(line.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
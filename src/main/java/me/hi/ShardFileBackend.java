@@ -0,0 +1,131 @@
+package me.hi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * ShardFileBackend - One file per player (inventory-sorter.store.backend: shards, the default).
+ *
+ * Layout: {dir}/{xx}/{uuid}.bin, where xx is a hash bucket so no directory grows huge. Each payload is written to a
+ * temp file and renamed over the old one, so a crash leaves either the old or the new shard; temp files left behind
+ * by a crash are removed when the backend opens. A batch is written shard by shard, there is no cross-file atomicity.
+ */
+public final class ShardFileBackend implements PreferenceBackend {
+
+    private static final String SUFFIX = ".bin";
+
+    private final File dir;
+
+    public ShardFileBackend(File dir) {
+        this.dir = dir;
+        if (!dir.exists()) dir.mkdirs();
+        for (File bucket : buckets()) {
+            File[] files = bucket.listFiles();
+            if (files == null) continue;
+            for (File f : files) {
+                if (f.getName().endsWith(".tmp")) f.delete();
+            }
+        }
+    }
+
+    @Override
+    public String name() {
+        return "shards";
+    }
+
+    @Override
+    public byte[] load(UUID player) throws IOException {
+        try {
+            return Files.readAllBytes(shardFile(player).toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void upsert(Map<UUID, byte[]> batch) throws IOException {
+        for (Map.Entry<UUID, byte[]> e : batch.entrySet()) {
+            writeAtomically(shardFile(e.getKey()), e.getValue());
+        }
+    }
+
+    @Override
+    public void delete(UUID player) throws IOException {
+        Files.deleteIfExists(shardFile(player).toPath());
+    }
+
+    @Override
+    public Collection<UUID> players() {
+        List<UUID> players = new ArrayList<UUID>();
+        for (File bucket : buckets()) {
+            File[] files = bucket.listFiles();
+            if (files == null) continue;
+            for (File f : files) {
+                String name = f.getName();
+                if (!name.endsWith(SUFFIX)) continue;
+                try {
+                    players.add(UUID.fromString(name.substring(0, name.length() - SUFFIX.length())));
+                } catch (IllegalArgumentException ignored) {
+                }
+            }
+        }
+        return players;
+    }
+
+    @Override
+    public long lastWritten(UUID player) {
+        return shardFile(player).lastModified();
+    }
+
+    // Move it aside instead of silently overwriting it with an empty shard on the next save
+    @Override
+    public void quarantine(UUID player) {
+        File f = shardFile(player);
+        f.renameTo(new File(f.getParentFile(), f.getName() + ".corrupt"));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private File shardFile(UUID player) {
+        return new File(new File(dir, String.format("%02x", player.hashCode() & 0xff)), player + SUFFIX);
+    }
+
+    private List<File> buckets() {
+        List<File> buckets = new ArrayList<File>();
+        File[] listed = dir.listFiles();
+        if (listed != null) {
+            for (File f : listed) {
+                if (f.isDirectory()) buckets.add(f);
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Writes via a sibling temp file and an (atomic where supported) rename.
+     */
+    static void writeAtomically(File target, byte[] data) throws IOException {
+        File parent = target.getParentFile();
+        if (!parent.exists()) parent.mkdirs();
+        Path targetPath = target.toPath();
+        Path tmp = targetPath.resolveSibling(target.getName() + ".tmp");
+        Files.write(tmp, data);
+        try {
+            Files.move(tmp, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, targetPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package me.hi;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * SqlitePreferenceBackend - All payloads in one embedded SQLite file (inventory-sorter.store.backend: sqlite).
+ *
+ * The database runs in WAL mode, so a batch costs one append to the log plus one sync instead of a file rename per
+ * player, and loads on login threads are not blocked by a write in progress. Each upsert batch is one transaction
+ * over a reused prepared statement. Payloads the store could not decode are moved to preferences_corrupt.
+ *
+ * Uses the org.sqlite JDBC driver that Spigot bundles. One connection, shared by all callers; every method is
+ * synchronized on the backend.
+ */
+public final class SqlitePreferenceBackend implements PreferenceBackend {
+
+    private final Connection connection;
+    private final PreparedStatement select;
+    private final PreparedStatement upsert;
+    private final PreparedStatement delete;
+    private final PreparedStatement selectIds;
+    private final PreparedStatement selectSavedAt;
+    private final PreparedStatement moveCorrupt;
+
+    public SqlitePreferenceBackend(File file) throws IOException {
+        try {
+            Class.forName("org.sqlite.JDBC");
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists()) parent.mkdirs();
+            this.connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute("PRAGMA journal_mode=WAL");
+                // In WAL mode NORMAL syncs at checkpoints only; a power loss can drop the last batches but never
+                // corrupts the database, and the store rewrites everything it has in memory anyway
+                statement.execute("PRAGMA synchronous=NORMAL");
+                statement.execute("CREATE TABLE IF NOT EXISTS preferences ("
+                        + "uuid TEXT PRIMARY KEY, data BLOB NOT NULL, saved_at INTEGER NOT NULL)");
+                statement.execute("CREATE TABLE IF NOT EXISTS preferences_corrupt ("
+                        + "uuid TEXT NOT NULL, data BLOB, saved_at INTEGER, moved_at INTEGER NOT NULL)");
+            } finally {
+                statement.close();
+            }
+            this.select = connection.prepareStatement("SELECT data FROM preferences WHERE uuid = ?");
+            this.upsert = connection.prepareStatement(
+                    "INSERT OR REPLACE INTO preferences (uuid, data, saved_at) VALUES (?, ?, ?)");
+            this.delete = connection.prepareStatement("DELETE FROM preferences WHERE uuid = ?");
+            this.selectIds = connection.prepareStatement("SELECT uuid FROM preferences");
+            this.selectSavedAt = connection.prepareStatement("SELECT saved_at FROM preferences WHERE uuid = ?");
+            this.moveCorrupt = connection.prepareStatement("INSERT INTO preferences_corrupt (uuid, data, saved_at, moved_at) "
+                    + "SELECT uuid, data, saved_at, ? FROM preferences WHERE uuid = ?");
+        } catch (ClassNotFoundException e) {
+            throw new IOException("No SQLite JDBC driver on the classpath", e);
+        } catch (SQLException e) {
+            throw new IOException("Could not open " + file, e);
+        }
+    }
+
+    @Override
+    public String name() {
+        return "sqlite";
+    }
+
+    @Override
+    public synchronized byte[] load(UUID player) throws IOException {
+        try {
+            select.setString(1, player.toString());
+            ResultSet rs = select.executeQuery();
+            try {
+                return rs.next() ? rs.getBytes(1) : null;
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not load preferences of " + player, e);
+        }
+    }
+
+    @Override
+    public synchronized void upsert(Map<UUID, byte[]> batch) throws IOException {
+        if (batch.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        try {
+            connection.setAutoCommit(false);
+            try {
+                for (Map.Entry<UUID, byte[]> e : batch.entrySet()) {
+                    upsert.setString(1, e.getKey().toString());
+                    upsert.setBytes(2, e.getValue());
+                    upsert.setLong(3, now);
+                    upsert.addBatch();
+                }
+                upsert.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                upsert.clearBatch();
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not write " + batch.size() + " preference rows", e);
+        }
+    }
+
+    @Override
+    public synchronized void delete(UUID player) throws IOException {
+        try {
+            delete.setString(1, player.toString());
+            delete.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException("Could not delete preferences of " + player, e);
+        }
+    }
+
+    @Override
+    public synchronized Collection<UUID> players() throws IOException {
+        List<UUID> players = new ArrayList<UUID>();
+        try {
+            ResultSet rs = selectIds.executeQuery();
+            try {
+                while (rs.next()) {
+                    try {
+                        players.add(UUID.fromString(rs.getString(1)));
+                    } catch (IllegalArgumentException ignored) {
+                    }
+                }
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not list stored players", e);
+        }
+        return players;
+    }
+
+    @Override
+    public synchronized long lastWritten(UUID player) throws IOException {
+        try {
+            selectSavedAt.setString(1, player.toString());
+            ResultSet rs = selectSavedAt.executeQuery();
+            try {
+                return rs.next() ? rs.getLong(1) : 0L;
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read preferences of " + player, e);
+        }
+    }
+
+    @Override
+    public synchronized void quarantine(UUID player) throws IOException {
+        try {
+            connection.setAutoCommit(false);
+            try {
+                moveCorrupt.setLong(1, System.currentTimeMillis());
+                moveCorrupt.setString(2, player.toString());
+                moveCorrupt.executeUpdate();
+                delete.setString(1, player.toString());
+                delete.executeUpdate();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not move preferences of " + player + " aside", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            // Folds the WAL back into the database file so it can be copied on its own
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException ignored) {
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            throw new IOException("Could not close the preference database", e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package me.hi;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The ghost-glass computation BorderManager#collectGlass replaced (getGlassBorderLocations): scan the whole cube
+ * around the player and keep the border cells that aren't bedrock. Keys instead of Locations, otherwise unchanged.
+ */
+final class BaselineBorderGlass {
+    private BaselineBorderGlass() {
+    }
+
+    static Set<Long> glass(World world, int minX, int maxX, int minZ, int maxZ,
+                           int playerX, int playerY, int playerZ, int radius) {
+        Set<Long> locs = new HashSet<Long>();
+        for (int dx = -radius; dx <= radius; dx++) {
+            for (int dy = -radius; dy <= radius; dy++) {
+                for (int dz = -radius; dz <= radius; dz++) {
+                    int x = playerX + dx;
+                    int y = playerY + dy;
+                    int z = playerZ + dz;
+
+                    boolean onBorder =
+                            (x == minX || x == maxX) && (z >= minZ && z <= maxZ) ||
+                                    (z == minZ || z == maxZ) && (x >= minX && x <= maxX);
+
+                    if (onBorder && y >= 0 && y < world.getMaxHeight()) {
+                        Material type = world.getBlockAt(x, y, z).getType();
+                        if (type != Material.BEDROCK) {
+                            locs.add(BlitzUHC.BlockKey.pack(x, y, z));
+                        }
+                    }
+                }
+            }
+        }
+        return locs;
+    }
+}
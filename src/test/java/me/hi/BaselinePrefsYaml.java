@@ -0,0 +1,97 @@
+package me.hi;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The preference format PrefsCodec replaced: one YAML section per player, written and read the way the YAML-backed
+ * PreferenceStore did (save() / load(), new-format keys only).
+ *
+ * {uuid}.sigprefs.{signatureString} -> [slots...]
+ * {uuid}.slothistory.{slot} -> ["ts|signatureString", ...] (most recent first)
+ * {uuid}.sigrecency.{signatureString} -> ["slot:ts", ...]
+ */
+final class BaselinePrefsYaml {
+    private BaselinePrefsYaml() {
+    }
+
+    static String encode(PrefsCorpus.Player player) {
+        YamlConfiguration yml = new YamlConfiguration();
+        String id = player.id.toString();
+        for (Map.Entry<InventorySorter.ItemSignature, List<Integer>> s : player.prefs.entrySet()) {
+            yml.set(id + ".sigprefs." + s.getKey().toString(), new ArrayList<Integer>(s.getValue()));
+        }
+
+        for (int slot = 0; slot < InventorySorter.SlotHistory.SLOTS; slot++) {
+            int n = player.history.size(slot);
+            if (n == 0) continue;
+            List<String> lines = new ArrayList<String>();
+            for (int i = 0; i < n; i++) {
+                lines.add(player.history.timeAt(slot, i) + "|"
+                        + InventorySorter.ItemSignature.byId(player.history.sigIdAt(slot, i)).toString());
+            }
+            yml.set(id + ".slothistory." + slot, lines);
+        }
+
+        Map<String, List<String>> recency = new LinkedHashMap<String, List<String>>();
+        for (int entry : player.recency.sortedEntries()) {
+            InventorySorter.ItemSignature sig = InventorySorter.ItemSignature.byId(entry / InventorySorter.SlotHistory.SLOTS);
+            int slot = entry % InventorySorter.SlotHistory.SLOTS;
+            List<String> lines = recency.get(sig.toString());
+            if (lines == null) {
+                lines = new ArrayList<String>();
+                recency.put(sig.toString(), lines);
+            }
+            lines.add(slot + ":" + player.recency.get(sig, slot));
+        }
+        for (Map.Entry<String, List<String>> e : recency.entrySet()) {
+            yml.set(id + ".sigrecency." + e.getKey(), e.getValue());
+        }
+        return yml.saveToString();
+    }
+
+    static PrefsCorpus.Player decode(String text, PrefsCorpus.Player into) throws InvalidConfigurationException {
+        YamlConfiguration yml = new YamlConfiguration();
+        yml.loadFromString(text);
+        String key = into.id.toString();
+
+        Map<InventorySorter.ItemSignature, List<Integer>> prefs = new LinkedHashMap<InventorySorter.ItemSignature, List<Integer>>();
+        if (yml.isConfigurationSection(key + ".sigprefs")) {
+            for (String sigKey : yml.getConfigurationSection(key + ".sigprefs").getKeys(false)) {
+                List<Integer> slots = yml.getIntegerList(key + ".sigprefs." + sigKey);
+                prefs.put(InventorySorter.ItemSignature.fromString(sigKey), new ArrayList<Integer>(slots));
+            }
+        }
+        into.prefs = prefs;
+
+        if (yml.isConfigurationSection(key + ".slothistory")) {
+            for (String slotStr : yml.getConfigurationSection(key + ".slothistory").getKeys(false)) {
+                int slot = Integer.parseInt(slotStr);
+                List<String> lines = yml.getStringList(key + ".slothistory." + slotStr);
+                // Stored most recent first; add oldest first so the order comes back the same
+                for (int i = lines.size() - 1; i >= 0; i--) {
+                    String line = lines.get(i);
+                    int bar = line.indexOf('|');
+                    into.history.add(slot, InventorySorter.ItemSignature.fromString(line.substring(bar + 1)),
+                            Long.parseLong(line.substring(0, bar)));
+                }
+            }
+        }
+
+        if (yml.isConfigurationSection(key + ".sigrecency")) {
+            for (String sigKey : yml.getConfigurationSection(key + ".sigrecency").getKeys(false)) {
+                InventorySorter.ItemSignature sig = InventorySorter.ItemSignature.fromString(sigKey);
+                for (String entry : yml.getStringList(key + ".sigrecency." + sigKey)) {
+                    int colon = entry.indexOf(':');
+                    into.recency.put(sig, Integer.parseInt(entry.substring(0, colon)), Long.parseLong(entry.substring(colon + 1)));
+                }
+            }
+        }
+        return into;
+    }
+}
@@ -0,0 +1,31 @@
+package me.hi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The SignatureSlotRecency the open-addressed table replaced: signature id -> (slot -> lastSavedAt), boxed. Kept as
+ * it was, for SlotMemoryBenchmark.
+ */
+final class BaselineSignatureSlotRecency {
+    private final Map<Integer, Map<Integer, Long>> data = new LinkedHashMap<Integer, Map<Integer, Long>>();
+
+    void put(InventorySorter.ItemSignature sig, int slot, long ts) {
+        Map<Integer, Long> m = data.get(sig.id());
+        if (m == null) {
+            m = new LinkedHashMap<Integer, Long>();
+            data.put(sig.id(), m);
+        }
+        m.put(slot, ts);
+    }
+
+    static BaselineSignatureSlotRecency copyOf(InventorySorter.SignatureSlotRecency recency) {
+        BaselineSignatureSlotRecency copy = new BaselineSignatureSlotRecency();
+        for (int entry : recency.sortedEntries()) {
+            InventorySorter.ItemSignature sig = InventorySorter.ItemSignature.byId(entry / InventorySorter.SlotHistory.SLOTS);
+            int slot = entry % InventorySorter.SlotHistory.SLOTS;
+            copy.put(sig, slot, recency.get(sig, slot));
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,52 @@
+package me.hi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The SlotHistory the primitive ring buffers replaced: slot -> list of (signature, savedAt) entries, most recent
+ * first, at most DEPTH per slot. Kept as it was, for SlotMemoryBenchmark.
+ */
+final class BaselineSlotHistory {
+    static final class HistoryEntry {
+        final InventorySorter.ItemSignature signature;
+        final long savedAt;
+
+        HistoryEntry(InventorySorter.ItemSignature signature, long savedAt) {
+            this.signature = signature;
+            this.savedAt = savedAt;
+        }
+    }
+
+    private final Map<Integer, List<HistoryEntry>> bySlot = new HashMap<Integer, List<HistoryEntry>>();
+
+    void add(int slot, InventorySorter.ItemSignature sig, long ts) {
+        List<HistoryEntry> list = bySlot.get(slot);
+        if (list == null) {
+            list = new ArrayList<HistoryEntry>();
+            bySlot.put(slot, list);
+        }
+        // Remove any existing entry for the same signature to maintain uniqueness (interned: identity)
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).signature == sig) {
+                list.remove(i);
+                break;
+            }
+        }
+        list.add(0, new HistoryEntry(sig, ts));
+        while (list.size() > InventorySorter.SlotHistory.DEPTH) list.remove(list.size() - 1);
+    }
+
+    // Same entries as history, added oldest first as the snapshots did
+    static BaselineSlotHistory copyOf(InventorySorter.SlotHistory history) {
+        BaselineSlotHistory copy = new BaselineSlotHistory();
+        for (int slot = 0; slot < InventorySorter.SlotHistory.SLOTS; slot++) {
+            for (int i = history.size(slot) - 1; i >= 0; i--) {
+                copy.add(slot, InventorySorter.ItemSignature.byId(history.sigIdAt(slot, i)), history.timeAt(slot, i));
+            }
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,125 @@
+package me.hi;
+
+import org.bukkit.Material;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * BorderManager#collectGlass against the cube scan it replaced (BaselineBorderGlass).
+ */
+class BorderGlassTest {
+    private static final int MIN_X = -120, MAX_X = 80, MIN_Z = 857, MAX_Z = 1057;
+    private static final int RADIUS = 7;
+
+    @Test
+    void builtWallsMatchCubeScan() {
+        FakeWorld fake = new FakeWorld();
+        BlitzUHC.BorderManager border = new BlitzUHC.BorderManager(MIN_X, MAX_X, MIN_Z, MAX_Z);
+        border.generateWalls(fake.world);
+        // Built over the wall afterwards, and a wall cell replaced: neither is bedrock, so both get glass
+        fake.set(MIN_X, 80, 900, Material.STONE);
+        fake.set(MAX_X, 90, 1000, Material.AIR);
+
+        Random random = new Random(21L);
+        for (int i = 0; i < 3000; i++) {
+            int[] p = probe(random, i);
+            assertSameGlass(fake, border, p[0], p[1], p[2]);
+        }
+    }
+
+    @Test
+    void measuredColumnsMatchCubeScan() {
+        // Walls never built: every column is measured on first use, bedrock being only the floor at y 0
+        FakeWorld fake = new FakeWorld();
+        BlitzUHC.BorderManager border = new BlitzUHC.BorderManager(MIN_X, MAX_X, MIN_Z, MAX_Z);
+
+        Random random = new Random(42L);
+        for (int i = 0; i < 1000; i++) {
+            int[] p = probe(random, i);
+            assertSameGlass(fake, border, p[0], p[1], p[2]);
+        }
+    }
+
+    @Test
+    void bedrockAboveAGapGetsGlass() {
+        // Natural floor: bedrock at y 0, stone at y 1, bedrock again at y 2-3
+        FakeWorld fake = new FakeWorld();
+        int z = 950;
+        fake.set(MIN_X, 2, z, Material.BEDROCK);
+        fake.set(MIN_X, 3, z, Material.BEDROCK);
+        BlitzUHC.BorderManager border = new BlitzUHC.BorderManager(MIN_X, MAX_X, MIN_Z, MAX_Z);
+
+        Set<Long> glass = collect(fake, border, MIN_X + 2, 3, z);
+        Set<Long> baseline = BaselineBorderGlass.glass(fake.world, MIN_X, MAX_X, MIN_Z, MAX_Z, MIN_X + 2, 3, z, RADIUS);
+
+        // The cube scan skips every bedrock cell; the wall columns only skip the run from y 0
+        assertFalse(glass.contains(BlitzUHC.BlockKey.pack(MIN_X, 0, z)));
+        assertTrue(glass.contains(BlitzUHC.BlockKey.pack(MIN_X, 1, z)));
+        Set<Long> extra = new HashSet<Long>(glass);
+        extra.removeAll(baseline);
+        Set<Long> expected = new HashSet<Long>();
+        expected.add(BlitzUHC.BlockKey.pack(MIN_X, 2, z));
+        expected.add(BlitzUHC.BlockKey.pack(MIN_X, 3, z));
+        assertEquals(expected, extra);
+        assertTrue(glass.containsAll(baseline));
+    }
+
+    @Test
+    void farFromTheBorderIsEmpty() {
+        FakeWorld fake = new FakeWorld();
+        BlitzUHC.BorderManager border = new BlitzUHC.BorderManager(MIN_X, MAX_X, MIN_Z, MAX_Z);
+        border.generateWalls(fake.world);
+        assertTrue(collect(fake, border, (MIN_X + MAX_X) / 2, 64, (MIN_Z + MAX_Z) / 2).isEmpty());
+    }
+
+    // Mostly within reach of a wall or corner, with some heights at the bottom and top of the world
+    private static int[] probe(Random random, int i) {
+        int x, z;
+        switch (random.nextInt(5)) {
+            case 0:
+                x = MIN_X + random.nextInt(19) - 9;
+                z = MIN_Z + random.nextInt(MAX_Z - MIN_Z + 40) - 20;
+                break;
+            case 1:
+                x = MAX_X + random.nextInt(19) - 9;
+                z = MIN_Z + random.nextInt(MAX_Z - MIN_Z + 40) - 20;
+                break;
+            case 2:
+                z = MIN_Z + random.nextInt(19) - 9;
+                x = MIN_X + random.nextInt(MAX_X - MIN_X + 40) - 20;
+                break;
+            case 3:
+                z = MAX_Z + random.nextInt(19) - 9;
+                x = MIN_X + random.nextInt(MAX_X - MIN_X + 40) - 20;
+                break;
+            default:
+                x = (random.nextBoolean() ? MIN_X : MAX_X) + random.nextInt(9) - 4;
+                z = (random.nextBoolean() ? MIN_Z : MAX_Z) + random.nextInt(9) - 4;
+        }
+        int y = i % 13 == 0 ? random.nextInt(16) - 6 : i % 17 == 0 ? 248 + random.nextInt(12) : 55 + random.nextInt(25);
+        return new int[]{x, y, z};
+    }
+
+    private static void assertSameGlass(FakeWorld fake, BlitzUHC.BorderManager border, int x, int y, int z) {
+        Set<Long> expected = BaselineBorderGlass.glass(fake.world, MIN_X, MAX_X, MIN_Z, MAX_Z, x, y, z, RADIUS);
+        assertEquals(expected, collect(fake, border, x, y, z), "player at " + x + "," + y + "," + z);
+    }
+
+    private static Set<Long> collect(FakeWorld fake, BlitzUHC.BorderManager border, int x, int y, int z) {
+        BlitzUHC.BlockKeySet cells = new BlitzUHC.BlockKeySet();
+        border.collectGlass(fake.world, x, y, z, RADIUS, cells);
+        Set<Long> keys = new HashSet<Long>();
+        for (int slot = cells.nextSlot(0); slot >= 0; slot = cells.nextSlot(slot + 1)) {
+            keys.add(cells.keyAt(slot));
+        }
+        assertEquals(cells.size(), keys.size());
+        return keys;
+    }
+}
@@ -0,0 +1,87 @@
+package me.hi;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Just enough of a World for the border code: a bedrock floor at y 0, stone up to a bumpy surface, air above, and
+ * whatever was set on top of that. Only getMaxHeight, getHighestBlockYAt and getBlockAt (getType, getData, setType)
+ * work; everything else returns null/0/false.
+ */
+final class FakeWorld {
+    static final int MAX_HEIGHT = 256;
+
+    private final Map<Long, Material> changed = new HashMap<Long, Material>();
+    final World world = (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[]{World.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.equals("getMaxHeight")) return MAX_HEIGHT;
+                    if (name.equals("getHighestBlockYAt") && args.length == 2) {
+                        return surface((Integer) args[0], (Integer) args[1]);
+                    }
+                    if (name.equals("getBlockAt") && args.length == 3) {
+                        return block((Integer) args[0], (Integer) args[1], (Integer) args[2]);
+                    }
+                    return defaultValue(proxy, method, args);
+                }
+            });
+
+    // Surface height between 60 and 71
+    static int surface(int x, int z) {
+        return 60 + Math.floorMod(x * 31 + z * 17, 12);
+    }
+
+    Material type(int x, int y, int z) {
+        Material type = changed.get(BlitzUHC.BlockKey.pack(x, y, z));
+        if (type != null) return type;
+        if (y == 0) return Material.BEDROCK;
+        return y < surface(x, z) ? Material.STONE : Material.AIR;
+    }
+
+    void set(int x, int y, int z, Material type) {
+        changed.put(BlitzUHC.BlockKey.pack(x, y, z), type);
+    }
+
+    private Block block(final int x, final int y, final int z) {
+        return (Block) Proxy.newProxyInstance(Block.class.getClassLoader(), new Class<?>[]{Block.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getType")) return type(x, y, z);
+                        if (name.equals("getData")) return (byte) 0;
+                        if (name.equals("setType")) {
+                            set(x, y, z, (Material) args[0]);
+                            return method.getReturnType() == boolean.class ? Boolean.TRUE : null;
+                        }
+                        return defaultValue(proxy, method, args);
+                    }
+                });
+    }
+
+    private static Object defaultValue(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("hashCode")) return System.identityHashCode(proxy);
+        if (name.equals("equals")) return proxy == args[0];
+        if (name.equals("toString")) return "FakeWorld";
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) return Boolean.FALSE;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0.0;
+        if (type == float.class) return 0.0f;
+        if (type == byte.class) return (byte) 0;
+        if (type == short.class) return (short) 0;
+        if (type == char.class) return (char) 0;
+        return null;
+    }
+}
@@ -0,0 +1,140 @@
+package me.hi;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Checks the FamilySlotIndex a SlotHistory keeps against a scan of the history itself, after every add and after the
+ * item rules change.
+ */
+class FamilySlotIndexTest {
+    private static final int FAMILIES = InventorySorter.ItemFamily.values().length;
+
+    private static InventorySorter.ItemRules previousRules;
+    private static final List<InventorySorter.ItemSignature> UNIVERSE = new ArrayList<InventorySorter.ItemSignature>();
+
+    @BeforeAll
+    static void loadRules() throws Exception {
+        previousRules = InventorySorter.ItemRules.current();
+        InputStream in = FamilySlotIndexTest.class.getResourceAsStream("/item_rules.yml");
+        assertNotNull(in, "item_rules.yml not on the test class path");
+        try {
+            InventorySorter.ItemRules.install(InventorySorter.ItemRules.compile(
+                    YamlConfiguration.loadConfiguration(new InputStreamReader(in, StandardCharsets.UTF_8))));
+        } finally {
+            in.close();
+        }
+
+        Material[] materials = {
+                Material.STONE_SWORD, Material.DIAMOND_SWORD, Material.IRON_AXE, Material.IRON_PICKAXE, Material.BOW,
+                Material.FISHING_ROD, Material.COOKED_BEEF, Material.GOLDEN_APPLE, Material.ARROW,
+                Material.STAINED_GLASS, Material.SHEARS, Material.BUCKET
+        };
+        for (Material mat : materials) {
+            UNIVERSE.add(InventorySorter.ItemSignature.intern(mat, null, null, null));
+            UNIVERSE.add(InventorySorter.ItemSignature.intern(mat, null, "Kit " + mat.name(), null));
+        }
+    }
+
+    @AfterAll
+    static void restoreRules() {
+        InventorySorter.ItemRules.install(previousRules);
+    }
+
+    @Test
+    void matchesHistoryAfterEveryAdd() {
+        Random random = new Random(13L);
+        for (int round = 0; round < 20; round++) {
+            InventorySorter.SlotHistory history = new InventorySorter.SlotHistory();
+            long ts = 1700000000000L;
+            for (int i = 0; i < 400; i++) {
+                // Few slots, so rows fill up to DEPTH and start overwriting; some legacy entries without a timestamp
+                int slot = random.nextInt(round % 2 == 0 ? 4 : InventorySorter.SlotHistory.SLOTS);
+                int kind = random.nextInt(10);
+                long at = kind == 0 ? 0L : kind == 1 ? ts - random.nextInt(100000) : (ts += random.nextInt(3) * 1000L);
+                history.add(slot, UNIVERSE.get(random.nextInt(UNIVERSE.size())), at);
+                assertMatches(history);
+            }
+        }
+    }
+
+    @Test
+    void refreshFollowsNewRules() throws Exception {
+        Random random = new Random(31L);
+        InventorySorter.SlotHistory history = new InventorySorter.SlotHistory();
+        for (int i = 0; i < 300; i++) {
+            history.add(random.nextInt(InventorySorter.SlotHistory.SLOTS),
+                    UNIVERSE.get(random.nextInt(UNIVERSE.size())), 1700000000000L + random.nextInt(50) * 1000L);
+        }
+        assertMatches(history);
+
+        InventorySorter.ItemRules bundled = InventorySorter.ItemRules.current();
+        try {
+            // Axes count as swords, arrows as bows, and the other families are gone
+            YamlConfiguration yml = new YamlConfiguration();
+            yml.loadFromString("families:\n"
+                    + "  SWORD: {suffixes: [_SWORD, _AXE]}\n"
+                    + "  BOW: {materials: [BOW, ARROW]}\n"
+                    + "ranking: {}\n");
+            InventorySorter.ItemRules.install(InventorySorter.ItemRules.compile(yml));
+            history.refreshFamilies();
+            assertMatches(history);
+            assertEquals(0L, history.families().mask(InventorySorter.ItemFamily.AXE.ordinal()));
+        } finally {
+            InventorySorter.ItemRules.install(bundled);
+        }
+        history.refreshFamilies();
+        assertMatches(history);
+    }
+
+    // Per family: the slots holding it, by its latest save in the slot (<= 0 counts as 1), newest first, ties by slot
+    private static void assertMatches(InventorySorter.SlotHistory history) {
+        InventorySorter.FamilySlotIndex index = history.families();
+        for (int f = 0; f < FAMILIES; f++) {
+            final long[] latest = new long[InventorySorter.SlotHistory.SLOTS];
+            List<Integer> expected = new ArrayList<Integer>();
+            long mask = 0L;
+            for (int slot = 0; slot < InventorySorter.SlotHistory.SLOTS; slot++) {
+                boolean found = false;
+                long best = Long.MIN_VALUE;
+                for (int i = 0; i < history.size(slot); i++) {
+                    if (InventorySorter.ItemSignature.byId(history.sigIdAt(slot, i)).family().ordinal() != f) continue;
+                    found = true;
+                    best = Math.max(best, history.timeAt(slot, i));
+                }
+                if (!found) continue;
+                latest[slot] = best <= 0 ? 1L : best;
+                expected.add(slot);
+                mask |= 1L << slot;
+            }
+            Collections.sort(expected, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int byTime = Long.compare(latest[b], latest[a]);
+                    return byTime != 0 ? byTime : Integer.compare(a, b);
+                }
+            });
+
+            List<Integer> actual = new ArrayList<Integer>();
+            for (int i = 0; i < index.length(f); i++) actual.add(index.slotAt(f, i));
+            String family = InventorySorter.ItemFamily.values()[f].name();
+            assertEquals(expected, actual, family);
+            assertEquals(mask, index.mask(f), family);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package me.hi;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * InProcessPreferenceNetwork - PreferenceNetwork held in memory, for tests.
+ *
+ * A new instance starts a new network; join() returns another endpoint on the same one, so several stores in one JVM
+ * behave like servers sharing a network. setReachable(false)
+ * simulates an outage of one endpoint: its calls fail and it neither sends nor receives messages until it is
+ * reachable again, at which point its subscribers get onResubscribed. TTLs are ignored.
+ */
+final class InProcessPreferenceNetwork implements PreferenceNetwork {
+
+    private final Shared shared;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private volatile boolean reachable = true;
+
+    InProcessPreferenceNetwork() {
+        this(new Shared());
+    }
+
+    private InProcessPreferenceNetwork(Shared shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * Another endpoint on this endpoint's network.
+     */
+    InProcessPreferenceNetwork join() {
+        return new InProcessPreferenceNetwork(shared);
+    }
+
+    void setReachable(boolean reachable) {
+        boolean restored = reachable && !this.reachable;
+        this.reachable = reachable;
+        if (!restored) return;
+        for (final Subscription s : subscriptions) {
+            shared.delivery.execute(new Runnable() {
+                @Override
+                public void run() {
+                    s.listener.onResubscribed();
+                }
+            });
+        }
+    }
+
+    @Override
+    public String name() {
+        return "in-process";
+    }
+
+    @Override
+    public void ping() throws IOException {
+        check();
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+        check();
+        byte[] value = shared.values.get(key);
+        return value == null ? null : value.clone();
+    }
+
+    @Override
+    public void set(String key, byte[] value, long ttlSeconds) throws IOException {
+        check();
+        shared.values.put(key, value.clone());
+    }
+
+    @Override
+    public void publish(final String channel, final String message) throws IOException {
+        check();
+        for (final InProcessPreferenceNetwork endpoint : shared.endpoints) {
+            for (final Subscription s : endpoint.subscriptions) {
+                if (!s.channels.contains(channel)) continue;
+                shared.delivery.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (endpoint.reachable) s.listener.onMessage(channel, message);
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Collection<String> channels, Listener listener) {
+        subscriptions.add(new Subscription(new HashSet<String>(channels), listener));
+        shared.endpoints.addIfAbsent(this);
+    }
+
+    // Leaves the network; the stored values stay for the other endpoints
+    @Override
+    public void close() {
+        shared.endpoints.remove(this);
+        subscriptions.clear();
+    }
+
+    private void check() throws IOException {
+        if (!reachable) throw new IOException("In-process network endpoint is set unreachable");
+    }
+
+    private static final class Shared {
+        final Map<String, byte[]> values = new ConcurrentHashMap<String, byte[]>();
+        final CopyOnWriteArrayList<InProcessPreferenceNetwork> endpoints = new CopyOnWriteArrayList<InProcessPreferenceNetwork>();
+        // Delivers messages off the publishing thread, in publish order, like a real broker would
+        final ExecutorService delivery = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PGMUtil-InProcessNetwork");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private static final class Subscription {
+        final Set<String> channels;
+        final Listener listener;
+
+        Subscription(Set<String> channels, Listener listener) {
+            this.channels = channels;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package me.hi;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * item_rules.yml: what the bundled file compiles to, which mistakes are skipped and which are refused, and what a
+ * reload (ItemRules.load) installs.
+ */
+class ItemRulesTest {
+    private InventorySorter.ItemRules previousRules;
+
+    @TempDir
+    File dir;
+
+    @BeforeEach
+    void saveRules() {
+        previousRules = InventorySorter.ItemRules.current();
+    }
+
+    @AfterEach
+    void restoreRules() {
+        InventorySorter.ItemRules.install(previousRules);
+    }
+
+    @Test
+    void bundledRulesClassifyAndRank() throws Exception {
+        InventorySorter.ItemRules rules = bundled();
+        assertTrue(rules.isCompiled());
+        assertEquals(InventorySorter.ItemFamily.SWORD, rules.family(Material.DIAMOND_SWORD));
+        assertEquals(InventorySorter.ItemFamily.SHOVEL, rules.family(Material.IRON_SPADE));
+        assertEquals(InventorySorter.ItemFamily.BLOCK, rules.family(Material.STAINED_GLASS));
+        assertEquals(InventorySorter.ItemFamily.FOOD, rules.family(Material.GOLDEN_APPLE));
+        assertEquals(InventorySorter.ItemFamily.OTHER, rules.family(Material.SADDLE));
+        assertEquals(InventorySorter.ItemFamily.OTHER, rules.family(null));
+
+        // Tier 50 vs 35, flat family base, and enchantment weight per level
+        assertEquals(50, score(rules, sig(Material.DIAMOND_SWORD)));
+        assertEquals(35, score(rules, sig(Material.IRON_SWORD)));
+        assertEquals(30, score(rules, sig(Material.BOW)));
+        assertEquals(50 + 2 * 6, score(rules, enchanted(Material.DIAMOND_SWORD, "DAMAGE_ALL", 2)));
+        // SWORD lists its enchantments, so others score nothing
+        assertEquals(50, score(rules, enchanted(Material.DIAMOND_SWORD, "DURABILITY", 3)));
+    }
+
+    @Test
+    void missingSectionsAreRefused() throws Exception {
+        assertThrows(IllegalArgumentException.class, new org.junit.jupiter.api.function.Executable() {
+            @Override
+            public void execute() throws Throwable {
+                InventorySorter.ItemRules.compile(yaml("families:\n  BOW: {materials: [BOW]}\n"));
+            }
+        });
+        assertThrows(IllegalArgumentException.class, new org.junit.jupiter.api.function.Executable() {
+            @Override
+            public void execute() throws Throwable {
+                InventorySorter.ItemRules.compile(yaml(""));
+            }
+        });
+    }
+
+    @Test
+    void unknownFamiliesAndMaterialsAreSkipped() throws Exception {
+        InventorySorter.ItemRules rules = InventorySorter.ItemRules.compile(yaml("families:\n"
+                + "  LANCE: {suffixes: [_SWORD]}\n"
+                + "  BOW: {materials: [BOW, CROSSBOW]}\n"
+                + "ranking:\n"
+                + "  family-base: {BOW: 30, LANCE: 5}\n"));
+        assertTrue(rules.isCompiled());
+        assertEquals(InventorySorter.ItemFamily.BOW, rules.family(Material.BOW));
+        assertEquals(InventorySorter.ItemFamily.OTHER, rules.family(Material.DIAMOND_SWORD));
+        assertEquals(30, score(rules, sig(Material.BOW)));
+        assertEquals(0, score(rules, sig(Material.DIAMOND_SWORD)));
+    }
+
+    @Test
+    void reloadInstallsNewRulesAndSignaturesFollow() throws Exception {
+        InventorySorter.ItemRules.install(bundled());
+        InventorySorter.ItemSignature axe = sig(Material.IRON_AXE);
+        assertEquals(InventorySorter.ItemFamily.AXE, axe.family());
+
+        File file = write("families:\n"
+                + "  SWORD: {suffixes: [_SWORD, _AXE]}\n"
+                + "ranking:\n"
+                + "  tier-families: [SWORD]\n"
+                + "  tiers: {IRON: 7}\n");
+        assertNull(InventorySorter.ItemRules.load(file, failingDefaults()));
+        assertEquals(InventorySorter.ItemFamily.SWORD, axe.family());
+        assertEquals(7, axe.score());
+        assertEquals(InventorySorter.ItemFamily.SWORD, InventorySorter.ItemFamily.of(Material.IRON_AXE));
+    }
+
+    @Test
+    void badReloadKeepsTheRulesInUse() throws Exception {
+        InventorySorter.ItemRules inUse = bundled();
+        InventorySorter.ItemRules.install(inUse);
+
+        String error = InventorySorter.ItemRules.load(write("families:\n  BOW: {materials: [BOW]}\n"),
+                failingDefaults());
+        assertNotNull(error);
+        assertTrue(error.contains("item_rules.yml"), error);
+        assertSame(inUse, InventorySorter.ItemRules.current());
+
+        // Not YAML at all reads as an empty file, which is refused the same way
+        assertNotNull(InventorySorter.ItemRules.load(write("families: [\n  : :\n"), failingDefaults()));
+        assertSame(inUse, InventorySorter.ItemRules.current());
+    }
+
+    @Test
+    void badFirstLoadInstallsTheDefaults() throws Exception {
+        InventorySorter.ItemRules.install(new InventorySorter.ItemRules());
+        final InventorySorter.ItemRules defaults = bundled();
+        String error = InventorySorter.ItemRules.load(write("ranking: {}\n"),
+                new java.util.function.Supplier<InventorySorter.ItemRules>() {
+                    @Override
+                    public InventorySorter.ItemRules get() {
+                        return defaults;
+                    }
+                });
+        assertNotNull(error);
+        assertSame(defaults, InventorySorter.ItemRules.current());
+        assertFalse(new InventorySorter.ItemRules().isCompiled());
+    }
+
+    private File write(String content) throws Exception {
+        File file = new File(dir, "item_rules.yml");
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static java.util.function.Supplier<InventorySorter.ItemRules> failingDefaults() {
+        return new java.util.function.Supplier<InventorySorter.ItemRules>() {
+            @Override
+            public InventorySorter.ItemRules get() {
+                throw new AssertionError("defaults are only for a first load");
+            }
+        };
+    }
+
+    private static InventorySorter.ItemRules bundled() throws Exception {
+        InputStream in = ItemRulesTest.class.getResourceAsStream("/item_rules.yml");
+        assertNotNull(in, "item_rules.yml not on the test class path");
+        try {
+            return InventorySorter.ItemRules.compile(
+                    YamlConfiguration.loadConfiguration(new InputStreamReader(in, StandardCharsets.UTF_8)));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static YamlConfiguration yaml(String content) throws Exception {
+        YamlConfiguration yml = new YamlConfiguration();
+        yml.loadFromString(content);
+        return yml;
+    }
+
+    // Installs rules (restored after each test), so the signature's memoized score is recomputed with them
+    private static int score(InventorySorter.ItemRules rules, InventorySorter.ItemSignature sig) {
+        InventorySorter.ItemRules.install(rules);
+        return sig.score();
+    }
+
+    private static InventorySorter.ItemSignature sig(Material mat) {
+        return InventorySorter.ItemSignature.intern(mat, null, null, null);
+    }
+
+    private static InventorySorter.ItemSignature enchanted(Material mat, String enchant, int level) {
+        TreeMap<String, Integer> ench = new TreeMap<String, Integer>();
+        ench.put(enchant, level);
+        return InventorySorter.ItemSignature.intern(mat, null, null, ench);
+    }
+}
@@ -0,0 +1,186 @@
+package me.hi;
+
+import org.bukkit.Material;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Layout hash-consing, and layouts shared through the store's dictionary: promotion by compaction, and payloads whose
+ * shared layout id the dictionary no longer knows.
+ */
+class LayoutTest {
+    private static final UUID FIRST = UUID.fromString("5e7b2c94-0a3f-4d18-9b6e-c1f84d27a035");
+    private static final UUID SECOND = UUID.fromString("e29d4f61-8c0b-4a75-a3e2-7b56d90c1f48");
+
+    @TempDir
+    File dir;
+
+    private final List<InventorySorter.PreferenceStore> stores = new ArrayList<InventorySorter.PreferenceStore>();
+
+    @AfterEach
+    void closeStores() {
+        for (InventorySorter.PreferenceStore store : stores) store.close();
+    }
+
+    @Test
+    void equalMapsShareOneLayoutUntilReleased() {
+        int pooled = InventorySorter.Layout.pooled();
+        Map<InventorySorter.ItemSignature, List<Integer>> ordered = prefs(Material.FISHING_ROD, 4, Material.SHEARS, 7);
+        Map<InventorySorter.ItemSignature, List<Integer>> hashed =
+                new HashMap<InventorySorter.ItemSignature, List<Integer>>(ordered);
+
+        InventorySorter.Layout a = InventorySorter.Layout.acquire(ordered);
+        InventorySorter.Layout b = InventorySorter.Layout.acquire(hashed);
+        assertSame(a, b);
+        assertEquals(pooled + 1, InventorySorter.Layout.pooled());
+        assertEquals(ordered, a.asMap());
+        // The pooled copy doesn't follow the caller's map
+        ordered.get(sig(Material.SHEARS)).add(8);
+        assertEquals(Arrays.asList(7), a.asMap().get(sig(Material.SHEARS)));
+        ordered.get(sig(Material.SHEARS)).remove(1);
+
+        InventorySorter.Layout c = a.retain();
+        assertSame(a, c);
+        a.release();
+        b.release();
+        assertEquals(pooled + 1, InventorySorter.Layout.pooled());
+        c.release();
+        assertEquals(pooled, InventorySorter.Layout.pooled());
+
+        // Once out of the pool, an equal map gets a new layout, and a stale holder retaining is handed that one
+        InventorySorter.Layout d = InventorySorter.Layout.acquire(ordered);
+        assertNotSame(a, d);
+        assertEquals(a, d);
+        InventorySorter.Layout e = a.retain();
+        assertSame(d, e);
+        d.release();
+        e.release();
+        assertEquals(pooled, InventorySorter.Layout.pooled());
+
+        assertSame(InventorySorter.Layout.EMPTY,
+                InventorySorter.Layout.acquire(Collections.<InventorySorter.ItemSignature, List<Integer>>emptyMap()));
+    }
+
+    @Test
+    void layoutsHeldTwiceAreSharedByCompaction() throws Exception {
+        storeTwoPlayersWithTheSameLayout();
+        InventorySorter.PreferenceStore store = open();
+        assertEquals(1, compact(store).promoted);
+        assertEquals(1, store.sharedLayouts());
+        byte[] inline = new ShardFileBackend(dir).load(FIRST);
+        // The next pass rewrites both payloads to refer to the shared layout by id
+        assertEquals(2, compact(store).rewritten);
+        byte[] byId = new ShardFileBackend(dir).load(FIRST);
+        assertTrue(byId.length < inline.length, byId.length + " bytes, inline " + inline.length);
+
+        InventorySorter.PreferenceStore reopened = open();
+        assertEquals(1, reopened.sharedLayouts());
+        reopened.load(FIRST);
+        reopened.load(SECOND);
+        assertEquals(kit(), reopened.getPreferences(FIRST));
+        assertSame(reopened.getPreferences(FIRST), reopened.getPreferences(SECOND));
+    }
+
+    @Test
+    void unknownSharedLayoutIdDropsOnlyThePreferences() throws Exception {
+        storeTwoPlayersWithTheSameLayout();
+        InventorySorter.PreferenceStore store = open();
+        compact(store);
+        compact(store);
+        store.close();
+        stores.remove(store);
+
+        // The dictionary is lost: the payloads still refer to it
+        assertTrue(new File(dir, "layouts.bin").delete());
+        InventorySorter.PreferenceStore reopened = open();
+        assertEquals(0, reopened.sharedLayouts());
+        reopened.load(FIRST);
+        assertTrue(reopened.isLoaded(FIRST));
+        assertEquals(Collections.emptyMap(), reopened.getPreferences(FIRST));
+        assertTrue(reopened.hasAnySlotHistory(FIRST));
+        assertTrue(new ShardFileBackend(dir).players().contains(FIRST));
+    }
+
+    @Test
+    void unreadableDictionaryHandsOutNoIds() throws Exception {
+        storeTwoPlayersWithTheSameLayout();
+        File file = new File(dir, "layouts.bin");
+        byte[] garbage = {0x13, 0x37, 0x00};
+        Files.write(file.toPath(), garbage);
+
+        InventorySorter.PreferenceStore store = open();
+        assertEquals(0, compact(store).promoted);
+        assertEquals(0, store.sharedLayouts());
+        assertTrue(Arrays.equals(garbage, Files.readAllBytes(file.toPath())));
+        store.load(FIRST);
+        assertEquals(kit(), store.getPreferences(FIRST));
+    }
+
+    private void storeTwoPlayersWithTheSameLayout() {
+        InventorySorter.PreferenceStore store = open();
+        for (UUID player : Arrays.asList(FIRST, SECOND)) {
+            store.load(player);
+            store.savePreferences(player, kit());
+            InventorySorter.ItemSignature[] sigs = new InventorySorter.ItemSignature[36];
+            sigs[0] = sig(Material.DIAMOND_SWORD);
+            store.saveSlotHistory(player, sigs, System.currentTimeMillis());
+        }
+        store.close();
+        stores.remove(store);
+    }
+
+    private static Map<InventorySorter.ItemSignature, List<Integer>> kit() {
+        return prefs(Material.DIAMOND_SWORD, 0, Material.BOW, 1, Material.ARROW, 8);
+    }
+
+    private InventorySorter.PreferenceStore open() {
+        InventorySorter.PreferenceStore store = new InventorySorter.PreferenceStore(dir, null, "shards", 0, 0L, 0L, null);
+        stores.add(store);
+        return store;
+    }
+
+    private static InventorySorter.PreferenceStore.CompactionResult compact(InventorySorter.PreferenceStore store)
+            throws Exception {
+        final CompletableFuture<InventorySorter.PreferenceStore.CompactionResult> done =
+                new CompletableFuture<InventorySorter.PreferenceStore.CompactionResult>();
+        assertTrue(store.compact(0L, 0L,
+                new java.util.function.Consumer<InventorySorter.PreferenceStore.CompactionResult>() {
+                    @Override
+                    public void accept(InventorySorter.PreferenceStore.CompactionResult result) {
+                        done.complete(result);
+                    }
+                }));
+        return done.get(10L, TimeUnit.SECONDS);
+    }
+
+    private static InventorySorter.ItemSignature sig(Material mat) {
+        return InventorySorter.ItemSignature.intern(mat, null, null, null);
+    }
+
+    private static Map<InventorySorter.ItemSignature, List<Integer>> prefs(Object... matSlots) {
+        Map<InventorySorter.ItemSignature, List<Integer>> prefs = new LinkedHashMap<InventorySorter.ItemSignature, List<Integer>>();
+        for (int i = 0; i < matSlots.length; i += 2) {
+            prefs.put(sig((Material) matSlots[i]), new ArrayList<Integer>(Arrays.asList((Integer) matSlots[i + 1])));
+        }
+        return prefs;
+    }
+}
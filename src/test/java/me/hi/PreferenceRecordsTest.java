@@ -0,0 +1,176 @@
+package me.hi;
+
+import org.bukkit.Material;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The mmap backend: a record keeps what a shard keeps, a store on records reads back what it wrote, and shards it
+ * couldn't keep are not imported.
+ */
+class PreferenceRecordsTest {
+    private static final UUID PLAYER = UUID.fromString("a47c1e90-2b6d-4f38-8e15-c93d0f7b6a28");
+    // Not a round number of seconds, which the first record format would have cut off
+    private static final long T0 = 1700000000123L;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void recordKeepsFullHistoryAndMillisecondTimestamps() throws Exception {
+        InventorySorter.PreferenceStore.PlayerData data = sample(40);
+        assertNull(InventorySorter.PreferenceRecords.lossFor(data.prefs, data.history, data.recency));
+
+        InventorySorter.PreferenceRecords records = new InventorySorter.PreferenceRecords(dir);
+        records.upsert(Collections.singletonMap(PLAYER, records.encode(data.prefs, data.history, data.recency)));
+        records.close();
+
+        InventorySorter.PreferenceRecords reopened = new InventorySorter.PreferenceRecords(dir);
+        InventorySorter.PreferenceStore.PlayerData decoded = new InventorySorter.PreferenceStore.PlayerData(PLAYER);
+        try {
+            reopened.decode(reopened.load(PLAYER), decoded);
+            assertSame(data, decoded);
+        } finally {
+            reopened.close();
+            decoded.release();
+            data.release();
+        }
+    }
+
+    @Test
+    void shardsThatFitAreImported() throws Exception {
+        InventorySorter.PreferenceStore.PlayerData data = sample(40);
+        new ShardFileBackend(dir).upsert(Collections.singletonMap(PLAYER,
+                InventorySorter.PrefsCodec.encode(data.prefs, data.history, data.recency, false)));
+
+        InventorySorter.PreferenceStore store = open();
+        try {
+            assertEquals("mmap", store.backendName());
+            assertTrue(new ShardFileBackend(dir).players().isEmpty());
+            store.load(PLAYER);
+            assertEquals(data.prefs.asMap(), store.getPreferences(PLAYER));
+        } finally {
+            store.close();
+            data.release();
+        }
+    }
+
+    @Test
+    void shardsThatDoNotFitStayShards() throws Exception {
+        InventorySorter.PreferenceStore.PlayerData data = sample(InventorySorter.PreferenceRecords.RECENCY_ENTRIES + 1);
+        assertNotNull(InventorySorter.PreferenceRecords.lossFor(data.prefs, data.history, data.recency));
+        new ShardFileBackend(dir).upsert(Collections.singletonMap(PLAYER,
+                InventorySorter.PrefsCodec.encode(data.prefs, data.history, data.recency, false)));
+
+        InventorySorter.PreferenceStore store = open();
+        try {
+            assertEquals("shards, configured mmap unavailable", store.backendName());
+            assertEquals(Collections.singletonList(PLAYER), new ArrayList<UUID>(new ShardFileBackend(dir).players()));
+            store.load(PLAYER);
+            assertEquals(data.prefs.asMap(), store.getPreferences(PLAYER));
+        } finally {
+            store.close();
+            data.release();
+        }
+        assertFalse(new File(dir, "prefs.records").exists());
+    }
+
+    @Test
+    void storeRoundTripsThroughRecords() throws Exception {
+        UUID other = UUID.fromString("f3b80d2e-61c7-4e95-a04d-8e2c7b19f5a6");
+        InventorySorter.ItemSignature[] snapshot = new InventorySorter.ItemSignature[InventorySorter.SlotHistory.SLOTS];
+        snapshot[0] = sig(0);
+        snapshot[8] = sig(1);
+        Map<InventorySorter.ItemSignature, List<Integer>> prefs = new LinkedHashMap<InventorySorter.ItemSignature, List<Integer>>();
+        prefs.put(sig(0), new ArrayList<Integer>(Arrays.asList(0)));
+        prefs.put(sig(1), new ArrayList<Integer>(Arrays.asList(8, 9)));
+
+        InventorySorter.PreferenceStore store = open();
+        int[] plan;
+        try {
+            assertEquals("mmap", store.backendName());
+            store.load(PLAYER);
+            store.savePreferences(PLAYER, prefs);
+            store.saveSlotHistory(PLAYER, snapshot, T0);
+            store.load(other);
+            store.saveSlotHistory(other, snapshot, T0);
+            plan = store.plan(PLAYER, snapshot);
+        } finally {
+            store.close();
+        }
+        assertTrue(new File(dir, "prefs.records").isFile());
+        assertTrue(new ShardFileBackend(dir).players().isEmpty());
+
+        InventorySorter.PreferenceStore reopened = open();
+        try {
+            assertEquals("mmap", reopened.backendName());
+            reopened.load(PLAYER);
+            reopened.load(other);
+            assertEquals(prefs, reopened.getPreferences(PLAYER));
+            assertTrue(reopened.hasAnySlotHistory(PLAYER));
+            assertEquals(Collections.emptyMap(), reopened.getPreferences(other));
+            assertTrue(reopened.hasAnySlotHistory(other));
+            assertEquals(Arrays.toString(plan), Arrays.toString(reopened.plan(PLAYER, snapshot)));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private InventorySorter.PreferenceStore open() {
+        return new InventorySorter.PreferenceStore(dir, null, "mmap", 0, 0L, 0L, null);
+    }
+
+    // Prefs for two slots, SlotHistory.DEPTH entries in slot 0 and recency entries over distinct signature/slot pairs
+    private static InventorySorter.PreferenceStore.PlayerData sample(int recencyEntries) {
+        InventorySorter.PreferenceStore.PlayerData data = new InventorySorter.PreferenceStore.PlayerData(PLAYER);
+        Map<InventorySorter.ItemSignature, List<Integer>> prefs = new LinkedHashMap<InventorySorter.ItemSignature, List<Integer>>();
+        prefs.put(sig(0), new ArrayList<Integer>(Arrays.asList(0)));
+        prefs.put(sig(1), new ArrayList<Integer>(Arrays.asList(8, 9)));
+        data.setPrefs(InventorySorter.Layout.acquire(prefs));
+        for (int i = 0; i < InventorySorter.SlotHistory.DEPTH; i++) {
+            data.history.add(0, sig(i), T0 + i * 1001L);
+        }
+        for (int i = 0; i < recencyEntries; i++) {
+            data.recency.put(sig(i / InventorySorter.SlotHistory.SLOTS), i % InventorySorter.SlotHistory.SLOTS, T0 + i);
+        }
+        return data;
+    }
+
+    private static InventorySorter.ItemSignature sig(int kit) {
+        return InventorySorter.ItemSignature.intern(Material.IRON_SWORD, null, "Kit sword " + kit, null);
+    }
+
+    private static void assertSame(InventorySorter.PreferenceStore.PlayerData expected,
+                                   InventorySorter.PreferenceStore.PlayerData actual) {
+        assertEquals(expected.prefs.asMap(), actual.prefs.asMap());
+        for (int slot = 0; slot < InventorySorter.SlotHistory.SLOTS; slot++) {
+            assertEquals(expected.history.size(slot), actual.history.size(slot), "slot " + slot);
+            for (int i = 0; i < expected.history.size(slot); i++) {
+                assertEquals(expected.history.sigIdAt(slot, i), actual.history.sigIdAt(slot, i));
+                assertEquals(expected.history.timeAt(slot, i), actual.history.timeAt(slot, i));
+            }
+        }
+        int[] entries = expected.recency.sortedEntries();
+        assertEquals(Arrays.toString(entries), Arrays.toString(actual.recency.sortedEntries()));
+        for (int entry : entries) {
+            InventorySorter.ItemSignature sig = InventorySorter.ItemSignature.byId(entry / InventorySorter.SlotHistory.SLOTS);
+            int slot = entry % InventorySorter.SlotHistory.SLOTS;
+            assertEquals(expected.recency.get(sig, slot), actual.recency.get(sig, slot));
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package me.hi;
+
+import org.bukkit.Material;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * One PreferenceStore on shard files: what happens to stored data the store can't read, the plan memo, eviction and
+ * compaction.
+ */
+class PreferenceStoreTest {
+    private static final UUID PLAYER = UUID.fromString("3d2a8e61-7b4f-4c19-a0d5-9e8c1f6b2a47");
+    private static final UUID SECOND = UUID.fromString("8b15f0c7-2e9a-4d63-b7c4-51a0e8f92d3e");
+    private static final UUID THIRD = UUID.fromString("c6e04a2d-93b1-47f8-8d5e-0f7a21b6c954");
+
+    @TempDir
+    File dir;
+
+    private final List<InventorySorter.PreferenceStore> stores = new ArrayList<InventorySorter.PreferenceStore>();
+
+    @AfterEach
+    void closeStores() {
+        for (InventorySorter.PreferenceStore store : stores) store.close();
+    }
+
+    @Test
+    void failingBackendLeavesStoredDataAlone() throws Exception {
+        InventorySorter.PreferenceStore store = open();
+        store.load(PLAYER);
+        store.savePreferences(PLAYER, prefs(Material.DIAMOND_SWORD, 0));
+        store.flush();
+        File shard = shardFile();
+        byte[] stored = Files.readAllBytes(shard.toPath());
+
+        // The shard can't be read for now (a directory in its place makes every read fail)
+        File aside = new File(shard.getPath() + ".aside");
+        assertTrue(shard.renameTo(aside));
+        assertTrue(shard.mkdir());
+        InventorySorter.PreferenceStore reopened = open();
+        reopened.load(PLAYER);
+        assertFalse(reopened.isLoaded(PLAYER));
+        reopened.savePreferences(PLAYER, prefs(Material.BOW, 3));
+        reopened.flush();
+        assertTrue(shard.isDirectory());
+        assertFalse(new File(shard.getPath() + ".corrupt").exists());
+
+        // Once it is readable again, the next use loads it
+        assertTrue(shard.delete());
+        assertTrue(aside.renameTo(shard));
+        reopened.load(PLAYER);
+        assertTrue(reopened.isLoaded(PLAYER));
+        assertEquals(prefs(Material.DIAMOND_SWORD, 0), reopened.getPreferences(PLAYER));
+        assertArrayEquals(stored, Files.readAllBytes(shard.toPath()));
+    }
+
+    @Test
+    void undecodableDataIsQuarantined() throws Exception {
+        File shard = shardFile();
+        assertTrue(shard.getParentFile().mkdirs());
+        Files.write(shard.toPath(), new byte[]{(byte) 0xff, 0x13, 0x37});
+
+        InventorySorter.PreferenceStore store = open();
+        store.load(PLAYER);
+        assertTrue(store.isLoaded(PLAYER));
+        assertEquals(Collections.emptyMap(), store.getPreferences(PLAYER));
+        assertTrue(new File(shard.getPath() + ".corrupt").isFile());
+    }
+
+    @Test
+    void planIsMemoizedUntilSomethingChanges() {
+        InventorySorter.PreferenceStore store = open();
+        store.load(PLAYER);
+        store.savePreferences(PLAYER, prefs(Material.BOW, 0, Material.DIAMOND_SWORD, 1));
+        InventorySorter.ItemSignature[] swordFirst = kit(Material.DIAMOND_SWORD, Material.BOW);
+        InventorySorter.ItemSignature[] bowFirst = kit(Material.BOW, Material.DIAMOND_SWORD);
+
+        int[] plan = store.plan(PLAYER, swordFirst);
+        assertCounts(store, 0, 1);
+        int[] again = store.plan(PLAYER, swordFirst);
+        assertCounts(store, 1, 1);
+        assertArrayEquals(plan, again);
+        // Callers get a copy of the memo
+        again[0] = 35;
+        assertArrayEquals(plan, store.plan(PLAYER, swordFirst));
+        assertCounts(store, 2, 1);
+
+        // Another layout is planned, and then memoized instead
+        int[] inPlace = store.plan(PLAYER, bowFirst);
+        assertCounts(store, 2, 2);
+        assertEquals(0, inPlace[0]);
+        assertEquals(1, inPlace[1]);
+        store.plan(PLAYER, bowFirst);
+        assertCounts(store, 3, 2);
+
+        // A snapshot, new preferences and reloaded rules each invalidate it
+        store.saveSlotHistory(PLAYER, bowFirst, 1700000000000L);
+        store.plan(PLAYER, bowFirst);
+        assertCounts(store, 3, 3);
+        store.savePreferences(PLAYER, prefs(Material.DIAMOND_SWORD, 0, Material.BOW, 1));
+        int[] swapped = store.plan(PLAYER, bowFirst);
+        assertCounts(store, 3, 4);
+        assertEquals(1, swapped[0]);
+        assertEquals(0, swapped[1]);
+        store.rulesChanged();
+        assertArrayEquals(swapped, store.plan(PLAYER, bowFirst));
+        assertCounts(store, 3, 5);
+        store.plan(PLAYER, bowFirst);
+        assertCounts(store, 4, 5);
+    }
+
+    @Test
+    void playerWithoutDataIsPlannedButNotMemoized() {
+        InventorySorter.PreferenceStore store = open();
+        InventorySorter.ItemSignature[] kit = kit(Material.DIAMOND_SWORD, Material.BOW);
+        store.plan(PLAYER, kit);
+        store.plan(PLAYER, kit);
+        assertCounts(store, 0, 2);
+        assertFalse(store.isLoaded(PLAYER));
+        assertNull(store.plan(PLAYER, new InventorySorter.ItemSignature[36]));
+    }
+
+    @Test
+    void leastRecentlyUsedPlayersGoOverBudget() throws Exception {
+        InventorySorter.PreferenceStore store = open(2, 0L);
+        store.load(PLAYER);
+        store.savePreferences(PLAYER, prefs(Material.DIAMOND_SWORD, 0));
+        Thread.sleep(5L);
+        store.load(SECOND);
+        Thread.sleep(5L);
+        store.load(THIRD);
+        store.evict();
+        assertResident(store, false, true, true);
+        assertEquals(1L, store.budgetEvictions());
+        assertEquals(0L, store.idleEvictions());
+
+        // Reading a player counts as use, so the other one goes next
+        Thread.sleep(5L);
+        store.getPreferences(SECOND);
+        Thread.sleep(5L);
+        store.load(PLAYER);
+        store.evict();
+        assertResident(store, true, true, false);
+        assertEquals(2L, store.budgetEvictions());
+
+        // The evicted change was written before the player left, and loading them again reads it back
+        assertEquals(prefs(Material.DIAMOND_SWORD, 0), store.getPreferences(PLAYER));
+        store.evict();
+        assertResident(store, true, true, false);
+        assertEquals(2L, store.budgetEvictions());
+    }
+
+    @Test
+    void idlePlayersAreEvicted() throws Exception {
+        InventorySorter.PreferenceStore store = open(0, 50L);
+        store.load(PLAYER);
+        store.savePreferences(PLAYER, prefs(Material.BOW, 3));
+        Thread.sleep(100L);
+        store.load(SECOND);
+        store.evict();
+        assertResident(store, false, true, false);
+        assertEquals(1L, store.idleEvictions());
+        assertEquals(0L, store.budgetEvictions());
+        assertEquals(1, store.residentCount());
+
+        store.load(PLAYER);
+        assertEquals(prefs(Material.BOW, 3), store.getPreferences(PLAYER));
+        InventorySorter.PreferenceStore reopened = open();
+        reopened.load(PLAYER);
+        assertEquals(prefs(Material.BOW, 3), reopened.getPreferences(PLAYER));
+    }
+
+    @Test
+    void compactionDropsWhatIsPastItsHorizons() throws Exception {
+        long now = System.currentTimeMillis();
+        long day = 24L * 60L * 60L * 1000L;
+        InventorySorter.PreferenceStore store = open();
+        // An old snapshot, a recent one, and a legacy entry without a timestamp
+        store.load(PLAYER);
+        store.savePreferences(PLAYER, prefs(Material.DIAMOND_SWORD, 0));
+        store.saveSlotHistory(PLAYER, kit(Material.IRON_SWORD, Material.BOW), now - 10L * day);
+        store.saveSlotHistory(PLAYER, kit(Material.DIAMOND_SWORD), now - day);
+        store.saveSlotHistory(PLAYER, kit(null, null, Material.ARROW), 0L);
+        // Nothing but an old snapshot
+        store.load(SECOND);
+        store.saveSlotHistory(SECOND, kit(Material.STONE_SWORD), now - 10L * day);
+        // Recent data, but not written for longer than the unseen cutoff
+        store.load(THIRD);
+        store.savePreferences(THIRD, prefs(Material.BOW, 0));
+        store.saveSlotHistory(THIRD, kit(Material.BOW), now - day);
+        store.flush();
+        assertTrue(shardFile(THIRD).setLastModified(now - 100L * day));
+
+        InventorySorter.PreferenceStore compacting = open();
+        final CompletableFuture<InventorySorter.PreferenceStore.CompactionResult> done =
+                new CompletableFuture<InventorySorter.PreferenceStore.CompactionResult>();
+        assertTrue(compacting.compact(90L * day, 7L * day,
+                new java.util.function.Consumer<InventorySorter.PreferenceStore.CompactionResult>() {
+                    @Override
+                    public void accept(InventorySorter.PreferenceStore.CompactionResult result) {
+                        done.complete(result);
+                    }
+                }));
+        InventorySorter.PreferenceStore.CompactionResult result = done.get(10L, TimeUnit.SECONDS);
+        assertEquals(3, result.players);
+        assertEquals(2, result.dropped);
+        assertEquals(1, result.rewritten);
+        assertTrue(result.bytesAfter < result.bytesBefore);
+        assertEquals(Collections.singletonList(PLAYER), new ArrayList<UUID>(new ShardFileBackend(dir).players()));
+
+        InventorySorter.PreferenceStore.PlayerData kept = new InventorySorter.PreferenceStore.PlayerData(PLAYER);
+        try {
+            InventorySorter.PrefsCodec.decode(new ShardFileBackend(dir).load(PLAYER), kept,
+                    Collections.<Integer, InventorySorter.Layout>emptyMap());
+            assertEquals(prefs(Material.DIAMOND_SWORD, 0), kept.prefs.asMap());
+            assertEquals(1, kept.history.size(0));
+            assertEquals(kit(Material.DIAMOND_SWORD)[0].id(), kept.history.sigIdAt(0, 0));
+            assertEquals(now - day, kept.history.timeAt(0, 0));
+            assertEquals(0, kept.history.size(1));
+            assertEquals(1, kept.history.size(2));
+            assertEquals(0L, kept.history.timeAt(2, 0));
+            assertEquals(2, kept.recency.sortedEntries().length);
+            assertEquals(now - day, kept.recency.get(kit(Material.DIAMOND_SWORD)[0], 0));
+            assertEquals(0L, kept.recency.get(kit(null, null, Material.ARROW)[2], 2));
+        } finally {
+            kept.release();
+        }
+    }
+
+    private InventorySorter.PreferenceStore open() {
+        return open(0, 0L);
+    }
+
+    private InventorySorter.PreferenceStore open(int maxResidentPlayers, long idleTtlMs) {
+        InventorySorter.PreferenceStore store = new InventorySorter.PreferenceStore(dir, null, "shards",
+                maxResidentPlayers, 0L, idleTtlMs, null);
+        stores.add(store);
+        return store;
+    }
+
+    private static void assertResident(InventorySorter.PreferenceStore store, boolean player, boolean second,
+                                       boolean third) {
+        assertEquals(player, store.isLoaded(PLAYER), "PLAYER resident");
+        assertEquals(second, store.isLoaded(SECOND), "SECOND resident");
+        assertEquals(third, store.isLoaded(THIRD), "THIRD resident");
+    }
+
+    // Where ShardFileBackend keeps the player
+    private File shardFile() {
+        return shardFile(PLAYER);
+    }
+
+    private File shardFile(UUID player) {
+        return new File(new File(dir, String.format("%02x", player.hashCode() & 0xff)), player + ".bin");
+    }
+
+    private static void assertCounts(InventorySorter.PreferenceStore store, long hits, long misses) {
+        assertEquals(hits, store.planHits(), "plan hits");
+        assertEquals(misses, store.planMisses(), "plan misses");
+    }
+
+    // The materials in slots 0, 1, ... (null = empty); the rest of the inventory empty
+    private static InventorySorter.ItemSignature[] kit(Material... mats) {
+        InventorySorter.ItemSignature[] sigs = new InventorySorter.ItemSignature[36];
+        for (int slot = 0; slot < mats.length; slot++) {
+            if (mats[slot] != null) sigs[slot] = InventorySorter.ItemSignature.intern(mats[slot], null, null, null);
+        }
+        return sigs;
+    }
+
+    private static Map<InventorySorter.ItemSignature, List<Integer>> prefs(Object... matSlots) {
+        Map<InventorySorter.ItemSignature, List<Integer>> prefs = new LinkedHashMap<InventorySorter.ItemSignature, List<Integer>>();
+        for (int i = 0; i < matSlots.length; i += 2) {
+            prefs.put(InventorySorter.ItemSignature.intern((Material) matSlots[i], null, null, null),
+                    new ArrayList<Integer>(Arrays.asList((Integer) matSlots[i + 1])));
+        }
+        return prefs;
+    }
+}
@@ -0,0 +1,163 @@
+package me.hi;
+
+import org.bukkit.Material;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Two or three PreferenceStores, each with its own directory, synced over one InProcessPreferenceNetwork the way
+ * servers of a network are: invalidation of resident players, outages of one server and the replay of its changes
+ * afterwards, and the last change winning.
+ */
+class PreferenceSyncTest {
+    private static final long RETRY_MS = 50L;
+    private static final long TIMEOUT_MS = 5000L;
+
+    private static final UUID PLAYER = UUID.fromString("6b1f6c3e-63f4-4c0e-9a8c-3f1b2f0c9d11");
+
+    @TempDir
+    File dir;
+
+    private final InProcessPreferenceNetwork network = new InProcessPreferenceNetwork();
+    private final List<InventorySorter.PreferenceStore> stores = new ArrayList<InventorySorter.PreferenceStore>();
+
+    @AfterEach
+    void closeStores() {
+        for (InventorySorter.PreferenceStore store : stores) store.close();
+    }
+
+    @Test
+    void changeOnOneServerRefreshesTheOther() throws Exception {
+        InventorySorter.PreferenceStore a = open("a", network.join());
+        InventorySorter.PreferenceStore b = open("b", network.join());
+        a.load(PLAYER);
+        b.load(PLAYER);
+
+        a.savePreferences(PLAYER, prefs(Material.DIAMOND_SWORD, 0, Material.BOW, 1));
+        a.flush();
+        awaitPrefs(b, prefs(Material.DIAMOND_SWORD, 0, Material.BOW, 1));
+
+        // And back: the later change wins on both
+        b.savePreferences(PLAYER, prefs(Material.DIAMOND_SWORD, 2, Material.BOW, 0));
+        b.flush();
+        awaitPrefs(a, prefs(Material.DIAMOND_SWORD, 2, Material.BOW, 0));
+        assertEquals(prefs(Material.DIAMOND_SWORD, 2, Material.BOW, 0), b.getPreferences(PLAYER));
+    }
+
+    @Test
+    void loadTakesTheNetworkCopy() throws Exception {
+        InventorySorter.PreferenceStore a = open("a", network.join());
+        a.load(PLAYER);
+        a.savePreferences(PLAYER, prefs(Material.IRON_SWORD, 4));
+        a.flush();
+
+        InventorySorter.PreferenceStore b = open("b", network.join());
+        awaitLoaded(b, prefs(Material.IRON_SWORD, 4));
+    }
+
+    @Test
+    void outageKeepsChangesAndReplaysThem() throws Exception {
+        InProcessPreferenceNetwork endpoint = network.join();
+        InventorySorter.PreferenceStore a = open("a", endpoint);
+        InventorySorter.PreferenceStore b = open("b", network.join());
+        a.load(PLAYER);
+        b.load(PLAYER);
+
+        endpoint.setReachable(false);
+        a.savePreferences(PLAYER, prefs(Material.STONE_SWORD, 3));
+        a.flush();
+        // Kept locally, not published while a is cut off
+        Thread.sleep(4 * RETRY_MS);
+        assertEquals(prefs(Material.STONE_SWORD, 3), a.getPreferences(PLAYER));
+        assertEquals(Collections.emptyMap(), b.getPreferences(PLAYER));
+
+        endpoint.setReachable(true);
+        awaitPrefs(b, prefs(Material.STONE_SWORD, 3));
+    }
+
+    @Test
+    void replayDoesNotOverwriteANewerChange() throws Exception {
+        InProcessPreferenceNetwork endpoint = network.join();
+        InventorySorter.PreferenceStore a = open("a", endpoint);
+        InventorySorter.PreferenceStore b = open("b", network.join());
+        a.load(PLAYER);
+        b.load(PLAYER);
+
+        endpoint.setReachable(false);
+        a.savePreferences(PLAYER, prefs(Material.GOLD_SWORD, 5));
+        a.flush();
+        Thread.sleep(20L);
+        b.savePreferences(PLAYER, prefs(Material.WOOD_SWORD, 6));
+        b.flush();
+
+        endpoint.setReachable(true);
+        awaitPrefs(a, prefs(Material.WOOD_SWORD, 6));
+        assertEquals(prefs(Material.WOOD_SWORD, 6), b.getPreferences(PLAYER));
+        // The network copy is still b's
+        awaitLoaded(open("c", network.join()), prefs(Material.WOOD_SWORD, 6));
+    }
+
+    private InventorySorter.PreferenceStore open(String server, InProcessPreferenceNetwork endpoint) {
+        InventorySorter.PreferenceSync sync = new InventorySorter.PreferenceSync(endpoint, server, 1000L, 0L, RETRY_MS);
+        InventorySorter.PreferenceStore store = new InventorySorter.PreferenceStore(new File(dir, server), null,
+                "shards", 0, 0L, 0L, sync);
+        stores.add(store);
+        return store;
+    }
+
+    // A fresh store may still be connecting; loads before that only see local data
+    private static void awaitLoaded(final InventorySorter.PreferenceStore store,
+                                    final Map<InventorySorter.ItemSignature, List<Integer>> expected) throws InterruptedException {
+        await(new BooleanSupplier() {
+            @Override
+            public boolean getAsBoolean() {
+                store.load(PLAYER);
+                if (expected.equals(store.getPreferences(PLAYER))) return true;
+                store.unload(PLAYER);
+                store.flush();
+                return false;
+            }
+        }, "load " + expected);
+    }
+
+    private static void awaitPrefs(final InventorySorter.PreferenceStore store,
+                                   final Map<InventorySorter.ItemSignature, List<Integer>> expected) throws InterruptedException {
+        await(new BooleanSupplier() {
+            @Override
+            public boolean getAsBoolean() {
+                return expected.equals(store.getPreferences(PLAYER));
+            }
+        }, "resident " + expected);
+    }
+
+    private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) fail("Timed out waiting for " + what);
+            Thread.sleep(10L);
+        }
+    }
+
+    private static Map<InventorySorter.ItemSignature, List<Integer>> prefs(Object... matSlots) {
+        Map<InventorySorter.ItemSignature, List<Integer>> prefs = new LinkedHashMap<InventorySorter.ItemSignature, List<Integer>>();
+        for (int i = 0; i < matSlots.length; i += 2) {
+            prefs.put(InventorySorter.ItemSignature.intern((Material) matSlots[i], null, null, null),
+                    new ArrayList<Integer>(Arrays.asList((Integer) matSlots[i + 1])));
+        }
+        return prefs;
+    }
+}
@@ -0,0 +1,117 @@
+package me.hi;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * PrefsCodec against the YAML format it replaced (BaselinePrefsYaml) on PrefsCorpus: both must carry the same data,
+ * and the sizes and encode/decode times of both are printed. For steady-state numbers use PrefsEncodingBenchmark.
+ */
+class PrefsCodecCorpusTest {
+    private static final int ROUNDS = 3;
+
+    private final PrefsCorpus corpus = new PrefsCorpus();
+
+    @Test
+    void bothFormatsRoundTripTheCorpus() throws Exception {
+        for (PrefsCorpus.Player player : corpus.players) {
+            InventorySorter.Layout layout = InventorySorter.Layout.acquire(player.prefs);
+            InventorySorter.PreferenceStore.PlayerData decoded = new InventorySorter.PreferenceStore.PlayerData(player.id);
+            try {
+                InventorySorter.PrefsCodec.decode(InventorySorter.PrefsCodec.encode(layout, player.history, player.recency),
+                        decoded, Collections.<Integer, InventorySorter.Layout>emptyMap());
+                assertEquals(player.prefs, decoded.prefs.asMap());
+                assertSameState(player, decoded.history, decoded.recency);
+            } finally {
+                decoded.release();
+                layout.release();
+            }
+
+            PrefsCorpus.Player yaml = BaselinePrefsYaml.decode(BaselinePrefsYaml.encode(player), new PrefsCorpus.Player(player.id));
+            assertEquals(player.prefs, yaml.prefs);
+            assertSameState(player, yaml.history, yaml.recency);
+        }
+    }
+
+    @Test
+    void reportsSizeAndTime() throws Exception {
+        int players = corpus.players.size();
+        byte[][] codec = new byte[players][];
+        String[] yaml = new String[players];
+        long codecBytes = 0, yamlBytes = 0;
+        for (int i = 0; i < players; i++) {
+            codec[i] = encodeCodec(corpus.players.get(i));
+            yaml[i] = BaselinePrefsYaml.encode(corpus.players.get(i));
+            codecBytes += codec[i].length;
+            yamlBytes += yaml[i].getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        // Best of a few rounds; the first ones include class loading and JIT
+        long codecEncode = Long.MAX_VALUE, codecDecode = Long.MAX_VALUE;
+        long yamlEncode = Long.MAX_VALUE, yamlDecode = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long t0 = System.nanoTime();
+            for (PrefsCorpus.Player player : corpus.players) encodeCodec(player);
+            long t1 = System.nanoTime();
+            for (int i = 0; i < players; i++) {
+                InventorySorter.PreferenceStore.PlayerData data =
+                        new InventorySorter.PreferenceStore.PlayerData(corpus.players.get(i).id);
+                InventorySorter.PrefsCodec.decode(codec[i], data, Collections.<Integer, InventorySorter.Layout>emptyMap());
+                data.release();
+            }
+            long t2 = System.nanoTime();
+            for (PrefsCorpus.Player player : corpus.players) BaselinePrefsYaml.encode(player);
+            long t3 = System.nanoTime();
+            for (int i = 0; i < players; i++) {
+                BaselinePrefsYaml.decode(yaml[i], new PrefsCorpus.Player(corpus.players.get(i).id));
+            }
+            long t4 = System.nanoTime();
+            codecEncode = Math.min(codecEncode, t1 - t0);
+            codecDecode = Math.min(codecDecode, t2 - t1);
+            yamlEncode = Math.min(yamlEncode, t3 - t2);
+            yamlDecode = Math.min(yamlDecode, t4 - t3);
+        }
+
+        System.out.printf("Preference corpus: %d players%n", players);
+        System.out.printf("  PrefsCodec: %7d bytes (%5.0f/player), encode %6.1f us/player, decode %6.1f us/player%n",
+                codecBytes, (double) codecBytes / players, codecEncode / 1e3 / players, codecDecode / 1e3 / players);
+        System.out.printf("  YAML:       %7d bytes (%5.0f/player), encode %6.1f us/player, decode %6.1f us/player%n",
+                yamlBytes, (double) yamlBytes / players, yamlEncode / 1e3 / players, yamlDecode / 1e3 / players);
+
+        assertTrue(codecBytes < yamlBytes, "binary payloads should be smaller than YAML");
+    }
+
+    private static byte[] encodeCodec(PrefsCorpus.Player player) throws IOException {
+        InventorySorter.Layout layout = InventorySorter.Layout.acquire(player.prefs);
+        try {
+            return InventorySorter.PrefsCodec.encode(layout, player.history, player.recency);
+        } finally {
+            layout.release();
+        }
+    }
+
+    private static void assertSameState(PrefsCorpus.Player expected, InventorySorter.SlotHistory history,
+                                        InventorySorter.SignatureSlotRecency recency) {
+        for (int slot = 0; slot < InventorySorter.SlotHistory.SLOTS; slot++) {
+            assertEquals(expected.history.size(slot), history.size(slot), "history size of slot " + slot);
+            for (int i = 0; i < history.size(slot); i++) {
+                assertEquals(expected.history.sigIdAt(slot, i), history.sigIdAt(slot, i));
+                assertEquals(expected.history.timeAt(slot, i), history.timeAt(slot, i));
+            }
+        }
+        int[] entries = expected.recency.sortedEntries();
+        assertArrayEquals(entries, recency.sortedEntries());
+        for (int entry : entries) {
+            InventorySorter.ItemSignature sig = InventorySorter.ItemSignature.byId(entry / InventorySorter.SlotHistory.SLOTS);
+            int slot = entry % InventorySorter.SlotHistory.SLOTS;
+            assertEquals(expected.recency.get(sig, slot), recency.get(sig, slot));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package me.hi;
+
+import org.bukkit.Material;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * PrefsCodec payloads that don't match this server: materials it doesn't know.
+ */
+class PrefsCodecTest {
+    private static final UUID PLAYER = UUID.fromString("0f4c9a52-5d3e-4a7e-8c1b-2d6f3e9a0b17");
+
+    @Test
+    void unknownMaterialDropsOnlyItsEntries() throws Exception {
+        InventorySorter.ItemSignature sword = sig(Material.DIAMOND_SWORD);
+        InventorySorter.ItemSignature bow = sig(Material.BOW);
+        Map<InventorySorter.ItemSignature, List<Integer>> prefs = new LinkedHashMap<InventorySorter.ItemSignature, List<Integer>>();
+        prefs.put(sword, new ArrayList<Integer>(Arrays.asList(0)));
+        prefs.put(bow, new ArrayList<Integer>(Arrays.asList(1, 2)));
+        InventorySorter.SlotHistory history = new InventorySorter.SlotHistory();
+        InventorySorter.SignatureSlotRecency recency = new InventorySorter.SignatureSlotRecency();
+        history.add(0, sword, 1000L);
+        history.add(1, bow, 1000L);
+        history.add(1, sword, 2000L);
+        recency.put(sword, 0, 1000L);
+        recency.put(bow, 1, 1000L);
+
+        InventorySorter.Layout layout = InventorySorter.Layout.acquire(prefs);
+        byte[] payload;
+        try {
+            payload = InventorySorter.PrefsCodec.encode(layout, history, recency);
+        } finally {
+            layout.release();
+        }
+        // As if written by a server that has a material this one doesn't: rename BOW in the string table
+        int at = indexOf(payload, new byte[]{3, 'B', 'O', 'W'});
+        assertTrue(at >= 0);
+        payload[at + 1] = 'Q';
+
+        InventorySorter.PreferenceStore.PlayerData decoded = new InventorySorter.PreferenceStore.PlayerData(PLAYER);
+        try {
+            InventorySorter.PrefsCodec.decode(payload, decoded, Collections.<Integer, InventorySorter.Layout>emptyMap());
+            Map<InventorySorter.ItemSignature, List<Integer>> expected = new LinkedHashMap<InventorySorter.ItemSignature, List<Integer>>();
+            expected.put(sword, Arrays.asList(0));
+            assertEquals(expected, decoded.prefs.asMap());
+            assertEquals(1, decoded.history.size(0));
+            assertEquals(1, decoded.history.size(1));
+            assertEquals(sword.id(), decoded.history.sigIdAt(1, 0));
+            assertEquals(2000L, decoded.history.timeAt(1, 0));
+            assertEquals(1000L, decoded.recency.get(sword, 0));
+            assertEquals(1, decoded.recency.sortedEntries().length);
+        } finally {
+            decoded.release();
+        }
+    }
+
+    @Test
+    void unknownMaterialInTheYamlFormatIsNull() {
+        assertNull(InventorySorter.ItemSignature.fromString("QOW|name=Old Bow"));
+        assertEquals(sig(Material.BOW), InventorySorter.ItemSignature.fromString(sig(Material.BOW).toString()));
+    }
+
+    private static InventorySorter.ItemSignature sig(Material mat) {
+        return InventorySorter.ItemSignature.intern(mat, null, null, null);
+    }
+
+    private static int indexOf(byte[] data, byte[] part) {
+        outer:
+        for (int i = 0; i + part.length <= data.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (data[i + j] != part[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,118 @@
+package me.hi;
+
+import org.bukkit.Material;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * A fixed, seeded set of players' preference data shaped like a PvP server's: a few kits, most players on a
+ * variation of one, 4 to 15 rotations' worth of snapshots each. Every snapshot goes through SlotHistory.add and
+ * SignatureSlotRecency.put exactly as PreferenceStore.saveSlotHistory does.
+ */
+final class PrefsCorpus {
+    static final int PLAYERS = 500;
+
+    final List<Player> players = new ArrayList<Player>();
+
+    static final class Player {
+        final UUID id;
+        // The latest snapshot's layout
+        Map<InventorySorter.ItemSignature, List<Integer>> prefs;
+        final InventorySorter.SlotHistory history = new InventorySorter.SlotHistory();
+        final InventorySorter.SignatureSlotRecency recency = new InventorySorter.SignatureSlotRecency();
+
+        Player(UUID id) {
+            this.id = id;
+        }
+    }
+
+    PrefsCorpus() {
+        Random random = new Random(3L);
+        List<InventorySorter.ItemSignature[]> kits = new ArrayList<InventorySorter.ItemSignature[]>();
+        kits.add(new InventorySorter.ItemSignature[]{
+                enchanted(Material.DIAMOND_SWORD, "DAMAGE_ALL", 2), enchanted(Material.BOW, "ARROW_DAMAGE", 1),
+                sig(Material.FISHING_ROD, null), sig(Material.GOLDEN_APPLE, null), sig(Material.ARROW, null),
+                sig(Material.COOKED_BEEF, null), sig(Material.STONE, null), sig(Material.IRON_AXE, null),
+                potion("INSTANT_HEAL", 2, false, true), potion("SPEED", 1, true, false)});
+        kits.add(new InventorySorter.ItemSignature[]{
+                sig(Material.IRON_SWORD, "Team Sword"), sig(Material.BOW, "Team Bow"), sig(Material.ARROW, null),
+                sig(Material.GOLDEN_APPLE, null), sig(Material.GLASS, null), sig(Material.IRON_PICKAXE, null),
+                sig(Material.IRON_SPADE, null), sig(Material.WATER_BUCKET, null), sig(Material.BREAD, null)});
+        kits.add(new InventorySorter.ItemSignature[]{
+                enchanted(Material.STONE_SWORD, "KNOCKBACK", 1), sig(Material.BOW, null), sig(Material.ARROW, null),
+                sig(Material.SHEARS, null), sig(Material.STONE, null), sig(Material.COOKED_CHICKEN, null),
+                sig(Material.FLINT_AND_STEEL, null), potion("INSTANT_HEAL", 1, false, true)});
+
+        long start = 1700000000000L;
+        for (int p = 0; p < PLAYERS; p++) {
+            UUID id = new UUID(random.nextLong(), random.nextLong());
+            InventorySorter.ItemSignature[] kit = kits.get(random.nextInt(kits.size()));
+            // A habitual layout, reshuffled a little between rotations
+            int[] habit = new int[kit.length];
+            for (int i = 0; i < kit.length; i++) habit[i] = i;
+            shuffle(habit, random, 3);
+
+            Player player = new Player(id);
+            long ts = start + random.nextInt(86400000);
+            int snapshots = 4 + random.nextInt(12);
+            for (int s = 0; s < snapshots; s++) {
+                if (random.nextInt(4) == 0) shuffle(habit, random, 1);
+                InventorySorter.ItemSignature[] slots = new InventorySorter.ItemSignature[36];
+                for (int i = 0; i < kit.length; i++) slots[habit[i]] = kit[i];
+                // Extra stacks of blocks/arrows in the main inventory
+                for (int extra = random.nextInt(6); extra > 0; extra--) {
+                    int slot = 9 + random.nextInt(27);
+                    if (slots[slot] == null) slots[slot] = kit[4];
+                }
+                Map<InventorySorter.ItemSignature, List<Integer>> prefs =
+                        new LinkedHashMap<InventorySorter.ItemSignature, List<Integer>>();
+                for (int slot = 0; slot < 36; slot++) {
+                    InventorySorter.ItemSignature sig = slots[slot];
+                    if (sig == null) continue;
+                    List<Integer> list = prefs.get(sig);
+                    if (list == null) {
+                        list = new ArrayList<Integer>();
+                        prefs.put(sig, list);
+                    }
+                    list.add(slot);
+                    player.history.add(slot, sig, ts);
+                    player.recency.put(sig, slot, ts);
+                }
+                player.prefs = prefs;
+                ts += 600000L + random.nextInt(3600000);
+            }
+            players.add(player);
+        }
+    }
+
+    private static void shuffle(int[] slots, Random random, int swaps) {
+        for (int i = 0; i < swaps; i++) {
+            int a = random.nextInt(slots.length);
+            int b = random.nextInt(slots.length);
+            int t = slots[a];
+            slots[a] = slots[b];
+            slots[b] = t;
+        }
+    }
+
+    private static InventorySorter.ItemSignature sig(Material mat, String name) {
+        return InventorySorter.ItemSignature.intern(mat, null, name, null);
+    }
+
+    private static InventorySorter.ItemSignature enchanted(Material mat, String enchant, int level) {
+        TreeMap<String, Integer> ench = new TreeMap<String, Integer>();
+        ench.put(enchant, level);
+        return InventorySorter.ItemSignature.intern(mat, null, null, ench);
+    }
+
+    private static InventorySorter.ItemSignature potion(String type, int level, boolean extended, boolean splash) {
+        String key = type + ":lvl=" + level + ":ext=" + (extended ? "1" : "0") + ":splash=" + (splash ? "1" : "0");
+        return InventorySorter.ItemSignature.intern(Material.POTION, key, null, null);
+    }
+}
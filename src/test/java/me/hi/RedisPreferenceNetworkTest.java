@@ -0,0 +1,311 @@
+package me.hi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * RedisPreferenceNetwork's RESP client against ScriptedRedis, a socket server that records every command it gets as
+ * raw bytes and answers with whatever reply the test queued for it.
+ */
+class RedisPreferenceNetworkTest {
+    // Binary payload with CR, LF and bytes that aren't valid UTF-8
+    private static final byte[] PAYLOAD = {0, 13, 10, (byte) 0xFF, '$', '*', 13, 10, 42};
+
+    private final ScriptedRedis redis = new ScriptedRedis();
+    private RedisPreferenceNetwork network;
+
+    @AfterEach
+    void close() throws IOException {
+        if (network != null) network.close();
+        redis.close();
+    }
+
+    @Test
+    void authAndSelectOpenTheConnection() throws Exception {
+        network = new RedisPreferenceNetwork("127.0.0.1", redis.port(), "secret", 3);
+        redis.reply("+OK\r\n", "+OK\r\n", "+PONG\r\n");
+        network.ping();
+        assertEquals("*2\r\n$4\r\nAUTH\r\n$6\r\nsecret\r\n", redis.nextCommand());
+        assertEquals("*2\r\n$6\r\nSELECT\r\n$1\r\n3\r\n", redis.nextCommand());
+        assertEquals("*1\r\n$4\r\nPING\r\n", redis.nextCommand());
+    }
+
+    @Test
+    void setSendsBinaryValuesAsBulkStrings() throws Exception {
+        network = new RedisPreferenceNetwork("127.0.0.1", redis.port(), "", 0);
+        redis.reply("+OK\r\n", "+OK\r\n", ":2\r\n");
+        network.set("pgmutil:prefs:k", PAYLOAD, 60L);
+        network.set("k", new byte[0], 0L);
+        network.publish("chan", "srv 1 2");
+
+        assertEquals("*5\r\n$3\r\nSET\r\n$15\r\npgmutil:prefs:k\r\n$9\r\n" + latin1(PAYLOAD) + "\r\n$2\r\nEX\r\n$2\r\n60\r\n",
+                redis.nextCommand());
+        assertEquals("*3\r\n$3\r\nSET\r\n$1\r\nk\r\n$0\r\n\r\n", redis.nextCommand());
+        assertEquals("*3\r\n$7\r\nPUBLISH\r\n$4\r\nchan\r\n$7\r\nsrv 1 2\r\n", redis.nextCommand());
+    }
+
+    @Test
+    void getParsesBulkAndNilReplies() throws Exception {
+        network = new RedisPreferenceNetwork("127.0.0.1", redis.port(), null, 0);
+        redis.reply("$9\r\n" + latin1(PAYLOAD) + "\r\n", "$-1\r\n", "$0\r\n\r\n");
+        assertArrayEquals(PAYLOAD, network.get("a"));
+        assertNull(network.get("b"));
+        assertArrayEquals(new byte[0], network.get("c"));
+        assertEquals("*2\r\n$3\r\nGET\r\n$1\r\na\r\n", redis.nextCommand());
+    }
+
+    @Test
+    void errorAndUnexpectedRepliesFailTheCall() throws Exception {
+        network = new RedisPreferenceNetwork("127.0.0.1", redis.port(), null, 0);
+        redis.reply("-WRONGTYPE Operation against a key holding the wrong kind of value\r\n", ":1\r\n", "?\r\n");
+        IOException error = assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                network.get("a");
+            }
+        });
+        assertEquals("Redis error: WRONGTYPE Operation against a key holding the wrong kind of value", error.getMessage());
+        // A well-formed reply of the wrong type fails GET but leaves the connection usable
+        assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                network.get("b");
+            }
+        });
+        assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                network.ping();
+            }
+        });
+        // Error and unparseable replies drop the connection; the next call opens a new one
+        assertEquals(2, redis.connections());
+    }
+
+    @Test
+    void truncatedReplyFailsAndReconnects() throws Exception {
+        network = new RedisPreferenceNetwork("127.0.0.1", redis.port(), null, 0);
+        redis.replyAndHangUp("$9\r\nabc");
+        assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                network.get("a");
+            }
+        });
+        redis.reply("+PONG\r\n");
+        network.ping();
+        assertEquals(2, redis.connections());
+    }
+
+    @Test
+    void subscriberDeliversMessagesOnly() throws Exception {
+        network = new RedisPreferenceNetwork("127.0.0.1", redis.port(), null, 0);
+        redis.reply("*3\r\n$9\r\nsubscribe\r\n$1\r\na\r\n:1\r\n"
+                + "*3\r\n$9\r\nsubscribe\r\n$1\r\nb\r\n:2\r\n"
+                + "*3\r\n$7\r\nmessage\r\n$1\r\nb\r\n$11\r\nsrv uuid 42\r\n");
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        network.subscribe(Arrays.asList("a", "b"), new PreferenceNetwork.Listener() {
+            @Override
+            public void onMessage(String channel, String message) {
+                received.add(channel + "|" + message);
+            }
+
+            @Override
+            public void onResubscribed() {
+                received.add("resubscribed");
+            }
+        });
+        assertEquals("b|srv uuid 42", received.poll(5, TimeUnit.SECONDS));
+        assertEquals("*3\r\n$9\r\nSUBSCRIBE\r\n$1\r\na\r\n$1\r\nb\r\n", redis.nextCommand());
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    private static String latin1(byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Answers each command with the next queued reply, written verbatim (ISO-8859-1, so any byte can be scripted).
+     * A connection with nothing queued for it, or sent a command left unanswered, hangs until the client gives up.
+     */
+    @Test
+    void subscriberReconnectsWhenPingGoesUnanswered() throws Exception {
+        network = new RedisPreferenceNetwork("127.0.0.1", redis.port(), null, 0, 100, 50L);
+        // Half-open connection: the first subscription is confirmed, then nothing ever comes back
+        redis.leaveUnanswered("*1\r\n$4\r\nPING\r\n");
+        redis.reply("*3\r\n$9\r\nsubscribe\r\n$1\r\na\r\n:1\r\n", "*3\r\n$9\r\nsubscribe\r\n$1\r\na\r\n:1\r\n"
+                + "*3\r\n$7\r\nmessage\r\n$1\r\na\r\n$5\r\nafter\r\n");
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        network.subscribe(Arrays.asList("a"), new PreferenceNetwork.Listener() {
+            @Override
+            public void onMessage(String channel, String message) {
+                received.add(channel + "|" + message);
+            }
+
+            @Override
+            public void onResubscribed() {
+                received.add("resubscribed");
+            }
+        });
+        assertEquals("resubscribed", received.poll(5, TimeUnit.SECONDS));
+        assertEquals("a|after", received.poll(5, TimeUnit.SECONDS));
+        assertEquals("*2\r\n$9\r\nSUBSCRIBE\r\n$1\r\na\r\n", redis.nextCommand());
+        assertEquals("*1\r\n$4\r\nPING\r\n", redis.nextCommand());
+        assertEquals("*2\r\n$9\r\nSUBSCRIBE\r\n$1\r\na\r\n", redis.nextCommand());
+        assertEquals(2, redis.connections());
+    }
+
+    private static final class ScriptedRedis {
+        private final ServerSocket server;
+        private final BlockingQueue<String> replies = new LinkedBlockingQueue<String>();
+        private final BlockingQueue<String> commands = new LinkedBlockingQueue<String>();
+        private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+        // Recorded, but never replied to
+        private volatile String unanswered;
+        private static final String HANG_UP = "\u0000hang up";
+
+        ScriptedRedis() {
+            try {
+                server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!server.isClosed()) {
+                        try {
+                            final Socket socket = server.accept();
+                            sockets.add(socket);
+                            Thread connection = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    serve(socket);
+                                }
+                            }, "ScriptedRedis-connection");
+                            connection.setDaemon(true);
+                            connection.start();
+                        } catch (IOException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "ScriptedRedis");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        int connections() {
+            return sockets.size();
+        }
+
+        void reply(String... replies) {
+            this.replies.addAll(Arrays.asList(replies));
+        }
+
+        void leaveUnanswered(String command) {
+            unanswered = command;
+        }
+
+        void replyAndHangUp(String reply) {
+            replies.add(reply);
+            replies.add(HANG_UP);
+        }
+
+        String nextCommand() throws InterruptedException {
+            String command = commands.poll(5, TimeUnit.SECONDS);
+            assertNotNull(command, "no command received");
+            return command;
+        }
+
+        void close() throws IOException {
+            server.close();
+            for (Socket socket : sockets) socket.close();
+        }
+
+        private void serve(Socket socket) {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                while (true) {
+                    String command = readCommand(in);
+                    if (command == null) return;
+                    commands.add(command);
+                    if (command.equals(unanswered)) continue;
+                    String reply = replies.poll(5, TimeUnit.SECONDS);
+                    if (reply == null) return;
+                    out.write(reply.getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                    if (HANG_UP.equals(replies.peek())) {
+                        replies.poll();
+                        socket.close();
+                        return;
+                    }
+                }
+            } catch (IOException | InterruptedException ignored) {
+            }
+        }
+
+        // One command (an array of bulk strings) as the raw bytes received, or null at end of stream
+        private static String readCommand(InputStream in) throws IOException {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            String header = readLine(in, raw);
+            if (header == null) return null;
+            if (!header.startsWith("*")) throw new IOException("Not an array: " + header);
+            int count = Integer.parseInt(header.substring(1));
+            for (int i = 0; i < count; i++) {
+                String length = readLine(in, raw);
+                if (length == null || !length.startsWith("$")) throw new IOException("Not a bulk string: " + length);
+                int n = Integer.parseInt(length.substring(1));
+                for (int j = 0; j < n + 2; j++) {
+                    int b = in.read();
+                    if (b < 0) throw new IOException("Truncated command");
+                    raw.write(b);
+                }
+            }
+            return new String(raw.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+
+        // A CRLF-terminated line without the CRLF, or null at end of stream
+        private static String readLine(InputStream in, ByteArrayOutputStream raw) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(16);
+            int b;
+            while ((b = in.read()) != '\r') {
+                if (b < 0) return null;
+                line.write(b);
+            }
+            if (in.read() != '\n') throw new IOException("Malformed line");
+            raw.write(line.toByteArray());
+            raw.write('\r');
+            raw.write('\n');
+            return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+    }
+}
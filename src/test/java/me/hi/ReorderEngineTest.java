@@ -0,0 +1,451 @@
+package me.hi;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Checks ReorderEngine against the list/comparator implementation it replaced (reorderToPreferencesRanked and
+ * its helpers, kept below as the oracle). Both must produce exactly the same layout for every input.
+ */
+class ReorderEngineTest {
+    private static final int SLOTS = 36;
+
+    private static InventorySorter.ItemRules previousRules;
+    private static final List<InventorySorter.ItemSignature> UNIVERSE = new ArrayList<InventorySorter.ItemSignature>();
+
+    @BeforeAll
+    static void loadRules() throws Exception {
+        previousRules = InventorySorter.ItemRules.current();
+        InputStream in = ReorderEngineTest.class.getResourceAsStream("/item_rules.yml");
+        assertNotNull(in, "item_rules.yml not on the test class path");
+        try {
+            InventorySorter.ItemRules.install(InventorySorter.ItemRules.compile(
+                    YamlConfiguration.loadConfiguration(new InputStreamReader(in, StandardCharsets.UTF_8))));
+        } finally {
+            in.close();
+        }
+
+        // Several signatures per family, with equal and different scores
+        Material[] materials = {
+                Material.WOOD_SWORD, Material.STONE_SWORD, Material.IRON_SWORD, Material.DIAMOND_SWORD,
+                Material.IRON_AXE, Material.IRON_PICKAXE, Material.IRON_SPADE, Material.BOW, Material.FISHING_ROD,
+                Material.COOKED_BEEF, Material.GOLDEN_APPLE, Material.ARROW, Material.SHEARS, Material.BUCKET
+        };
+        for (Material mat : materials) {
+            UNIVERSE.add(sig(mat, null));
+            UNIVERSE.add(sig(mat, "Kit " + mat.name()));
+        }
+        UNIVERSE.add(enchanted(Material.DIAMOND_SWORD, "DAMAGE_ALL", 1));
+        UNIVERSE.add(enchanted(Material.DIAMOND_SWORD, "DAMAGE_ALL", 3));
+        UNIVERSE.add(enchanted(Material.IRON_SWORD, "KNOCKBACK", 2));
+        UNIVERSE.add(enchanted(Material.BOW, "ARROW_DAMAGE", 2));
+        UNIVERSE.add(potion("INSTANT_HEAL", 1, false, true));
+        UNIVERSE.add(potion("INSTANT_HEAL", 2, false, true));
+        UNIVERSE.add(potion("SPEED", 1, true, false));
+    }
+
+    @AfterAll
+    static void restoreRules() {
+        InventorySorter.ItemRules.install(previousRules);
+    }
+
+    @Test
+    void matchesBaselineOnRandomInventories() {
+        Random random = new Random(0x5EEDL);
+        for (int run = 0; run < 5000; run++) {
+            Case c = randomCase(random);
+            assertSamePlan(c, "random case " + run);
+        }
+    }
+
+    @Test
+    void equalRankAndRecencyKeepsSlotOrder() {
+        InventorySorter.ItemSignature a = sig(Material.IRON_SWORD, "A");
+        InventorySorter.ItemSignature b = sig(Material.IRON_SWORD, "B");
+        Case c = new Case();
+        c.slots[20] = a;
+        c.slots[5] = b;
+        c.prefer(a, 0);
+        c.prefer(b, 0);
+        c.recency.put(a, 0, 100L);
+        c.recency.put(b, 0, 100L);
+
+        int[] plan = assertSamePlan(c, "tie");
+        assertEquals(5, plan[0]);   // b comes first in slot order
+        assertEquals(20, plan[9]);  // a lost and falls back to 9
+    }
+
+    @Test
+    void higherRankThenNewerSaveWins() {
+        InventorySorter.ItemSignature wood = sig(Material.WOOD_SWORD, null);
+        InventorySorter.ItemSignature diamond = sig(Material.DIAMOND_SWORD, null);
+        InventorySorter.ItemSignature iron1 = sig(Material.IRON_SWORD, "one");
+        InventorySorter.ItemSignature iron2 = sig(Material.IRON_SWORD, "two");
+        Case c = new Case();
+        c.slots[0] = wood;
+        c.slots[1] = diamond;
+        c.slots[2] = iron1;
+        c.slots[3] = iron2;
+        c.prefer(wood, 0);
+        c.prefer(diamond, 0);
+        c.prefer(iron1, 4);
+        c.prefer(iron2, 4);
+        c.recency.put(wood, 0, 500L);
+        c.recency.put(diamond, 0, 1L);
+        c.recency.put(iron1, 4, 10L);
+        c.recency.put(iron2, 4, 20L);
+
+        int[] plan = assertSamePlan(c, "rank");
+        assertEquals(1, plan[0]);
+        assertEquals(3, plan[4]);
+    }
+
+    @Test
+    void outOfRangePreferencesOnlyMakeALoser() {
+        InventorySorter.ItemSignature bow = sig(Material.BOW, null);
+        InventorySorter.ItemSignature beef = sig(Material.COOKED_BEEF, null);
+        Case c = new Case();
+        c.slots[0] = beef;
+        c.slots[4] = bow;
+        c.prefer(bow, -1, 36, 40);
+
+        int[] plan = assertSamePlan(c, "out of range");
+        assertEquals(4, plan[9]);  // bow has (unusable) preferences, so it is a loser
+        assertEquals(0, plan[0]);  // beef has none and fills the first free slot
+    }
+
+    @Test
+    void zeroAndNegativeTimestamps() {
+        InventorySorter.ItemSignature a = sig(Material.STONE_SWORD, "a");
+        InventorySorter.ItemSignature b = sig(Material.STONE_SWORD, "b");
+        InventorySorter.ItemSignature c1 = sig(Material.STONE_SWORD, "c");
+        Case c = new Case();
+        c.slots[7] = a;
+        c.slots[8] = b;
+        c.slots[9] = c1;
+        c.prefer(a, 2, 3);
+        c.prefer(b, 2, 3);
+        c.prefer(c1, 2, 3);
+        c.recency.put(a, 2, 0L);
+        c.recency.put(b, 2, -3L);
+        c.recency.put(b, 3, 0L);
+        c.recency.put(c1, 3, -1L);
+
+        assertSamePlan(c, "zero timestamps");
+
+        // Family history saved at 0 or below is treated as 1
+        InventorySorter.ItemSignature arrows = sig(Material.ARROW, null);
+        Case h = new Case();
+        h.slots[30] = arrows;
+        h.slots[31] = arrows;
+        h.history.add(12, sig(Material.ARROW, "old"), 0L);
+        h.history.add(14, sig(Material.ARROW, "older"), -20L);
+        assertSamePlan(h, "zero history");
+    }
+
+    @Test
+    void familyFallbackUsesSlotHistory() {
+        InventorySorter.ItemSignature iron = sig(Material.IRON_SWORD, null);
+        InventorySorter.ItemSignature rod = sig(Material.FISHING_ROD, null);
+        Case c = new Case();
+        c.slots[20] = iron;
+        c.slots[21] = rod;
+        c.history.add(3, sig(Material.DIAMOND_SWORD, null), 50L);
+        c.history.add(6, sig(Material.STONE_SWORD, null), 80L);
+        c.history.add(6, sig(Material.COOKED_BEEF, null), 90L);
+        c.history.add(1, sig(Material.FISHING_ROD, "rod"), 10L);
+        // An exact preference takes precedence over the family
+        c.prefer(rod, 2);
+
+        int[] plan = assertSamePlan(c, "family fallback");
+        assertEquals(20, plan[3]);
+        assertEquals(21, plan[2]);
+    }
+
+    @Test
+    void fullInventoryWithContention() {
+        InventorySorter.ItemSignature arrows = sig(Material.ARROW, null);
+        Case c = new Case();
+        for (int slot = 0; slot < SLOTS; slot++) c.slots[slot] = arrows;
+        c.prefer(arrows, 8, 0, 35, 0);
+        c.recency.put(arrows, 8, 5L);
+        assertSamePlan(c, "full");
+    }
+
+    private static int[] assertSamePlan(Case c, String label) {
+        int[] expected = baselinePlan(c.slots, c.preferences, c.history, c.recency);
+        InventorySorter.ReorderEngine engine = InventorySorter.ReorderEngine.get();
+        int[] actual;
+        try {
+            actual = engine.plan(c.slots, c.preferences, c.history, c.recency).clone();
+        } finally {
+            engine.release();
+        }
+        assertArrayEquals(expected, actual, label);
+        return actual;
+    }
+
+    private static Case randomCase(Random random) {
+        Case c = new Case();
+        int distinct = 1 + random.nextInt(12);
+        List<InventorySorter.ItemSignature> present = new ArrayList<InventorySorter.ItemSignature>();
+        for (int i = 0; i < distinct; i++) present.add(UNIVERSE.get(random.nextInt(UNIVERSE.size())));
+
+        int fill = random.nextInt(SLOTS + 1);
+        for (int i = 0; i < fill; i++) {
+            c.slots[random.nextInt(SLOTS)] = present.get(random.nextInt(present.size()));
+        }
+
+        // Small timestamp range so equal recencies (ties) are common; includes 0 and negatives
+        for (InventorySorter.ItemSignature sig : present) {
+            if (random.nextInt(3) == 0) continue;
+            int n = random.nextInt(5);
+            Integer[] prefs = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                // Mostly valid slots, sometimes out of range or duplicated
+                prefs[i] = random.nextInt(10) == 0 ? -2 + random.nextInt(3) * 20 : random.nextInt(SLOTS);
+                if (random.nextBoolean()) c.recency.put(sig, prefs[i], random.nextInt(6) - 1);
+            }
+            c.preferences.put(sig, Arrays.asList(prefs));
+        }
+        int saves = random.nextInt(40);
+        for (int i = 0; i < saves; i++) {
+            InventorySorter.ItemSignature sig = UNIVERSE.get(random.nextInt(UNIVERSE.size()));
+            c.history.add(random.nextInt(SLOTS), sig, random.nextInt(8) - 2);
+            if (random.nextInt(4) == 0) c.recency.put(sig, random.nextInt(SLOTS), random.nextInt(6) - 1);
+        }
+        return c;
+    }
+
+    private static InventorySorter.ItemSignature sig(Material mat, String name) {
+        return InventorySorter.ItemSignature.intern(mat, null, name, null);
+    }
+
+    private static InventorySorter.ItemSignature enchanted(Material mat, String enchant, int level) {
+        TreeMap<String, Integer> ench = new TreeMap<String, Integer>();
+        ench.put(enchant, level);
+        return InventorySorter.ItemSignature.intern(mat, null, null, ench);
+    }
+
+    private static InventorySorter.ItemSignature potion(String type, int level, boolean extended, boolean splash) {
+        String key = type + ":lvl=" + level + ":ext=" + (extended ? "1" : "0") + ":splash=" + (splash ? "1" : "0");
+        return InventorySorter.ItemSignature.intern(Material.POTION, key, null, null);
+    }
+
+    private static final class Case {
+        final InventorySorter.ItemSignature[] slots = new InventorySorter.ItemSignature[SLOTS];
+        final Map<InventorySorter.ItemSignature, List<Integer>> preferences = new HashMap<InventorySorter.ItemSignature, List<Integer>>();
+        final InventorySorter.SlotHistory history = new InventorySorter.SlotHistory();
+        final InventorySorter.SignatureSlotRecency recency = new InventorySorter.SignatureSlotRecency();
+
+        void prefer(InventorySorter.ItemSignature sig, Integer... slots) {
+            preferences.put(sig, Arrays.asList(slots));
+        }
+    }
+
+    // ---- Oracle: reorderToPreferencesRanked as it was before ReorderEngine, returning source[newSlot] ----
+
+    private static final class RankedItem {
+        final int index;
+        final int slot;
+        final InventorySorter.ItemSignature sig;
+        final int rankScore;
+        final List<Integer> preferredSlots;
+
+        RankedItem(int index, int slot, InventorySorter.ItemSignature sig, int rankScore, List<Integer> preferredSlots) {
+            this.index = index;
+            this.slot = slot;
+            this.sig = sig;
+            this.rankScore = rankScore;
+            this.preferredSlots = preferredSlots;
+        }
+    }
+
+    private static final class SlotCandidate {
+        final int slot;
+        final long recency;
+
+        SlotCandidate(int slot, long recency) {
+            this.slot = slot;
+            this.recency = recency;
+        }
+    }
+
+    static int[] baselinePlan(InventorySorter.ItemSignature[] slots,
+                              Map<InventorySorter.ItemSignature, List<Integer>> preferences,
+                              InventorySorter.SlotHistory slotHistory,
+                              final InventorySorter.SignatureSlotRecency recency) {
+        int[] source = new int[SLOTS];
+        Arrays.fill(source, -1);
+        boolean[] occupied = new boolean[SLOTS];
+
+        List<RankedItem> ranked = new ArrayList<RankedItem>();
+        for (int slot = 0; slot < SLOTS; slot++) {
+            InventorySorter.ItemSignature sig = slots[slot];
+            if (sig == null) continue;
+            List<Integer> preferred = computePreferredSlotsForItem(sig, sig.family(), preferences, slotHistory, recency);
+            ranked.add(new RankedItem(ranked.size(), slot, sig, sig.score(), preferred));
+        }
+        if (ranked.isEmpty()) return source;
+
+        Map<Integer, List<RankedItem>> candidatesBySlot = new HashMap<Integer, List<RankedItem>>();
+        for (RankedItem ri : ranked) {
+            for (int target : ri.preferredSlots) {
+                if (target < 0 || target > 35) continue;
+                List<RankedItem> list = candidatesBySlot.get(target);
+                if (list == null) {
+                    list = new ArrayList<RankedItem>();
+                    candidatesBySlot.put(target, list);
+                }
+                list.add(ri);
+            }
+        }
+
+        Set<Integer> assignedItemIdx = new HashSet<Integer>();
+        for (int slot = 0; slot <= 35; slot++) {
+            List<RankedItem> cands = candidatesBySlot.get(slot);
+            if (cands == null || cands.isEmpty()) continue;
+            final int target = slot;
+            Collections.sort(cands, new Comparator<RankedItem>() {
+                @Override
+                public int compare(RankedItem a, RankedItem b) {
+                    if (a.rankScore != b.rankScore) return a.rankScore > b.rankScore ? -1 : 1;
+                    long ta = recency.get(a.sig, target);
+                    long tb = recency.get(b.sig, target);
+                    if (ta != tb) return ta > tb ? -1 : 1;
+                    return a.index - b.index;
+                }
+            });
+            RankedItem winner = null;
+            for (RankedItem ri : cands) {
+                if (!assignedItemIdx.contains(ri.index)) {
+                    winner = ri;
+                    break;
+                }
+            }
+            if (winner != null) {
+                source[slot] = winner.slot;
+                occupied[slot] = true;
+                assignedItemIdx.add(winner.index);
+            }
+        }
+
+        List<RankedItem> losers = new ArrayList<RankedItem>();
+        for (RankedItem ri : ranked) {
+            if (assignedItemIdx.contains(ri.index)) continue;
+            if (!ri.preferredSlots.isEmpty()) losers.add(ri);
+        }
+        Collections.sort(losers, new Comparator<RankedItem>() {
+            @Override
+            public int compare(RankedItem a, RankedItem b) {
+                long aBest = bestRecencyForAnyPreferredSlot(a, recency);
+                long bBest = bestRecencyForAnyPreferredSlot(b, recency);
+                if (aBest != bBest) return aBest < bBest ? -1 : 1;
+                if (a.rankScore != b.rankScore) return a.rankScore < b.rankScore ? -1 : 1;
+                return a.index - b.index;
+            }
+        });
+
+        List<Integer> fallbackSlots = new ArrayList<Integer>();
+        for (int i = 9; i <= 35; i++) if (!occupied[i]) fallbackSlots.add(i);
+        int fIdx = 0;
+        for (RankedItem loser : losers) {
+            if (fIdx >= fallbackSlots.size()) break;
+            int slot = fallbackSlots.get(fIdx++);
+            source[slot] = loser.slot;
+            occupied[slot] = true;
+            assignedItemIdx.add(loser.index);
+        }
+
+        List<Integer> remainingSlots = new ArrayList<Integer>();
+        for (int i = 0; i <= 35; i++) if (!occupied[i]) remainingSlots.add(i);
+        for (RankedItem ri : ranked) {
+            if (assignedItemIdx.contains(ri.index)) continue;
+            if (remainingSlots.isEmpty()) break;
+            int slot = remainingSlots.remove(0);
+            source[slot] = ri.slot;
+            occupied[slot] = true;
+            assignedItemIdx.add(ri.index);
+        }
+        return source;
+    }
+
+    private static long bestRecencyForAnyPreferredSlot(RankedItem ri, InventorySorter.SignatureSlotRecency recency) {
+        long best = Long.MIN_VALUE;
+        for (int s : ri.preferredSlots) {
+            long ts = recency.get(ri.sig, s);
+            if (ts > best) best = ts;
+        }
+        return best == Long.MIN_VALUE ? 0L : best;
+    }
+
+    private static List<Integer> computePreferredSlotsForItem(final InventorySorter.ItemSignature sig,
+                                                              InventorySorter.ItemFamily family,
+                                                              Map<InventorySorter.ItemSignature, List<Integer>> preferences,
+                                                              InventorySorter.SlotHistory slotHistory,
+                                                              final InventorySorter.SignatureSlotRecency recency) {
+        List<Integer> exact = preferences.get(sig);
+        if (exact != null && !exact.isEmpty()) {
+            List<Integer> sorted = new ArrayList<Integer>(exact);
+            Collections.sort(sorted, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    long ta = recency.get(sig, a);
+                    long tb = recency.get(sig, b);
+                    if (ta == tb) return 0;
+                    return ta > tb ? -1 : 1;
+                }
+            });
+            return sorted;
+        }
+
+        List<SlotCandidate> cands = new ArrayList<SlotCandidate>();
+        for (int slot = 0; slot <= 35; slot++) {
+            int n = slotHistory.size(slot);
+            if (n == 0) continue;
+            long best = Long.MIN_VALUE;
+            boolean any = false;
+            for (int i = 0; i < n; i++) {
+                InventorySorter.ItemSignature saved = InventorySorter.ItemSignature.byId(slotHistory.sigIdAt(slot, i));
+                if (saved != null && saved.family() == family) {
+                    any = true;
+                    long savedAt = slotHistory.timeAt(slot, i);
+                    if (savedAt > best) best = savedAt;
+                }
+            }
+            if (any) cands.add(new SlotCandidate(slot, best <= 0 ? 1L : best));
+        }
+        Collections.sort(cands, new Comparator<SlotCandidate>() {
+            @Override
+            public int compare(SlotCandidate a, SlotCandidate b) {
+                if (a.recency == b.recency) return 0;
+                return a.recency > b.recency ? -1 : 1;
+            }
+        });
+        List<Integer> familySlots = new ArrayList<Integer>();
+        for (SlotCandidate sc : cands) familySlots.add(sc.slot);
+        return familySlots;
+    }
+}
@@ -0,0 +1,157 @@
+package me.hi;
+
+import org.bukkit.Material;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The SQLite backend on its own and under a PreferenceStore: what is written is read back after a reopen, shards are
+ * imported, and undecodable rows are moved to preferences_corrupt.
+ */
+class SqlitePreferenceBackendTest {
+    private static final UUID PLAYER = UUID.fromString("71c9e4b0-3d2a-4f86-95e1-a08b6c3d7f52");
+    private static final UUID OTHER = UUID.fromString("2a6f8d13-c4e7-4b90-8e25-d9f17a3c0b64");
+
+    @TempDir
+    File dir;
+
+    @Test
+    void rowsSurviveReopen() throws Exception {
+        SqlitePreferenceBackend backend = new SqlitePreferenceBackend(database());
+        long before = System.currentTimeMillis();
+        Map<UUID, byte[]> batch = new LinkedHashMap<UUID, byte[]>();
+        batch.put(PLAYER, new byte[]{1, 2, 3});
+        batch.put(OTHER, new byte[]{4});
+        backend.upsert(batch);
+        backend.upsert(Collections.singletonMap(PLAYER, new byte[]{5, 6}));
+        long after = System.currentTimeMillis();
+        assertEquals("sqlite", backend.name());
+        assertEquals(new HashSet<UUID>(Arrays.asList(PLAYER, OTHER)), new HashSet<UUID>(backend.players()));
+        assertTrue(backend.lastWritten(PLAYER) >= before && backend.lastWritten(PLAYER) <= after);
+        backend.delete(OTHER);
+        assertNull(backend.load(OTHER));
+        assertEquals(0L, backend.lastWritten(OTHER));
+        backend.close();
+
+        SqlitePreferenceBackend reopened = new SqlitePreferenceBackend(database());
+        try {
+            assertArrayEquals(new byte[]{5, 6}, reopened.load(PLAYER));
+            assertNull(reopened.load(OTHER));
+            assertEquals(Collections.singletonList(PLAYER), new ArrayList<UUID>(reopened.players()));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void storeRoundTripsThroughSqlite() throws Exception {
+        // A shard left from the shards backend is imported on the first start
+        InventorySorter.Layout layout = InventorySorter.Layout.acquire(prefs(Material.BOW, 1));
+        try {
+            new ShardFileBackend(dir).upsert(Collections.singletonMap(OTHER, InventorySorter.PrefsCodec.encode(layout,
+                    new InventorySorter.SlotHistory(), new InventorySorter.SignatureSlotRecency(), false)));
+        } finally {
+            layout.release();
+        }
+        InventorySorter.ItemSignature[] snapshot = new InventorySorter.ItemSignature[InventorySorter.SlotHistory.SLOTS];
+        snapshot[0] = sig(Material.DIAMOND_SWORD);
+        snapshot[1] = sig(Material.BOW);
+
+        InventorySorter.PreferenceStore store = open();
+        int[] plan;
+        try {
+            assertEquals("sqlite", store.backendName());
+            assertTrue(new ShardFileBackend(dir).players().isEmpty());
+            store.load(PLAYER);
+            store.savePreferences(PLAYER, prefs(Material.BOW, 0, Material.DIAMOND_SWORD, 1));
+            store.saveSlotHistory(PLAYER, snapshot, 1700000000000L);
+            plan = store.plan(PLAYER, snapshot);
+        } finally {
+            store.close();
+        }
+
+        InventorySorter.PreferenceStore reopened = open();
+        try {
+            reopened.load(PLAYER);
+            reopened.load(OTHER);
+            assertEquals(prefs(Material.BOW, 0, Material.DIAMOND_SWORD, 1), reopened.getPreferences(PLAYER));
+            assertTrue(reopened.hasAnySlotHistory(PLAYER));
+            assertArrayEquals(plan, reopened.plan(PLAYER, snapshot));
+            assertEquals(prefs(Material.BOW, 1), reopened.getPreferences(OTHER));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void undecodableRowIsMovedAside() throws Exception {
+        SqlitePreferenceBackend backend = new SqlitePreferenceBackend(database());
+        backend.upsert(Collections.singletonMap(PLAYER, new byte[]{(byte) 0xff, 0x13, 0x37}));
+        backend.close();
+
+        InventorySorter.PreferenceStore store = open();
+        try {
+            store.load(PLAYER);
+            assertTrue(store.isLoaded(PLAYER));
+            assertEquals(Collections.emptyMap(), store.getPreferences(PLAYER));
+        } finally {
+            store.close();
+        }
+
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + database().getAbsolutePath());
+        try {
+            Statement statement = connection.createStatement();
+            ResultSet rs = statement.executeQuery("SELECT uuid, data FROM preferences_corrupt");
+            assertTrue(rs.next());
+            assertEquals(PLAYER.toString(), rs.getString(1));
+            assertArrayEquals(new byte[]{(byte) 0xff, 0x13, 0x37}, rs.getBytes(2));
+            rs.close();
+            rs = statement.executeQuery("SELECT COUNT(*) FROM preferences WHERE uuid = '" + PLAYER + "'");
+            assertTrue(rs.next());
+            assertEquals(0, rs.getInt(1));
+            rs.close();
+            statement.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private File database() {
+        return new File(dir, "preferences.db");
+    }
+
+    private InventorySorter.PreferenceStore open() {
+        return new InventorySorter.PreferenceStore(dir, null, "sqlite", 0, 0L, 0L, null);
+    }
+
+    private static InventorySorter.ItemSignature sig(Material mat) {
+        return InventorySorter.ItemSignature.intern(mat, null, null, null);
+    }
+
+    private static Map<InventorySorter.ItemSignature, List<Integer>> prefs(Object... matSlots) {
+        Map<InventorySorter.ItemSignature, List<Integer>> prefs = new LinkedHashMap<InventorySorter.ItemSignature, List<Integer>>();
+        for (int i = 0; i < matSlots.length; i += 2) {
+            prefs.put(sig((Material) matSlots[i]), new ArrayList<Integer>(Arrays.asList((Integer) matSlots[i + 1])));
+        }
+        return prefs;
+    }
+}